@@ -17,7 +17,6 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -27,6 +26,7 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.ReportService;
 import org.openmrs.cohort.CohortDefinition;
 import org.openmrs.report.EvaluationContext;
+import org.openmrs.util.IntegerBitmapSet;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 import org.simpleframework.xml.ElementList;
@@ -76,7 +76,7 @@ public class Cohort implements Serializable {
 	private EvaluationContext evaluationContext;
 	
 	public Cohort() {
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 	}
 	
 	/**
@@ -86,7 +86,7 @@ public class Cohort implements Serializable {
 	 * @param cohortId the internal identifier for this cohort
 	 */
 	public Cohort(Integer cohortId) {
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 		this.cohortId = cohortId;
 	}
 	
@@ -101,7 +101,7 @@ public class Cohort implements Serializable {
 	public Cohort(String name, String description, Integer[] ids) {
 		this.name = name;
 		this.description = description;
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 		if (ids != null)
 			memberIds.addAll(Arrays.asList(ids));
 	}
@@ -117,7 +117,7 @@ public class Cohort implements Serializable {
 	public Cohort(String name, String description, Patient[] patients) {
 		this.name = name;
 		this.description = description;
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 		if (patients != null)
 			for (Patient p : patients)
 				memberIds.add(p.getPatientId());
@@ -148,7 +148,7 @@ public class Cohort implements Serializable {
 	public Cohort(String name, String description, Collection patientsOrIds) {
 		this.name = name;
 		this.description = description;
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 		if (patientsOrIds != null) {
 			for (Object o : patientsOrIds) {
 				if (o instanceof Patient)
@@ -169,7 +169,7 @@ public class Cohort implements Serializable {
 	 * @param commaSeparatedIds
 	 */
 	public Cohort(String commaSeparatedIds) {
-		memberIds = new HashSet<Integer>();
+		memberIds = new IntegerBitmapSet();
 		for (StringTokenizer st = new StringTokenizer(commaSeparatedIds, ","); st.hasMoreTokens();) {
 			String id = st.nextToken();
 			memberIds.add(new Integer(id.trim()));
@@ -259,9 +259,11 @@ public class Cohort implements Serializable {
 	public static Cohort union(Cohort a, Cohort b) {
 		Cohort ret = new Cohort();
 		ret.setName("(" + a.getName() + " + " + b.getName() + ")");
-		if (a != null)
+		if (a != null && b != null)
+			ret.setMemberIds(IntegerBitmapSet.or(a.getMemberBitmap(), b.getMemberBitmap()));
+		else if (a != null)
 			ret.getMemberIds().addAll(a.getMemberIds());
-		if (b != null)
+		else if (b != null)
 			ret.getMemberIds().addAll(b.getMemberIds());
 		return ret;
 	}
@@ -276,10 +278,8 @@ public class Cohort implements Serializable {
 	public static Cohort intersect(Cohort a, Cohort b) {
 		Cohort ret = new Cohort();
 		ret.setName("(" + a.getName() + " * " + b.getName() + ")");
-		if (a != null && b != null) {
-			ret.getMemberIds().addAll(a.getMemberIds());
-			ret.getMemberIds().retainAll(b.getMemberIds());
-		}
+		if (a != null && b != null)
+			ret.setMemberIds(IntegerBitmapSet.and(a.getMemberBitmap(), b.getMemberBitmap()));
 		return ret;
 	}
 	
@@ -294,9 +294,10 @@ public class Cohort implements Serializable {
 		Cohort ret = new Cohort();
 		ret.setName("(" + a.getName() + " - " + b.getName() + ")");
 		if (a != null) {
-			ret.getMemberIds().addAll(a.getMemberIds());
 			if (b != null)
-				ret.getMemberIds().removeAll(b.getMemberIds());
+				ret.setMemberIds(IntegerBitmapSet.andNot(a.getMemberBitmap(), b.getMemberBitmap()));
+			else
+				ret.getMemberIds().addAll(a.getMemberIds());
 		}
 		return ret;
 	}
@@ -406,6 +407,17 @@ public class Cohort implements Serializable {
 		return memberIds;
 	}
 	
+	/**
+	 * Returns the members of this cohort as an {@link IntegerBitmapSet}. If the member set is already
+	 * stored that way it is returned as-is (so modifying it modifies this cohort), otherwise (e.g.
+	 * for a cohort loaded from the database) a compressed copy is returned.
+	 * 
+	 * @return the memberIds as a bitmap
+	 */
+	public IntegerBitmapSet getMemberBitmap() {
+		return IntegerBitmapSet.valueOf(getMemberIds());
+	}
+	
 	/**
 	 * This method is only here for some backwards compatibility with the PatientSet object that
 	 * this Cohort object replaced. Do not use this method.
@@ -24,6 +24,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -60,6 +63,11 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	
 	public static final Log log = LogFactory.getLog(Concept.class);
 	
+	/**
+	 * Marks a name lookup that found nothing in the name cache
+	 */
+	private static final ConceptName NO_NAME = new ConceptName();
+	
 	// Fields
 	
 	private Integer conceptId;
@@ -99,10 +107,10 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	private Collection<ConceptMap> conceptMappings;
 	
 	/**
-	 * A cache of locales to names which have compatible locales. Built on-the-fly by
-	 * getCompatibleNames().
+	 * Per-locale name lookups, built on the fly by {@link #getNameCache()} and dropped whenever the
+	 * names change
 	 */
-	private Map<Locale, List<ConceptName>> compatibleCache;
+	private transient volatile NameCache nameCache;
 	
 	/** default constructor */
 	public Concept() {
@@ -447,14 +455,9 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @return matching concept-name, or null if none found
 	 */
 	public ConceptName getNameKnownAs(String term, Locale inLocale) {
-		ConceptName foundName = null;
-		for (ConceptName possibleName : getNames()) {
-			if (possibleName.getName().equals(term) && possibleName.getLocale().equals(inLocale)) {
-				foundName = possibleName;
-				break;
-			}
-		}
-		return foundName;
+		if (term == null || inLocale == null)
+			return null;
+		return getNameCache().getLocaleNames(inLocale).namesByTerm.get(term);
 	}
 	
 	/**
@@ -559,14 +562,17 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 *             {@link Concept#getBestName(Locale) to get the best match for a locale.
 	 */
 	public ConceptName getName(Locale locale, boolean exact) {
-		
-		// fail early if this concept has no names defined
-		if (getNames().size() == 0) {
-			if (log.isDebugEnabled())
-				log.debug("there are no names defined for: " + conceptId);
+		LocaleNames localeNames = getLocaleNames(locale);
+		if (localeNames == null)
 			return null;
-		}
-		
+		return localeNames.get(exact ? LocaleNames.EXACT_NAME : LocaleNames.NAME);
+	}
+	
+	/**
+	 * Does the work of {@link #getName(Locale, boolean)} for the name cache
+	 */
+	private ConceptName findName(Locale locale, boolean exact, List<ConceptName> compatibleNames,
+	                             Collection<ConceptName> allNames) {
 		if (log.isDebugEnabled())
 			log.debug("Getting conceptName for locale: " + locale);
 		
@@ -575,13 +581,10 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 		ConceptName bestMatch = null; // name from compatible locale, may not
 		// be preferred
 		
-		if (locale == null)
-			locale = Context.getLocale(); // Don't presume en_US;
-			
 		ConceptNameTag desiredLanguageTag = ConceptNameTag.preferredLanguageTagFor(locale);
 		ConceptNameTag desiredCountryTag = ConceptNameTag.preferredCountryTagFor(locale);
 		
-		for (ConceptName possibleName : getCompatibleNames(locale)) {
+		for (ConceptName possibleName : compatibleNames) {
 			if (locale.equals(possibleName.getLocale()) && possibleName.hasTag(ConceptNameTag.PREFERRED)) {
 				exactMatch = possibleName;
 				break;
@@ -628,8 +631,8 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 		ConceptName defaultName = null; // any available name for the concept
 		
 		// populate defaultName with the first concept name
-		if (getNames() != null && getNames().size() > 0)
-			defaultName = (ConceptName) getNames().toArray()[0];
+		if (allNames.size() > 0)
+			defaultName = allNames.iterator().next();
 		
 		if (defaultName == null) {
 			log.error("No concept names exist for concept id: " + conceptId);
@@ -648,25 +651,25 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @return preferred name for the locale, or null if none is tagged as such
 	 */
 	public ConceptName getPreferredName(Locale forLocale) {
-		// fail early if this concept has no names defined
-		if (getNames().size() == 0) {
-			if (log.isDebugEnabled())
-				log.debug("there are no names defined for: " + conceptId);
+		LocaleNames localeNames = getLocaleNames(forLocale);
+		if (localeNames == null)
 			return null;
-		}
-		
+		return localeNames.get(LocaleNames.PREFERRED_NAME);
+	}
+	
+	/**
+	 * Does the work of {@link #getPreferredName(Locale)} for the name cache
+	 */
+	private ConceptName findPreferredName(Locale forLocale, List<ConceptName> compatibleNames) {
 		if (log.isDebugEnabled())
 			log.debug("Getting preferred conceptName for locale: " + forLocale);
 		
 		ConceptName preferredName = null; // name which exactly match the locale
 		// and is preferred
-		if (forLocale == null)
-			forLocale = Context.getLocale(); // Don't presume en_US;
-			
 		ConceptNameTag desiredLanguageTag = ConceptNameTag.preferredLanguageTagFor(forLocale);
 		ConceptNameTag desiredCountryTag = ConceptNameTag.preferredCountryTagFor(forLocale);
 		
-		for (ConceptName possibleName : getCompatibleNames(forLocale)) {
+		for (ConceptName possibleName : compatibleNames) {
 			if (forLocale.equals(possibleName.getLocale()) && possibleName.hasTag(ConceptNameTag.PREFERRED)) {
 				preferredName = possibleName;
 				break;
@@ -714,30 +717,27 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @return best name
 	 */
 	public ConceptName getBestName(Locale locale) {
-		
-		// fail early if this concept has no names defined
-		if (getNames().size() == 0) {
-			if (log.isDebugEnabled())
-				log.debug("there are no names defined for: " + conceptId);
+		LocaleNames localeNames = getLocaleNames(locale);
+		if (localeNames == null)
 			return null;
-		}
-		
+		return localeNames.get(LocaleNames.BEST_NAME);
+	}
+	
+	/**
+	 * Does the work of {@link #getBestName(Locale)} for the name cache
+	 */
+	private ConceptName findBestName(Locale locale, List<ConceptName> compatibleNames, Collection<ConceptName> allNames) {
 		if (log.isDebugEnabled())
 			log.debug("Getting conceptName for locale: " + locale);
 		
 		ConceptName bestMatch = null;
 		
-		if (locale == null)
-			locale = Context.getLocale(); // Don't presume en_US;
-			
 		ConceptNameTag desiredLanguageTag = ConceptNameTag.preferredLanguageTagFor(locale);
 		ConceptNameTag desiredCountryTag = ConceptNameTag.preferredCountryTagFor(locale);
 		
-		List<ConceptName> compatibleNames = getCompatibleNames(locale);
-		
 		if (compatibleNames.size() == 0) {
 			// no compatible names, so return first available name
-			Iterator<ConceptName> nameIt = getNames().iterator();
+			Iterator<ConceptName> nameIt = allNames.iterator();
 			bestMatch = nameIt.next();
 		} else if (compatibleNames.size() == 1) {
 			bestMatch = compatibleNames.get(0);
@@ -791,11 +791,8 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 */
 	public Collection<ConceptName> getNames(Locale locale) {
 		Collection<ConceptName> localeNames = new Vector<ConceptName>();
-		for (ConceptName possibleName : getNames()) {
-			if (possibleName.getLocale().equals(locale)) {
-				localeNames.add(possibleName);
-			}
-		}
+		if (locale != null)
+			localeNames.addAll(getNameCache().getLocaleNames(locale).localeNames);
 		return localeNames;
 	}
 	
@@ -810,24 +807,7 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @should exclude incompatible language locales
 	 */
 	public List<ConceptName> getCompatibleNames(Locale desiredLocale) {
-		// lazy create the cache
-		List<ConceptName> compatibleNames = null;
-		if (compatibleCache == null) {
-			compatibleCache = new HashMap<Locale, List<ConceptName>>();
-		} else {
-			compatibleNames = compatibleCache.get(desiredLocale);
-		}
-		
-		if (compatibleNames == null) {
-			compatibleNames = new Vector<ConceptName>();
-			for (ConceptName possibleName : getNames()) {
-				if (LocaleUtility.areCompatible(possibleName.getLocale(), desiredLocale)) {
-					compatibleNames.add(possibleName);
-				}
-			}
-			compatibleCache.put(desiredLocale, compatibleNames);
-		}
-		return compatibleNames;
+		return getNameCache().getLocaleNames(desiredLocale).compatibleNames;
 	}
 	
 	/**
@@ -849,36 +829,34 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @return the best short name
 	 */
 	public ConceptName getBestShortName(Locale locale) {
-		
-		// fail early if this concept has no names defined
-		if (getNames().size() == 0) {
-			if (log.isDebugEnabled())
-				log.debug("there are no names defined for: " + conceptId);
+		LocaleNames localeNames = getLocaleNames(locale);
+		if (localeNames == null)
 			return null;
-		}
-		
+		return localeNames.get(LocaleNames.BEST_SHORT_NAME);
+	}
+	
+	/**
+	 * Does the work of {@link #getBestShortName(Locale)} for the name cache
+	 */
+	private ConceptName findBestShortName(Locale locale, List<ConceptName> compatibleNames,
+	                                      Collection<ConceptName> allNames) {
 		if (log.isDebugEnabled())
 			log.debug("Getting short conceptName for locale: " + locale);
 		
 		ConceptName bestMatch = null;
 		
-		if (locale == null)
-			locale = Context.getLocale(); // Don't presume en_US;
-			
 		ConceptNameTag desiredLanguageTag = ConceptNameTag.shortLanguageTagFor(locale);
 		ConceptNameTag desiredCountryTag = ConceptNameTag.shortCountryTagFor(locale);
 		
-		List<ConceptName> compatibleNames = getCompatibleNames(locale);
-		
 		if (compatibleNames.size() == 0) {
 			// no compatible names, so return first available name
-			Iterator<ConceptName> nameIt = getNames().iterator();
+			Iterator<ConceptName> nameIt = allNames.iterator();
 			bestMatch = nameIt.next();
 		} else if (compatibleNames.size() == 1) {
 			// only 1? it must be the best
 			bestMatch = compatibleNames.get(0);
 		} else {
-			for (ConceptName possibleName : getCompatibleNames(locale)) {
+			for (ConceptName possibleName : compatibleNames) {
 				if (desiredCountryTag != null) {
 					// country was specified, exact match must be preferred in country
 					if (possibleName.hasTag(desiredCountryTag)) {
@@ -1095,6 +1073,7 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	@ElementList
 	public void setNames(Collection<ConceptName> names) {
 		this.names = names;
+		nameCache = null;
 	}
 	
 	/**
@@ -1109,9 +1088,7 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 			names = new HashSet<ConceptName>();
 		if (conceptName != null && !names.contains(conceptName)) {
 			nameListWasModified = names.add(conceptName);
-			if (compatibleCache != null) {
-				compatibleCache.clear(); // clear the locale cache, forcing it to be rebuilt
-			}
+			nameCache = null; // clear the locale cache, forcing it to be rebuilt
 		}
 		return nameListWasModified;
 	}
@@ -1123,12 +1100,62 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 	 * @return true if the entity was removed, false otherwise
 	 */
 	public boolean removeName(ConceptName conceptName) {
+		nameCache = null;
 		if (names != null)
 			return names.remove(conceptName);
 		else
 			return false;
 	}
 	
+	/**
+	 * Drops the cached name lookups. {@link ConceptName} calls this when one of this concept's
+	 * names is changed. This is public and not final so that when the name points at a hibernate
+	 * proxy the call is passed on to the real concept instead of clearing the proxy's own field.
+	 * 
+	 * @should make name lookups see a renamed name
+	 */
+	public void clearNameCache() {
+		nameCache = null;
+	}
+	
+	/**
+	 * Gets the name lookups, building them if the names have changed since they were last built
+	 * 
+	 * @return the current name cache
+	 */
+	private NameCache getNameCache() {
+		NameCache cache = nameCache;
+		int namesSize = (names == null) ? 0 : names.size();
+		// the size check catches names added to or removed from getNames(true) directly
+		if (cache == null || cache.namesSize != namesSize) {
+			cache = new NameCache(getNames(), namesSize);
+			nameCache = cache;
+		}
+		return cache;
+	}
+	
+	/**
+	 * Gets the name lookups for a locale, as used by the getXxxName(Locale) methods
+	 * 
+	 * @param locale the desired locale (null for the context's locale)
+	 * @return the lookups, or null if this concept has no names
+	 */
+	private LocaleNames getLocaleNames(Locale locale) {
+		NameCache cache = getNameCache();
+		
+		// fail early if this concept has no names defined
+		if (cache.names.size() == 0) {
+			if (log.isDebugEnabled())
+				log.debug("there are no names defined for: " + conceptId);
+			return null;
+		}
+		
+		if (locale == null)
+			locale = Context.getLocale(); // Don't presume en_US;
+		
+		return cache.getLocaleNames(locale);
+	}
+	
 	/**
 	 * Finds the description of the concept using the current locale in Context.getLocale(). Returns
 	 * null if none found.
@@ -1457,6 +1484,121 @@ public class Concept implements java.io.Serializable, Attributable<Concept> {
 		}
 	}
 	
+	/**
+	 * A snapshot of this concept's (non voided) names with the lookups for each locale that has been
+	 * asked for. Safe to share between threads.
+	 */
+	private class NameCache {
+		
+		private final Collection<ConceptName> names;
+		
+		/**
+		 * the size of the names collection (voided names included) the snapshot was taken from
+		 */
+		private final int namesSize;
+		
+		private final ConcurrentMap<Locale, LocaleNames> locales = new ConcurrentHashMap<Locale, LocaleNames>();
+		
+		public NameCache(Collection<ConceptName> names, int namesSize) {
+			this.names = Collections.unmodifiableCollection(names);
+			this.namesSize = namesSize;
+		}
+		
+		public LocaleNames getLocaleNames(Locale locale) {
+			LocaleNames localeNames = locales.get(locale);
+			if (localeNames == null) {
+				// two threads may both build it, but they build the same thing
+				localeNames = new LocaleNames(locale, names);
+				locales.put(locale, localeNames);
+			}
+			return localeNames;
+		}
+	}
+	
+	/**
+	 * The names for one desired locale. The compatible and same-locale names are found up front;
+	 * the preferred, best, etc. names are each worked out the first time they are asked for and
+	 * then kept.
+	 */
+	private class LocaleNames {
+		
+		public static final int NAME = 0;
+		
+		public static final int EXACT_NAME = 1;
+		
+		public static final int PREFERRED_NAME = 2;
+		
+		public static final int BEST_NAME = 3;
+		
+		public static final int BEST_SHORT_NAME = 4;
+		
+		private final Locale locale;
+		
+		private final Collection<ConceptName> allNames;
+		
+		private final List<ConceptName> compatibleNames;
+		
+		/**
+		 * names in exactly this locale
+		 */
+		private final List<ConceptName> localeNames;
+		
+		/**
+		 * names in exactly this locale, by their name
+		 */
+		private final Map<String, ConceptName> namesByTerm;
+		
+		/**
+		 * the names found so far, indexed by NAME, EXACT_NAME, etc. (NO_NAME if there is none)
+		 */
+		private final AtomicReferenceArray<ConceptName> found = new AtomicReferenceArray<ConceptName>(5);
+		
+		public LocaleNames(Locale locale, Collection<ConceptName> allNames) {
+			this.locale = locale;
+			this.allNames = allNames;
+			
+			List<ConceptName> compatible = new Vector<ConceptName>();
+			List<ConceptName> exact = new Vector<ConceptName>();
+			Map<String, ConceptName> byTerm = new HashMap<String, ConceptName>();
+			for (ConceptName possibleName : allNames) {
+				if (LocaleUtility.areCompatible(possibleName.getLocale(), locale))
+					compatible.add(possibleName);
+				if (locale.equals(possibleName.getLocale())) {
+					exact.add(possibleName);
+					if (possibleName.getName() != null && !byTerm.containsKey(possibleName.getName()))
+						byTerm.put(possibleName.getName(), possibleName);
+				}
+			}
+			this.compatibleNames = Collections.unmodifiableList(compatible);
+			this.localeNames = Collections.unmodifiableList(exact);
+			this.namesByTerm = byTerm;
+		}
+		
+		public ConceptName get(int which) {
+			ConceptName name = found.get(which);
+			if (name == null) {
+				switch (which) {
+					case NAME:
+						name = findName(locale, false, compatibleNames, allNames);
+						break;
+					case EXACT_NAME:
+						name = findName(locale, true, compatibleNames, allNames);
+						break;
+					case PREFERRED_NAME:
+						name = findPreferredName(locale, compatibleNames);
+						break;
+					case BEST_NAME:
+						name = findBestName(locale, compatibleNames, allNames);
+						break;
+					default:
+						name = findBestShortName(locale, compatibleNames, allNames);
+				}
+				found.set(which, name == null ? NO_NAME : name);
+			}
+			return name == NO_NAME ? null : name;
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.Attributable#findPossibleValues(java.lang.String)
 	 */
@@ -174,6 +174,7 @@ public class ConceptName implements java.io.Serializable {
 	@Element(data = true)
 	public void setName(String name) {
 		this.name = name;
+		nameChanged();
 	}
 	
 	/**
@@ -187,6 +188,7 @@ public class ConceptName implements java.io.Serializable {
 	@Element
 	public void setLocale(Locale locale) {
 		this.locale = locale;
+		nameChanged();
 	}
 	
 	/**
@@ -276,6 +278,7 @@ public class ConceptName implements java.io.Serializable {
 	@Attribute
 	public void setVoided(Boolean voided) {
 		this.voided = voided;
+		nameChanged();
 	}
 	
 	/**
@@ -356,6 +359,7 @@ public class ConceptName implements java.io.Serializable {
 	@ElementList
 	public void setTags(Collection<ConceptNameTag> tags) {
 		this.tags = tags;
+		nameChanged();
 	}
 	
 	/**
@@ -389,8 +393,10 @@ public class ConceptName implements java.io.Serializable {
 		if (tags == null)
 			tags = new HashSet<ConceptNameTag>();
 		
-		if (!tags.contains(tag))
+		if (!tags.contains(tag)) {
 			tags.add(tag);
+			nameChanged();
+		}
 	}
 	
 	/**
@@ -399,8 +405,10 @@ public class ConceptName implements java.io.Serializable {
 	 * @param tag the tag to remove
 	 */
 	public void removeTag(ConceptNameTag tag) {
-		if (tags.contains(tag))
+		if (tags.contains(tag)) {
 			tags.remove(tag);
+			nameChanged();
+		}
 	}
 	
 	/**
@@ -492,6 +500,14 @@ public class ConceptName implements java.io.Serializable {
 		return hasTag(ConceptNameTag.shortCountryTagFor(country));
 	}
 	
+	/**
+	 * Tells the concept that its cached name lookups are out of date
+	 */
+	private void nameChanged() {
+		if (concept != null)
+			concept.clearNameCache();
+	}
+	
 	/**
 	 * @see java.lang.Object#toString()
 	 */
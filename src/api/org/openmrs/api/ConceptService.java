@@ -13,6 +13,7 @@
  */
 package org.openmrs.api;
 
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -642,7 +643,9 @@ public interface ConceptService extends OpenmrsService {
 	public ConceptDatatype getConceptDatatypeByName(String name) throws APIException;
 	
 	/**
-	 * Updates the concept set derived business table for this concept (bursting the concept sets)
+	 * Updates the concept set derived business table for this concept (bursting the concept sets).
+	 * The rows of this concept and of every set it is nested in are brought up to date, however
+	 * deeply the sets are nested.
 	 * 
 	 * @param concept
 	 * @throws APIException
@@ -651,7 +654,9 @@ public interface ConceptService extends OpenmrsService {
 	public void updateConceptSetDerived(Concept concept) throws APIException;
 	
 	/**
-	 * Iterates over all concepts calling updateConceptSetDerived(concept)
+	 * Rebuilds the whole concept set derived business table: every concept in a set, at any depth,
+	 * is made a direct member of the set. Only rows that differ from the concept_set hierarchy are
+	 * inserted, deleted or updated.
 	 * 
 	 * @throws APIException
 	 */
@@ -932,8 +937,10 @@ public interface ConceptService extends OpenmrsService {
 	public void updateConceptWords() throws APIException;
 	
 	/**
-	 * Iterates over all concepts with conceptIds between <code>conceptIdStart</code> and
-	 * <code>conceptIdEnd</code> (inclusive) and calls updateConceptWord(concept)
+	 * Re-creates the concept words of all concepts with conceptIds between
+	 * <code>conceptIdStart</code> and <code>conceptIdEnd</code> (inclusive). The range's words are
+	 * deleted and re-inserted with batched jdbc statements rather than one concept at a time, so
+	 * ranges of a few hundred concepts are the most efficient.
 	 * 
 	 * @param conceptIdStart starts update with this concept_id
 	 * @param conceptIdEnd ends update with this concept_id
@@ -942,6 +949,17 @@ public interface ConceptService extends OpenmrsService {
 	@Authorized( { OpenmrsConstants.PRIV_MANAGE_CONCEPTS })
 	public void updateConceptWords(Integer conceptIdStart, Integer conceptIdEnd) throws APIException;
 	
+	/**
+	 * Finds the concepts whose words may have changed since the given date: concepts created or
+	 * changed since then, and concepts with names created or voided since then
+	 * 
+	 * @param date
+	 * @return the ids of the concepts, in ascending order
+	 */
+	@Transactional(readOnly = true)
+	@Authorized(OpenmrsConstants.PRIV_VIEW_CONCEPTS)
+	public List<Integer> getConceptIdsChangedSince(Date date) throws APIException;
+	
 	/**
 	 * Gets the {@link ConceptNameTag} with the given tag
 	 * 
@@ -1025,6 +1043,14 @@ public interface ConceptService extends OpenmrsService {
 	@Authorized( { "Add Concepts" })
 	public ConceptNameTag saveConceptNameTag(ConceptNameTag nameTag);
 	
+	/**
+	 * Gets the lowest concept-id used by a concept.
+	 * 
+	 * @return lowest concept-id
+	 */
+	@Transactional(readOnly = true)
+	public Integer getMinConceptId();
+	
 	/**
 	 * Gets the highest concept-id used by a concept.
 	 * 
@@ -1059,6 +1085,33 @@ public interface ConceptService extends OpenmrsService {
 	@Authorized(OpenmrsConstants.PRIV_VIEW_CONCEPTS)
 	public Concept getConceptByMapping(String conceptCode, String hl7Code) throws APIException;
 	
+	/**
+	 * Looks up the id of a concept via its code and {@link ConceptMap}ping. The answers are cached
+	 * (until a concept or concept source is next saved), so this is cheap enough to call for every
+	 * coded value of every hl7 message.
+	 * 
+	 * @param conceptCode the foreign concept code in the given mapping
+	 * @param hl7Code the hl7 code of the concept source to look up
+	 * @return null if no concept found, or the id of the concept with the given hl7Code mapping
+	 * @throws APIException
+	 * @should get concept id with given code and mapping
+	 * @should return null if code does not exist
+	 * @should find a mapping saved after the code was looked up
+	 */
+	@Transactional(readOnly = true)
+	@Authorized(OpenmrsConstants.PRIV_VIEW_CONCEPTS)
+	public Integer getConceptIdByMapping(String conceptCode, String hl7Code) throws APIException;
+	
+	/**
+	 * Forgets the concept ids cached by {@link #getConceptIdByMapping(String, String)}. This only
+	 * needs to be called if the concept_map or concept_source tables are changed outside of this
+	 * service.
+	 * 
+	 * @throws APIException
+	 */
+	@Authorized( { OpenmrsConstants.PRIV_MANAGE_CONCEPTS })
+	public void clearConceptMappingCache() throws APIException;
+	
 	/**
 	 * 
 	 * Lookup a ConceptSource by its name property
@@ -1087,4 +1140,4 @@ public interface ConceptService extends OpenmrsService {
 	@Authorized(OpenmrsConstants.PRIV_VIEW_CONCEPTS)
 	public List<ConceptMap> getConceptsByConceptSource(ConceptSource conceptSource) throws APIException;
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,43 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api;
+
+import java.util.List;
+
+/**
+ * Callback for the streaming "visit" methods on the {@link PatientSetService}. Instead of building
+ * a Map&lt;patientId, List&lt;data&gt;&gt; for the whole cohort, those methods read their results
+ * through a database cursor and hand each patient's data to this visitor in turn, so a cohort of
+ * any size can be processed in bounded memory.<br/>
+ * <br/>
+ * Patients are visited in ascending patient id order and each patient is visited at most once.
+ * Patients with no matching data are not visited. The hibernate session is cleared periodically
+ * while visiting, so objects handed to the visitor should not be held on to (or lazy loaded) after
+ * {@link #visit(Integer, List)} returns.
+ * 
+ * @see PatientSetService#visitObservations(org.openmrs.Cohort, org.openmrs.Concept,
+ *      PatientDataVisitor)
+ */
+public interface PatientDataVisitor<T> {
+	
+	/**
+	 * Called once for every patient that has data
+	 * 
+	 * @param patientId the patient the data belongs to
+	 * @param data all of this patient's data, in the same order the equivalent map-returning
+	 *            method on the PatientSetService would give it
+	 */
+	public void visit(Integer patientId, List<T> data);
+
+}
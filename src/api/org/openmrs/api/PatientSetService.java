@@ -13,6 +13,7 @@
  */
 package org.openmrs.api;
 
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -56,6 +57,18 @@ public interface PatientSetService {
 	@Transactional(readOnly=true)
 	public String exportXml(Cohort ps);
 
+	/**
+	 * Writes the same XML as {@link #exportXml(Cohort)} directly to the given stream (as UTF-8),
+	 * loading the patients in pages so that sets of any size can be exported in constant memory.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param ps The set you want to export as XML
+	 * @param out the stream to write to
+	 * @should write the same xml as the string export
+	 */
+	@Transactional(readOnly=true)
+	public void exportXml(Cohort ps, OutputStream out);
+
 	@Transactional(readOnly=true)
 	public String exportXml(Integer patientId);
 
@@ -110,6 +123,23 @@ public interface PatientSetService {
 	@Transactional(readOnly=true)
 	public Cohort getPatientsInProgram(Program program, Date fromDate, Date toDate);
 	
+	/**
+	 * Gets the patients whose data changed since the given date: patients that had an obs,
+	 * encounter, order, program enrollment, name, address, identifier, person attribute or
+	 * relationship created, changed or voided since then, or whose person record was. Orders that
+	 * were discontinued or expired since then count too. Encounters and orders changed in place
+	 * are not noticed, since they have no date changed.
+	 * 
+	 * @param since
+	 * @return the patients with changes on or after <code>since</code>
+	 * @should get patients with obs created since the date
+	 * @should not get patients without changes since the date
+	 * @should get both patients of a relationship created since the date
+	 * @should get the patient of a program state changed since the date
+	 */
+	@Transactional(readOnly=true)
+	public Cohort getPatientsChangedSince(Date since);
+	
 	@Transactional(readOnly=true)
 	public Cohort getPatientsHavingDateObs(Integer conceptId, Date startTime, Date endTime);
 	
@@ -216,6 +246,75 @@ public interface PatientSetService {
 	@Transactional(readOnly=true)
 	public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes);
 	
+	/**
+	 * Streaming version of {@link #getObservations(Cohort, Concept)}. Each patient's observations
+	 * are read from a database cursor and passed to the visitor, without holding the observations
+	 * for the whole cohort in memory.
+	 * 
+	 * @param patients the patients to visit (null means all patients)
+	 * @param concept the question concept of the observations
+	 * @param visitor called once for each patient that has observations, with that patient's
+	 *            observations in descending obsDatetime order
+	 * @see PatientDataVisitor
+	 * @should visit the same obs in the same order as getObservations
+	 */
+	@Transactional(readOnly=true)
+	public void visitObservations(Cohort patients, Concept concept, PatientDataVisitor<Obs> visitor);
+	
+	/**
+	 * Streaming version of {@link #getObservationsValues(Cohort, Concept, List)}
+	 * 
+	 * @param patients the patients to visit (null means all patients)
+	 * @param c the question concept of the observations
+	 * @param attributes list of attributes
+	 * @param visitor called once for each patient that has observations, with that patient's rows
+	 *            of [obs value, attr value, attr value...]
+	 * @see PatientDataVisitor
+	 */
+	@Transactional(readOnly=true)
+	public void visitObservationsValues(Cohort patients, Concept c, List<String> attributes,
+	                                    PatientDataVisitor<List<Object>> visitor);
+	
+	/**
+	 * Gets the ids of the non-voided obs of the given patients, so the obs can be read a page at a
+	 * time with {@link #getObservationsByIds(List)}. Date range is inclusive of both endpoints.
+	 * 
+	 * @param patients the patients (null means all patients)
+	 * @param concepts the question concepts (null or empty means all concepts)
+	 * @param fromDate the earliest obs datetime (null for no lower limit)
+	 * @param toDate the latest obs datetime (null for no upper limit)
+	 * @return the obs ids, ordered by patient and then by descending obs datetime
+	 * @should get the ids of the obs of the given patients and concepts
+	 */
+	@Transactional(readOnly=true)
+	public List<Integer> getObservationIds(Cohort patients, Collection<Concept> concepts, Date fromDate, Date toDate);
+	
+	/**
+	 * @param obsIds
+	 * @return the obs with the given ids, in the order of the ids
+	 * @should get the obs in the order of the ids
+	 */
+	@Transactional(readOnly=true)
+	public List<Obs> getObservationsByIds(List<Integer> obsIds);
+	
+	/**
+	 * Gets the ids of the given patients' enrollments, so they can be read a page at a time with
+	 * {@link #getPatientProgramsByIds(List)}
+	 * 
+	 * @param patients the patients (null means all patients)
+	 * @param programs the programs (null means all programs)
+	 * @return the patient program ids, ordered by patient and then by date enrolled
+	 */
+	@Transactional(readOnly=true)
+	public List<Integer> getPatientProgramIds(Cohort patients, Collection<Program> programs);
+	
+	/**
+	 * @param patientProgramIds
+	 * @return the enrollments with the given ids, in the order of the ids
+	 */
+	@Transactional(readOnly=true)
+	public List<PatientProgram> getPatientProgramsByIds(List<Integer> patientProgramIds);
+	
 	/**
 	 * @param patients
 	 * @param encType
@@ -282,6 +381,7 @@ public interface PatientSetService {
 	 * @param property
 	 * @param returnAll
 	 * @return
+	 * @should return the same values when the cohort is bound in a temporary table
 	 */
 	@Transactional(readOnly=true)
 	public Map<Integer, Object> getPatientAttributes(Cohort patients, String className, String property, boolean returnAll);
@@ -398,6 +498,19 @@ public interface PatientSetService {
 	 */
 	@Transactional(readOnly=true)
 	public Map<Integer, List<DrugOrder>> getDrugOrders(Cohort ps, Concept drugSet);
+	
+	/**
+	 * Streaming version of {@link #getDrugOrders(Cohort, Concept)}
+	 * 
+	 * @param ps the patients to visit (null means all patients)
+	 * @param drugSet only visit orders whose drug concept is in this set (or all drugs if null)
+	 * @param visitor called once for each patient that has drug orders, with that patient's orders
+	 *            in ascending startDate order
+	 * @see PatientDataVisitor
+	 * @should visit the same drug orders in the same order as getDrugOrders
+	 */
+	@Transactional(readOnly=true)
+	public void visitDrugOrders(Cohort ps, Concept drugSet, PatientDataVisitor<DrugOrder> visitor);
 
 	/**
 	 * Gets a list of encounters associated with the given form, filtered by the given patient set.
@@ -439,4 +552,4 @@ public interface PatientSetService {
 		EARLIEST_ENCOUNTER, LATEST_ENCOUNTER, ANY_ENCOUNTER, PATIENT_HEALTH_CENTER
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -132,6 +132,21 @@ public class UserContext {
 		return userToBecome;
 	}
 	
+	/**
+	 * Creates a user context for another thread, authenticated as the same user and with the same
+	 * locale and proxy privileges as this one. Changes made to either context afterwards don't
+	 * affect the other.
+	 * 
+	 * @return a copy of this user context
+	 */
+	public UserContext copy() {
+		UserContext copy = new UserContext();
+		copy.user = user;
+		copy.locale = locale;
+		copy.proxies.addAll(proxies);
+		return copy;
+	}
+	
 	/**
 	 * @return "active" user who has been authenticated, otherwise <code>null</code>
 	 */
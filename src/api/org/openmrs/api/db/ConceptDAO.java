@@ -13,6 +13,7 @@
  */
 package org.openmrs.api.db;
 
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -255,6 +256,16 @@ public interface ConceptDAO {
 	 */
 	public void updateConceptWord(Concept concept) throws DAOException;
 	
+	/**
+	 * @see org.openmrs.api.ConceptService#updateConceptWords(java.lang.Integer, java.lang.Integer)
+	 */
+	public void updateConceptWords(Integer conceptIdStart, Integer conceptIdEnd) throws DAOException;
+	
+	/**
+	 * @see org.openmrs.api.ConceptService#getConceptIdsChangedSince(java.util.Date)
+	 */
+	public List<Integer> getConceptIdsChangedSince(Date date) throws DAOException;
+	
 	public ConceptNameTag saveConceptNameTag(ConceptNameTag nameTag);
 	
 	public ConceptNameTag getConceptNameTag(Integer i);
@@ -291,6 +302,11 @@ public interface ConceptDAO {
 	 */
 	public Set<Locale> getLocalesOfConceptNames();
 	
+	/**
+	 * @see ConceptService#getMinConceptId()
+	 */
+	public Integer getMinConceptId();
+	
 	/**
 	 * @see ConceptService#getMaxConceptId()
 	 */
@@ -306,6 +322,16 @@ public interface ConceptDAO {
 	 */
 	public Concept getConceptByMapping(String conceptCode, String hl7Code) throws DAOException;
 	
+	/**
+	 * @see org.openmrs.api.ConceptService#getConceptIdByMapping(java.lang.String, java.lang.String)
+	 */
+	public Integer getConceptIdByMapping(String conceptCode, String hl7Code) throws DAOException;
+	
+	/**
+	 * @see org.openmrs.api.ConceptService#clearConceptMappingCache()
+	 */
+	public void clearConceptMappingCache() throws DAOException;
+	
 
 	/**
 	 * @see org.openmrs.api.ConceptService#getConceptsByConceptSource(org.openmrs.ConceptSource)
@@ -13,6 +13,7 @@
  */
 package org.openmrs.api.db;
 
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -39,6 +40,7 @@ import org.openmrs.ProgramWorkflow;
 import org.openmrs.ProgramWorkflowState;
 import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
+import org.openmrs.api.PatientDataVisitor;
 import org.openmrs.api.PatientSetService;
 import org.openmrs.api.PatientSetService.PatientLocationMethod;
 import org.openmrs.api.PatientSetService.TimeModifier;
@@ -47,6 +49,8 @@ public interface PatientSetDAO {
 	
 	public String exportXml(Cohort ps) throws DAOException;
 	
+	public void exportXml(Cohort ps, OutputStream out) throws DAOException;
+	
 	public String exportXml(Integer patientId) throws DAOException;
 	
 	public Cohort getAllPatients();
@@ -76,6 +80,8 @@ public interface PatientSetDAO {
 	
 	public Cohort getPatientsInProgram(Integer programId, Date fromDate, Date toDate) throws DAOException;
 	
+	public Cohort getPatientsChangedSince(Date since) throws DAOException;
+	
 	public Cohort getPatientsHavingTextObs(Integer conceptId, String value, TimeModifier timeModifier) throws DAOException;
 	
 	public Cohort getPatientsHavingLocation(Integer locationId, PatientLocationMethod method) throws DAOException;
@@ -87,6 +93,20 @@ public interface PatientSetDAO {
 	
 	public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes);
 	
+	public void visitObservations(Cohort patients, Concept concept, PatientDataVisitor<Obs> visitor) throws DAOException;
+	
+	public void visitObservationsValues(Cohort patients, Concept c, List<String> attributes,
+	                                    PatientDataVisitor<List<Object>> visitor) throws DAOException;
+	
+	public List<Integer> getObservationIds(Cohort patients, Collection<Concept> concepts, Date fromDate, Date toDate)
+	                                                                                                               throws DAOException;
+	
+	public List<Obs> getObservationsByIds(List<Integer> obsIds) throws DAOException;
+	
+	public List<Integer> getPatientProgramIds(Cohort patients, Collection<Program> programs) throws DAOException;
+	
+	public List<PatientProgram> getPatientProgramsByIds(List<Integer> patientProgramIds) throws DAOException;
+	
 	public Map<Integer, Encounter> getEncountersByType(Cohort patients, List<EncounterType> encType);
 	
 	public Map<Integer, Object> getEncounterAttrsByType(Cohort patients, List<EncounterType> encTypes, String attr,
@@ -118,6 +138,9 @@ public interface PatientSetDAO {
 	
 	public Map<Integer, List<DrugOrder>> getDrugOrders(Cohort ps, List<Concept> drugConcepts) throws DAOException;
 	
+	public void visitDrugOrders(Cohort ps, List<Concept> drugConcepts, PatientDataVisitor<DrugOrder> visitor)
+	                                                                                                         throws DAOException;
+	
 	public Map<Integer, List<Relationship>> getRelationships(Cohort ps, RelationshipType relType) throws DAOException;
 	
 	public Map<Integer, List<Person>> getRelatives(Cohort ps, RelationshipType relType, boolean forwards)
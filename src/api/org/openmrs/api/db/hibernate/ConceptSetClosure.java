@@ -0,0 +1,171 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the transitive closure of the concept_set table, i.e. the contents of the
+ * concept_set_derived table, in memory. <br/>
+ * <br/>
+ * The concept_set rows are added as edges from a set to its members with
+ * {@link #addMember(Integer, Integer, Double)}. {@link #getDescendants(Integer)} then walks the
+ * edges breadth first, so every concept reachable from a set is found however deeply it is nested,
+ * and concepts already seen are not walked again, so cycles in the hierarchy do not loop. A set is
+ * never its own descendant.
+ * 
+ * @see HibernateConceptDAO#updateConceptSetDerived()
+ */
+public class ConceptSetClosure {
+	
+	/**
+	 * set id -> the set's direct members, ordered by sort weight
+	 */
+	private Map<Integer, List<Member>> members = new HashMap<Integer, List<Member>>();
+	
+	/**
+	 * member id -> the ids of the sets it is directly in
+	 */
+	private Map<Integer, List<Integer>> parents = new HashMap<Integer, List<Integer>>();
+	
+	private boolean sorted = true;
+	
+	/**
+	 * Adds a row of the concept_set table
+	 * 
+	 * @param setId the concept_set column
+	 * @param conceptId the concept_id column
+	 * @param sortWeight the sort_weight column (may be null)
+	 */
+	public void addMember(Integer setId, Integer conceptId, Double sortWeight) {
+		List<Member> setMembers = members.get(setId);
+		if (setMembers == null) {
+			setMembers = new ArrayList<Member>();
+			members.put(setId, setMembers);
+		}
+		setMembers.add(new Member(conceptId, sortWeight));
+		sorted = false;
+		
+		List<Integer> conceptParents = parents.get(conceptId);
+		if (conceptParents == null) {
+			conceptParents = new ArrayList<Integer>();
+			parents.put(conceptId, conceptParents);
+		}
+		conceptParents.add(setId);
+	}
+	
+	/**
+	 * @return the ids of every concept that has members
+	 */
+	public Set<Integer> getSets() {
+		return members.keySet();
+	}
+	
+	/**
+	 * Gets the sets whose descendants change when the given concept's members change: the concept
+	 * itself (if it is a set) and every set it is nested in, at any depth
+	 * 
+	 * @param conceptId
+	 * @return the concept and its ancestors
+	 */
+	public Set<Integer> getSetAndAncestors(Integer conceptId) {
+		Set<Integer> ret = new HashSet<Integer>();
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		queue.add(conceptId);
+		while (!queue.isEmpty()) {
+			Integer current = queue.removeFirst();
+			if (ret.add(current)) {
+				List<Integer> currentParents = parents.get(current);
+				if (currentParents != null)
+					queue.addAll(currentParents);
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets every concept in the given set, directly or through nested sets. Each concept's sort
+	 * weight is the weight it has in the set it was first reached through (direct members come
+	 * first, then members of member sets in sort weight order, and so on).
+	 * 
+	 * @param setId
+	 * @return the descendant concept ids with their sort weights, in the order they were reached
+	 */
+	public Map<Integer, Double> getDescendants(Integer setId) {
+		sortMembers();
+		Map<Integer, Double> ret = new LinkedHashMap<Integer, Double>();
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		queue.add(setId);
+		while (!queue.isEmpty()) {
+			List<Member> setMembers = members.get(queue.removeFirst());
+			if (setMembers == null)
+				continue;
+			for (Member member : setMembers) {
+				if (member.conceptId.equals(setId) || ret.containsKey(member.conceptId))
+					continue;
+				ret.put(member.conceptId, member.sortWeight);
+				queue.add(member.conceptId);
+			}
+		}
+		return ret;
+	}
+	
+	private void sortMembers() {
+		if (sorted)
+			return;
+		for (List<Member> setMembers : members.values())
+			Collections.sort(setMembers, Member.COMPARATOR);
+		sorted = true;
+	}
+	
+	/**
+	 * One row of the concept_set table, seen from the set
+	 */
+	private static class Member {
+		
+		/**
+		 * Orders by sort weight (nulls last) and then concept id
+		 */
+		public static final Comparator<Member> COMPARATOR = new Comparator<Member>() {
+			
+			public int compare(Member a, Member b) {
+				if (a.sortWeight != null && b.sortWeight != null && !a.sortWeight.equals(b.sortWeight))
+					return a.sortWeight.compareTo(b.sortWeight);
+				if (a.sortWeight == null && b.sortWeight != null)
+					return 1;
+				if (a.sortWeight != null && b.sortWeight == null)
+					return -1;
+				return a.conceptId.compareTo(b.conceptId);
+			}
+		};
+		
+		private Integer conceptId;
+		
+		private Double sortWeight;
+		
+		public Member(Integer conceptId, Double sortWeight) {
+			this.conceptId = conceptId;
+			this.sortWeight = sortWeight;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.openmrs.Concept;
+import org.openmrs.ConceptWord;
+import org.openmrs.util.IntegerBitmapSet;
+
+/**
+ * Memory resident copy of the concept_word table, used to search the concept dictionary without a
+ * "like 'WORD%'" query (and one correlated subquery per extra search word) on every keystroke. <br/>
+ * <br/>
+ * For each locale the index keeps a sorted dictionary of words, each with the ids of the concept
+ * names containing it, so the words starting with a prefix are a contiguous range of the
+ * dictionary. Each concept's class, datatype and retired flag are kept alongside so searches can be
+ * filtered without touching the database. Searches return {@link Match}es in a fixed order (locale,
+ * then word, then concept name id) and stop as soon as the requested page is filled. <br/>
+ * <br/>
+ * The index is kept current by calling {@link #updateConcept(Concept)} whenever a concept's words
+ * are rewritten and {@link #removeConcept(Integer)} when a concept is purged. All methods are
+ * thread safe.
+ * 
+ * @see HibernateConceptDAO#getConceptWords(String, List, boolean, List, List, List, List, Concept,
+ *      Integer, Integer)
+ */
+public class ConceptWordIndex {
+	
+	/**
+	 * locale -> word -> ids of the concept names with that word
+	 */
+	private Map<Locale, TreeMap<String, IntegerBitmapSet>> words = new HashMap<Locale, TreeMap<String, IntegerBitmapSet>>();
+	
+	/**
+	 * concept name id -> the name's concept, locale and words
+	 */
+	private Map<Integer, IndexedName> names = new HashMap<Integer, IndexedName>();
+	
+	/**
+	 * concept id -> the concept's attributes and names
+	 */
+	private Map<Integer, IndexedConcept> concepts = new HashMap<Integer, IndexedConcept>();
+	
+	/**
+	 * Adds one row of the concept_word table to the index
+	 * 
+	 * @param conceptId
+	 * @param conceptNameId the name the word was taken from
+	 * @param word the (upper case) word
+	 * @param locale the locale of the name
+	 */
+	public synchronized void addWord(Integer conceptId, Integer conceptNameId, String word, Locale locale) {
+		IndexedName name = names.get(conceptNameId);
+		if (name == null) {
+			name = new IndexedName(conceptId, locale);
+			names.put(conceptNameId, name);
+			getConcept(conceptId).nameIds.add(conceptNameId);
+		}
+		if (name.words.contains(word))
+			return;
+		name.words.add(word);
+		
+		TreeMap<String, IntegerBitmapSet> localeWords = words.get(locale);
+		if (localeWords == null) {
+			localeWords = new TreeMap<String, IntegerBitmapSet>();
+			words.put(locale, localeWords);
+		}
+		IntegerBitmapSet nameIds = localeWords.get(word);
+		if (nameIds == null) {
+			nameIds = new IntegerBitmapSet();
+			localeWords.put(word, nameIds);
+		}
+		nameIds.add(conceptNameId.intValue());
+	}
+	
+	/**
+	 * Sets the attributes searches can be filtered on for a concept
+	 * 
+	 * @param conceptId
+	 * @param conceptClassId (may be null)
+	 * @param datatypeId (may be null)
+	 * @param retired
+	 */
+	public synchronized void setConceptAttributes(Integer conceptId, Integer conceptClassId, Integer datatypeId,
+	                                              boolean retired) {
+		IndexedConcept concept = getConcept(conceptId);
+		concept.conceptClassId = conceptClassId;
+		concept.datatypeId = datatypeId;
+		concept.retired = retired;
+	}
+	
+	/**
+	 * Replaces everything indexed for the given concept with its current names and attributes. The
+	 * words are the same as those {@link ConceptWord#makeConceptWords(Concept)} puts in the
+	 * concept_word table.
+	 * 
+	 * @param concept the concept that was saved
+	 */
+	public synchronized void updateConcept(Concept concept) {
+		removeConcept(concept.getConceptId());
+		for (ConceptWord word : ConceptWord.makeConceptWords(concept)) {
+			if (word.getConceptName().getConceptNameId() != null)
+				addWord(concept.getConceptId(), word.getConceptName().getConceptNameId(), word.getWord(), word
+				        .getLocale());
+		}
+		setConceptAttributes(concept.getConceptId(), concept.getConceptClass() == null ? null : concept
+		        .getConceptClass().getConceptClassId(), concept.getDatatype() == null ? null : concept.getDatatype()
+		        .getConceptDatatypeId(), concept.isRetired() == null ? false : concept.isRetired());
+	}
+	
+	/**
+	 * Removes all of a concept's words from the index
+	 * 
+	 * @param conceptId the concept that was purged (or is about to be re-indexed)
+	 */
+	public synchronized void removeConcept(Integer conceptId) {
+		IndexedConcept concept = concepts.remove(conceptId);
+		if (concept == null)
+			return;
+		
+		for (Integer conceptNameId : concept.nameIds) {
+			IndexedName name = names.remove(conceptNameId);
+			TreeMap<String, IntegerBitmapSet> localeWords = words.get(name.locale);
+			for (String word : name.words) {
+				IntegerBitmapSet nameIds = localeWords.get(word);
+				nameIds.remove(conceptNameId.intValue());
+				if (nameIds.isEmpty())
+					localeWords.remove(word);
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of concepts in the index
+	 */
+	public synchronized int getConceptCount() {
+		return concepts.size();
+	}
+	
+	/**
+	 * Finds the words matching a search, the same way the concept_word query does: every word whose
+	 * text starts with the first search word and whose concept also has words starting with each of
+	 * the other search words. If there are no search words, every word of the answer concepts is
+	 * matched.
+	 * 
+	 * @param searchWords the (upper case) words to search for
+	 * @param locales only words of names in these locales are matched
+	 * @param includeRetired whether words of retired concepts are matched
+	 * @param requireClassIds if not empty, the concept must have one of these classes
+	 * @param excludeClassIds the concept must not have any of these classes
+	 * @param requireDatatypeIds if not empty, the concept must have one of these datatypes
+	 * @param excludeDatatypeIds the concept must not have any of these datatypes
+	 * @param answerConceptIds if not empty, the concept must be one of these
+	 * @param start the number of matches to skip (may be null)
+	 * @param size the maximum number of matches to return (null for all)
+	 * @return the matching words
+	 */
+	public synchronized List<Match> search(List<String> searchWords, Collection<Locale> locales, boolean includeRetired,
+	                                       Collection<Integer> requireClassIds, Collection<Integer> excludeClassIds,
+	                                       Collection<Integer> requireDatatypeIds,
+	                                       Collection<Integer> excludeDatatypeIds, Collection<Integer> answerConceptIds,
+	                                       Integer start, Integer size) {
+		List<Match> matches = new ArrayList<Match>();
+		int toSkip = (start == null ? 0 : start);
+		int max = (size == null ? Integer.MAX_VALUE : size);
+		
+		if (searchWords.isEmpty()) {
+			if (answerConceptIds.isEmpty())
+				return matches;
+			
+			for (Integer conceptId : new TreeSet<Integer>(answerConceptIds)) {
+				IndexedConcept concept = concepts.get(conceptId);
+				if (concept == null
+				        || !concept.matches(includeRetired, requireClassIds, excludeClassIds, requireDatatypeIds,
+				            excludeDatatypeIds))
+					continue;
+				for (Integer conceptNameId : new TreeSet<Integer>(concept.nameIds)) {
+					IndexedName name = names.get(conceptNameId);
+					if (!locales.contains(name.locale))
+						continue;
+					for (String word : name.words) {
+						if (toSkip > 0) {
+							toSkip--;
+							continue;
+						}
+						matches.add(new Match(conceptId, conceptNameId, word, name.locale));
+						if (matches.size() >= max)
+							return matches;
+					}
+				}
+			}
+			return matches;
+		}
+		
+		// the concepts that also have words starting with each of the other search words
+		IntegerBitmapSet otherWordConcepts = null;
+		for (String searchWord : searchWords.subList(1, searchWords.size())) {
+			IntegerBitmapSet conceptIds = getConceptIds(searchWord, locales);
+			otherWordConcepts = (otherWordConcepts == null ? conceptIds : IntegerBitmapSet.and(otherWordConcepts,
+			    conceptIds));
+		}
+		
+		String prefix = searchWords.get(0);
+		for (Locale locale : locales) {
+			TreeMap<String, IntegerBitmapSet> localeWords = words.get(locale);
+			if (localeWords == null)
+				continue;
+			for (Map.Entry<String, IntegerBitmapSet> entry : getPrefixRange(localeWords, prefix).entrySet()) {
+				for (Integer conceptNameId : entry.getValue()) {
+					Integer conceptId = names.get(conceptNameId).conceptId;
+					if (otherWordConcepts != null && !otherWordConcepts.contains(conceptId.intValue()))
+						continue;
+					if (!answerConceptIds.isEmpty() && !answerConceptIds.contains(conceptId))
+						continue;
+					if (!concepts.get(conceptId).matches(includeRetired, requireClassIds, excludeClassIds,
+					    requireDatatypeIds, excludeDatatypeIds))
+						continue;
+					if (toSkip > 0) {
+						toSkip--;
+						continue;
+					}
+					matches.add(new Match(conceptId, conceptNameId, entry.getKey(), locale));
+					if (matches.size() >= max)
+						return matches;
+				}
+			}
+		}
+		return matches;
+	}
+	
+	/**
+	 * @return the ids of the concepts with a word in one of the locales that starts with the prefix
+	 */
+	private IntegerBitmapSet getConceptIds(String prefix, Collection<Locale> locales) {
+		IntegerBitmapSet conceptIds = new IntegerBitmapSet();
+		for (Locale locale : locales) {
+			TreeMap<String, IntegerBitmapSet> localeWords = words.get(locale);
+			if (localeWords == null)
+				continue;
+			for (IntegerBitmapSet nameIds : getPrefixRange(localeWords, prefix).values()) {
+				for (Integer conceptNameId : nameIds)
+					conceptIds.add(names.get(conceptNameId).conceptId.intValue());
+			}
+		}
+		return conceptIds;
+	}
+	
+	/**
+	 * @return the part of the sorted word dictionary starting with the given prefix
+	 */
+	private SortedMap<String, IntegerBitmapSet> getPrefixRange(TreeMap<String, IntegerBitmapSet> localeWords,
+	                                                           String prefix) {
+		return localeWords.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+	
+	private IndexedConcept getConcept(Integer conceptId) {
+		IndexedConcept concept = concepts.get(conceptId);
+		if (concept == null) {
+			concept = new IndexedConcept();
+			concepts.put(conceptId, concept);
+		}
+		return concept;
+	}
+	
+	/**
+	 * One word found by a search, i.e. one row of the concept_word table
+	 */
+	public static class Match {
+		
+		private Integer conceptId;
+		
+		private Integer conceptNameId;
+		
+		private String word;
+		
+		private Locale locale;
+		
+		public Match(Integer conceptId, Integer conceptNameId, String word, Locale locale) {
+			this.conceptId = conceptId;
+			this.conceptNameId = conceptNameId;
+			this.word = word;
+			this.locale = locale;
+		}
+		
+		public Integer getConceptId() {
+			return conceptId;
+		}
+		
+		public Integer getConceptNameId() {
+			return conceptNameId;
+		}
+		
+		public String getWord() {
+			return word;
+		}
+		
+		public Locale getLocale() {
+			return locale;
+		}
+		
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		public String toString() {
+			return conceptId + "|" + word + "|" + locale;
+		}
+	}
+	
+	private static class IndexedName {
+		
+		private Integer conceptId;
+		
+		private Locale locale;
+		
+		private List<String> words = new ArrayList<String>(4);
+		
+		public IndexedName(Integer conceptId, Locale locale) {
+			this.conceptId = conceptId;
+			this.locale = locale;
+		}
+	}
+	
+	private static class IndexedConcept {
+		
+		private Integer conceptClassId;
+		
+		private Integer datatypeId;
+		
+		private boolean retired = false;
+		
+		private List<Integer> nameIds = new ArrayList<Integer>(4);
+		
+		public boolean matches(boolean includeRetired, Collection<Integer> requireClassIds,
+		                       Collection<Integer> excludeClassIds, Collection<Integer> requireDatatypeIds,
+		                       Collection<Integer> excludeDatatypeIds) {
+			if (retired && !includeRetired)
+				return false;
+			if (!requireClassIds.isEmpty() && !requireClassIds.contains(conceptClassId))
+				return false;
+			if (excludeClassIds.contains(conceptClassId))
+				return false;
+			if (!requireDatatypeIds.isEmpty() && !requireDatatypeIds.contains(datatypeId))
+				return false;
+			if (excludeDatatypeIds.contains(datatypeId))
+				return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api.db.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.CriteriaQuery;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.TypedValue;
+import org.openmrs.api.db.DAOException;
+
+/**
+ * Restricts hibernate queries to a set of patient (or person) ids. <br/>
+ * <br/>
+ * Small sets are bound the normal way, as an "in (...)" list of literal ids. Sets larger than the
+ * threshold are loaded into a temporary table on the current session's connection (using the
+ * temporary table support of the hibernate Dialect) and queries are restricted with an
+ * "in (select patient_id from temp_table)" subquery instead. This keeps statements for cohorts of
+ * 100,000+ patients within the database's packet limit and lets the planner use the table's
+ * primary key. <br/>
+ * <br/>
+ * A binding must always be released when the queries using it have run:
+ *
+ * <pre>
+ * HibernateCohortBinding binding = null;
+ * try {
+ * 	binding = HibernateCohortBinding.bind(sessionFactory, patients.getMemberIds(), threshold);
+ * 	criteria.add(binding.restrict(&quot;patient.personId&quot;));
+ * 	return criteria.list();
+ * }
+ * finally {
+ * 	if (binding != null)
+ * 		binding.release();
+ * }
+ * </pre>
+ */
+public class HibernateCohortBinding {
+
+	private static Log log = LogFactory.getLog(HibernateCohortBinding.class);
+
+	/**
+	 * The size above which a temporary table is used if no threshold is configured
+	 */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private static final int INSERT_BATCH_SIZE = 1000;
+
+	private static int tableCounter = 0;
+
+	private SessionFactory sessionFactory;
+
+	private Collection<Integer> memberIds;
+
+	private String tableName;
+
+	private HibernateCohortBinding(SessionFactory sessionFactory, Collection<Integer> memberIds) {
+		this.sessionFactory = sessionFactory;
+		this.memberIds = memberIds;
+	}
+
+	/**
+	 * Binds the given ids for use in queries on the current session.
+	 *
+	 * @param sessionFactory the factory whose current session will run the queries
+	 * @param memberIds the ids to restrict to (may be null)
+	 * @param threshold sets with more ids than this are loaded into a temporary table. A value of
+	 *            zero or less means never use a temporary table
+	 * @return the binding, which must be {@link #release()}d after use
+	 * @throws DAOException if the temporary table cannot be created and filled
+	 */
+	public static HibernateCohortBinding bind(SessionFactory sessionFactory, Collection<Integer> memberIds, int threshold)
+	                                                                                                               throws DAOException {
+		HibernateCohortBinding binding = new HibernateCohortBinding(sessionFactory, memberIds);
+
+		if (memberIds != null && threshold > 0 && memberIds.size() > threshold) {
+			Dialect dialect = HibernateUtil.getDialect(sessionFactory);
+			if (dialect.supportsTemporaryTables())
+				binding.createTable(dialect);
+			else if (log.isDebugEnabled())
+				log.debug("Dialect " + dialect + " does not support temporary tables, binding " + memberIds.size()
+				        + " ids inline");
+		}
+
+		return binding;
+	}
+
+	/**
+	 * @return true if the ids were loaded into a temporary table (so the ids should not be used
+	 *         inline, e.g. in an hql "in (:ids)" clause)
+	 */
+	public boolean isTableBound() {
+		return tableName != null;
+	}
+
+	/**
+	 * @return the name of the temporary table holding the ids, or null if they are bound inline
+	 */
+	public String getTableName() {
+		return tableName;
+	}
+
+	/**
+	 * Returns a criterion restricting the given id property to the bound ids
+	 *
+	 * @param propertyName the property path on the criteria, e.g. "patient.personId"
+	 * @return the criterion to add to the criteria
+	 */
+	public Criterion restrict(String propertyName) {
+		if (tableName == null)
+			return Restrictions.in(propertyName, memberIds);
+		else
+			return new InTableCriterion(propertyName, tableName);
+	}
+
+	/**
+	 * Drops the temporary table if one was created. This is a no-op for inline bindings. Every
+	 * binding gets its own table, so the table is dropped even on dialects that would rather keep
+	 * temporary tables for reuse (emptying it first on those), otherwise each binding would leave a
+	 * table behind for the rest of the session.
+	 */
+	public void release() {
+		if (tableName == null)
+			return;
+
+		Dialect dialect = HibernateUtil.getDialect(sessionFactory);
+		try {
+			Statement stmt = sessionFactory.getCurrentSession().connection().createStatement();
+			try {
+				if (!dialect.dropTemporaryTableAfterUse())
+					stmt.executeUpdate("delete from " + tableName);
+				stmt.executeUpdate("drop table " + tableName);
+			}
+			finally {
+				stmt.close();
+			}
+		}
+		catch (SQLException e) {
+			log.warn("Unable to drop cohort table " + tableName, e);
+		}
+		tableName = null;
+	}
+
+	/**
+	 * Creates the temporary table and batch inserts the member ids into it
+	 */
+	private void createTable(Dialect dialect) throws DAOException {
+		String name = dialect.generateTemporaryTableName("cohort_binding_" + nextTableNumber());
+		String create = dialect.getCreateTemporaryTableString() + " " + name + " (patient_id "
+		        + dialect.getTypeName(Types.INTEGER) + " not null, primary key (patient_id)) "
+		        + dialect.getCreateTemporaryTablePostfix();
+
+		try {
+			Connection conn = sessionFactory.getCurrentSession().connection();
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.executeUpdate(create);
+			}
+			finally {
+				stmt.close();
+			}
+			tableName = name;
+
+			PreparedStatement insert = conn.prepareStatement("insert into " + name + " (patient_id) values (?)");
+			try {
+				int batched = 0;
+				for (Integer id : memberIds) {
+					insert.setInt(1, id);
+					insert.addBatch();
+					if (++batched % INSERT_BATCH_SIZE == 0)
+						insert.executeBatch();
+				}
+				if (batched % INSERT_BATCH_SIZE != 0)
+					insert.executeBatch();
+			}
+			finally {
+				insert.close();
+			}
+
+			if (log.isDebugEnabled())
+				log.debug("Bound " + memberIds.size() + " ids into temporary table " + name);
+		}
+		catch (SQLException e) {
+			release();
+			throw new DAOException("Unable to bind " + memberIds.size() + " ids into a temporary table", e);
+		}
+		catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	private static synchronized int nextTableNumber() {
+		if (tableCounter == Integer.MAX_VALUE)
+			tableCounter = 0;
+		return ++tableCounter;
+	}
+
+	/**
+	 * Criterion for "property in (select patient_id from table)". The property is resolved to its
+	 * column the same way {@link Restrictions#in(String, Collection)} does it, so it works on
+	 * joined subclasses and sub-criteria as well.
+	 */
+	private static class InTableCriterion implements Criterion {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final TypedValue[] NO_VALUES = new TypedValue[0];
+
+		private String propertyName;
+
+		private String tableName;
+
+		public InTableCriterion(String propertyName, String tableName) {
+			this.propertyName = propertyName;
+			this.tableName = tableName;
+		}
+
+		/**
+		 * @see org.hibernate.criterion.Criterion#toSqlString(org.hibernate.Criteria,
+		 *      org.hibernate.criterion.CriteriaQuery)
+		 */
+		public String toSqlString(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+			String[] columns = criteriaQuery.getColumnsUsingProjection(criteria, propertyName);
+			return columns[0] + " in (select patient_id from " + tableName + ")";
+		}
+
+		/**
+		 * @see org.hibernate.criterion.Criterion#getTypedValues(org.hibernate.Criteria,
+		 *      org.hibernate.criterion.CriteriaQuery)
+		 */
+		public TypedValue[] getTypedValues(Criteria criteria, CriteriaQuery criteriaQuery) throws HibernateException {
+			return NO_VALUES;
+		}
+
+		public String toString() {
+			return propertyName + " in (select patient_id from " + tableName + ")";
+		}
+	}
+}
@@ -15,20 +15,33 @@ package org.openmrs.api.db.hibernate;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
 import org.hibernate.NonUniqueObjectException;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Conjunction;
 import org.hibernate.criterion.DetachedCriteria;
@@ -50,26 +63,71 @@ import org.openmrs.ConceptNameTag;
 import org.openmrs.ConceptNumeric;
 import org.openmrs.ConceptProposal;
 import org.openmrs.ConceptSet;
-import org.openmrs.ConceptSetDerived;
 import org.openmrs.ConceptSource;
 import org.openmrs.ConceptWord;
 import org.openmrs.Drug;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.ConceptDAO;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * The Hibernate class for Concepts, Drugs, and related classes
  * 
  * @see org.openmrs.ConceptService to access these methods
  */
-public class HibernateConceptDAO implements ConceptDAO {
+public class HibernateConceptDAO implements ConceptDAO, GlobalPropertyListener {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
 	private SessionFactory sessionFactory;
 	
+	/**
+	 * Number of concept names loaded per query when turning index matches into ConceptWords
+	 */
+	private static final int CONCEPT_NAME_PAGE_SIZE = 1000;
+	
+	/**
+	 * Number of concept_word rows sent to the database per jdbc batch when re-creating words
+	 */
+	private static final int CONCEPT_WORD_BATCH_SIZE = 500;
+	
+	/**
+	 * Number of concept_set_derived rows sent to the database per jdbc batch
+	 */
+	private static final int CONCEPT_SET_DERIVED_BATCH_SIZE = 500;
+	
+	/**
+	 * In memory copy of the concept_word table, built on the first search
+	 * 
+	 * @see #getConceptWordIndex()
+	 */
+	private volatile ConceptWordIndex conceptWordIndex;
+	
+	/**
+	 * Whether the concept word index is turned on, or null until the global property is read
+	 * 
+	 * @see #isConceptWordIndexEnabled()
+	 */
+	private volatile Boolean conceptWordIndexEnabled;
+	
+	/**
+	 * Held by the search that is building the concept word index
+	 */
+	private final Lock conceptWordIndexLock = new ReentrantLock();
+	
+	/**
+	 * Concept ids by concept source hl7 code and concept code, filled in by
+	 * {@link #getConceptIdByMapping(String, String)} and emptied whenever a concept or concept
+	 * source is saved or deleted, and again when that change is committed
+	 */
+	private Map<String, Integer> conceptIdsByMapping = new ConcurrentHashMap<String, Integer>();
+	
 	/**
 	 * Sets the session factory
 	 * 
@@ -92,6 +150,10 @@ public class HibernateConceptDAO implements ConceptDAO {
 		}
 		
 		sessionFactory.getCurrentSession().saveOrUpdate(concept);
+		
+		// the concept's mappings (and names) are saved along with it
+		clearConceptMappingCacheOnCompletion();
+		
 		return concept;
 	}
 	
@@ -147,8 +209,19 @@ public class HibernateConceptDAO implements ConceptDAO {
 		sessionFactory.getCurrentSession().createQuery("delete from ConceptWord where concept_id = :c").setInteger("c",
 		    concept.getConceptId()).executeUpdate();
 		
+		final Integer conceptId = concept.getConceptId();
+		afterCommit(new Runnable() {
+			
+			public void run() {
+				ConceptWordIndex index = conceptWordIndex;
+				if (index != null)
+					index.removeConcept(conceptId);
+			}
+		});
+		
 		// now we can safely delete the concept
 		sessionFactory.getCurrentSession().delete(concept);
+		clearConceptMappingCacheOnCompletion();
 	}
 	
 	/**
@@ -445,7 +518,17 @@ public class HibernateConceptDAO implements ConceptDAO {
 		
 		List<ConceptWord> conceptWords = new Vector<ConceptWord>();
 		
-		if (words.size() > 0 || !answers.isEmpty()) {
+		ConceptWordIndex index = getConceptWordIndex();
+		if (index != null) {
+			List<Integer> answerIds = new Vector<Integer>();
+			for (Concept answer : answers)
+				answerIds.add(answer.getConceptId());
+			
+			List<ConceptWordIndex.Match> matches = index.search(words, locales, includeRetired,
+			    getConceptClassIds(requireClasses), getConceptClassIds(excludeClasses),
+			    getConceptDatatypeIds(requireDatatypes), getConceptDatatypeIds(excludeDatatypes), answerIds, start, size);
+			conceptWords = getConceptWords(matches);
+		} else if (words.size() > 0 || !answers.isEmpty()) {
 			
 			Criteria searchCriteria = sessionFactory.getCurrentSession().createCriteria(ConceptWord.class, "cw1");
 			searchCriteria.add(Expression.in("locale", locales));
@@ -505,6 +588,191 @@ public class HibernateConceptDAO implements ConceptDAO {
 		return conceptWords;
 	}
 	
+	/**
+	 * Turns matches from the concept word index into ConceptWords. The matched names (and their
+	 * concepts) are loaded a page at a time rather than one by one.
+	 * 
+	 * @param matches the words found in the index
+	 * @return a ConceptWord for each match, in the same order
+	 */
+	@SuppressWarnings("unchecked")
+	private List<ConceptWord> getConceptWords(List<ConceptWordIndex.Match> matches) {
+		List<Integer> conceptNameIds = new ArrayList<Integer>();
+		for (ConceptWordIndex.Match match : matches)
+			conceptNameIds.add(match.getConceptNameId());
+		
+		Map<Integer, ConceptName> conceptNames = new HashMap<Integer, ConceptName>();
+		for (int i = 0; i < conceptNameIds.size(); i += CONCEPT_NAME_PAGE_SIZE) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptName.class);
+			criteria.add(Expression.in("conceptNameId", conceptNameIds.subList(i, Math.min(i + CONCEPT_NAME_PAGE_SIZE,
+			    conceptNameIds.size()))));
+			criteria.setFetchMode("concept", FetchMode.JOIN);
+			for (ConceptName conceptName : (List<ConceptName>) criteria.list())
+				conceptNames.put(conceptName.getConceptNameId(), conceptName);
+		}
+		
+		List<ConceptWord> conceptWords = new Vector<ConceptWord>();
+		for (ConceptWordIndex.Match match : matches) {
+			ConceptName conceptName = conceptNames.get(match.getConceptNameId());
+			if (conceptName != null)
+				conceptWords.add(new ConceptWord(match.getWord(), conceptName.getConcept(), conceptName, match
+				        .getLocale()));
+		}
+		return conceptWords;
+	}
+	
+	private List<Integer> getConceptClassIds(List<ConceptClass> conceptClasses) {
+		List<Integer> ret = new Vector<Integer>();
+		for (ConceptClass conceptClass : conceptClasses)
+			ret.add(conceptClass.getConceptClassId());
+		return ret;
+	}
+	
+	private List<Integer> getConceptDatatypeIds(List<ConceptDatatype> datatypes) {
+		List<Integer> ret = new Vector<Integer>();
+		for (ConceptDatatype datatype : datatypes)
+			ret.add(datatype.getConceptDatatypeId());
+		return ret;
+	}
+	
+	/**
+	 * Gets the concept word index, building it from the concept_word table if this is the first
+	 * search since startup. Returns null if the
+	 * {@link OpenmrsConstants#GLOBAL_PROPERTY_CONCEPT_WORD_INDEX} global property is not "true", in
+	 * which case searches query the concept_word table directly. Only one search builds the index;
+	 * searches made while it is being built also query the table.
+	 * 
+	 * @return the index, or null if it is turned off or not built yet
+	 */
+	private ConceptWordIndex getConceptWordIndex() {
+		ConceptWordIndex index = conceptWordIndex;
+		if (index != null || !isConceptWordIndexEnabled() || !conceptWordIndexLock.tryLock())
+			return index;
+		
+		try {
+			if (conceptWordIndex == null) {
+				index = buildConceptWordIndex();
+				// the index may have been turned off while it was being built
+				if (isConceptWordIndexEnabled())
+					conceptWordIndex = index;
+			}
+			return conceptWordIndex;
+		}
+		finally {
+			conceptWordIndexLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reads the concept_word table and the concepts' attributes into a new index
+	 * 
+	 * @return the index
+	 */
+	private ConceptWordIndex buildConceptWordIndex() {
+		long startTime = System.currentTimeMillis();
+		ConceptWordIndex index = new ConceptWordIndex();
+		
+		ScrollableResults words = sessionFactory.getCurrentSession().createQuery(
+		    "select cw.concept.conceptId, cw.conceptName.conceptNameId, cw.word, cw.locale from ConceptWord cw")
+		        .setFetchSize(CONCEPT_NAME_PAGE_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (words.next()) {
+				Object[] row = words.get();
+				index.addWord((Integer) row[0], (Integer) row[1], (String) row[2], (Locale) row[3]);
+			}
+		}
+		finally {
+			words.close();
+		}
+		
+		ScrollableResults concepts = sessionFactory.getCurrentSession().createQuery(
+		    "select c.conceptId, cc.conceptClassId, dt.conceptDatatypeId, c.retired from Concept c "
+		            + "left join c.conceptClass cc left join c.datatype dt").setFetchSize(CONCEPT_NAME_PAGE_SIZE)
+		        .scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (concepts.next()) {
+				Object[] row = concepts.get();
+				index.setConceptAttributes((Integer) row[0], (Integer) row[1], (Integer) row[2], Boolean.TRUE
+				        .equals(row[3]));
+			}
+		}
+		finally {
+			concepts.close();
+		}
+		
+		if (log.isInfoEnabled())
+			log.info("Built concept word index of " + index.getConceptCount() + " concepts in "
+			        + (System.currentTimeMillis() - startTime) + "ms");
+		return index;
+	}
+	
+	/**
+	 * @return whether the concept word index is turned on. The global property is read on the
+	 *         first call, and afterwards kept current by {@link #globalPropertyChanged(GlobalProperty)}
+	 */
+	private boolean isConceptWordIndexEnabled() {
+		Boolean enabled = conceptWordIndexEnabled;
+		if (enabled == null) {
+			String value = Context.getAdministrationService().getGlobalProperty(
+			    OpenmrsConstants.GLOBAL_PROPERTY_CONCEPT_WORD_INDEX, "false");
+			enabled = "true".equalsIgnoreCase(value.trim());
+			conceptWordIndexEnabled = enabled;
+		}
+		return enabled;
+	}
+	
+	/**
+	 * Turns the concept word index on or off. Turning it off drops the index.
+	 * 
+	 * @param enabled
+	 */
+	private void setConceptWordIndexEnabled(boolean enabled) {
+		conceptWordIndexEnabled = enabled;
+		if (!enabled)
+			conceptWordIndex = null;
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	public boolean supportsPropertyName(String propertyName) {
+		return OpenmrsConstants.GLOBAL_PROPERTY_CONCEPT_WORD_INDEX.equals(propertyName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setConceptWordIndexEnabled(newValue.getPropertyValue() != null
+		        && "true".equalsIgnoreCase(newValue.getPropertyValue().trim()));
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	public void globalPropertyDeleted(String propertyName) {
+		setConceptWordIndexEnabled(false);
+	}
+	
+	/**
+	 * Runs a change to the in-memory concept caches once the current transaction has committed,
+	 * so a rolled back change never reaches them. With no transaction the change is run right away.
+	 * 
+	 * @param change the change to make
+	 */
+	private void afterCommit(final Runnable change) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				public void afterCommit() {
+					change.run();
+				}
+			});
+		} else {
+			change.run();
+		}
+	}
+	
 	/**
 	 * gets questions for the given answer concept
 	 * 
@@ -570,7 +838,7 @@ public class HibernateConceptDAO implements ConceptDAO {
 	/**
 	 * @see org.openmrs.api.db.ConceptDAO#updateConceptWord(org.openmrs.Concept)
 	 */
-	public void updateConceptWord(Concept concept) throws DAOException {
+	public void updateConceptWord(final Concept concept) throws DAOException {
 		log.debug("updateConceptWord(" + concept + ")");
 		if (concept != null) {
 			// remove all old words
@@ -591,7 +859,102 @@ public class HibernateConceptDAO implements ConceptDAO {
 					sessionFactory.getCurrentSession().save(word);
 				}
 			}
+			
+			afterCommit(new Runnable() {
+				
+				public void run() {
+					ConceptWordIndex index = conceptWordIndex;
+					if (index != null)
+						index.updateConcept(concept);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.ConceptDAO#updateConceptWords(java.lang.Integer, java.lang.Integer)
+	 */
+	@SuppressWarnings("unchecked")
+	public void updateConceptWords(Integer conceptIdStart, Integer conceptIdEnd) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		// the words are written with jdbc, so write out any pending concept and name changes first
+		session.flush();
+		
+		Criteria criteria = session.createCriteria(Concept.class);
+		criteria.add(Expression.between("conceptId", conceptIdStart, conceptIdEnd));
+		criteria.setFetchMode("names", FetchMode.JOIN);
+		criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+		final List<Concept> concepts = criteria.list();
+		
+		try {
+			Connection connection = session.connection();
+			PreparedStatement delete = connection
+			        .prepareStatement("delete from concept_word where concept_id between ? and ?");
+			try {
+				delete.setInt(1, conceptIdStart);
+				delete.setInt(2, conceptIdEnd);
+				delete.executeUpdate();
+			}
+			finally {
+				delete.close();
+			}
+			
+			PreparedStatement insert = connection
+			        .prepareStatement("insert into concept_word (concept_id, word, locale, concept_name_id) values (?, ?, ?, ?)");
+			try {
+				int batched = 0;
+				for (Concept concept : concepts) {
+					for (ConceptWord word : ConceptWord.makeConceptWords(concept)) {
+						// a name that hasn't been saved can't be referenced
+						if (word.getConceptName().getConceptNameId() == null) {
+							log.debug("Skipping the unsaved name of concept " + concept.getConceptId());
+							continue;
+						}
+						insert.setInt(1, concept.getConceptId());
+						insert.setString(2, word.getWord());
+						insert.setString(3, word.getLocale().toString());
+						insert.setInt(4, word.getConceptName().getConceptNameId());
+						insert.addBatch();
+						if (++batched % CONCEPT_WORD_BATCH_SIZE == 0)
+							insert.executeBatch();
+					}
+				}
+				insert.executeBatch();
+			}
+			finally {
+				insert.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to update the concept words of concepts " + conceptIdStart + " to "
+			        + conceptIdEnd, e);
 		}
+		
+		for (Concept concept : concepts)
+			session.evict(concept);
+		
+		afterCommit(new Runnable() {
+			
+			public void run() {
+				ConceptWordIndex index = conceptWordIndex;
+				if (index != null) {
+					for (Concept concept : concepts)
+						index.updateConcept(concept);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.ConceptDAO#getConceptIdsChangedSince(java.util.Date)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getConceptIdsChangedSince(Date date) throws DAOException {
+		Query query = sessionFactory.getCurrentSession().createQuery(
+		    "select distinct c.conceptId from Concept c left join c.names n where c.dateCreated > :date "
+		            + "or c.dateChanged > :date or n.dateCreated > :date or n.dateVoided > :date order by c.conceptId");
+		query.setTimestamp("date", date);
+		return query.list();
 	}
 	
 	/**
@@ -701,80 +1064,12 @@ public class HibernateConceptDAO implements ConceptDAO {
 		        .list();
 	}
 	
-	//TODO:  eventually, this method should probably just run updateConceptSetDerived(Concept) inside an iteration of all concepts... (or something else less transactionally-intense)
 	/**
 	 * @see org.openmrs.api.db.ConceptDAO#updateConceptSetDerived()
 	 */
 	public void updateConceptSetDerived() throws DAOException {
-		sessionFactory.getCurrentSession().createQuery("delete from ConceptSetDerived").executeUpdate();
-		try {
-			// remake the derived table by copying over the basic concept_set table
-			sessionFactory
-			        .getCurrentSession()
-			        .connection()
-			        .prepareStatement(
-			            "insert into concept_set_derived (concept_id, concept_set, sort_weight) select cs.concept_id, cs.concept_set, cs.sort_weight from concept_set cs where not exists (select concept_id from concept_set_derived csd where csd.concept_id = cs.concept_id and csd.concept_set = cs.concept_set)")
-			        .execute();
-			
-			// burst the concept sets -- make grandchildren direct children of grandparents
-			sessionFactory
-			        .getCurrentSession()
-			        .connection()
-			        .prepareStatement(
-			            "insert into concept_set_derived (concept_id, concept_set, sort_weight) select cs1.concept_id, cs2.concept_set, cs1.sort_weight from concept_set cs1 join concept_set cs2 where cs2.concept_id = cs1.concept_set and not exists (select concept_id from concept_set_derived csd where csd.concept_id = cs1.concept_id and csd.concept_set = cs2.concept_set)")
-			        .execute();
-			
-			// burst the concept sets -- make greatgrandchildren direct child of greatgrandparents
-			sessionFactory
-			        .getCurrentSession()
-			        .connection()
-			        .prepareStatement(
-			            "insert into concept_set_derived (concept_id, concept_set, sort_weight) select cs1.concept_id, cs3.concept_set, cs1.sort_weight from concept_set cs1 join concept_set cs2 join concept_set cs3 where cs1.concept_set = cs2.concept_id and cs2.concept_set = cs3.concept_id and not exists (select concept_id from concept_set_derived csd where csd.concept_id = cs1.concept_id and csd.concept_set = cs3.concept_set)")
-			        .execute();
-			
-			// TODO This 'algorithm' only solves three layers of children.  Options for correction:
-			//	1) Add a few more join statements to cover 5 layers (conceivable upper limit of layers)
-			//	2) Find the deepest layer and programmatically create the sql statements
-			//	3) Run the joins on 
-		}
-		catch (SQLException e) {
-			throw new DAOException(e);
-		}
-	}
-	
-	/**
-	 * utility method used in updateConceptSetDerived(...)
-	 * 
-	 * @param List of parent Concept objects
-	 * @param Concept current
-	 * @return Set of ConceptSetDerived
-	 */
-	private Set<ConceptSetDerived> deriveChildren(List<Concept> parents, Concept current) {
-		Set<ConceptSetDerived> updates = new HashSet<ConceptSetDerived>();
-		
-		ConceptSetDerived derivedSet = null;
-		// make each child a direct child of each parent/grandparent
-		for (ConceptSet childSet : current.getConceptSets()) {
-			Concept child = childSet.getConcept();
-			log.debug("Deriving child: " + child.getConceptId());
-			Double sort_weight = childSet.getSortWeight();
-			for (Concept parent : parents) {
-				log.debug("Matching child: " + child.getConceptId() + " with parent: " + parent.getConceptId());
-				derivedSet = new ConceptSetDerived(parent, child, sort_weight++);
-				updates.add(derivedSet);
-			}
-			
-			//recurse if this child is a set as well
-			if (child.isSet()) {
-				log.debug("Concept id: " + child.getConceptId() + " is a set");
-				List<Concept> new_parents = new Vector<Concept>();
-				new_parents.addAll(parents);
-				new_parents.add(child);
-				updates.addAll(deriveChildren(new_parents, child));
-			}
-		}
-		
-		return updates;
+		ConceptSetClosure closure = getConceptSetClosure();
+		updateConceptSetDerived(closure, closure.getSets(), true);
 	}
 	
 	/**
@@ -783,69 +1078,174 @@ public class HibernateConceptDAO implements ConceptDAO {
 	public void updateConceptSetDerived(Concept concept) throws DAOException {
 		log.debug("Updating concept set derivisions for #" + concept.getConceptId().toString());
 		
-		// deletes current concept's sets and matching parent's sets
-		
-		//recursively get all parents
-		List<Concept> parents = getParents(concept);
-		
-		// delete this concept's children and their bursted parents
-		for (Concept parent : parents) {
-			sessionFactory
-			        .getCurrentSession()
-			        .createQuery(
-			            "delete from ConceptSetDerived csd where csd.concept in (select cs.concept from ConceptSet cs where cs.conceptSet = :c) and csd.conceptSet = :parent)")
-			        .setParameter("c", concept).setParameter("parent", parent).executeUpdate();
-		}
+		// only the concept's own row set and those of the sets it is nested in can change
+		ConceptSetClosure closure = getConceptSetClosure();
+		updateConceptSetDerived(closure, closure.getSetAndAncestors(concept.getConceptId()), false);
+	}
+	
+	/**
+	 * Reads the whole concept_set table into memory (after flushing pending concept changes)
+	 * 
+	 * @return the concept set hierarchy
+	 * @throws DAOException
+	 */
+	private ConceptSetClosure getConceptSetClosure() throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
 		
-		//set of updates to be passed to the server (unique list)
-		Set<ConceptSetDerived> updates = new HashSet<ConceptSetDerived>();
-		
-		//add parents as sets of parents below
-		ConceptSetDerived csd;
-		for (Integer a = 0; a < parents.size() - 1; a++) {
-			Concept set = parents.get(a);
-			for (Integer b = a + 1; b < parents.size(); b++) {
-				Concept conc = parents.get(b);
-				csd = new ConceptSetDerived(set, conc, Double.valueOf(b.doubleValue()));
-				updates.add(csd);
+		ConceptSetClosure closure = new ConceptSetClosure();
+		try {
+			PreparedStatement ps = session.connection().prepareStatement(
+			    "select concept_set, concept_id, sort_weight from concept_set");
+			try {
+				ResultSet rs = ps.executeQuery();
+				while (rs.next())
+					closure.addMember(rs.getInt(1), rs.getInt(2), getDouble(rs, 3));
+			}
+			finally {
+				ps.close();
 			}
 		}
-		
-		//recursively add parents to children
-		updates.addAll(deriveChildren(parents, concept));
-		
-		for (ConceptSetDerived c : updates) {
-			sessionFactory.getCurrentSession().saveOrUpdate(c);
+		catch (SQLException e) {
+			throw new DAOException("Unable to read the concept_set table", e);
 		}
-		
+		return closure;
 	}
 	
 	/**
-	 * y * returns a list of n-generations of parents of a concept in a concept set
+	 * Brings the concept_set_derived rows of the given sets in line with the closure, touching only
+	 * the rows that differ
 	 * 
-	 * @param Concept current
-	 * @return List<Concept>
+	 * @param closure the concept set hierarchy
+	 * @param setIds the sets to update
+	 * @param allSets true if every row of the table should be checked, so that the rows of concepts
+	 *            that are no longer sets are deleted too
 	 * @throws DAOException
 	 */
-	@SuppressWarnings("unchecked")
-	private List<Concept> getParents(Concept current) throws DAOException {
-		List<Concept> parents = new Vector<Concept>();
-		if (current != null) {
-			Query query = sessionFactory.getCurrentSession().createQuery(
-			    "from Concept c join c.conceptSets sets where sets.concept = ?").setEntity(0, current);
-			List<Concept> immed_parents = query.list();
-			for (Concept c : immed_parents) {
-				parents.addAll(getParents(c));
+	private void updateConceptSetDerived(ConceptSetClosure closure, Set<Integer> setIds, boolean allSets)
+	        throws DAOException {
+		Connection connection = sessionFactory.getCurrentSession().connection();
+		try {
+			// set id -> (concept id -> sort weight) of the rows currently in the table
+			Map<Integer, Map<Integer, Double>> existing = new HashMap<Integer, Map<Integer, Double>>();
+			PreparedStatement select;
+			if (allSets)
+				select = connection.prepareStatement("select concept_set, concept_id, sort_weight from concept_set_derived");
+			else
+				select = connection
+				        .prepareStatement("select concept_set, concept_id, sort_weight from concept_set_derived where concept_set = ?");
+			try {
+				if (allSets)
+					readConceptSetDerived(select, existing);
+				else {
+					for (Integer setId : setIds) {
+						select.setInt(1, setId);
+						readConceptSetDerived(select, existing);
+					}
+				}
 			}
-			parents.add(current);
-			if (log.isDebugEnabled()) {
-				log.debug("parents found: ");
-				for (Concept c : parents) {
-					log.debug("id: " + c.getConceptId());
+			finally {
+				select.close();
+			}
+			
+			Set<Integer> toCheck = new HashSet<Integer>(setIds);
+			toCheck.addAll(existing.keySet());
+			
+			PreparedStatement delete = connection
+			        .prepareStatement("delete from concept_set_derived where concept_set = ? and concept_id = ?");
+			PreparedStatement insert = connection
+			        .prepareStatement("insert into concept_set_derived (concept_set, concept_id, sort_weight) values (?, ?, ?)");
+			PreparedStatement update = connection
+			        .prepareStatement("update concept_set_derived set sort_weight = ? where concept_set = ? and concept_id = ?");
+			try {
+				int deletes = 0, inserts = 0, updates = 0;
+				for (Integer setId : toCheck) {
+					Map<Integer, Double> current = existing.get(setId);
+					if (current == null)
+						current = new HashMap<Integer, Double>();
+					Map<Integer, Double> derived = closure.getDescendants(setId);
+					
+					for (Integer conceptId : current.keySet()) {
+						if (!derived.containsKey(conceptId)) {
+							delete.setInt(1, setId);
+							delete.setInt(2, conceptId);
+							delete.addBatch();
+							if (++deletes % CONCEPT_SET_DERIVED_BATCH_SIZE == 0)
+								delete.executeBatch();
+						}
+					}
+					
+					for (Map.Entry<Integer, Double> e : derived.entrySet()) {
+						Integer conceptId = e.getKey();
+						Double sortWeight = e.getValue();
+						if (!current.containsKey(conceptId)) {
+							insert.setInt(1, setId);
+							insert.setInt(2, conceptId);
+							setDouble(insert, 3, sortWeight);
+							insert.addBatch();
+							if (++inserts % CONCEPT_SET_DERIVED_BATCH_SIZE == 0)
+								insert.executeBatch();
+						} else if (!OpenmrsUtil.nullSafeEquals(sortWeight, current.get(conceptId))) {
+							setDouble(update, 1, sortWeight);
+							update.setInt(2, setId);
+							update.setInt(3, conceptId);
+							update.addBatch();
+							if (++updates % CONCEPT_SET_DERIVED_BATCH_SIZE == 0)
+								update.executeBatch();
+						}
+					}
+				}
+				delete.executeBatch();
+				insert.executeBatch();
+				update.executeBatch();
+				
+				if (log.isDebugEnabled())
+					log.debug("concept_set_derived of " + toCheck.size() + " sets: " + inserts + " inserted, " + deletes
+					        + " deleted, " + updates + " updated");
+			}
+			finally {
+				delete.close();
+				insert.close();
+				update.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to update the concept_set_derived table", e);
+		}
+	}
+	
+	/**
+	 * Adds the rows returned by the given concept_set_derived select to the map
+	 */
+	private void readConceptSetDerived(PreparedStatement select, Map<Integer, Map<Integer, Double>> existing)
+	        throws SQLException {
+		ResultSet rs = select.executeQuery();
+		try {
+			while (rs.next()) {
+				Integer setId = rs.getInt(1);
+				Map<Integer, Double> rows = existing.get(setId);
+				if (rows == null) {
+					rows = new HashMap<Integer, Double>();
+					existing.put(setId, rows);
 				}
+				rows.put(rs.getInt(2), getDouble(rs, 3));
 			}
 		}
-		return parents;
+		finally {
+			rs.close();
+		}
+	}
+	
+	private Double getDouble(ResultSet rs, int column) throws SQLException {
+		double d = rs.getDouble(column);
+		return rs.wasNull() ? null : Double.valueOf(d);
+	}
+	
+	private void setDouble(PreparedStatement ps, int index, Double d) throws SQLException {
+		if (d == null)
+			ps.setNull(index, Types.DOUBLE);
+		else
+			ps.setDouble(index, d);
 	}
 	
 	/**
@@ -915,6 +1315,7 @@ public class HibernateConceptDAO implements ConceptDAO {
 	 */
 	public ConceptSource deleteConceptSource(ConceptSource cs) throws DAOException {
 		sessionFactory.getCurrentSession().delete(cs);
+		clearConceptMappingCacheOnCompletion();
 		return cs;
 	}
 	
@@ -923,6 +1324,7 @@ public class HibernateConceptDAO implements ConceptDAO {
 	 */
 	public ConceptSource saveConceptSource(ConceptSource conceptSource) throws DAOException {
 		sessionFactory.getCurrentSession().saveOrUpdate(conceptSource);
+		clearConceptMappingCacheOnCompletion();
 		return conceptSource;
 	}
 	
@@ -941,7 +1343,7 @@ public class HibernateConceptDAO implements ConceptDAO {
 	}
 	
 	/**
-	 * @see org.openmrs.api.db.ConceptDAO#getMaxConceptId()
+	 * @see org.openmrs.api.db.ConceptDAO#getMinConceptId()
 	 */
 	public Integer getMinConceptId() {
 		Query query = sessionFactory.getCurrentSession().createQuery("select min(conceptId) from Concept");
@@ -1012,14 +1414,62 @@ public class HibernateConceptDAO implements ConceptDAO {
 	 * @see org.openmrs.api.db.ConceptDAO#getConceptByMapping(java.lang.String, java.lang.String)
 	 */
 	public Concept getConceptByMapping(String conceptCode, String hl7Code) throws DAOException {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptMap.class);
-		// select the concept as the return value
-		criteria.setProjection(Projections.property("concept"));
-		criteria.add(Expression.eq("sourceCode", conceptCode));
-		// join to conceptSource and match to the hl7Code
-		criteria.createAlias("source", "conceptSource");
-		criteria.add(Expression.eq("conceptSource.hl7Code", hl7Code));
-		return (Concept) criteria.uniqueResult();
+		Integer conceptId = getConceptIdByMapping(conceptCode, hl7Code);
+		if (conceptId == null)
+			return null;
+		return getConcept(conceptId);
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.ConceptDAO#getConceptIdByMapping(java.lang.String, java.lang.String)
+	 */
+	public Integer getConceptIdByMapping(String conceptCode, String hl7Code) throws DAOException {
+		if (conceptCode == null || hl7Code == null)
+			return null;
+		
+		// hl7 codes can't contain the hl7 component separator
+		String key = hl7Code + "^" + conceptCode;
+		Integer conceptId = conceptIdsByMapping.get(key);
+		if (conceptId == null) {
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(ConceptMap.class);
+			// select the concept id as the return value
+			criteria.createAlias("concept", "concept");
+			criteria.setProjection(Projections.property("concept.conceptId"));
+			criteria.add(Expression.eq("sourceCode", conceptCode));
+			// join to conceptSource and match to the hl7Code
+			criteria.createAlias("source", "conceptSource");
+			criteria.add(Expression.eq("conceptSource.hl7Code", hl7Code));
+			conceptId = (Integer) criteria.uniqueResult();
+			
+			// unknown codes are not remembered, so a mapping added later is found straight away
+			if (conceptId != null)
+				conceptIdsByMapping.put(key, conceptId);
+		}
+		return conceptId;
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.ConceptDAO#clearConceptMappingCache()
+	 */
+	public void clearConceptMappingCache() throws DAOException {
+		conceptIdsByMapping.clear();
+	}
+	
+	/**
+	 * Empties the mapping cache now, so the rest of this transaction sees its own changes, and
+	 * again once the transaction ends, whether it commits or rolls back, so no thread keeps
+	 * mappings that were read before the changes were committed or that were never committed
+	 */
+	private void clearConceptMappingCacheOnCompletion() {
+		clearConceptMappingCache();
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				public void afterCompletion(int status) {
+					clearConceptMappingCache();
+				}
+			});
+		}
 	}
 	
 	/**
@@ -204,17 +204,22 @@ public class HibernateContextDAO implements ContextDAO {
 	}
 	
 	/**
-	 * @see org.openmrs.api.context.Context#openSession()
+	 * Whether the session on the current thread was already open when openSession was called.
+	 * This is per thread since this dao is shared by every thread.
 	 */
-	private boolean participate = false;
+	private ThreadLocal<Boolean> participate = new ThreadLocal<Boolean>();
 	
+	/**
+	 * @see org.openmrs.api.context.Context#openSession()
+	 */
 	public void openSession() {
 		log.debug("HibernateContext: Opening Hibernate Session");
 		if (TransactionSynchronizationManager.hasResource(sessionFactory)) {
 			if (log.isDebugEnabled())
 				log.debug("Participating in existing session (" + sessionFactory.hashCode() + ")");
-			participate = true;
+			participate.set(Boolean.TRUE);
 		} else {
+			participate.set(Boolean.FALSE);
 			if (log.isDebugEnabled())
 				log.debug("Registering session with synchronization manager (" + sessionFactory.hashCode() + ")");
 			Session session = SessionFactoryUtils.getSession(sessionFactory, true);
@@ -228,7 +233,7 @@ public class HibernateContextDAO implements ContextDAO {
 	 */
 	public void closeSession() {
 		log.debug("HibernateContext: closing Hibernate Session");
-		if (!participate) {
+		if (!Boolean.TRUE.equals(participate.get())) {
 			log.debug("Unbinding session from synchronization mangaer (" + sessionFactory.hashCode() + ")");
 			
 			if (TransactionSynchronizationManager.hasResource(sessionFactory)) {
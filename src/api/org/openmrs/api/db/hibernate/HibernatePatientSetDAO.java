@@ -13,6 +13,7 @@
  */
 package org.openmrs.api.db.hibernate;
 
+import java.io.OutputStream;
 import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.text.DateFormat;
@@ -20,6 +21,7 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
@@ -34,6 +36,9 @@ import java.util.Vector;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
@@ -45,7 +50,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.CacheMode;
 import org.hibernate.Criteria;
+import org.hibernate.FetchMode;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Expression;
 import org.hibernate.criterion.ProjectionList;
@@ -78,6 +87,7 @@ import org.openmrs.RelationshipType;
 import org.openmrs.User;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.ObsService;
+import org.openmrs.api.PatientDataVisitor;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.PatientSetService;
 import org.openmrs.api.PatientSetService.Modifier;
@@ -86,6 +96,7 @@ import org.openmrs.api.PatientSetService.TimeModifier;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
 import org.openmrs.api.db.PatientSetDAO;
+import org.openmrs.util.OpenmrsConstants;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -101,6 +112,21 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * Number of rows fetched from the database at a time by the streaming "visit" methods
+	 */
+	private static final int STREAMING_FETCH_SIZE = 500;
+	
+	/**
+	 * Number of rows after which the streaming "visit" methods clear the session
+	 */
+	private static final int STREAMING_CLEAR_INTERVAL = 1000;
+	
+	/**
+	 * Number of patients fetched at a time by {@link #exportXml(Cohort, OutputStream)}
+	 */
+	private static final int EXPORT_PAGE_SIZE = 500;
+	
 	/**
 	 * Hibernate sessionFactory.getCurrentSession() factory
 	 */
@@ -115,8 +141,64 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		this.sessionFactory = sessionFactory;
 	}
 	
+	/**
+	 * Binds the members of the given cohort for use in a query on the current session. Cohorts
+	 * larger than the {@link OpenmrsConstants#GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD} are loaded
+	 * into a temporary table rather than being put in the query as an "in (...)" list.
+	 * 
+	 * @param patients the cohort to bind (may be null)
+	 * @return the binding, which must be released once the query has run. Bind inside the try
+	 *         block that releases it, so a failure part way through binding still drops the table
+	 * @see HibernateCohortBinding
+	 * @see #release(HibernateCohortBinding)
+	 */
+	private HibernateCohortBinding bindCohort(Cohort patients) {
+		return bindCohort(patients == null ? null : patients.getMemberIds());
+	}
+	
+	/**
+	 * @see #bindCohort(Cohort)
+	 */
+	private HibernateCohortBinding bindCohort(Collection<Integer> patientIds) {
+		int threshold = patientIds == null ? 0 : getCohortBindingThreshold();
+		return HibernateCohortBinding.bind(sessionFactory, patientIds, threshold);
+	}
+	
+	/**
+	 * Releases a binding made inside a try block, if the binding got made
+	 * 
+	 * @param binding the binding to release (may be null)
+	 */
+	private static void release(HibernateCohortBinding binding) {
+		if (binding != null)
+			binding.release();
+	}
+	
+	/**
+	 * Fetch the cohort binding threshold from the global properties table
+	 * 
+	 * @return the number of patients above which cohorts are bound in a temporary table
+	 */
+	private int getCohortBindingThreshold() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD
+				        + " to a valid integer. Using the default " + HibernateCohortBinding.DEFAULT_THRESHOLD);
+			}
+		}
+		return HibernateCohortBinding.DEFAULT_THRESHOLD;
+	}
+	
+	/**
+	 * Builds the whole export in memory. Use {@link #exportXml(Cohort, OutputStream)} for large
+	 * patient sets.
+	 */
 	public String exportXml(Cohort ps) throws DAOException {
-		// TODO: This is inefficient for large patient sets.
 		StringBuffer ret = new StringBuffer("<patientset>");
 		for (Integer patientId : ps.getMemberIds()) {
 			ret.append(exportXml(patientId));
@@ -124,6 +206,292 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		ret.append("</patientset>");
 		return ret.toString();
 	}
+	
+	/**
+	 * Writes the same patient data as {@link #exportXml(Integer)} for every member of the cohort
+	 * straight to the given stream, inside a single &lt;patientset&gt; element. Patients are loaded
+	 * {@link #EXPORT_PAGE_SIZE} at a time, with their names, encounters and observations fetched
+	 * in one query each per page, and the session is cleared between pages so the export runs in
+	 * constant memory.
+	 * 
+	 * @see org.openmrs.api.db.PatientSetDAO#exportXml(org.openmrs.Cohort, java.io.OutputStream)
+	 */
+	public void exportXml(Cohort ps, OutputStream out) throws DAOException {
+		Locale locale = Context.getLocale();
+		DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		Map<Integer, String> conceptNames = new HashMap<Integer, String>();
+		
+		List<Integer> patientIds = new ArrayList<Integer>(ps.getMemberIds());
+		Collections.sort(patientIds);
+		
+		Session session = sessionFactory.getCurrentSession();
+		// clearing the session below would otherwise throw away pending changes
+		session.flush();
+		
+		try {
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeStartElement("patientset");
+			
+			for (int start = 0; start < patientIds.size(); start += EXPORT_PAGE_SIZE) {
+				List<Integer> page = patientIds.subList(start, Math.min(start + EXPORT_PAGE_SIZE, patientIds.size()));
+				exportXmlPage(writer, page, locale, dateFormat, conceptNames);
+				writer.flush();
+				session.clear();
+			}
+			
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.flush();
+		}
+		catch (XMLStreamException ex) {
+			throw new DAOException("Unable to write the xml export", ex);
+		}
+	}
+	
+	/**
+	 * Fetches and writes one page of patients for {@link #exportXml(Cohort, OutputStream)}
+	 */
+	@SuppressWarnings("unchecked")
+	private void exportXmlPage(XMLStreamWriter writer, List<Integer> page, Locale locale, DateFormat dateFormat,
+	                           Map<Integer, String> conceptNames) throws XMLStreamException {
+		Session session = sessionFactory.getCurrentSession();
+		
+		Criteria criteria = session.createCriteria(Patient.class);
+		criteria.setCacheMode(CacheMode.IGNORE);
+		criteria.setFetchMode("names", FetchMode.JOIN);
+		criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
+		criteria.add(Restrictions.in("patientId", page));
+		criteria.addOrder(org.hibernate.criterion.Order.asc("patientId"));
+		List<Patient> patients = criteria.list();
+		
+		criteria = session.createCriteria(Encounter.class);
+		criteria.setCacheMode(CacheMode.IGNORE);
+		criteria.setFetchMode("location", FetchMode.JOIN);
+		criteria.setFetchMode("encounterType", FetchMode.JOIN);
+		criteria.setFetchMode("form", FetchMode.JOIN);
+		criteria.add(Restrictions.in("patient.personId", page));
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
+		Map<Integer, List<Encounter>> encountersByPatient = new HashMap<Integer, List<Encounter>>();
+		for (Encounter e : (List<Encounter>) criteria.list()) {
+			Integer ptId = e.getPatientId();
+			List<Encounter> list = encountersByPatient.get(ptId);
+			if (list == null) {
+				list = new ArrayList<Encounter>();
+				encountersByPatient.put(ptId, list);
+			}
+			list.add(e);
+		}
+		
+		criteria = session.createCriteria(Obs.class);
+		criteria.setCacheMode(CacheMode.IGNORE);
+		criteria.add(Restrictions.in("person.personId", page));
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.addOrder(org.hibernate.criterion.Order.asc("obsId"));
+		List<Obs> obsList = criteria.list();
+		
+		// grouping obs are left out of encounters, the same as Encounter.getObs() does
+		Set<Integer> groupingObsIds = new HashSet<Integer>();
+		for (Obs obs : obsList) {
+			if (obs.getObsGroup() != null)
+				groupingObsIds.add(obs.getObsGroup().getObsId());
+		}
+		Map<Integer, List<Obs>> obsByEncounter = new HashMap<Integer, List<Obs>>();
+		Map<Integer, List<Obs>> obsWithoutEncounterByPatient = new HashMap<Integer, List<Obs>>();
+		for (Obs obs : obsList) {
+			Integer key;
+			Map<Integer, List<Obs>> map;
+			if (obs.getEncounter() == null) {
+				key = obs.getPersonId();
+				map = obsWithoutEncounterByPatient;
+			} else if (!groupingObsIds.contains(obs.getObsId())) {
+				key = obs.getEncounter().getEncounterId();
+				map = obsByEncounter;
+			} else
+				continue;
+			List<Obs> list = map.get(key);
+			if (list == null) {
+				list = new ArrayList<Obs>();
+				map.put(key, list);
+			}
+			list.add(obs);
+		}
+		
+		for (Patient p : patients) {
+			writer.writeStartElement("patient_data");
+			writer.writeStartElement("patient");
+			writer.writeAttribute("patient_id", p.getPatientId().toString());
+			
+			PersonName firstName = p.getNames().isEmpty() ? null : p.getNames().iterator().next();
+			if (firstName != null)
+				writePersonNameAttributes(writer, firstName);
+			if (p.getGender() != null)
+				writer.writeAttribute("gender", p.getGender());
+			if (p.getBirthdate() != null)
+				writer.writeAttribute("birthdate", dateFormat.format(p.getBirthdate()));
+			if (p.getBirthdateEstimated() != null)
+				writer.writeAttribute("birthdate_estimated", p.getBirthdateEstimated().toString());
+			if (p.getTribe() != null)
+				writer.writeAttribute("tribe", p.getTribe().getName());
+			if (p.getDeathDate() != null)
+				writer.writeAttribute("death_date", dateFormat.format(p.getDeathDate()));
+			if (p.getCauseOfDeath() != null)
+				writer.writeAttribute("cause_of_death", p.getCauseOfDeath().getName(locale, false).getName());
+			
+			writer.writeStartElement("names");
+			for (PersonName name : p.getNames()) {
+				writer.writeStartElement("name");
+				writePersonNameAttributes(writer, name);
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+			
+			List<Encounter> encounters = encountersByPatient.get(p.getPatientId());
+			if (encounters != null) {
+				for (Encounter e : encounters) {
+					writer.writeStartElement("encounter");
+					if (e.getEncounterDatetime() != null)
+						writer.writeAttribute("datetime", dateFormat.format(e.getEncounterDatetime()));
+					
+					writer.writeStartElement("metadata");
+					Location l = e.getLocation();
+					if (l != null)
+						writeTextElement(writer, "location", "location_id", l.getLocationId(), l.getName());
+					EncounterType t = e.getEncounterType();
+					if (t != null)
+						writeTextElement(writer, "encounter_type", "encounter_type_id", t.getEncounterTypeId(), t.getName());
+					Form f = e.getForm();
+					if (f != null)
+						writeTextElement(writer, "form", "form_id", f.getFormId(), f.getName());
+					User u = e.getProvider();
+					if (u != null)
+						writeTextElement(writer, "provider", "provider_id", u.getUserId(), formatUserName(u));
+					writer.writeEndElement();
+					
+					writeObservations(writer, obsByEncounter.get(e.getEncounterId()), locale, dateFormat, conceptNames);
+					
+					writer.writeEndElement();
+				}
+			}
+			
+			writeObservations(writer, obsWithoutEncounterByPatient.get(p.getPatientId()), locale, dateFormat,
+			    conceptNames);
+			
+			writer.writeEndElement();
+			writer.writeEndElement();
+		}
+	}
+	
+	private void writePersonNameAttributes(XMLStreamWriter writer, PersonName name) throws XMLStreamException {
+		if (name.getGivenName() != null)
+			writer.writeAttribute("given_name", name.getGivenName());
+		if (name.getMiddleName() != null)
+			writer.writeAttribute("middle_name", name.getMiddleName());
+		if (name.getFamilyName() != null)
+			writer.writeAttribute("family_name", name.getFamilyName());
+		if (name.getFamilyName2() != null)
+			writer.writeAttribute("family_name2", name.getFamilyName2());
+	}
+	
+	private void writeTextElement(XMLStreamWriter writer, String elementName, String idAttribute, Integer id,
+	                              String text) throws XMLStreamException {
+		writer.writeStartElement(elementName);
+		writer.writeAttribute(idAttribute, id.toString());
+		if (text != null)
+			writer.writeCharacters(text);
+		writer.writeEndElement();
+	}
+	
+	/**
+	 * Writes an &lt;observations&gt; element in the same format as
+	 * {@link #obsElementHelper(Document, Locale, Obs)}, or nothing if there are no observations
+	 */
+	private void writeObservations(XMLStreamWriter writer, List<Obs> observations, Locale locale,
+	                               DateFormat dateFormat, Map<Integer, String> conceptNames) throws XMLStreamException {
+		if (observations == null || observations.isEmpty())
+			return;
+		
+		writer.writeStartElement("observations");
+		for (Obs obs : observations) {
+			writer.writeStartElement("obs");
+			Concept c = obs.getConcept();
+			writer.writeAttribute("obs_id", obs.getObsId().toString());
+			writer.writeAttribute("concept_id", c.getConceptId().toString());
+			writer.writeAttribute("concept_name", getConceptName(c, locale, conceptNames));
+			
+			if (obs.getObsDatetime() != null)
+				writer.writeAttribute("datetime", dateFormat.format(obs.getObsDatetime()));
+			if (obs.getAccessionNumber() != null)
+				writer.writeAttribute("accession_number", obs.getAccessionNumber());
+			if (obs.getComment() != null)
+				writer.writeAttribute("comment", obs.getComment());
+			if (obs.getDateStarted() != null)
+				writer.writeAttribute("date_started", dateFormat.format(obs.getDateStarted()));
+			if (obs.getDateStopped() != null)
+				writer.writeAttribute("date_stopped", dateFormat.format(obs.getDateStopped()));
+			if (obs.getObsGroup() != null)
+				writer.writeAttribute("obs_group_id", obs.getObsGroup().getObsId().toString());
+			if (obs.getValueGroupId() != null)
+				writer.writeAttribute("value_group_id", obs.getValueGroupId().toString());
+			
+			String value = null;
+			String dataType = null;
+			
+			if (obs.getValueCoded() != null) {
+				Concept valueConcept = obs.getValueCoded();
+				value = getConceptName(valueConcept, locale, conceptNames);
+				writer.writeAttribute("value_coded_id", valueConcept.getConceptId().toString());
+				writer.writeAttribute("value_coded", value);
+				dataType = "coded";
+			}
+			if (obs.getValueAsBoolean() != null) {
+				value = obs.getValueAsBoolean().toString();
+				writer.writeAttribute("value_boolean", value);
+				dataType = "boolean";
+			}
+			if (obs.getValueDatetime() != null) {
+				writer.writeAttribute("value_datetime", dateFormat.format(obs.getValueDatetime()));
+				dataType = "datetime";
+				value = obs.getValueDatetime().toString();
+			}
+			if (obs.getValueNumeric() != null) {
+				value = obs.getValueNumeric().toString();
+				writer.writeAttribute("value_numeric", value);
+				dataType = "numeric";
+			}
+			if (obs.getValueText() != null) {
+				value = obs.getValueText();
+				writer.writeAttribute("value_text", value);
+				dataType = "text";
+			}
+			if (obs.getValueModifier() != null) {
+				writer.writeAttribute("value_modifier", obs.getValueModifier());
+				if (value != null)
+					value = obs.getValueModifier() + " " + value;
+			}
+			if (dataType != null)
+				writer.writeAttribute("data_type", dataType);
+			if (value != null)
+				writer.writeCharacters(value);
+			
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+	}
+	
+	/**
+	 * Looks up the concept's name in the given locale, remembering it in the cache so each concept
+	 * is only looked up once per export
+	 */
+	private String getConceptName(Concept c, Locale locale, Map<Integer, String> cache) {
+		String name = cache.get(c.getConceptId());
+		if (name == null) {
+			name = c.getName(locale).getName();
+			cache.put(c.getConceptId(), name);
+		}
+		return name;
+	}
 
 	private String formatUserName(User u) {
 		return u.getPersonName().toString();
@@ -560,6 +928,43 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		
 		return new Cohort(query.list());
 	}
+	
+	/**
+	 * Encounters and orders have no date_changed column, so only their creation and voiding (and
+	 * orders being discontinued or expiring) are noticed here
+	 * 
+	 * @see org.openmrs.api.db.PatientSetDAO#getPatientsChangedSince(java.util.Date)
+	 */
+	public Cohort getPatientsChangedSince(Date since) {
+		String sql = "select person_id from obs where date_created >= :since or date_voided >= :since "
+		        + "union select patient_id from encounter where date_created >= :since or date_voided >= :since "
+		        + "union select patient_id from orders where date_created >= :since or date_voided >= :since "
+		        + "  or (discontinued_date >= :since and discontinued_date <= :now) "
+		        + "  or (auto_expire_date >= :since and auto_expire_date <= :now) "
+		        + "union select patient_id from patient_program "
+		        + "  where date_created >= :since or date_changed >= :since or date_voided >= :since "
+		        + "union select pp.patient_id from patient_state ps "
+		        + "  inner join patient_program pp on pp.patient_program_id = ps.patient_program_id "
+		        + "  where ps.date_created >= :since or ps.date_changed >= :since or ps.date_voided >= :since "
+		        + "union select person_id from person "
+		        + "  where date_created >= :since or date_changed >= :since or date_voided >= :since "
+		        + "union select person_id from person_name "
+		        + "  where date_created >= :since or date_changed >= :since or date_voided >= :since "
+		        + "union select person_id from person_attribute "
+		        + "  where date_created >= :since or date_changed >= :since or date_voided >= :since "
+		        + "union select person_id from person_address where date_created >= :since or date_voided >= :since "
+		        + "union select person_a from relationship where date_created >= :since or date_voided >= :since "
+		        + "union select person_b from relationship where date_created >= :since or date_voided >= :since "
+		        + "union select patient_id from patient_identifier where date_created >= :since or date_voided >= :since";
+		log.debug("sql: " + sql);
+		
+		Query query = sessionFactory.getCurrentSession().createSQLQuery(sql);
+		query.setCacheMode(CacheMode.IGNORE);
+		query.setTimestamp("since", since);
+		query.setTimestamp("now", new Date());
+		
+		return new Cohort(query.list());
+	}
 
 	public Cohort getPatientsHavingObs(Integer conceptId, PatientSetService.TimeModifier timeModifier,
 	                                   PatientSetService.Modifier modifier, Object value, Date fromDate, Date toDate) {
@@ -1060,19 +1465,17 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 			forPatient.add(obs);
 		}
 		*/
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
-		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		criteria.add(Restrictions.eq("concept", concept));
-		
-		// only add this where clause if patients were passed in
-		if (patients != null)
-			criteria.add(Restrictions.in("person.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		criteria.addOrder(org.hibernate.criterion.Order.desc("obsDatetime"));
-		log.debug("criteria: " + criteria);
-		List<Obs> temp = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Obs> temp;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createObservationsCriteria(patients, concept, binding, false);
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		for (Obs obs : temp) {
 			Integer ptId = obs.getPersonId();
 			List<Obs> forPatient = ret.get(ptId);
@@ -1086,107 +1489,199 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		return ret;
 	}
 	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#visitObservations(org.openmrs.Cohort,
+	 *      org.openmrs.Concept, org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitObservations(Cohort patients, Concept concept, PatientDataVisitor<Obs> visitor) throws DAOException {
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createObservationsCriteria(patients, concept, binding, true);
+			visitByPatient(criteria, visitor, new PatientRowReader<Obs>() {
+				
+				public Integer getPatientId(Object[] row) {
+					return ((Obs) row[0]).getPersonId();
+				}
+				
+				public Obs read(Object[] row) {
+					return (Obs) row[0];
+				}
+			});
+		}
+		finally {
+			release(binding);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#getObservationIds(org.openmrs.Cohort,
+	 *      java.util.Collection, java.util.Date, java.util.Date)
+	 */
 	@SuppressWarnings("unchecked")
-    public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes) {
-		Map<Integer, List<List<Object>>> ret = new HashMap<Integer, List<List<Object>>>();
-		
-		List<String> aliases = new Vector<String>();
-		Boolean conditional = false; 
-		
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria("org.openmrs.Obs", "obs");
+	public List<Integer> getObservationIds(Cohort patients, Collection<Concept> concepts, Date fromDate, Date toDate)
+	                                                                                                               throws DAOException {
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+			criteria.setCacheMode(CacheMode.IGNORE);
+			criteria.setProjection(Projections.id());
+			if (patients != null)
+				criteria.add(binding.restrict("person.personId"));
+			if (concepts != null && !concepts.isEmpty())
+				criteria.add(Restrictions.in("concept", concepts));
+			if (fromDate != null)
+				criteria.add(Restrictions.ge("obsDatetime", fromDate));
+			if (toDate != null)
+				criteria.add(Restrictions.le("obsDatetime", toDate));
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("person.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.desc("obsDatetime"));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("obsId"));
+			return criteria.list();
+		}
+		finally {
+			release(binding);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#getObservationsByIds(java.util.List)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Obs> getObservationsByIds(List<Integer> obsIds) throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		List<String> columns = new Vector<String>();
-		
-		for (String attribute : attributes) {
-			List<String> classNames = new Vector<String>();
-			if (attribute == null) {
-				columns = findObsValueColumnName(c);
-				if (columns.size() > 1)
-					conditional = true;
-				continue;
-				//log.debug("c: " + c.getConceptId() + " attribute: " + attribute);
-			} else if (attribute.equals("valueDatetime")) {
-				// pass -- same column name
-			} else if (attribute.equals("obsDatetime")) {
-				// pass -- same column name
-			} else if (attribute.equals("location")) {
-				// pass -- same column name
-				classNames.add("obs.location");
-				attribute = "location.name";
-			} else if (attribute.equals("comment")) {
-				// pass -- same column name
-			} else if (attribute.equals("encounterType")) {
-				classNames.add("obs.encounter");
-				classNames.add("encounter.encounterType");
-				attribute = "encounterType.name";
-			} else if (attribute.equals("provider")) {
-				classNames.add("obs.encounter");
-				attribute = "encounter.provider";
-			} else {
-				throw new DAOException("Attribute: " + attribute + " is not recognized. Please add reference in "
-				        + this.getClass());
-			}
+		criteria.add(Restrictions.in("obsId", obsIds));
+		return inIdOrder(obsIds, criteria.list(), new IdReader<Obs>() {
 			
-			for (String className : classNames) { // if aliasing is necessary
-				if (!aliases.contains(className)) { // if we haven't aliased this already
-					criteria.createAlias(className, className.split("\\.")[1]);
-					aliases.add(className);
-				}
+			public Integer getId(Obs obs) {
+				return obs.getObsId();
 			}
-			
-			columns.add(attribute);
+		});
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#getPatientProgramIds(org.openmrs.Cohort,
+	 *      java.util.Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Integer> getPatientProgramIds(Cohort patients, Collection<Program> programs) throws DAOException {
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
+			criteria.setCacheMode(CacheMode.IGNORE);
+			criteria.setProjection(Projections.id());
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			if (programs != null)
+				criteria.add(Restrictions.in("program", programs));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("patient.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("dateEnrolled"));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("patientProgramId"));
+			return criteria.list();
 		}
+		finally {
+			release(binding);
+		}
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#getPatientProgramsByIds(java.util.List)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<PatientProgram> getPatientProgramsByIds(List<Integer> patientProgramIds) throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
+		criteria.setCacheMode(CacheMode.IGNORE);
+		criteria.add(Restrictions.in("patientProgramId", patientProgramIds));
+		return inIdOrder(patientProgramIds, criteria.list(), new IdReader<PatientProgram>() {
+			
+			public Integer getId(PatientProgram patientProgram) {
+				return patientProgram.getPatientProgramId();
+			}
+		});
+	}
+	
+	/**
+	 * Reads the id of a loaded object
+	 */
+	private interface IdReader<T> {
 		
-		String aliasName = "obs";
-		
-		// set up the query
-		ProjectionList projections = Projections.projectionList();
-		projections.add(Projections.property("obs.personId"));
-		for (String col : columns) {
-			if (col.contains("."))
-				projections.add(Projections.property(col));
-			else
-				projections.add(Projections.property(aliasName + "." + col));
+		public Integer getId(T object);
+	}
+	
+	/**
+	 * Puts objects loaded by id back into the order of the ids they were loaded by
+	 * 
+	 * @param ids the ids, in the wanted order
+	 * @param objects the loaded objects, in any order
+	 * @param reader reads the objects' ids
+	 * @return the objects in the order of their ids. Ids that weren't loaded are skipped
+	 */
+	private static <T> List<T> inIdOrder(List<Integer> ids, List<T> objects, IdReader<T> reader) {
+		Map<Integer, T> byId = new HashMap<Integer, T>();
+		for (T object : objects)
+			byId.put(reader.getId(object), object);
+		List<T> ret = new ArrayList<T>(ids.size());
+		for (Integer id : ids) {
+			T object = byId.get(id);
+			if (object != null)
+				ret.add(object);
 		}
-		criteria.setProjection(projections);
+		return ret;
+	}
+	
+	/**
+	 * Builds the criteria shared by {@link #getObservations(Cohort, Concept, Date, Date)} and
+	 * {@link #visitObservations(Cohort, Concept, PatientDataVisitor)}
+	 * 
+	 * @param orderByPatient if true the rows are grouped by patient (for streaming)
+	 */
+	private Criteria createObservationsCriteria(Cohort patients, Concept concept, HibernateCohortBinding binding,
+	                                            boolean orderByPatient) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.setCacheMode(CacheMode.IGNORE);
 		
-		// only restrict on patient ids if some were passed in
-		if (patients != null)
-			criteria.add(Restrictions.in("obs.personId", patients.getMemberIds()));
+		criteria.add(Restrictions.eq("concept", concept));
 		
-		criteria.add(Expression.eq("obs.concept", c));
-		criteria.add(Expression.eq("obs.voided", false));
+		// only add this where clause if patients were passed in
+		if (patients != null)
+			criteria.add(binding.restrict("person.personId"));
 		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("obs.obsDatetime"));
-		criteria.addOrder(org.hibernate.criterion.Order.desc("obs.voided"));
+		criteria.add(Restrictions.eq("voided", false));
+		if (orderByPatient)
+			criteria.addOrder(org.hibernate.criterion.Order.asc("person.personId"));
+		criteria.addOrder(org.hibernate.criterion.Order.desc("obsDatetime"));
+		return criteria;
+	}
+	
+	@SuppressWarnings("unchecked")
+    public Map<Integer, List<List<Object>>> getObservationsValues(Cohort patients, Concept c, List<String> attributes) {
+		Map<Integer, List<List<Object>>> ret = new HashMap<Integer, List<List<Object>>>();
 		
-		log.debug("criteria: " + criteria);
+		boolean conditional = isConditionalValue(c, attributes);
 		
-		List<Object[]> rows = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Object[]> rows;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createObservationsValuesCriteria(patients, c, attributes, binding, false);
+			
+			log.debug("criteria: " + criteria);
+			rows = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		for (Object[] rowArray : rows) {
 			//log.debug("row[0]: " + row[0] + " row[1]: " + row[1] + (row.length > 2 ? " row[2]: " + row[2] : ""));
 			Integer ptId = (Integer)rowArray[0];
 			
-			Boolean tmpConditional = conditional.booleanValue();
-			
-			// get all columns
-			int index = 1;
-			List<Object> row = new Vector<Object>();
-			while (index < rowArray.length) {
-				Object value = rowArray[index++];
-				if (tmpConditional) {
-					if (index == 2 && value != null) // skip null first value if we must
-						row.add(value);
-					else
-						row.add(rowArray[index]);
-					tmpConditional = false;
-					index++; // increment counter for next column.  (Skips over value_concept)
-				} else
-					row.add(value == null ? "" : value);
-			}
+			List<Object> row = readObservationsValuesRow(rowArray, conditional);
 			
 			// if we haven't seen a different row for this patient already:
 			if (!ret.containsKey(ptId)) {
@@ -1206,6 +1701,149 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		
 	}
 	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#visitObservationsValues(org.openmrs.Cohort,
+	 *      org.openmrs.Concept, java.util.List, org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitObservationsValues(Cohort patients, Concept c, List<String> attributes,
+	                                    PatientDataVisitor<List<Object>> visitor) throws DAOException {
+		final boolean conditional = isConditionalValue(c, attributes);
+		
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createObservationsValuesCriteria(patients, c, attributes, binding, true);
+			visitByPatient(criteria, visitor, new PatientRowReader<List<Object>>() {
+				
+				public Integer getPatientId(Object[] row) {
+					return (Integer) row[0];
+				}
+				
+				public List<Object> read(Object[] row) {
+					return readObservationsValuesRow(row, conditional);
+				}
+			});
+		}
+		finally {
+			release(binding);
+		}
+	}
+	
+	/**
+	 * @return true if the obs value is spread over two columns (valueDrug and valueCoded) and the
+	 *         first non-null one should be used
+	 */
+	private boolean isConditionalValue(Concept c, List<String> attributes) {
+		return attributes.contains(null) && findObsValueColumnName(c).size() > 1;
+	}
+	
+	/**
+	 * Builds the projection criteria shared by {@link #getObservationsValues(Cohort, Concept, List)}
+	 * and {@link #visitObservationsValues(Cohort, Concept, List, PatientDataVisitor)}. The first
+	 * column of each row is the patient id.
+	 * 
+	 * @param orderByPatient if true the rows are grouped by patient (for streaming)
+	 */
+	private Criteria createObservationsValuesCriteria(Cohort patients, Concept c, List<String> attributes,
+	                                                  HibernateCohortBinding binding, boolean orderByPatient) {
+		List<String> aliases = new Vector<String>();
+		
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria("org.openmrs.Obs", "obs");
+		criteria.setCacheMode(CacheMode.IGNORE);
+		
+		List<String> columns = new Vector<String>();
+		
+		for (String attribute : attributes) {
+			List<String> classNames = new Vector<String>();
+			if (attribute == null) {
+				columns = findObsValueColumnName(c);
+				continue;
+				//log.debug("c: " + c.getConceptId() + " attribute: " + attribute);
+			} else if (attribute.equals("valueDatetime")) {
+				// pass -- same column name
+			} else if (attribute.equals("obsDatetime")) {
+				// pass -- same column name
+			} else if (attribute.equals("location")) {
+				// pass -- same column name
+				classNames.add("obs.location");
+				attribute = "location.name";
+			} else if (attribute.equals("comment")) {
+				// pass -- same column name
+			} else if (attribute.equals("encounterType")) {
+				classNames.add("obs.encounter");
+				classNames.add("encounter.encounterType");
+				attribute = "encounterType.name";
+			} else if (attribute.equals("provider")) {
+				classNames.add("obs.encounter");
+				attribute = "encounter.provider";
+			} else {
+				throw new DAOException("Attribute: " + attribute + " is not recognized. Please add reference in "
+				        + this.getClass());
+			}
+			
+			for (String className : classNames) { // if aliasing is necessary
+				if (!aliases.contains(className)) { // if we haven't aliased this already
+					criteria.createAlias(className, className.split("\\.")[1]);
+					aliases.add(className);
+				}
+			}
+			
+			columns.add(attribute);
+		}
+		
+		String aliasName = "obs";
+		
+		// set up the query
+		ProjectionList projections = Projections.projectionList();
+		projections.add(Projections.property("obs.personId"));
+		for (String col : columns) {
+			if (col.contains("."))
+				projections.add(Projections.property(col));
+			else
+				projections.add(Projections.property(aliasName + "." + col));
+		}
+		criteria.setProjection(projections);
+		
+		// only restrict on patient ids if some were passed in
+		if (patients != null)
+			criteria.add(binding.restrict("obs.personId"));
+		
+		criteria.add(Expression.eq("obs.concept", c));
+		criteria.add(Expression.eq("obs.voided", false));
+		
+		if (orderByPatient)
+			criteria.addOrder(org.hibernate.criterion.Order.asc("obs.personId"));
+		criteria.addOrder(org.hibernate.criterion.Order.desc("obs.obsDatetime"));
+		criteria.addOrder(org.hibernate.criterion.Order.desc("obs.voided"));
+		
+		return criteria;
+	}
+	
+	/**
+	 * Converts one row of the observations values criteria into [obs value, attr value, attr
+	 * value...]
+	 */
+	private List<Object> readObservationsValuesRow(Object[] rowArray, boolean conditional) {
+		boolean tmpConditional = conditional;
+		
+		// get all columns
+		int index = 1;
+		List<Object> row = new Vector<Object>();
+		while (index < rowArray.length) {
+			Object value = rowArray[index++];
+			if (tmpConditional) {
+				if (index == 2 && value != null) // skip null first value if we must
+					row.add(value);
+				else
+					row.add(rowArray[index]);
+				tmpConditional = false;
+				index++; // increment counter for next column.  (Skips over value_concept)
+			} else
+				row.add(value == null ? "" : value);
+		}
+		return row;
+	}
+	
 	// TODO this should be in some sort of central place...but where?
 	public static List<String> findObsValueColumnName(Concept c) {
 		String abbrev = c.getDatatype().getHl7Abbreviation();
@@ -1233,20 +1871,26 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only necessary if patients were passed in
-		if (patients != null && patients.size() > 0)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		
-		if (encTypes != null && encTypes.size() > 0)
-			criteria.add(Restrictions.in("encounterType", encTypes));
-		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
-		
-		List<Encounter> encounters = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Encounter> encounters;
+		try {
+			binding = bindCohort(patients);
+			// this "where clause" is only necessary if patients were passed in
+			if (patients != null && patients.size() > 0)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			
+			if (encTypes != null && encTypes.size() > 0)
+				criteria.add(Restrictions.in("encounterType", encTypes));
+			
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
+			encounters = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		for (Encounter enc : encounters) {
@@ -1270,20 +1914,25 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only necessary if patients were passed in
-		if (patients != null && patients.size() > 0)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		
-		if (forms != null && forms.size() > 0)
-			criteria.add(Restrictions.in("form", forms));
-		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
-		
-		return criteria.list();
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			// this "where clause" is only necessary if patients were passed in
+			if (patients != null && patients.size() > 0)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			
+			if (forms != null && forms.size() > 0)
+				criteria.add(Restrictions.in("form", forms));
+			
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
+			return criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 	
 	}	
 	
@@ -1296,27 +1945,33 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only necessary if patients were specified
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		
-		if (encTypes != null && encTypes.size() > 0)
-			criteria.add(Restrictions.in("encounterType", encTypes));
-		
-		criteria.setProjection(Projections.projectionList().add(Projections.property("patient.personId")).add(
-				Projections.property(attr)));
-		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		
-		if (earliestFirst)
-			criteria.addOrder(org.hibernate.criterion.Order.asc("encounterDatetime"));
-		else
-			criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
-		
-		List<Object[]> attrs = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Object[]> attrs;
+		try {
+			binding = bindCohort(patients);
+			// this "where clause" is only necessary if patients were specified
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			
+			if (encTypes != null && encTypes.size() > 0)
+				criteria.add(Restrictions.in("encounterType", encTypes));
+			
+			criteria.setProjection(Projections.projectionList().add(Projections.property("patient.personId")).add(
+					Projections.property(attr)));
+			
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			
+			if (earliestFirst)
+				criteria.addOrder(org.hibernate.criterion.Order.asc("encounterDatetime"));
+			else
+				criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
+			attrs = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		for (Object[] row : attrs) {
@@ -1335,17 +1990,23 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// only include this where clause if patients were passed in
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
-		
-		List<Encounter> encounters = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Encounter> encounters;
+		try {
+			binding = bindCohort(patients);
+			// only include this where clause if patients were passed in
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.desc("encounterDatetime"));
+			encounters = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		for (Encounter enc : encounters) {
@@ -1364,20 +2025,26 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Encounter.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only needed if patients were specified
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		
-		if (types != null && types.size() > 0)
-			criteria.add(Restrictions.in("encounterType", types));
-		
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		criteria.addOrder(org.hibernate.criterion.Order.asc("encounterDatetime"));
-		
-		List<Encounter> encounters = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Encounter> encounters;
+		try {
+			binding = bindCohort(patients);
+			// this "where clause" is only needed if patients were specified
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			
+			if (types != null && types.size() > 0)
+				criteria.add(Restrictions.in("encounterType", types));
+			
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("encounterDatetime"));
+			encounters = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		for (Encounter enc : encounters) {
@@ -1409,42 +2076,43 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 			criteria = sessionFactory.getCurrentSession().createCriteria(className);
 		
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// set up the query
-		ProjectionList projectionList = Projections.projectionList();
-		
-		// if Person, PersonName, or PersonAddress
-		if (className.contains("Person")) {
-			projectionList.add(Projections.property("person.personId"));
-			projectionList.add(Projections.property(property));
-			
-			if (patients != null)
-				criteria.add(Restrictions.in("person.personId", patients.getMemberIds()));
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			// set up the query
+			ProjectionList projectionList = Projections.projectionList();
 			
-			// do not include voided person rows
-			if (className.equals("org.openmrs.Person"))
-				// the voided column on the person table is mapped to the person object 
-				// through the getPersonVoided() to distinguish it from patient/user.voided 
-				criteria.add(Expression.eq("personVoided", false));
-			else
-				// this is here to support PersonName and PersonAddress
+			// if Person, PersonName, or PersonAddress
+			if (className.contains("Person")) {
+				projectionList.add(Projections.property("person.personId"));
+				projectionList.add(Projections.property(property));
+				
+				if (patients != null)
+					criteria.add(binding.restrict("person.personId"));
+				
+				// do not include voided person rows
+				if (className.equals("org.openmrs.Person"))
+					// the voided column on the person table is mapped to the person object 
+					// through the getPersonVoided() to distinguish it from patient/user.voided 
+					criteria.add(Expression.eq("personVoided", false));
+				else
+					// this is here to support PersonName and PersonAddress
+					criteria.add(Expression.eq("voided", false));
+			}
+			// if one of the Patient tables
+			else {
+				projectionList.add(Projections.property("patient.personId"));
+				projectionList.add(Projections.property(property));
+				
+				if (patients != null)
+					criteria.add(binding.restrict("patient.personId"));
+				
+				// do not include voided patients
 				criteria.add(Expression.eq("voided", false));
-		}
-		// if one of the Patient tables
-		else {
-			projectionList.add(Projections.property("patient.personId"));
-			projectionList.add(Projections.property(property));
-			
-			if (patients != null)
-				criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
+			}
+			criteria.setProjection(projectionList);
 			
-			// do not include voided patients
-			criteria.add(Expression.eq("voided", false));
-		}
-		criteria.setProjection(projectionList);
-		
-		// add 'preferred' sort order if necessary
-		try {
+			// add 'preferred' sort order if necessary
 			boolean hasPreferred = false;
 			for(Field f : Class.forName(className).getDeclaredFields()) {
 				if (f.getName().equals("preferred"))
@@ -1459,7 +2127,13 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		}
 		
 		criteria.addOrder(org.hibernate.criterion.Order.desc("dateCreated"));
-		List<Object[]> rows = criteria.list();
+		List<Object[]> rows;
+		try {
+			rows = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		
 		// set up the return map
 		if (returnAll) {
@@ -1514,8 +2188,11 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		} else
 			queryString.append("attr.value from PersonAttribute attr, PersonAttributeType t where t = attr.attributeType ");
 		
-		// this where clause is only necessary if patients were passed in
-		if (patients != null)
+		// this where clause is only necessary if patients were passed in. Cohorts too large to
+		// bind as an hql "in" list are filtered in memory instead
+		int threshold = getCohortBindingThreshold();
+		boolean filterInMemory = patients != null && threshold > 0 && patients.size() > threshold;
+		if (patients != null && !filterInMemory)
 			queryString.append("and attr.person.personId in (:ids) ");
 		
 		queryString.append("and t.name = :typeName ");
@@ -1524,7 +2201,7 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		Query query = sessionFactory.getCurrentSession().createQuery(queryString.toString());
 		
 		// this where clause is only necessary if patients were passed in
-		if (patients != null)
+		if (patients != null && !filterInMemory)
 			query.setParameterList("ids", patients.getMemberIds());
 		
 		query.setString("typeName", attributeTypeName);
@@ -1537,6 +2214,8 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		if (returnAll) {
 			for (Object[] row : rows) {
 				Integer ptId = (Integer)row[0];
+				if (filterInMemory && !patients.contains(ptId))
+					continue;
 				Object columnValue = row[1];
 				if (!ret.containsKey(ptId)) {
 					Object[] arr = {columnValue};
@@ -1552,6 +2231,8 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		} else {
 			for (Object[] row : rows) {
 				Integer ptId = (Integer)row[0];
+				if (filterInMemory && !patients.contains(ptId))
+					continue;
 				Object columnValue = row[1];
 				if (!ret.containsKey(ptId))
 					ret.put(ptId, columnValue);
@@ -1670,10 +2351,18 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		if (!patientIds.isEmpty()) {
 			Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Patient.class);
 			criteria.setCacheMode(CacheMode.IGNORE);
-			criteria.add(Restrictions.in("patientId", patientIds));
-			criteria.add(Restrictions.eq("voided", false));
-			log.debug("criteria: " + criteria);
-			List<Patient> temp = criteria.list();
+			HibernateCohortBinding binding = null;
+			List<Patient> temp;
+			try {
+				binding = bindCohort(patientIds);
+				criteria.add(binding.restrict("patientId"));
+				criteria.add(Restrictions.eq("voided", false));
+				log.debug("criteria: " + criteria);
+				temp = criteria.list();
+			}
+			finally {
+				release(binding);
+			}
 			for (Patient p : temp) {
 				ret.add(p);
 			}
@@ -1746,19 +2435,27 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 			
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientState.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		//criteria.add(Restrictions.in("patientProgram.patient.personId", ids));
-		
-		// only include this where clause if patients were passed in
-		if (ps != null)
-			criteria.createCriteria("patientProgram").add(Restrictions.in("patient.personId", ps.getMemberIds()));
-		
-		//criteria.add(Restrictions.eq("state.programWorkflow", wf));
-		criteria.createCriteria("state").add(Restrictions.eq("programWorkflow", wf));
-		criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.or(Restrictions.isNull("startDate"), Restrictions.le("startDate", now)));
-		criteria.add(Restrictions.or(Restrictions.isNull("endDate"), Restrictions.ge("endDate", now)));
-		log.debug("criteria: " + criteria);
-		List<PatientState> temp = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<PatientState> temp;
+		try {
+			binding = bindCohort(ps);
+			//criteria.add(Restrictions.in("patientProgram.patient.personId", ids));
+			
+			// only include this where clause if patients were passed in
+			if (ps != null)
+				criteria.createCriteria("patientProgram").add(binding.restrict("patient.personId"));
+			
+			//criteria.add(Restrictions.eq("state.programWorkflow", wf));
+			criteria.createCriteria("state").add(Restrictions.eq("programWorkflow", wf));
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.or(Restrictions.isNull("startDate"), Restrictions.le("startDate", now)));
+			criteria.add(Restrictions.or(Restrictions.isNull("endDate"), Restrictions.ge("endDate", now)));
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		for (PatientState state : temp) {
 			Integer ptId = state.getPatientProgram().getPatient().getPatientId();
 			ret.put(ptId, state);
@@ -1782,19 +2479,26 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 			
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientProgram.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only necessary if patients were passed in
-		if (ps != null)
-			criteria.add(Restrictions.in("patient.personId", ps.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("program", program));
-		if (!includeVoided)
-			criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.or(Restrictions.isNull("dateEnrolled"), Restrictions.le("dateEnrolled", now)));
-		if (!includePast)
-			criteria.add(Restrictions.or(Restrictions.isNull("dateCompleted"), Restrictions.ge("dateCompleted", now)));
-		log.debug("criteria: " + criteria);
-		List<PatientProgram> temp = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<PatientProgram> temp;
+		try {
+			binding = bindCohort(ps);
+			// this "where clause" is only necessary if patients were passed in
+			if (ps != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			criteria.add(Restrictions.eq("program", program));
+			if (!includeVoided)
+				criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.or(Restrictions.isNull("dateEnrolled"), Restrictions.le("dateEnrolled", now)));
+			if (!includePast)
+				criteria.add(Restrictions.or(Restrictions.isNull("dateCompleted"), Restrictions.ge("dateCompleted", now)));
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		for (PatientProgram prog : temp) {
 			Integer ptId = prog.getPatient().getPatientId(); 
 			ret.put(ptId, prog);
@@ -1812,23 +2516,30 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(DrugOrder.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// this "where clause" is only necessary if patients were passed in
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		//criteria.add(Restrictions.in("encounter.patient.personId", ids));
-		//criteria.createCriteria("encounter").add(Restrictions.in("patient.personId", ids));
-		if (drugConcepts != null)
-			criteria.add(Restrictions.in("concept", drugConcepts));
-		criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.le("startDate", now));
-		criteria.add(Restrictions.or(Restrictions.and(Restrictions.eq("discontinued", false), Restrictions.or(Restrictions
-		        .isNull("autoExpireDate"), Restrictions.gt("autoExpireDate", now))), Restrictions.and(Restrictions.eq(
-		    "discontinued", true), Restrictions.gt("discontinuedDate", now))));
-		criteria.addOrder(org.hibernate.criterion.Order.asc("startDate"));
-		log.debug("criteria: " + criteria);
-		List<DrugOrder> temp = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<DrugOrder> temp;
+		try {
+			binding = bindCohort(patients);
+			// this "where clause" is only necessary if patients were passed in
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			//criteria.add(Restrictions.in("encounter.patient.personId", ids));
+			//criteria.createCriteria("encounter").add(Restrictions.in("patient.personId", ids));
+			if (drugConcepts != null)
+				criteria.add(Restrictions.in("concept", drugConcepts));
+			criteria.add(Restrictions.eq("voided", false));
+			criteria.add(Restrictions.le("startDate", now));
+			criteria.add(Restrictions.or(Restrictions.and(Restrictions.eq("discontinued", false), Restrictions.or(Restrictions
+			        .isNull("autoExpireDate"), Restrictions.gt("autoExpireDate", now))), Restrictions.and(Restrictions.eq(
+			    "discontinued", true), Restrictions.gt("discontinuedDate", now))));
+			criteria.addOrder(org.hibernate.criterion.Order.asc("startDate"));
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		for (DrugOrder regimen : temp) {
 			Integer ptId = regimen.getPatient().getPatientId();
 			List<DrugOrder> list = ret.get(ptId);
@@ -1847,29 +2558,148 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		if (patients != null && patients.size() == 0)
 			return ret;
 
+		HibernateCohortBinding binding = null;
+		List<DrugOrder> temp;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createDrugOrdersCriteria(patients, drugConcepts, binding, false);
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
+		for (DrugOrder regimen : temp) {
+			Integer ptId = regimen.getPatient().getPatientId();
+			List<DrugOrder> list = ret.get(ptId);
+			if (list == null) {
+				list = new ArrayList<DrugOrder>();
+				ret.put(ptId, list);
+			}
+			list.add(regimen);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.api.db.PatientSetDAO#visitDrugOrders(org.openmrs.Cohort, java.util.List,
+	 *      org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitDrugOrders(Cohort patients, List<Concept> drugConcepts, PatientDataVisitor<DrugOrder> visitor)
+	                                                                                                              throws DAOException {
+		if (patients != null && patients.size() == 0)
+			return;
+		
+		HibernateCohortBinding binding = null;
+		try {
+			binding = bindCohort(patients);
+			Criteria criteria = createDrugOrdersCriteria(patients, drugConcepts, binding, true);
+			visitByPatient(criteria, visitor, new PatientRowReader<DrugOrder>() {
+				
+				public Integer getPatientId(Object[] row) {
+					return ((DrugOrder) row[0]).getPatient().getPatientId();
+				}
+				
+				public DrugOrder read(Object[] row) {
+					return (DrugOrder) row[0];
+				}
+			});
+		}
+		finally {
+			release(binding);
+		}
+	}
+	
+	/**
+	 * Builds the criteria shared by {@link #getDrugOrders(Cohort, List)} and
+	 * {@link #visitDrugOrders(Cohort, List, PatientDataVisitor)}
+	 * 
+	 * @param orderByPatient if true the rows are grouped by patient (for streaming)
+	 */
+	private Criteria createDrugOrdersCriteria(Cohort patients, List<Concept> drugConcepts,
+	                                          HibernateCohortBinding binding, boolean orderByPatient) {
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(DrugOrder.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
 		
 		// only include this where clause if patients were passed in
 		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
+			criteria.add(binding.restrict("patient.personId"));
 		
 		if (drugConcepts != null)
 			criteria.add(Restrictions.in("concept", drugConcepts));
 		criteria.add(Restrictions.eq("voided", false));
+		if (orderByPatient)
+			criteria.addOrder(org.hibernate.criterion.Order.asc("patient.personId"));
 		criteria.addOrder(org.hibernate.criterion.Order.asc("startDate"));
+		return criteria;
+	}
+	
+	/**
+	 * Runs the given criteria through a forward-only cursor and hands the rows to the visitor one
+	 * patient at a time. The criteria must be ordered by patient id first. The session is cleared
+	 * every {@link #STREAMING_CLEAR_INTERVAL} rows (between patients) so that the entities already
+	 * visited can be garbage collected. <br/>
+	 * <br/>
+	 * Note that the MySQL driver only streams results when the connection url has
+	 * useCursorFetch=true; otherwise the rows are still read into the driver's buffer, but the
+	 * hibernate entities are not all held at once.
+	 * 
+	 * @param criteria ordered by patient id
+	 * @param visitor the visitor to call once per patient
+	 * @param reader converts each row into the patient id and visited value
+	 */
+	private <T> void visitByPatient(Criteria criteria, PatientDataVisitor<T> visitor, PatientRowReader<T> reader) {
+		Session session = sessionFactory.getCurrentSession();
+		
+		// clearing the session below would otherwise throw away pending changes
+		session.flush();
+		
+		criteria.setFetchSize(STREAMING_FETCH_SIZE);
 		log.debug("criteria: " + criteria);
-		List<DrugOrder> temp = criteria.list();
-		for (DrugOrder regimen : temp) {
-			Integer ptId = regimen.getPatient().getPatientId();
-			List<DrugOrder> list = ret.get(ptId);
-			if (list == null) {
-				list = new ArrayList<DrugOrder>();
-				ret.put(ptId, list);
+		
+		ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			Integer currentPatientId = null;
+			List<T> currentData = new ArrayList<T>();
+			int rowsSinceClear = 0;
+			
+			while (results.next()) {
+				Object[] row = results.get();
+				Integer ptId = reader.getPatientId(row);
+				
+				if (currentPatientId != null && !currentPatientId.equals(ptId)) {
+					visitor.visit(currentPatientId, currentData);
+					currentData = new ArrayList<T>();
+					if (rowsSinceClear >= STREAMING_CLEAR_INTERVAL) {
+						session.clear();
+						rowsSinceClear = 0;
+					}
+				}
+				
+				currentPatientId = ptId;
+				currentData.add(reader.read(row));
+				rowsSinceClear++;
 			}
-			list.add(regimen);
+			
+			if (currentPatientId != null)
+				visitor.visit(currentPatientId, currentData);
 		}
-		return ret;
+		finally {
+			results.close();
+		}
+	}
+	
+	/**
+	 * Pulls the patient id and the visited value out of one row of a streamed criteria (for entity
+	 * criteria the entity is the only element of the row)
+	 * 
+	 * @see HibernatePatientSetDAO#visitByPatient(Criteria, PatientDataVisitor, PatientRowReader)
+	 */
+	private interface PatientRowReader<T> {
+		
+		public Integer getPatientId(Object[] row);
+		
+		public T read(Object[] row);
 	}
 	
 	/* 
@@ -1887,16 +2717,24 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 				return ret;
 
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Relationship.class);
-		criteria.add(Restrictions.eq("voided", false));
-		if (patients != null) {
-			if (forwards) {
-				criteria.add(Restrictions.in("personA.personId", patients.getMemberIds()));
-			} else {
-				criteria.add(Restrictions.in("personB.personId", patients.getMemberIds()));
+		HibernateCohortBinding binding = null;
+		List<Relationship> rels;
+		try {
+			binding = bindCohort(patients);
+			criteria.add(Restrictions.eq("voided", false));
+			if (patients != null) {
+				if (forwards) {
+					criteria.add(binding.restrict("personA.personId"));
+				} else {
+					criteria.add(binding.restrict("personB.personId"));
+				}
 			}
+			log.debug("criteria: " + criteria);
+			rels = (List<Relationship>) criteria.list();
+		}
+		finally {
+			release(binding);
 		}
-		log.debug("criteria: " + criteria);
-		List<Relationship> rels = (List<Relationship>) criteria.list();
 		for (Relationship rel : rels) {
 			Person fromPerson = forwards ? rel.getPersonA() : rel.getPersonB();
 			Person toPerson = forwards ? rel.getPersonB() : rel.getPersonA();
@@ -1919,16 +2757,24 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Relationship.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		if (relType != null)
-			criteria.add(Restrictions.eq("relationship", relType));
-		
-		// this "where clause" is only useful if patients were passed in
-		if (patients != null)
-			criteria.createCriteria("personB").add(Restrictions.in("personId", patients.getMemberIds()));
-		
-		criteria.add(Restrictions.eq("voided", false));
-		log.debug("criteria: " + criteria);
-		List<Relationship> temp = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<Relationship> temp;
+		try {
+			binding = bindCohort(patients);
+			if (relType != null)
+				criteria.add(Restrictions.eq("relationship", relType));
+			
+			// this "where clause" is only useful if patients were passed in
+			if (patients != null)
+				criteria.createCriteria("personB").add(binding.restrict("personId"));
+			
+			criteria.add(Restrictions.eq("voided", false));
+			log.debug("criteria: " + criteria);
+			temp = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		for (Relationship rel : temp) {
 			Integer ptId = rel.getPersonB().getPersonId();
 			List<Relationship> rels = ret.get(ptId);
@@ -2066,22 +2912,28 @@ public class HibernatePatientSetDAO implements PatientSetDAO {
 		// default query
 		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(PatientIdentifier.class);
 		criteria.setCacheMode(CacheMode.IGNORE);
-		
-		// Add patient restriction if necessary
-		if (patients != null)
-			criteria.add(Restrictions.in("patient.personId", patients.getMemberIds()));
-		
-		// all identifiers must be non-voided
-		criteria.add(Restrictions.eq("voided", false));
-		
-		// Add identifier type filter
-		if (types != null && types.size() > 0)
-			criteria.add(Restrictions.in("identifierType", types));
-		
-		// Order by ID
-		criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
-		
-		List<PatientIdentifier> identifiers = criteria.list();
+		HibernateCohortBinding binding = null;
+		List<PatientIdentifier> identifiers;
+		try {
+			binding = bindCohort(patients);
+			// Add patient restriction if necessary
+			if (patients != null)
+				criteria.add(binding.restrict("patient.personId"));
+			
+			// all identifiers must be non-voided
+			criteria.add(Restrictions.eq("voided", false));
+			
+			// Add identifier type filter
+			if (types != null && types.size() > 0)
+				criteria.add(Restrictions.in("identifierType", types));
+			
+			// Order by ID
+			criteria.addOrder(org.hibernate.criterion.Order.desc("patient.personId"));
+			identifiers = criteria.list();
+		}
+		finally {
+			release(binding);
+		}
 		log.info("IDS: " + identifiers);
 		
 		
@@ -73,6 +73,11 @@ public class ConceptServiceImpl extends BaseOpenmrsService implements ConceptSer
 	 */
 	public static final String CONCEPT_WORD_UPDATE_TASK_NAME = "Update Concept Words";
 	
+	/**
+	 * Number of concept ids whose words are re-created per database round trip
+	 */
+	public static final int CONCEPT_WORD_UPDATE_BATCH_SIZE = 500;
+	
 	/**
 	 * Task managed by the scheduler to update concept words. May be null.
 	 */
@@ -1093,11 +1098,22 @@ public class ConceptServiceImpl extends BaseOpenmrsService implements ConceptSer
 	 */
 	public void updateConceptWords(Integer conceptIdStart, Integer conceptIdEnd) throws APIException {
 		checkIfLocked();
-		Integer i = conceptIdStart;
-		ConceptService cs = Context.getConceptService();
-		while (i++ <= conceptIdEnd) {
-			updateConceptWord(cs.getConcept(i));
-		}
+		for (int start = conceptIdStart; start <= conceptIdEnd; start += CONCEPT_WORD_UPDATE_BATCH_SIZE)
+			dao.updateConceptWords(start, Math.min(start + CONCEPT_WORD_UPDATE_BATCH_SIZE - 1, conceptIdEnd));
+	}
+	
+	/**
+	 * @see org.openmrs.api.ConceptService#getConceptIdsChangedSince(java.util.Date)
+	 */
+	public List<Integer> getConceptIdsChangedSince(Date date) throws APIException {
+		return dao.getConceptIdsChangedSince(date);
+	}
+	
+	/**
+	 * @see ConceptService#getMinConceptId()
+	 */
+	public Integer getMinConceptId() {
+		return dao.getMinConceptId();
 	}
 	
 	/**
@@ -1413,6 +1429,20 @@ public class ConceptServiceImpl extends BaseOpenmrsService implements ConceptSer
 		return dao.getConceptByMapping(conceptCode, hl7Code);
 	}
 	
+	/**
+	 * @see org.openmrs.api.ConceptService#getConceptIdByMapping(java.lang.String, java.lang.String)
+	 */
+	public Integer getConceptIdByMapping(String conceptCode, String hl7Code) throws APIException {
+		return dao.getConceptIdByMapping(conceptCode, hl7Code);
+	}
+	
+	/**
+	 * @see org.openmrs.api.ConceptService#clearConceptMappingCache()
+	 */
+	public void clearConceptMappingCache() throws APIException {
+		dao.clearConceptMappingCache();
+	}
+	
 	/**
 	 * @see org.openmrs.api.ConceptService#getConceptsByConceptSource(org.openmrs.ConceptSource)
 	 */
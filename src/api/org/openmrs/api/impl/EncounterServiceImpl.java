@@ -35,6 +35,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.db.EncounterDAO;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Default implementation of the {@link EncounterService} This class should not be instantiated
@@ -141,6 +143,8 @@ public class EncounterServiceImpl extends BaseOpenmrsService implements Encounte
 		// do the actual saving to the database
 		dao.saveEncounter(encounter);
 		
+		invalidateLogicCache(encounter);
+		
 		return encounter;
 	}
 	
@@ -255,9 +259,33 @@ public class EncounterServiceImpl extends BaseOpenmrsService implements Encounte
 	 * @see org.openmrs.api.EncounterService#purgeEncounter(org.openmrs.Encounter)
 	 */
 	public void purgeEncounter(Encounter encounter) throws APIException {
+		invalidateLogicCache(encounter);
 		dao.deleteEncounter(encounter);
 	}
 	
+	/**
+	 * Drops the cached logic results of the encounter's patient, since they may depend on this
+	 * encounter or its obs. They are dropped again once the transaction completes, so results read
+	 * by other threads before the change was committed (or rolled back) are not kept either.
+	 * 
+	 * @param encounter the encounter being changed
+	 */
+	private void invalidateLogicCache(Encounter encounter) {
+		if (encounter.getPatient() == null || encounter.getPatient().getPatientId() == null)
+			return;
+		
+		final Integer patientId = encounter.getPatient().getPatientId();
+		Context.getLogicService().getLogicCache().invalidatePatient(patientId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				public void afterCompletion(int status) {
+					Context.getLogicService().getLogicCache().invalidatePatient(patientId);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.api.EncounterService#purgeEncounter(org.openmrs.Encounter,
 	 *      java.lang.boolean)
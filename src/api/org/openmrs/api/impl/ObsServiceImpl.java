@@ -34,6 +34,8 @@ import org.openmrs.api.context.Context;
 import org.openmrs.api.db.ObsDAO;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsConstants.PERSON_TYPE;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Default implementation of the Observation Service
@@ -67,6 +69,7 @@ public class ObsServiceImpl extends BaseOpenmrsService implements ObsService {
 		if (obs.getObsId() == null) {
 			Context.requirePrivilege(OpenmrsConstants.PRIV_ADD_OBS);
 			obs.setRequiredProperties(Context.getAuthenticatedUser(), new Date());
+			invalidateLogicCache(obs);
 			return dao.saveObs(obs);
 		} else {
 			Context.requirePrivilege(OpenmrsConstants.PRIV_EDIT_OBS);
@@ -93,6 +96,7 @@ public class ObsServiceImpl extends BaseOpenmrsService implements ObsService {
 			
 			// save the new row to the database with the changes that
 			// have been made to it
+			invalidateLogicCache(newObs);
 			dao.saveObs(newObs);
 			
 			// void out the original observation to keep it around for
@@ -167,6 +171,7 @@ public class ObsServiceImpl extends BaseOpenmrsService implements ObsService {
 			}
 		}
 		
+		invalidateLogicCache(obs);
 		return dao.saveObs(obs);
 	}
 	
@@ -216,6 +221,7 @@ public class ObsServiceImpl extends BaseOpenmrsService implements ObsService {
 				o.setDateVoided(null);
 			}
 		}
+		invalidateLogicCache(obs);
 		return dao.saveObs(obs);
 	}
 	
@@ -230,9 +236,33 @@ public class ObsServiceImpl extends BaseOpenmrsService implements ObsService {
 			// orders?
 		}
 		
+		invalidateLogicCache(obs);
 		dao.deleteObs(obs);
 	}
 	
+	/**
+	 * Drops the cached logic results of the obs' person, since they may depend on this obs. They
+	 * are dropped again once the transaction completes, so results read by other threads before the
+	 * change was committed (or rolled back) are not kept either.
+	 * 
+	 * @param obs the obs being changed
+	 */
+	private void invalidateLogicCache(Obs obs) {
+		if (obs.getPerson() == null || obs.getPerson().getPersonId() == null)
+			return;
+		
+		final Integer personId = obs.getPerson().getPersonId();
+		Context.getLogicService().getLogicCache().invalidatePatient(personId);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				
+				public void afterCompletion(int status) {
+					Context.getLogicService().getLogicCache().invalidatePatient(personId);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.api.ObsService#purgeObs(org.openmrs.Obs)
 	 */
@@ -13,6 +13,7 @@
  */
 package org.openmrs.api.impl;
 
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -50,6 +51,7 @@ import org.openmrs.Relationship;
 import org.openmrs.RelationshipType;
 import org.openmrs.User;
 import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.PatientDataVisitor;
 import org.openmrs.api.PatientSetService;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
@@ -86,6 +88,10 @@ public class PatientSetServiceImpl implements PatientSetService {
 		return getPatientSetDAO().exportXml(ps);
 	}
 	
+	public void exportXml(Cohort ps, OutputStream out) {
+		getPatientSetDAO().exportXml(ps, out);
+	}
+	
 	public String exportXml(Integer patientId) {
 		return getPatientSetDAO().exportXml(patientId);
 	}
@@ -147,6 +153,13 @@ public class PatientSetServiceImpl implements PatientSetService {
 		return getPatientSetDAO().getPatientsInProgram(program.getProgramId(), fromDate, toDate);
 	}
 	
+	/**
+	 * @see org.openmrs.api.PatientSetService#getPatientsChangedSince(java.util.Date)
+	 */
+	public Cohort getPatientsChangedSince(Date since) {
+		return getPatientSetDAO().getPatientsChangedSince(since);
+	}
+	
 	public Cohort getPatientsHavingTextObs(Concept concept, String value, TimeModifier timeModifier) {
 		return getPatientsHavingTextObs(concept.getConceptId(), value, timeModifier);
 	}
@@ -303,6 +316,72 @@ public class PatientSetServiceImpl implements PatientSetService {
 		return getPatientSetDAO().getObservationsValues(patients, c, attributes);
 	}
 	
+	/**
+	 * @see org.openmrs.api.PatientSetService#visitObservations(org.openmrs.Cohort,
+	 *      org.openmrs.Concept, org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitObservations(Cohort patients, Concept concept, PatientDataVisitor<Obs> visitor) {
+		if (patients != null && patients.size() == 0)
+			return;
+		getPatientSetDAO().visitObservations(patients, concept, visitor);
+	}
+	
+	/**
+	 * @see org.openmrs.api.PatientSetService#visitObservationsValues(org.openmrs.Cohort,
+	 *      org.openmrs.Concept, java.util.List, org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitObservationsValues(Cohort patients, Concept c, List<String> attributes,
+	                                    PatientDataVisitor<List<Object>> visitor) {
+		if (patients != null && patients.size() == 0)
+			return;
+		if (attributes == null)
+			attributes = new Vector<String>();
+		
+		// add null for the actual obs value
+		if (attributes.size() < 1 || attributes.get(0) != null)
+			attributes.add(0, null);
+		
+		getPatientSetDAO().visitObservationsValues(patients, c, attributes, visitor);
+	}
+	
+	/**
+	 * @see org.openmrs.api.PatientSetService#getObservationIds(org.openmrs.Cohort,
+	 *      java.util.Collection, java.util.Date, java.util.Date)
+	 */
+	public List<Integer> getObservationIds(Cohort patients, Collection<Concept> concepts, Date fromDate, Date toDate) {
+		if (patients != null && patients.size() == 0)
+			return new ArrayList<Integer>();
+		return getPatientSetDAO().getObservationIds(patients, concepts, fromDate, toDate);
+	}
+	
+	/**
+	 * @see org.openmrs.api.PatientSetService#getObservationsByIds(java.util.List)
+	 */
+	public List<Obs> getObservationsByIds(List<Integer> obsIds) {
+		if (obsIds.isEmpty())
+			return new ArrayList<Obs>();
+		return getPatientSetDAO().getObservationsByIds(obsIds);
+	}
+	
+	/**
+	 * @see org.openmrs.api.PatientSetService#getPatientProgramIds(org.openmrs.Cohort,
+	 *      java.util.Collection)
+	 */
+	public List<Integer> getPatientProgramIds(Cohort patients, Collection<Program> programs) {
+		if (patients != null && patients.size() == 0)
+			return new ArrayList<Integer>();
+		return getPatientSetDAO().getPatientProgramIds(patients, programs);
+	}
+	
+	/**
+	 * @see org.openmrs.api.PatientSetService#getPatientProgramsByIds(java.util.List)
+	 */
+	public List<PatientProgram> getPatientProgramsByIds(List<Integer> patientProgramIds) {
+		if (patientProgramIds.isEmpty())
+			return new ArrayList<PatientProgram>();
+		return getPatientSetDAO().getPatientProgramsByIds(patientProgramIds);
+	}
+	
 	public Map<Integer, Encounter> getEncountersByType(Cohort patients, EncounterType encType) {
 		List<EncounterType> types = new Vector<EncounterType>();
 		if (encType != null)
@@ -480,6 +559,24 @@ public class PatientSetServiceImpl implements PatientSetService {
 		return getPatientSetDAO().getDrugOrders(ps, drugConcepts);
 	}
 	
+	/**
+	 * @see org.openmrs.api.PatientSetService#visitDrugOrders(org.openmrs.Cohort,
+	 *      org.openmrs.Concept, org.openmrs.api.PatientDataVisitor)
+	 */
+	public void visitDrugOrders(Cohort ps, Concept drugSet, PatientDataVisitor<DrugOrder> visitor) {
+		if (ps != null && ps.size() == 0)
+			return;
+		List<Concept> drugConcepts = null;
+		if (drugSet != null) {
+			List<ConceptSet> concepts = Context.getConceptService().getConceptSets(drugSet);
+			drugConcepts = new ArrayList<Concept>();
+			for (ConceptSet cs : concepts) {
+				drugConcepts.add(cs.getConcept());
+			}
+		}
+		getPatientSetDAO().visitDrugOrders(ps, drugConcepts, visitor);
+	}
+	
 	/**
 	 * Gets a list of encounters associated with the given form, filtered by the given patient set.
 	 * 
@@ -33,6 +33,7 @@ import org.openmrs.reporting.AbstractReportObject;
 import org.openmrs.reporting.PatientFilter;
 import org.openmrs.reporting.PatientSearch;
 import org.openmrs.reporting.ReportObject;
+import org.openmrs.util.IntegerBitmapSet;
 import org.openmrs.util.OpenmrsUtil;
 
 public class CohortSearchHistory extends AbstractReportObject {
@@ -297,7 +298,7 @@ public class CohortSearchHistory extends AbstractReportObject {
 		for (int i = 0; i < searchHistory.size(); ++i) {
 			Cohort ps = getPatientSet(i, context);
 			if (current == null)
-				current = new HashSet<Integer>(ps.getMemberIds());
+				current = new IntegerBitmapSet(ps.getMemberIds());
 			else
 				current.retainAll(ps.getMemberIds());
 		}
@@ -309,7 +310,7 @@ public class CohortSearchHistory extends AbstractReportObject {
 	}
 	
 	public Cohort getPatientSetCombineWithOr(EvaluationContext context) {
-		Set<Integer> ret = new HashSet<Integer>();
+		Set<Integer> ret = new IntegerBitmapSet();
 		for (int i = 0; i < searchHistory.size(); ++i) {
 			ret.addAll(getPatientSet(i, context).getMemberIds());
 		}
@@ -0,0 +1,459 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.hl7;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps archived hl7 messages in compressed segment files on disk instead of in the
+ * hl7_in_archive table. <br/>
+ * <br/>
+ * Each message is deflated on its own and appended to the current segment's data file
+ * (<code>hl7_in_archive.NNNNNN.dat</code>). A small record with the archive id, date created,
+ * source, source key and the position of the message is appended to the segment's index file (
+ * <code>hl7_in_archive.NNNNNN.idx</code>). Once a data file reaches the maximum segment size a new
+ * segment is started. The indexes are read into memory when the store is opened, so lookups by id
+ * or date need only one read from disk per message. <br/>
+ * <br/>
+ * Files are only ever appended to: purging a message records that in the index but the message
+ * stays in its data file. An index record that was only partly written (e.g. because the server
+ * stopped) is dropped when the store is next opened. All methods are thread safe.
+ * 
+ * @see HL7Service#migrateHL7InArchives(int)
+ */
+public class HL7InArchiveFileStore {
+	
+	private static Log log = LogFactory.getLog(HL7InArchiveFileStore.class);
+	
+	/**
+	 * The size data files are allowed to grow to if no other size is given
+	 */
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	private static final String FILE_PREFIX = "hl7_in_archive.";
+	
+	private static final String DATA_SUFFIX = ".dat";
+	
+	private static final String INDEX_SUFFIX = ".idx";
+	
+	private static final byte MESSAGE_RECORD = 1;
+	
+	private static final byte PURGE_RECORD = 2;
+	
+	private File directory;
+	
+	private long maxSegmentSize;
+	
+	/**
+	 * archive id -> where to find the message
+	 */
+	private Map<Integer, Entry> entries = new TreeMap<Integer, Entry>();
+	
+	private int lastId = 0;
+	
+	private int segment = 0;
+	
+	private long segmentSize = 0;
+	
+	private FileOutputStream data = null;
+	
+	private DataOutputStream index = null;
+	
+	/**
+	 * Opens the store in the given directory, with the default maximum segment size
+	 * 
+	 * @param directory where to keep the segment files
+	 * @throws IOException if the existing indexes can't be read
+	 */
+	public HL7InArchiveFileStore(File directory) throws IOException {
+		this(directory, DEFAULT_MAX_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Opens the store in the given directory
+	 * 
+	 * @param directory where to keep the segment files
+	 * @param maxSegmentSize the number of bytes after which a new data file is started
+	 * @throws IOException if the existing indexes can't be read
+	 */
+	public HL7InArchiveFileStore(File directory, long maxSegmentSize) throws IOException {
+		this.directory = directory;
+		this.maxSegmentSize = maxSegmentSize;
+		if (!directory.exists())
+			directory.mkdirs();
+		
+		for (int s : getSegments())
+			readIndex(s);
+	}
+	
+	/**
+	 * Makes sure the ids handed out by {@link #save(HL7InArchive)} are greater than the given id
+	 * (e.g. the largest id still in the hl7_in_archive table)
+	 * 
+	 * @param id the largest id in use elsewhere
+	 */
+	public synchronized void reserveIds(int id) {
+		lastId = Math.max(lastId, id);
+	}
+	
+	/**
+	 * Appends a message to the store. If the archive has no id yet it is given the next free one,
+	 * otherwise its id is kept (replacing any message already stored with that id).
+	 * 
+	 * @param hl7InArchive the message to store, with its date created set
+	 * @return the stored archive
+	 * @throws IOException
+	 * @should give new archives the next free id
+	 * @should keep the id of archives that have one
+	 */
+	public synchronized HL7InArchive save(HL7InArchive hl7InArchive) throws IOException {
+		if (hl7InArchive.getHL7InArchiveId() == 0)
+			hl7InArchive.setHL7InArchiveId(lastId + 1);
+		
+		if (data == null || segmentSize >= maxSegmentSize)
+			startSegment();
+		
+		byte[] bytes = compress(hl7InArchive.getHL7Data());
+		data.write(bytes);
+		data.flush();
+		
+		Entry entry = new Entry();
+		entry.segment = segment;
+		entry.offset = segmentSize;
+		entry.length = bytes.length;
+		entry.dateCreated = (hl7InArchive.getDateCreated() == null) ? System.currentTimeMillis() : hl7InArchive
+		        .getDateCreated().getTime();
+		entry.hl7SourceId = (hl7InArchive.getHL7Source() == null) ? null : hl7InArchive.getHL7Source().getHL7SourceId();
+		entry.hl7SourceKey = hl7InArchive.getHL7SourceKey();
+		segmentSize += bytes.length;
+		
+		index.writeByte(MESSAGE_RECORD);
+		index.writeInt(hl7InArchive.getHL7InArchiveId());
+		index.writeLong(entry.dateCreated);
+		index.writeInt(entry.hl7SourceId == null ? -1 : entry.hl7SourceId);
+		index.writeLong(entry.offset);
+		index.writeInt(entry.length);
+		writeString(index, entry.hl7SourceKey);
+		index.flush();
+		
+		put(hl7InArchive.getHL7InArchiveId(), entry);
+		return hl7InArchive;
+	}
+	
+	/**
+	 * Reads a message from the store. The returned archive's source only has its id set.
+	 * 
+	 * @param hl7InArchiveId
+	 * @return the archive, or null if it isn't in the store
+	 * @throws IOException
+	 * @should get a saved archive after the store is reopened
+	 */
+	public synchronized HL7InArchive get(Integer hl7InArchiveId) throws IOException {
+		Entry entry = entries.get(hl7InArchiveId);
+		if (entry == null)
+			return null;
+		
+		byte[] bytes = new byte[entry.length];
+		RandomAccessFile file = new RandomAccessFile(getFile(entry.segment, DATA_SUFFIX), "r");
+		try {
+			file.seek(entry.offset);
+			file.readFully(bytes);
+		}
+		finally {
+			file.close();
+		}
+		
+		HL7InArchive hl7InArchive = new HL7InArchive();
+		hl7InArchive.setHL7InArchiveId(hl7InArchiveId);
+		hl7InArchive.setDateCreated(new Date(entry.dateCreated));
+		if (entry.hl7SourceId != null) {
+			HL7Source hl7Source = new HL7Source();
+			hl7Source.setHL7SourceId(entry.hl7SourceId);
+			hl7InArchive.setHL7Source(hl7Source);
+		}
+		hl7InArchive.setHL7SourceKey(entry.hl7SourceKey);
+		hl7InArchive.setHL7Data(decompress(bytes));
+		return hl7InArchive;
+	}
+	
+	/**
+	 * @param hl7InArchiveId
+	 * @return true if the store has a message with this id
+	 */
+	public synchronized boolean contains(Integer hl7InArchiveId) {
+		return entries.containsKey(hl7InArchiveId);
+	}
+	
+	/**
+	 * Gets the ids of the messages created in the given date range
+	 * 
+	 * @param fromDate the earliest date created (null for no lower limit)
+	 * @param toDate the latest date created (null for no upper limit)
+	 * @return the matching ids, in ascending order
+	 * @should only return ids in the date range
+	 */
+	public synchronized List<Integer> getIds(Date fromDate, Date toDate) {
+		List<Integer> ret = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+			long dateCreated = e.getValue().dateCreated;
+			if ((fromDate == null || dateCreated >= fromDate.getTime())
+			        && (toDate == null || dateCreated <= toDate.getTime()))
+				ret.add(e.getKey());
+		}
+		return ret;
+	}
+	
+	/**
+	 * Removes a message from the store. The space it takes up on disk is not reclaimed.
+	 * 
+	 * @param hl7InArchiveId
+	 * @return false if the store had no message with this id
+	 * @throws IOException
+	 * @should not get a purged archive after the store is reopened
+	 */
+	public synchronized boolean purge(Integer hl7InArchiveId) throws IOException {
+		if (!entries.containsKey(hl7InArchiveId))
+			return false;
+		
+		if (index == null)
+			startSegment();
+		index.writeByte(PURGE_RECORD);
+		index.writeInt(hl7InArchiveId);
+		index.flush();
+		entries.remove(hl7InArchiveId);
+		return true;
+	}
+	
+	/**
+	 * @return the number of messages in the store
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	/**
+	 * @return the directory the segment files are kept in
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * Closes the files of the current segment. The store may still be used afterwards; the next
+	 * save starts a new segment.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if (data != null)
+				data.close();
+		}
+		finally {
+			data = null;
+			try {
+				if (index != null)
+					index.close();
+			}
+			finally {
+				index = null;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the current segment's files and opens the files of the next one
+	 */
+	private void startSegment() throws IOException {
+		close();
+		segment++;
+		segmentSize = 0;
+		data = new FileOutputStream(getFile(segment, DATA_SUFFIX), true);
+		index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getFile(segment, INDEX_SUFFIX), true)));
+	}
+	
+	/**
+	 * Reads one segment's index into memory. Anything after the last complete record (or after a
+	 * record that points past the end of the data file) is cut off the end of the index file.
+	 */
+	private void readIndex(int s) throws IOException {
+		File indexFile = getFile(s, INDEX_SUFFIX);
+		long dataLength = getFile(s, DATA_SUFFIX).length();
+		long validLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			while (true) {
+				byte type = in.readByte();
+				Integer id = in.readInt();
+				long length = 5;
+				if (type == MESSAGE_RECORD) {
+					Entry entry = new Entry();
+					entry.segment = s;
+					entry.dateCreated = in.readLong();
+					int hl7SourceId = in.readInt();
+					entry.hl7SourceId = (hl7SourceId == -1) ? null : hl7SourceId;
+					entry.offset = in.readLong();
+					entry.length = in.readInt();
+					entry.hl7SourceKey = readString(in);
+					if (entry.offset + entry.length > dataLength)
+						break;
+					length += 24 + getStringLength(entry.hl7SourceKey);
+					put(id, entry);
+				} else if (type == PURGE_RECORD) {
+					entries.remove(id);
+				} else {
+					break;
+				}
+				validLength += length;
+			}
+		}
+		catch (EOFException e) {
+			// the last record wasn't finished
+		}
+		finally {
+			in.close();
+		}
+		
+		if (validLength < indexFile.length()) {
+			log.warn("Dropping an incomplete record at the end of " + indexFile.getAbsolutePath());
+			RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+			try {
+				file.setLength(validLength);
+			}
+			finally {
+				file.close();
+			}
+		}
+		segment = s;
+	}
+	
+	private void put(Integer id, Entry entry) {
+		entries.put(id, entry);
+		lastId = Math.max(lastId, id);
+	}
+	
+	/**
+	 * @return the numbers of the segments in the directory, in ascending order
+	 */
+	private int[] getSegments() {
+		String[] names = directory.list(new FilenameFilter() {
+			
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(INDEX_SUFFIX);
+			}
+		});
+		if (names == null)
+			return new int[0];
+		
+		int[] ret = new int[names.length];
+		for (int i = 0; i < names.length; i++)
+			ret[i] = Integer.parseInt(names[i].substring(FILE_PREFIX.length(), names[i].length() - INDEX_SUFFIX.length()));
+		Arrays.sort(ret);
+		return ret;
+	}
+	
+	private File getFile(int s, String suffix) {
+		StringBuilder name = new StringBuilder(String.valueOf(s));
+		while (name.length() < 6)
+			name.insert(0, '0');
+		return new File(directory, FILE_PREFIX + name + suffix);
+	}
+	
+	private static byte[] compress(String s) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+		out.write(s.getBytes("UTF-8"));
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	private static String decompress(byte[] compressed) throws IOException {
+		InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1)
+			bytes.write(buffer, 0, read);
+		in.close();
+		return new String(bytes.toByteArray(), "UTF-8");
+	}
+	
+	/**
+	 * Writes a nullable string as its length (-1 for null) and its UTF-8 bytes
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = s.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == -1)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+	
+	private static int getStringLength(String s) throws IOException {
+		return 4 + (s == null ? 0 : s.getBytes("UTF-8").length);
+	}
+	
+	/**
+	 * Where one message is stored, and the columns of its hl7_in_archive row
+	 */
+	private static class Entry {
+		
+		private int segment;
+		
+		private long offset;
+		
+		private int length;
+		
+		private long dateCreated;
+		
+		private Integer hl7SourceId;
+		
+		private String hl7SourceKey;
+	}
+}
@@ -13,9 +13,26 @@
  */
 package org.openmrs.hl7;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.util.OpenmrsConstants;
 import org.springframework.transaction.annotation.Transactional;
 
 import ca.uhn.hl7v2.HL7Exception;
@@ -24,7 +41,22 @@ import ca.uhn.hl7v2.HL7Exception;
  * Processes message in the HL7 inbound queue. Messages are moved into either the archive or error
  * table depending on success or failure of the processing. You may, however, set a global property
  * that causes the processor to ignore messages regarding unknown patients from a non-local HL7
- * source. (i.e. those messages neither go to the archive or the error table.)
+ * source. (i.e. those messages neither go to the archive or the error table.) <br/>
+ * <br/>
+ * If the {@link OpenmrsConstants#GLOBAL_PROPERTY_HL7_PROCESSOR_THREADS} global property is more
+ * than 1, the queue is processed by that many worker threads, each with its own session. The queue
+ * is read in batches in the order it was received and each message is handed to a worker chosen by
+ * the patient identifier in its PID segment, so the messages for one patient are processed by one
+ * worker in the order they were received. <br/>
+ * <br/>
+ * If the {@link OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE} global property is more
+ * than 1, successfully processed messages are held back and moved to the archive that many at a
+ * time with {@link HL7Service#archiveHL7InQueues(List)}. Messages that fail are still moved to the
+ * error table one at a time, and if a batch can't be archived its messages are archived one at a
+ * time so one bad entry doesn't hold up the others. A held back message is still in the queue, so
+ * if the server stops abruptly before its batch is archived it is processed again on the next run
+ * and its encounter and obs are created twice. The batch size is capped at
+ * {@link #MAX_ARCHIVE_BATCH_SIZE} to keep the number of such messages small.
  * 
  * @version 1.0
  */
@@ -39,6 +71,39 @@ public class HL7InQueueProcessor /* implements Runnable */{
 	
 	// processor per JVM
 	
+	/**
+	 * The number of queue entries read at a time when processing with several threads (this is
+	 * also how many entries may be waiting for each worker)
+	 */
+	public static final int HL7_IN_QUEUE_BATCH_SIZE = 100;
+	
+	/**
+	 * The most processed entries held back to be archived together, whatever the
+	 * {@link OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE} global property says. These
+	 * are the entries that would be processed twice if the server stopped abruptly.
+	 */
+	public static final int MAX_ARCHIVE_BATCH_SIZE = 50;
+	
+	/**
+	 * Handed to a worker to tell it there are no more entries
+	 */
+	private static final Integer NO_MORE_ENTRIES = -1;
+	
+	private static AtomicLong processedCount = new AtomicLong();
+	
+	private static AtomicLong runProcessedCount = new AtomicLong();
+	
+	private static volatile long runStarted = 0;
+	
+	private static volatile long runEnded = 0;
+	
+	/**
+	 * Processed entries waiting to be archived, or null if each entry is archived straight away
+	 */
+	private List<HL7InQueue> processedEntries = null;
+	
+	private int archiveBatchSize = 1;
+	
 	/**
 	 * Empty constructor (requires context to be set using <code>setContext(Context)</code> method
 	 * before any other calls are made)
@@ -53,6 +118,9 @@ public class HL7InQueueProcessor /* implements Runnable */{
 	 */
 	public void processHL7InQueue(HL7InQueue hl7InQueue) {
 		
+		processedCount.incrementAndGet();
+		runProcessedCount.incrementAndGet();
+		
 		if (log.isDebugEnabled())
 			log.debug("Processing HL7 inbound queue (id=" + hl7InQueue.getHL7InQueueId() + ",key="
 			        + hl7InQueue.getHL7SourceKey() + ")");
@@ -67,13 +135,13 @@ public class HL7InQueueProcessor /* implements Runnable */{
 			receiver.processMessage(hl7Message);
 			
 			// Move HL7 inbound queue entry into the archive before exiting
-			if (log.isDebugEnabled())
-				log.debug("Archiving HL7 inbound queue entry");
-			HL7InArchive hl7InArchive = new HL7InArchive(hl7InQueue);
-			Context.getHL7Service().createHL7InArchive(hl7InArchive);
-			if (log.isDebugEnabled())
-				log.debug("Removing HL7 message from inbound queue");
-			Context.getHL7Service().deleteHL7InQueue(hl7InQueue);
+			if (processedEntries != null) {
+				processedEntries.add(hl7InQueue);
+				if (processedEntries.size() >= archiveBatchSize)
+					archiveProcessedEntries();
+			} else {
+				archive(hl7InQueue);
+			}
 		}
 		catch (HL7Exception e) {
 			boolean skipError = false;
@@ -126,6 +194,80 @@ public class HL7InQueueProcessor /* implements Runnable */{
 		return entryProcessed;
 	}
 	
+	/**
+	 * Moves a processed queue entry into the archive
+	 */
+	private void archive(HL7InQueue hl7InQueue) {
+		if (log.isDebugEnabled())
+			log.debug("Archiving HL7 inbound queue entry");
+		HL7InArchive hl7InArchive = new HL7InArchive(hl7InQueue);
+		Context.getHL7Service().createHL7InArchive(hl7InArchive);
+		if (log.isDebugEnabled())
+			log.debug("Removing HL7 message from inbound queue");
+		Context.getHL7Service().deleteHL7InQueue(hl7InQueue);
+	}
+	
+	/**
+	 * Holds back processed entries until there are <code>batchSize</code> of them (at most
+	 * {@link #MAX_ARCHIVE_BATCH_SIZE}) and then archives them together. Does nothing if batchSize
+	 * is 1 or less.
+	 * 
+	 * @param batchSize the number of entries to archive at a time
+	 */
+	private void startArchiveBatching(int batchSize) {
+		if (batchSize > MAX_ARCHIVE_BATCH_SIZE) {
+			log.warn("Archiving hl7 messages " + MAX_ARCHIVE_BATCH_SIZE + " at a time instead of " + batchSize
+			        + ", so that fewer are processed again if the server stops abruptly");
+			batchSize = MAX_ARCHIVE_BATCH_SIZE;
+		}
+		if (batchSize > 1) {
+			archiveBatchSize = batchSize;
+			processedEntries = new ArrayList<HL7InQueue>(batchSize);
+		}
+	}
+	
+	/**
+	 * Archives any entries still held back and goes back to archiving each entry straight away
+	 */
+	private void finishArchiveBatching() {
+		if (processedEntries != null) {
+			archiveProcessedEntries();
+			processedEntries = null;
+		}
+	}
+	
+	/**
+	 * Archives the held back entries in one transaction. If that fails, they are archived one at a
+	 * time and any entry that still can't be archived is moved to the error table.
+	 */
+	private void archiveProcessedEntries() {
+		if (processedEntries.isEmpty())
+			return;
+		
+		try {
+			if (log.isDebugEnabled())
+				log.debug("Archiving " + processedEntries.size() + " HL7 inbound queue entries");
+			Context.getHL7Service().archiveHL7InQueues(processedEntries);
+		}
+		catch (Exception e) {
+			log.warn("Unable to archive " + processedEntries.size()
+			        + " HL7 inbound queue entries together, archiving them one at a time", e);
+			Context.clearSession();
+			for (HL7InQueue hl7InQueue : processedEntries) {
+				try {
+					archive(hl7InQueue);
+				}
+				catch (Exception e2) {
+					setFatalError(hl7InQueue, "Exception while attempting to archive HL7 In Queue ("
+					        + hl7InQueue.getHL7SourceKey() + ")", e2);
+				}
+			}
+		}
+		finally {
+			processedEntries.clear();
+		}
+	}
+	
 	/**
 	 * Convenience method to respond to fatal errors by moving the queue entry into an error bin
 	 * prior to aborting
@@ -149,6 +291,8 @@ public class HL7InQueueProcessor /* implements Runnable */{
 
 	/**
 	 * Starts up a thread to process all existing HL7InQueue entries
+	 * 
+	 * @should move a failing entry into the error table when archiving in batches
 	 */
 	public void processHL7InQueue() throws HL7Exception {
 		synchronized (isRunning) {
@@ -158,18 +302,266 @@ public class HL7InQueueProcessor /* implements Runnable */{
 			}
 			isRunning = true;
 		}
+		runProcessedCount.set(0);
+		runStarted = System.currentTimeMillis();
+		runEnded = 0;
 		try {
 			log.debug("Start processing hl7 in queue");
-			while (processNextHL7InQueue()) {
-				// loop until queue is empty
+			int threads = getGlobalPropertyValue(OpenmrsConstants.GLOBAL_PROPERTY_HL7_PROCESSOR_THREADS);
+			int batchSize = getGlobalPropertyValue(OpenmrsConstants.GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE);
+			if (threads > 1) {
+				processInParallel(threads, batchSize);
+			} else if (batchSize > 1) {
+				startArchiveBatching(batchSize);
+				try {
+					processInOrder();
+				}
+				finally {
+					finishArchiveBatching();
+				}
+			} else {
+				while (processNextHL7InQueue()) {
+					// loop until queue is empty
+				}
 			}
 			log.debug("Done processing hl7 in queue");
 		}
 		finally {
+			runEnded = System.currentTimeMillis();
 			isRunning = false;
 		}
 	}
 	
+	/**
+	 * Processes all existing queue entries on this thread, reading the queue in batches. Unlike
+	 * {@link #processNextHL7InQueue()} this doesn't need each entry to be gone from the queue before
+	 * moving on to the next, so processed entries can be held back to be archived together.
+	 */
+	private void processInOrder() {
+		HL7Service hl7Service = Context.getHL7Service();
+		Integer lastHL7InQueueId = null;
+		List<HL7InQueue> batch;
+		while (!(batch = hl7Service.getHL7InQueueBatch(lastHL7InQueueId, HL7_IN_QUEUE_BATCH_SIZE)).isEmpty()) {
+			List<Integer> hl7InQueueIds = new ArrayList<Integer>(batch.size());
+			for (HL7InQueue hl7InQueue : batch)
+				hl7InQueueIds.add(hl7InQueue.getHL7InQueueId());
+			lastHL7InQueueId = hl7InQueueIds.get(hl7InQueueIds.size() - 1);
+			
+			// the session is cleared after each entry, so each one is loaded again when its turn comes
+			for (Integer hl7InQueueId : hl7InQueueIds) {
+				HL7InQueue hl7InQueue = hl7Service.getHL7InQueue(hl7InQueueId);
+				if (hl7InQueue != null)
+					processHL7InQueue(hl7InQueue);
+			}
+		}
+	}
+	
+	/**
+	 * Processes all existing queue entries with the given number of worker threads. The workers
+	 * run as the calling user, each with its own copy of the user context and its own session. This
+	 * thread reads the queue in batches and hands each entry's id to the worker for its patient (see
+	 * {@link #getPatientKey(String)}). Once an entry for a patient fails, that patient's later
+	 * entries are left in the queue for the next run, so they are never processed out of order.
+	 * 
+	 * @param threads the number of workers
+	 * @param archiveBatchSize the number of processed entries each worker archives at a time
+	 * @throws HL7Exception if this thread is interrupted or a worker dies
+	 */
+	private void processInParallel(int threads, final int archiveBatchSize) throws HL7Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<BlockingQueue<Integer>> workQueues = new ArrayList<BlockingQueue<Integer>>();
+		List<Future<Object>> workers = new ArrayList<Future<Object>>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				final BlockingQueue<Integer> workQueue = new LinkedBlockingQueue<Integer>(HL7_IN_QUEUE_BATCH_SIZE);
+				workQueues.add(workQueue);
+				final UserContext userContext = Context.getUserContext().copy();
+				workers.add(executor.submit(new Callable<Object>() {
+					
+					public Object call() throws Exception {
+						Context.setUserContext(userContext);
+						Context.openSession();
+						try {
+							// the hapi parser isn't shared between threads
+							HL7InQueueProcessor processor = new HL7InQueueProcessor();
+							processor.startArchiveBatching(archiveBatchSize);
+							Set<String> failedPatientKeys = new HashSet<String>();
+							try {
+								Integer hl7InQueueId;
+								while (!NO_MORE_ENTRIES.equals(hl7InQueueId = workQueue.take())) {
+									String patientKey = null;
+									try {
+										HL7InQueue hl7InQueue = Context.getHL7Service().getHL7InQueue(hl7InQueueId);
+										if (hl7InQueue == null)
+											continue;
+										patientKey = getPatientKey(hl7InQueue.getHL7Data());
+										if (patientKey != null && failedPatientKeys.contains(patientKey)) {
+											if (log.isDebugEnabled())
+												log.debug("Leaving hl7 in queue entry " + hl7InQueueId
+												        + " for the next run after an earlier entry for its patient failed");
+											Context.evictFromSession(hl7InQueue);
+											continue;
+										}
+										processor.processHL7InQueue(hl7InQueue);
+									}
+									catch (RuntimeException e) {
+										// the entry stays in the queue, to be tried again on the next run
+										log.error("Unable to process hl7 in queue entry: " + hl7InQueueId, e);
+										if (patientKey != null)
+											failedPatientKeys.add(patientKey);
+										Context.clearSession();
+									}
+								}
+							}
+							finally {
+								processor.finishArchiveBatching();
+							}
+							return null;
+						}
+						finally {
+							Context.closeSession();
+							Context.clearUserContext();
+						}
+					}
+				}));
+			}
+			
+			HL7Service hl7Service = Context.getHL7Service();
+			Integer lastHL7InQueueId = null;
+			List<HL7InQueue> batch;
+			while (!(batch = hl7Service.getHL7InQueueBatch(lastHL7InQueueId, HL7_IN_QUEUE_BATCH_SIZE)).isEmpty()) {
+				for (HL7InQueue hl7InQueue : batch) {
+					lastHL7InQueueId = hl7InQueue.getHL7InQueueId();
+					String patientKey = getPatientKey(hl7InQueue.getHL7Data());
+					int hash = (patientKey == null) ? lastHL7InQueueId : patientKey.hashCode();
+					int worker = (hash & Integer.MAX_VALUE) % threads;
+					handTo(workQueues.get(worker), workers.get(worker), lastHL7InQueueId);
+				}
+				// the entries are loaded again by the workers
+				hl7Service.garbageCollect();
+			}
+			
+			for (int i = 0; i < threads; i++)
+				handTo(workQueues.get(i), workers.get(i), NO_MORE_ENTRIES);
+			for (Future<Object> worker : workers)
+				worker.get();
+		}
+		catch (InterruptedException e) {
+			throw new HL7Exception("Interrupted while processing the hl7 in queue", e);
+		}
+		catch (ExecutionException e) {
+			throw new HL7Exception("Error while processing the hl7 in queue", e.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Puts an entry id on a worker's queue, waiting for room
+	 * 
+	 * @throws ExecutionException if the worker died before taking it
+	 */
+	private void handTo(BlockingQueue<Integer> workQueue, Future<Object> worker, Integer hl7InQueueId)
+	                                                                                                throws HL7Exception,
+	                                                                                                InterruptedException,
+	                                                                                                ExecutionException {
+		while (!workQueue.offer(hl7InQueueId, 1, TimeUnit.SECONDS)) {
+			if (worker.isDone()) {
+				worker.get();
+				throw new HL7Exception("An hl7 in queue worker stopped early");
+			}
+		}
+	}
+	
+	/**
+	 * Finds the patient identifier list (PID-3) of an hl7 message without parsing the whole message.
+	 * Messages with the same key are about the same patient.
+	 * 
+	 * @param hl7Data the raw message
+	 * @return the PID-3 field, or null if the message has none
+	 * @should return the patient identifier field
+	 * @should return null if there is no PID segment
+	 */
+	protected static String getPatientKey(String hl7Data) {
+		if (hl7Data == null)
+			return null;
+		hl7Data = hl7Data.trim();
+		if (!hl7Data.startsWith("MSH") || hl7Data.length() < 4)
+			return null;
+		
+		String fieldSeparator = hl7Data.substring(3, 4);
+		for (String segment : hl7Data.split("[\\r\\n]+")) {
+			if (segment.startsWith("PID" + fieldSeparator)) {
+				String[] fields = segment.split(Pattern.quote(fieldSeparator), 5);
+				if (fields.length > 3 && fields[3].length() > 0)
+					return fields[3];
+				return null;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Fetch one of the processor's numeric settings (the number of threads or the archive batch
+	 * size) from the global properties table
+	 * 
+	 * @param property the name of the global property
+	 * @return the value of the property, or 1 if it is not set
+	 */
+	private int getGlobalPropertyValue(String property) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Unable to convert the global property " + property + " to a valid integer. Using 1");
+			}
+		}
+		return 1;
+	}
+	
+	/**
+	 * @return true if the queue is being processed right now
+	 */
+	public static boolean isRunning() {
+		return isRunning;
+	}
+	
+	/**
+	 * @return the number of queue entries processed (successfully or not) since startup
+	 */
+	public static long getProcessedCount() {
+		return processedCount.get();
+	}
+	
+	/**
+	 * @return the number of queue entries processed by the current run, or by the last run if the
+	 *         queue is not being processed right now
+	 */
+	public static long getRunProcessedCount() {
+		return runProcessedCount.get();
+	}
+	
+	/**
+	 * @return the number of queue entries processed per second by the current (or last) run
+	 */
+	public static double getRunThroughput() {
+		long started = runStarted;
+		if (started == 0)
+			return 0;
+		long ended = (runEnded == 0) ? System.currentTimeMillis() : runEnded;
+		return runProcessedCount.get() * 1000.0 / Math.max(ended - started, 1);
+	}
+	
+	/**
+	 * @return the number of entries waiting in the hl7 in queue
+	 */
+	public int getBacklog() {
+		return Context.getHL7Service().getHL7InQueueCount();
+	}
+	
 	/*
 	 * private static Hashtable<Context, Thread> threadCache = new Hashtable<Context,
 	 * Thread>();
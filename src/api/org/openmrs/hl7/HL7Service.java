@@ -14,6 +14,7 @@
 package org.openmrs.hl7;
 
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 import org.openmrs.Encounter;
@@ -182,6 +183,27 @@ public interface HL7Service extends OpenmrsService {
 	@Authorized(HL7Constants.PRIV_VIEW_HL7_IN_QUEUE)
 	public HL7InQueue getNextHL7InQueue() throws APIException;
 	
+	/**
+	 * Get queue items in the order they were received, starting after the given item
+	 * 
+	 * @param afterHL7InQueueId only items with a larger id are returned (null to start with the
+	 *            first item)
+	 * @param maxResults the most items to return
+	 * @return up to maxResults queue items, ordered by id
+	 */
+	@Transactional(readOnly = true)
+	@Authorized(HL7Constants.PRIV_VIEW_HL7_IN_QUEUE)
+	public List<HL7InQueue> getHL7InQueueBatch(Integer afterHL7InQueueId, int maxResults) throws APIException;
+	
+	/**
+	 * Get the number of items waiting in the queue
+	 * 
+	 * @return the size of the hl7 in queue
+	 */
+	@Transactional(readOnly = true)
+	@Authorized(HL7Constants.PRIV_VIEW_HL7_IN_QUEUE)
+	public Integer getHL7InQueueCount() throws APIException;
+	
 	/**
 	 * Completely delete the hl7 in queue item from the database.
 	 * 
@@ -196,6 +218,19 @@ public interface HL7Service extends OpenmrsService {
 	@Authorized(HL7Constants.PRIV_DELETE_HL7_IN_QUEUE)
 	public void deleteHL7InQueue(HL7InQueue hl7InQueue);
 	
+	/**
+	 * Moves the given (successfully processed) queue items into the archive (the hl7_in_archive
+	 * table, or the file store if
+	 * {@link org.openmrs.util.OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY} is set) in a single
+	 * transaction, using batched statements rather than a save and a delete for each item
+	 * 
+	 * @param hl7InQueues the queue items to archive
+	 * @throws APIException
+	 * @should move every entry into the archive and out of the queue
+	 */
+	@Authorized( { HL7Constants.PRIV_ADD_HL7_IN_ARCHIVE, HL7Constants.PRIV_DELETE_HL7_IN_QUEUE })
+	public void archiveHL7InQueues(List<HL7InQueue> hl7InQueues) throws APIException;
+	
 	/**
 	 * Save the given hl7 in archive to the database
 	 * 
@@ -213,7 +248,7 @@ public interface HL7Service extends OpenmrsService {
 	public void createHL7InArchive(HL7InArchive hl7InArchive);
 	
 	/**
-	 * Get the archive item with the given id
+	 * Get the archive item with the given id, from the hl7_in_archive table or the file store
 	 * 
 	 * @param hl7InArchiveId the id to search on
 	 * @return the matching archive item
@@ -222,6 +257,42 @@ public interface HL7Service extends OpenmrsService {
 	@Authorized(HL7Constants.PRIV_VIEW_HL7_IN_ARCHIVE)
 	public HL7InArchive getHL7InArchive(Integer hl7InArchiveId);
 	
+	/**
+	 * Get the archive items created in the given date range, from both the hl7_in_archive table
+	 * and the file store
+	 * 
+	 * @param fromDate the earliest date created (null for no lower limit)
+	 * @param toDate the latest date created (null for no upper limit)
+	 * @return the matching archive items in the table, then those in the file store, each ordered
+	 *         by id
+	 */
+	@Transactional(readOnly = true)
+	@Authorized(HL7Constants.PRIV_VIEW_HL7_IN_ARCHIVE)
+	public List<HL7InArchive> getHL7InArchivesByDate(Date fromDate, Date toDate) throws APIException;
+	
+	/**
+	 * Puts an archived message back into the inbound queue so that it is processed again. The
+	 * archive item is left where it is.
+	 * 
+	 * @param hl7InArchive the archived message to process again
+	 * @return the new queue item
+	 * @throws APIException
+	 */
+	@Authorized(HL7Constants.PRIV_ADD_HL7_IN_QUEUE)
+	public HL7InQueue replayHL7InArchive(HL7InArchive hl7InArchive) throws APIException;
+	
+	/**
+	 * Moves the oldest archive items out of the hl7_in_archive table into the file store in
+	 * {@link org.openmrs.util.OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY}, keeping their
+	 * ids. Each call is one transaction; call it until it returns 0 to move the whole table.
+	 * 
+	 * @param maxResults the most items to move
+	 * @return the number of items moved
+	 * @throws APIException if no archive directory is set
+	 */
+	@Authorized( { HL7Constants.PRIV_VIEW_HL7_IN_ARCHIVE, HL7Constants.PRIV_PURGE_HL7_IN_ARCHIVE })
+	public int migrateHL7InArchives(int maxResults) throws APIException;
+	
 	/**
 	 * Get all archive hl7 queue items from the database
 	 * 
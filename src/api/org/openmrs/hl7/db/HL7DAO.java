@@ -13,6 +13,7 @@
  */
 package org.openmrs.hl7.db;
 
+import java.util.Date;
 import java.util.List;
 
 import org.openmrs.api.db.DAOException;
@@ -78,13 +79,36 @@ public interface HL7DAO {
 	 */
 	public HL7InQueue getNextHL7InQueue() throws DAOException;
 	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InQueueBatch(Integer, int)
+	 */
+	public List<HL7InQueue> getHL7InQueueBatch(Integer afterHL7InQueueId, int maxResults) throws DAOException;
+	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InQueueCount()
+	 */
+	public Integer getHL7InQueueCount() throws DAOException;
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#deleteHL7InQueue(org.openmrs.hl7.HL7InQueue)
 	 */
 	public void deleteHL7InQueue(HL7InQueue hl7InQueue) throws DAOException;
 	
+	/**
+	 * Deletes the given queue items with a batched statement
+	 * 
+	 * @param hl7InQueues
+	 */
+	public void deleteHL7InQueues(List<HL7InQueue> hl7InQueues) throws DAOException;
+	
 	/* HL7InArchive */
 
+	/**
+	 * @param dateCreated the creation date to give the archive rows
+	 * @see org.openmrs.hl7.HL7Service#archiveHL7InQueues(java.util.List)
+	 */
+	public void archiveHL7InQueues(List<HL7InQueue> hl7InQueues, Date dateCreated) throws DAOException;
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#saveHL7InArchive(org.openmrs.hl7.HL7InArchive)
 	 */
@@ -100,11 +124,37 @@ public interface HL7DAO {
 	 */
 	public List<HL7InArchive> getAllHL7InArchives() throws DAOException;
 	
+	/**
+	 * Get archive items in id order, starting after the given item
+	 * 
+	 * @param afterHL7InArchiveId only items with a larger id are returned (null to start with the
+	 *            first item)
+	 * @param maxResults the most items to return
+	 */
+	public List<HL7InArchive> getHL7InArchiveBatch(Integer afterHL7InArchiveId, int maxResults) throws DAOException;
+	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InArchivesByDate(java.util.Date, java.util.Date)
+	 */
+	public List<HL7InArchive> getHL7InArchivesByDate(Date fromDate, Date toDate) throws DAOException;
+	
+	/**
+	 * @return the largest id in the hl7_in_archive table, or null if it is empty
+	 */
+	public Integer getMaxHL7InArchiveId() throws DAOException;
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#deleteHL7InArchive(org.openmrs.hl7.HL7InArchive)
 	 */
 	public void deleteHL7InArchive(HL7InArchive hl7InArchive) throws DAOException;
 	
+	/**
+	 * Deletes the given archive items with a batched statement
+	 * 
+	 * @param hl7InArchives
+	 */
+	public void deleteHL7InArchives(List<HL7InArchive> hl7InArchives) throws DAOException;
+	
 	/* HL7InException */
 
 	/**
@@ -13,13 +13,21 @@
  */
 package org.openmrs.hl7.db.hibernate;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.db.DAOException;
@@ -130,6 +138,28 @@ public class HibernateHL7DAO implements HL7DAO {
 		return (HL7InQueue) query.uniqueResult();
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#getHL7InQueueBatch(java.lang.Integer, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<HL7InQueue> getHL7InQueueBatch(Integer afterHL7InQueueId, int maxResults) throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(HL7InQueue.class);
+		if (afterHL7InQueueId != null)
+			criteria.add(Restrictions.gt("HL7InQueueId", afterHL7InQueueId));
+		criteria.addOrder(Order.asc("HL7InQueueId"));
+		criteria.setMaxResults(maxResults);
+		return criteria.list();
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#getHL7InQueueCount()
+	 */
+	public Integer getHL7InQueueCount() throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(HL7InQueue.class);
+		criteria.setProjection(Projections.rowCount());
+		return (Integer) criteria.uniqueResult();
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.db.HL7DAO#deleteHL7InQueue(org.openmrs.hl7.HL7InQueue)
 	 */
@@ -137,6 +167,86 @@ public class HibernateHL7DAO implements HL7DAO {
 		sessionFactory.getCurrentSession().delete(hl7InQueue);
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#deleteHL7InQueues(java.util.List)
+	 */
+	public void deleteHL7InQueues(List<HL7InQueue> hl7InQueues) throws DAOException {
+		List<Integer> ids = new ArrayList<Integer>(hl7InQueues.size());
+		for (HL7InQueue hl7InQueue : hl7InQueues)
+			ids.add(hl7InQueue.getHL7InQueueId());
+		deleteRows("delete from hl7_in_queue where hl7_in_queue_id = ?", ids, hl7InQueues);
+	}
+	
+	/**
+	 * Copies the rows straight from hl7_in_queue into hl7_in_archive, so the message data is not
+	 * sent back to the database, and then deletes them from the queue. Both statements are
+	 * batched.
+	 * 
+	 * @see org.openmrs.hl7.db.HL7DAO#archiveHL7InQueues(java.util.List, java.util.Date)
+	 */
+	public void archiveHL7InQueues(List<HL7InQueue> hl7InQueues, Date dateCreated) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		try {
+			PreparedStatement insert = session.connection().prepareStatement(
+			    "insert into hl7_in_archive (hl7_source, hl7_source_key, hl7_data, date_created) "
+			            + "select hl7_source, hl7_source_key, hl7_data, ? from hl7_in_queue where hl7_in_queue_id = ?");
+			try {
+				Timestamp timestamp = new Timestamp(dateCreated.getTime());
+				for (HL7InQueue hl7InQueue : hl7InQueues) {
+					insert.setTimestamp(1, timestamp);
+					insert.setInt(2, hl7InQueue.getHL7InQueueId());
+					insert.addBatch();
+				}
+				insert.executeBatch();
+			}
+			finally {
+				insert.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to archive " + hl7InQueues.size() + " hl7 in queue entries", e);
+		}
+		
+		deleteHL7InQueues(hl7InQueues);
+	}
+	
+	/**
+	 * Deletes rows by id with a batched statement, and evicts the matching objects from the session
+	 * so hibernate doesn't try to write them again
+	 * 
+	 * @param sql a delete statement with the id as its only parameter
+	 * @param ids the ids of the rows to delete
+	 * @param objects the objects mapped to those rows
+	 */
+	private void deleteRows(String sql, List<Integer> ids, List<?> objects) throws DAOException {
+		Session session = sessionFactory.getCurrentSession();
+		session.flush();
+		
+		try {
+			PreparedStatement delete = session.connection().prepareStatement(sql);
+			try {
+				for (Integer id : ids) {
+					delete.setInt(1, id);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+			}
+			finally {
+				delete.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new DAOException("Unable to delete " + ids.size() + " rows", e);
+		}
+		
+		for (Object o : objects) {
+			if (session.contains(o))
+				session.evict(o);
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.db.HL7DAO#saveHL7InArchive(org.openmrs.hl7.HL7InArchive)
 	 */
@@ -153,6 +263,52 @@ public class HibernateHL7DAO implements HL7DAO {
 		return (HL7InArchive) sessionFactory.getCurrentSession().get(HL7InArchive.class, hl7InArchiveId);
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#getHL7InArchiveBatch(java.lang.Integer, int)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<HL7InArchive> getHL7InArchiveBatch(Integer afterHL7InArchiveId, int maxResults) throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(HL7InArchive.class);
+		if (afterHL7InArchiveId != null)
+			criteria.add(Restrictions.gt("HL7InArchiveId", afterHL7InArchiveId));
+		criteria.addOrder(Order.asc("HL7InArchiveId"));
+		criteria.setMaxResults(maxResults);
+		return criteria.list();
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#getHL7InArchivesByDate(java.util.Date, java.util.Date)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<HL7InArchive> getHL7InArchivesByDate(Date fromDate, Date toDate) throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(HL7InArchive.class);
+		if (fromDate != null)
+			criteria.add(Restrictions.ge("dateCreated", fromDate));
+		if (toDate != null)
+			criteria.add(Restrictions.le("dateCreated", toDate));
+		criteria.addOrder(Order.asc("HL7InArchiveId"));
+		return criteria.list();
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#getMaxHL7InArchiveId()
+	 */
+	public Integer getMaxHL7InArchiveId() throws DAOException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(HL7InArchive.class);
+		criteria.setProjection(Projections.max("HL7InArchiveId"));
+		return (Integer) criteria.uniqueResult();
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.db.HL7DAO#deleteHL7InArchives(java.util.List)
+	 */
+	public void deleteHL7InArchives(List<HL7InArchive> hl7InArchives) throws DAOException {
+		List<Integer> ids = new ArrayList<Integer>(hl7InArchives.size());
+		for (HL7InArchive hl7InArchive : hl7InArchives)
+			ids.add(hl7InArchive.getHL7InArchiveId());
+		deleteRows("delete from hl7_in_archive where hl7_in_archive_id = ?", ids, hl7InArchives);
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.db.HL7DAO#getHL7InArchives()
 	 */
@@ -670,7 +670,8 @@ public class ORUR01Handler implements Application {
 	 * Get a concept object representing this conceptId and coding system.<br/>
 	 * If codingSystem is 99DCT, then a new Concept with the given conceptId is returned.<br/>
 	 * Otherwise, the coding system is looked up in the ConceptMap for an openmrs concept mapped to
-	 * that code.
+	 * that code, and a new Concept with the mapped conceptId is returned. (The mappings are cached
+	 * by the ConceptService, so repeated codes don't go to the database.)
 	 * 
 	 * @param hl7ConceptId the given hl7 conceptId
 	 * @param codingSystem the coding system for this conceptid (e.g. 99DCT)
@@ -693,10 +694,12 @@ public class ORUR01Handler implements Application {
 			}
 		} else {
 			// the concept is not local, look it up in our mapping
-			Concept concept = Context.getConceptService().getConceptByMapping(hl7ConceptId, codingSystem);
-			if (concept == null)
+			Integer conceptId = Context.getConceptService().getConceptIdByMapping(hl7ConceptId, codingSystem);
+			if (conceptId == null) {
 				log.error("Unable to find concept with code: " + hl7ConceptId + " and mapping: " + codingSystem + " in hl7 message with uid: " + uid);
-			return concept;
+				return null;
+			}
+			return new Concept(conceptId);
 		}
 	}
 	
@@ -13,26 +13,38 @@
  */
 package org.openmrs.hl7.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Encounter;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.User;
 import org.openmrs.api.APIException;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
 import org.openmrs.hl7.HL7InArchive;
+import org.openmrs.hl7.HL7InArchiveFileStore;
 import org.openmrs.hl7.HL7InError;
 import org.openmrs.hl7.HL7InQueue;
 import org.openmrs.hl7.HL7Service;
 import org.openmrs.hl7.HL7Source;
 import org.openmrs.hl7.db.HL7DAO;
+import org.openmrs.util.OpenmrsConstants;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.model.v25.datatype.CX;
@@ -46,12 +58,21 @@ import ca.uhn.hl7v2.model.v25.segment.PID;
  * 
  * @see org.openmrs.hl7.HL7Service
  */
-public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service {
+public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service, GlobalPropertyListener {
 	
 	private Log log = LogFactory.getLog(this.getClass());
 	
 	protected HL7DAO dao;
 	
+	private volatile HL7InArchiveFileStore fileStore = null;
+	
+	/**
+	 * True once {@link #fileStore} has been resolved from the
+	 * {@link OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY} global property. Reset by
+	 * {@link #globalPropertyChanged(GlobalProperty)}.
+	 */
+	private volatile boolean fileStoreResolved = false;
+	
 	/**
 	 * Default constructor
 	 */
@@ -206,6 +227,20 @@ public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service {
 		return dao.getNextHL7InQueue();
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InQueueBatch(java.lang.Integer, int)
+	 */
+	public List<HL7InQueue> getHL7InQueueBatch(Integer afterHL7InQueueId, int maxResults) throws APIException {
+		return dao.getHL7InQueueBatch(afterHL7InQueueId, maxResults);
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InQueueCount()
+	 */
+	public Integer getHL7InQueueCount() throws APIException {
+		return dao.getHL7InQueueCount();
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#deleteHL7InQueue(org.openmrs.hl7.HL7InQueue)
 	 * @deprecated
@@ -214,18 +249,66 @@ public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service {
 		purgeHL7InQueue(hl7InQueue);
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#archiveHL7InQueues(java.util.List)
+	 */
+	public void archiveHL7InQueues(List<HL7InQueue> hl7InQueues) throws APIException {
+		if (hl7InQueues.isEmpty())
+			return;
+		
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store == null) {
+			dao.archiveHL7InQueues(hl7InQueues, new Date());
+		} else {
+			Date dateCreated = new Date();
+			List<Integer> saved = new ArrayList<Integer>(hl7InQueues.size());
+			purgeOnRollback(store, saved);
+			for (HL7InQueue hl7InQueue : hl7InQueues) {
+				HL7InArchive hl7InArchive = new HL7InArchive(hl7InQueue);
+				hl7InArchive.setDateCreated(dateCreated);
+				saved.add(saveToFileStore(store, hl7InArchive).getHL7InArchiveId());
+			}
+			dao.deleteHL7InQueues(hl7InQueues);
+		}
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#getAllHL7InArchives()
 	 */
 	public List<HL7InArchive> getAllHL7InArchives() throws APIException {
-		return dao.getAllHL7InArchives();
+		List<HL7InArchive> ret = dao.getAllHL7InArchives();
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store != null)
+			ret.addAll(getFromFileStore(store, store.getIds(null, null)));
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#getHL7InArchivesByDate(java.util.Date, java.util.Date)
+	 */
+	public List<HL7InArchive> getHL7InArchivesByDate(Date fromDate, Date toDate) throws APIException {
+		List<HL7InArchive> ret = dao.getHL7InArchivesByDate(fromDate, toDate);
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store != null)
+			ret.addAll(getFromFileStore(store, store.getIds(fromDate, toDate)));
+		return ret;
 	}
 	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#purgeHL7InArchive(org.openmrs.hl7.HL7InArchive)
 	 */
 	public void purgeHL7InArchive(HL7InArchive hl7InArchive) throws APIException {
-		dao.deleteHL7InArchive(hl7InArchive);
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store != null && store.contains(hl7InArchive.getHL7InArchiveId())) {
+			try {
+				store.purge(hl7InArchive.getHL7InArchiveId());
+			}
+			catch (IOException e) {
+				throw new APIException("Unable to purge hl7 archive item " + hl7InArchive.getHL7InArchiveId(), e);
+			}
+		} else {
+			dao.deleteHL7InArchive(hl7InArchive);
+		}
 	}
 	
 	/**
@@ -235,9 +318,187 @@ public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service {
 		
 		hl7InArchive.setDateCreated(new Date());
 		
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store != null && hl7InArchive.getHL7InArchiveId() == 0) {
+			saveToFileStore(store, hl7InArchive);
+			purgeOnRollback(store, Collections.singletonList(hl7InArchive.getHL7InArchiveId()));
+			return hl7InArchive;
+		}
+		if (store != null && store.contains(hl7InArchive.getHL7InArchiveId()))
+			return saveToFileStore(store, hl7InArchive);
+		
 		return dao.saveHL7InArchive(hl7InArchive);
 	}
 	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#replayHL7InArchive(org.openmrs.hl7.HL7InArchive)
+	 */
+	public HL7InQueue replayHL7InArchive(HL7InArchive hl7InArchive) throws APIException {
+		HL7InQueue hl7InQueue = new HL7InQueue();
+		hl7InQueue.setHL7Source(hl7InArchive.getHL7Source());
+		hl7InQueue.setHL7SourceKey(hl7InArchive.getHL7SourceKey());
+		hl7InQueue.setHL7Data(hl7InArchive.getHL7Data());
+		return saveHL7InQueue(hl7InQueue);
+	}
+	
+	/**
+	 * @see org.openmrs.hl7.HL7Service#migrateHL7InArchives(int)
+	 */
+	public int migrateHL7InArchives(int maxResults) throws APIException {
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store == null)
+			throw new APIException("The " + OpenmrsConstants.GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY
+			        + " global property must be set before the hl7 archive can be migrated");
+		
+		List<HL7InArchive> hl7InArchives = dao.getHL7InArchiveBatch(null, maxResults);
+		List<Integer> saved = new ArrayList<Integer>(hl7InArchives.size());
+		purgeOnRollback(store, saved);
+		for (HL7InArchive hl7InArchive : hl7InArchives) {
+			// items are stored under their table ids, so storing one again after a failed run replaces it
+			if (!store.contains(hl7InArchive.getHL7InArchiveId()))
+				saved.add(hl7InArchive.getHL7InArchiveId());
+			saveToFileStore(store, hl7InArchive);
+		}
+		dao.deleteHL7InArchives(hl7InArchives);
+		return hl7InArchives.size();
+	}
+	
+	/**
+	 * Gets the store archive items are kept in instead of the hl7_in_archive table. The
+	 * {@link OpenmrsConstants#GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY} global property is only read
+	 * the first time this is called, and again after it changes.
+	 * 
+	 * @return the file store, or null if archive items are kept in the hl7_in_archive table
+	 */
+	protected HL7InArchiveFileStore getHL7InArchiveFileStore() throws APIException {
+		if (fileStoreResolved)
+			return fileStore;
+		
+		synchronized (this) {
+			if (!fileStoreResolved) {
+				String directory = Context.getAdministrationService().getGlobalProperty(
+				    OpenmrsConstants.GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY, "").trim();
+				if (directory.length() > 0) {
+					File folder = OpenmrsUtil.getDirectoryInApplicationDataDirectory(directory);
+					HL7InArchiveFileStore store;
+					try {
+						store = new HL7InArchiveFileStore(folder);
+					}
+					catch (IOException e) {
+						throw new APIException("Unable to open the hl7 archive in " + folder.getAbsolutePath(), e);
+					}
+					// new items mustn't take the ids of items still in the table
+					Integer maxId = dao.getMaxHL7InArchiveId();
+					if (maxId != null)
+						store.reserveIds(maxId);
+					fileStore = store;
+				}
+				fileStoreResolved = true;
+			}
+			return fileStore;
+		}
+	}
+	
+	/**
+	 * Closes the file store (if one is open) so the next call to {@link #getHL7InArchiveFileStore()}
+	 * reads the global property again
+	 */
+	private synchronized void resetHL7InArchiveFileStore() {
+		if (fileStore != null) {
+			try {
+				fileStore.close();
+			}
+			catch (IOException e) {
+				log.warn("Unable to close the hl7 archive in " + fileStore.getDirectory().getAbsolutePath(), e);
+			}
+			fileStore = null;
+		}
+		fileStoreResolved = false;
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+	 */
+	public boolean supportsPropertyName(String propertyName) {
+		return OpenmrsConstants.GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY.equals(propertyName);
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+	 */
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		resetHL7InArchiveFileStore();
+	}
+	
+	/**
+	 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+	 */
+	public void globalPropertyDeleted(String propertyName) {
+		resetHL7InArchiveFileStore();
+	}
+	
+	/**
+	 * The file store isn't part of the database transaction, so items written to it while the
+	 * transaction runs are purged again if it is rolled back. Otherwise the queue rows (or table
+	 * rows) they came from would be archived a second time. With no transaction nothing is done.
+	 * 
+	 * @param store the store the items were written to
+	 * @param hl7InArchiveIds the ids of the items written by this transaction, which may still be
+	 *            added to until the transaction completes
+	 */
+	private void purgeOnRollback(final HL7InArchiveFileStore store, final List<Integer> hl7InArchiveIds) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive())
+			return;
+		
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			
+			public void afterCompletion(int status) {
+				if (status != TransactionSynchronization.STATUS_ROLLED_BACK)
+					return;
+				for (Integer hl7InArchiveId : hl7InArchiveIds) {
+					try {
+						store.purge(hl7InArchiveId);
+					}
+					catch (IOException e) {
+						log.error("Unable to purge hl7 archive item " + hl7InArchiveId
+						        + " after a rollback, so it may be archived twice", e);
+					}
+				}
+			}
+		});
+	}
+	
+	private HL7InArchive saveToFileStore(HL7InArchiveFileStore store, HL7InArchive hl7InArchive) throws APIException {
+		try {
+			return store.save(hl7InArchive);
+		}
+		catch (IOException e) {
+			throw new APIException("Unable to write to the hl7 archive in " + store.getDirectory().getAbsolutePath(), e);
+		}
+	}
+	
+	/**
+	 * Reads archive items from the file store, filling in their sources
+	 */
+	private List<HL7InArchive> getFromFileStore(HL7InArchiveFileStore store, List<Integer> hl7InArchiveIds)
+	                                                                                                 throws APIException {
+		List<HL7InArchive> ret = new ArrayList<HL7InArchive>(hl7InArchiveIds.size());
+		try {
+			for (Integer hl7InArchiveId : hl7InArchiveIds) {
+				HL7InArchive hl7InArchive = store.get(hl7InArchiveId);
+				if (hl7InArchive != null) {
+					if (hl7InArchive.getHL7Source() != null)
+						hl7InArchive.setHL7Source(dao.getHL7Source(hl7InArchive.getHL7Source().getHL7SourceId()));
+					ret.add(hl7InArchive);
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new APIException("Unable to read from the hl7 archive in " + store.getDirectory().getAbsolutePath(), e);
+		}
+		return ret;
+	}
+	
 	/**
 	 * @see org.openmrs.hl7.HL7Service#createHL7InArchive(org.openmrs.hl7.HL7InArchive)
 	 * @deprecated
@@ -250,6 +511,11 @@ public class HL7ServiceImpl extends BaseOpenmrsService implements HL7Service {
 	 * @see org.openmrs.hl7.HL7Service#getHL7InArchive(java.lang.Integer)
 	 */
 	public HL7InArchive getHL7InArchive(Integer hl7InArchiveId) {
+		HL7InArchiveFileStore store = getHL7InArchiveFileStore();
+		if (store != null && store.contains(hl7InArchiveId)) {
+			List<HL7InArchive> hl7InArchives = getFromFileStore(store, Collections.singletonList(hl7InArchiveId));
+			return hl7InArchives.isEmpty() ? null : hl7InArchives.get(0);
+		}
 		return dao.getHL7InArchive(hl7InArchiveId);
 	}
 	
@@ -3,96 +3,337 @@
  * Version 1.0 (the "License"); you may not use this file except in
  * compliance with the License. You may obtain a copy of the License at
  * http://license.openmrs.org
- *
+ * 
  * Software distributed under the License is distributed on an "AS IS"
  * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
  * License for the specific language governing rights and limitations
  * under the License.
- *
+ * 
  * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
  */
 package org.openmrs.logic;
 
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
 import org.openmrs.logic.datasource.LogicDataSource;
 import org.openmrs.logic.result.Result;
+import org.openmrs.util.IntegerBitmapSet;
 
 /**
- * A caching mechanism used by LogicContext to avoid recalculating a re-fetching the same results
- * more than once during a single request of the logic service.
+ * Cache of rule evaluations and data source reads, shared by all logic contexts through
+ * {@link LogicService#getLogicCache()}. <br/>
+ * <br/>
+ * Each entry holds the results of one evaluation (a rule with its criteria and parameters, or a
+ * data source read with its criteria) for the cohort it was evaluated on, as of the day of the
+ * context's index date. Entries expire after the rule's (or data source's) time to live, the least
+ * recently used entries are evicted once the cache holds its maximum number of entries, and a
+ * patient's results are dropped from every entry when their observations or encounters change (see
+ * {@link #invalidatePatient(Integer)}). All methods are thread safe. <br/>
+ * <br/>
+ * The cache outlives the hibernate session (and thread) a result was read in, so it keeps only
+ * value copies of the results (see {@link Result#copyValues()}), and each lookup returns a new copy
+ * whose coded values are loaded in the caller's session. Results read from the cache do not carry
+ * the objects they were read from ({@link Result#getResultObject()} is null).
  */
 public class LogicCache {
 	
 	private static Log log = LogFactory.getLog(LogicCache.class);
 	
-	// TODO: implement the cache -- currently no caching is performed
+	/**
+	 * The number of entries kept if no other size is given
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 500;
+	
+	private int maxEntries;
+	
+	private Map<LogicCacheEntryKey, LogicCacheEntry> cache;
+	
+	private long hitCount = 0;
 	
-	private Map<LogicCacheEntryKey, Map<Integer, Result>> cache;
+	private long missCount = 0;
 	
-	public Result get(Patient patient, LogicCriteria criteria, Map<String, Object> parameters) {
-		LogicCacheEntryKey key = new LogicCacheEntryKey(criteria, parameters, 0);
-		return get(key, patient.getPatientId());
+	private long evictionCount = 0;
+	
+	public LogicCache() {
+		this(DEFAULT_MAX_ENTRIES);
 	}
 	
-	public Result get(Patient patient, LogicDataSource dataSource, LogicCriteria criteria) {
-		LogicCacheEntryKey key = new LogicCacheEntryKey(dataSource, criteria);
-		Result r = get(key, patient.getPatientId());
-		log.debug("Searching cache for " + key.toString() + " - " + (r == null ? "NOT" : "") + " found");
-		logCacheContents();
-		return r;
+	/**
+	 * @param maxEntries the number of entries to keep before evicting the least recently used
+	 */
+	public LogicCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.cache = new LinkedHashMap<LogicCacheEntryKey, LogicCacheEntry>(16, 0.75f, true);
 	}
 	
-	public void put(LogicDataSource dataSource, LogicCriteria criteria, Map<Integer, Result> resultMap) {
-		LogicCacheEntryKey key = new LogicCacheEntryKey(dataSource, criteria);
-		put(key, resultMap);
+	/**
+	 * Looks up the result of a rule evaluation
+	 * 
+	 * @param patient the patient to get the result for
+	 * @param criteria the criteria the rule was evaluated with
+	 * @param parameters the parameters the rule was evaluated with
+	 * @param indexDate the index date of the evaluating context
+	 * @return the cached result, or null if the rule has not been evaluated for this patient (or the
+	 *         result has expired)
+	 */
+	public Result get(Patient patient, LogicCriteria criteria, Map<String, Object> parameters, Date indexDate) {
+		return copyForSession(get(new LogicCacheEntryKey(criteria, parameters, indexDate), patient.getPatientId()));
 	}
 	
-	public void put(LogicCriteria criteria, Map<String, Object> parameters, int ttl, Map<Integer, Result> resultMap) {
-		LogicCacheEntryKey key = new LogicCacheEntryKey(criteria, parameters, ttl);
-		put(key, resultMap);
+	/**
+	 * Looks up the result of a data source read
+	 * 
+	 * @param patient the patient to get the result for
+	 * @param dataSource the data source that was read
+	 * @param criteria the criteria it was read with
+	 * @param indexDate the index date of the evaluating context
+	 * @return the cached result, or null if the data source has not been read for this patient (or
+	 *         the result has expired)
+	 */
+	public Result get(Patient patient, LogicDataSource dataSource, LogicCriteria criteria, Date indexDate) {
+		return copyForSession(get(new LogicCacheEntryKey(dataSource, criteria, indexDate), patient.getPatientId()));
 	}
 	
-	private Result get(LogicCacheEntryKey key, Integer patientId) {
-		Map<Integer, Result> entry = getCache().get(key);
-		log.debug("Logic cache: " + (entry == null ? "NOT FOUND" : "FOUND"));
-		if (entry == null)
+	/**
+	 * Caches the results of a data source read. The results are kept for the data source's
+	 * {@link LogicDataSource#getDefaultTTL()}
+	 * 
+	 * @param dataSource the data source that was read
+	 * @param criteria the criteria it was read with
+	 * @param indexDate the index date of the evaluating context
+	 * @param patients the patients the data source was read for
+	 * @param resultMap the results, by patient id
+	 */
+	public void put(LogicDataSource dataSource, LogicCriteria criteria, Date indexDate, Cohort patients,
+	                Map<Integer, Result> resultMap) {
+		put(new LogicCacheEntryKey(dataSource, criteria, indexDate), dataSource.getDefaultTTL(), patients, resultMap);
+	}
+	
+	/**
+	 * Caches the results of a rule evaluation
+	 * 
+	 * @param criteria the criteria the rule was evaluated with
+	 * @param parameters the parameters the rule was evaluated with
+	 * @param indexDate the index date of the evaluating context
+	 * @param ttl the rule's time to live, in seconds
+	 * @param patients the patients the rule was evaluated for
+	 * @param resultMap the results, by patient id
+	 */
+	public void put(LogicCriteria criteria, Map<String, Object> parameters, Date indexDate, int ttl, Cohort patients,
+	                Map<Integer, Result> resultMap) {
+		put(new LogicCacheEntryKey(criteria, parameters, indexDate), ttl, patients, resultMap);
+	}
+	
+	private synchronized Result get(LogicCacheEntryKey key, Integer patientId) {
+		LogicCacheEntry entry = cache.get(key);
+		if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+			cache.remove(key);
+			entry = null;
+		}
+		
+		if (entry == null || !entry.patientIds.contains(patientId)) {
+			missCount++;
+			if (log.isDebugEnabled())
+				log.debug("Logic cache miss: " + key);
 			return null;
-		Result r = entry.get(patientId);
+		}
+		
+		hitCount++;
+		Result r = entry.results.get(patientId);
 		if (r == null)
 			r = Result.emptyResult();
 		return r;
 	}
 	
-	private void put(LogicCacheEntryKey key, Map<Integer, Result> value) {
-		log.debug("Adding to logic cache: " + key.toString());
-		getCache().put(key, value);
+	private synchronized void put(LogicCacheEntryKey key, int ttl, Cohort patients, Map<Integer, Result> resultMap) {
+		// a ttl of zero means the results are never valid for reuse
+		if (ttl <= 0 || maxEntries <= 0)
+			return;
+		
+		if (log.isDebugEnabled())
+			log.debug("Adding to logic cache: " + key);
+		
+		long expires = System.currentTimeMillis() + ttl * 1000L;
+		// value-only copies, so no session's objects are handed to another
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		for (Map.Entry<Integer, Result> e : resultMap.entrySet())
+			results.put(e.getKey(), e.getValue() == null ? null : e.getValue().copyValues());
+		cache.put(key, new LogicCacheEntry(results, IntegerBitmapSet.valueOf(patients.getMemberIds()), expires));
+		evictToSize();
+	}
+	
+	/**
+	 * Drops all cached results for the given patient. This is called when a patient's observations
+	 * or encounters are saved, voided or purged.
+	 * 
+	 * @param patientId the patient whose data changed
+	 */
+	public synchronized void invalidatePatient(Integer patientId) {
+		for (Iterator<LogicCacheEntry> i = cache.values().iterator(); i.hasNext();) {
+			LogicCacheEntry entry = i.next();
+			if (entry.patientIds.remove(patientId)) {
+				entry.results.remove(patientId);
+				if (entry.patientIds.isEmpty())
+					i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Copies a cached result for the caller, so the cached one is never modified, and loads its
+	 * coded values in the caller's session
+	 * 
+	 * @param cached the cached result (may be null)
+	 * @return the copy, or null if cached is null
+	 */
+	private static Result copyForSession(Result cached) {
+		if (cached == null)
+			return null;
+		Result copy = cached.copyValues();
+		loadConcepts(copy);
+		return copy;
+	}
+	
+	/**
+	 * Replaces the id-only concepts in a copied result with concepts loaded in the current session
+	 */
+	private static void loadConcepts(Result result) {
+		if (!result.isEmpty()) {
+			for (Result member : result)
+				loadConcepts(member);
+			return;
+		}
+		
+		Concept concept = result.toConcept();
+		if (concept != null)
+			result.setValueCoded(Context.getConceptService().getConcept(concept.getConceptId()));
 	}
 	
-	private Map<LogicCacheEntryKey, Map<Integer, Result>> getCache() {
-		if (cache == null)
-			cache = new Hashtable<LogicCacheEntryKey, Map<Integer, Result>>();
-		return cache;
+	/**
+	 * Removes every entry from the cache
+	 */
+	public synchronized void clear() {
+		cache.clear();
 	}
 	
 	/**
 	 * Clean out expired values from the cache
 	 */
-	public void clean() {
-		long now = new Date().getTime();
-		for (LogicCacheEntryKey key : getCache().keySet())
-			if (key.getExpires() < now)
-				getCache().remove(key);
+	public synchronized void clean() {
+		long now = System.currentTimeMillis();
+		for (Iterator<LogicCacheEntry> i = cache.values().iterator(); i.hasNext();) {
+			if (i.next().isExpired(now))
+				i.remove();
+		}
+	}
+	
+	/**
+	 * @return the number of entries currently in the cache
+	 */
+	public synchronized int getSize() {
+		return cache.size();
+	}
+	
+	/**
+	 * @return the number of entries kept before the least recently used are evicted
+	 */
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+	
+	/**
+	 * Changes the size of the cache, evicting the least recently used entries if it is shrunk
+	 * 
+	 * @param maxEntries the number of entries to keep (zero or less turns caching off)
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		evictToSize();
+	}
+	
+	/**
+	 * @return the number of lookups that found a result
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+	
+	/**
+	 * @return the number of lookups that had to evaluate the rule or read the data source
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
 	}
 	
-	private void logCacheContents() {
-		log.debug("Logic Cache - " + getCache().size() + " entries");
-		for (LogicCacheEntryKey key : getCache().keySet())
-			log.debug("  " + key.toString() + " - " + getCache().get(key));
+	/**
+	 * @return the number of entries evicted because the cache was full
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+	
+	/**
+	 * Resets the hit, miss, and eviction counts to zero
+	 */
+	public synchronized void resetStatistics() {
+		hitCount = 0;
+		missCount = 0;
+		evictionCount = 0;
+	}
+	
+	/**
+	 * Removes the least recently used entries until the cache is within its maximum size. Expired
+	 * entries are cleaned out first so they don't push out live ones.
+	 */
+	private void evictToSize() {
+		if (cache.size() <= maxEntries)
+			return;
+		
+		clean();
+		for (Iterator<LogicCacheEntry> i = cache.values().iterator(); i.hasNext() && cache.size() > maxEntries;) {
+			i.next();
+			i.remove();
+			evictionCount++;
+		}
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	public synchronized String toString() {
+		return "LogicCache[size=" + cache.size() + ", maxEntries=" + maxEntries + ", hits=" + hitCount + ", misses="
+		        + missCount + ", evictions=" + evictionCount + "]";
+	}
+	
+	/**
+	 * The results of one evaluation, for the patients it was evaluated on
+	 */
+	private static class LogicCacheEntry {
+		
+		private Map<Integer, Result> results;
+		
+		private IntegerBitmapSet patientIds;
+		
+		private long expires;
+		
+		public LogicCacheEntry(Map<Integer, Result> results, IntegerBitmapSet patientIds, long expires) {
+			this.results = results;
+			this.patientIds = patientIds;
+			this.expires = expires;
+		}
+		
+		public boolean isExpired(long now) {
+			return expires < now;
+		}
 	}
 }
@@ -13,10 +13,12 @@
  */
 package org.openmrs.logic;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -41,6 +43,11 @@ public class LogicContext {
 	
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * Number of patients loaded at a time when a rule is evaluated for the whole cohort
+	 */
+	private static final int DEFAULT_PATIENT_PAGE_SIZE = 1000;
+	
 	/**
 	 * Hold the index date for this context, representing the value for "today" and thereby allowing
 	 * the same rules to be run today as well as retrospectively
@@ -65,11 +72,9 @@ public class LogicContext {
 	private Cohort patients;
 	
 	/**
-	 * Cache used by this log context
-	 * 
-	 * @see org.openmrs.logic.LogicCache
+	 * Number of patients loaded at a time when a rule is evaluated for the whole cohort
 	 */
-	private LogicCache cache;
+	private int patientPageSize = DEFAULT_PATIENT_PAGE_SIZE;
 	
 	/**
 	 * Constructs a logic context applied to a single patient
@@ -130,36 +135,63 @@ public class LogicContext {
 	 * @return
 	 * @throws LogicException
 	 * @see {@link org.openmrs.logic.LogicService#eval(Patient, LogicCriteria, Map)}
+	 * @should give every patient the same result when the cohort is loaded in several pages
 	 */
 	public Result eval(Patient patient, LogicCriteria criteria, Map<String, Object> parameters) throws LogicException {
-		Result result = getCache().get(patient, criteria, parameters);
-		PatientService patientService = Context.getPatientService();
+		Result result = getCache().get(patient, criteria, parameters, getIndexDate());
 		
 		if (result == null) {
 			Integer targetPatientId = patient.getPatientId();
 			log.debug("Context database read (pid = " + targetPatientId + ")");
 			Rule rule = Context.getLogicService().getRule(criteria.getRootToken());
 			Map<Integer, Result> resultMap = new Hashtable<Integer, Result>();
-			for (Integer pid : patients.getMemberIds()) {
-				Patient currPatient = patientService.getPatient(pid);
-				Result r = Result.emptyResult();
-				if (rule instanceof ReferenceRule) {
-					r = ((ReferenceRule) rule).eval(this, currPatient, criteria);
-				} else {
-					r = rule.eval(this, currPatient, parameters);
-					r = applyCriteria(r, criteria);
+			List<Integer> memberIds = new ArrayList<Integer>(patients.getMemberIds());
+			for (int start = 0; start < memberIds.size(); start += patientPageSize) {
+				List<Integer> page = memberIds.subList(start, Math.min(start + patientPageSize, memberIds.size()));
+				Map<Integer, Patient> pagePatients = getPatients(page, patient);
+				for (Integer pid : page) {
+					Patient currPatient = pagePatients.get(pid);
+					Result r = Result.emptyResult();
+					if (rule instanceof ReferenceRule) {
+						r = ((ReferenceRule) rule).eval(this, currPatient, criteria);
+					} else {
+						r = rule.eval(this, currPatient, parameters);
+						r = applyCriteria(r, criteria);
+					}
+					
+					resultMap.put(pid, r);
+					if (pid.equals(targetPatientId))
+						result = resultMap.get(pid);
 				}
-				
-				resultMap.put(pid, r);
-				if (pid.equals(targetPatientId))
-					result = resultMap.get(pid);
 			}
-			getCache().put(criteria, parameters, rule.getTTL(), resultMap);
+			getCache().put(criteria, parameters, getIndexDate(), rule.getTTL(), patients, resultMap);
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Loads a page of the cohort's patients with one query, rather than one query per patient
+	 * 
+	 * @param patientIds the ids to load
+	 * @param known a patient that has already been loaded (may be in the page)
+	 * @return the patients, by patient id
+	 */
+	private Map<Integer, Patient> getPatients(List<Integer> patientIds, Patient known) {
+		Map<Integer, Patient> ret = new HashMap<Integer, Patient>();
+		ret.put(known.getPatientId(), known);
+		for (Patient p : Context.getPatientSetService().getPatients(patientIds))
+			ret.put(p.getPatientId(), p);
+		
+		// the bulk load skips voided patients, so fetch any of those the old way
+		PatientService patientService = Context.getPatientService();
+		for (Integer pid : patientIds) {
+			if (!ret.containsKey(pid))
+				ret.put(pid, patientService.getPatient(pid));
+		}
+		return ret;
+	}
+	
 	/**
 	 * Criteria are applied to results of rules <em>after</em> the rule has been evaluated, since
 	 * rules are not expected to interpret all possible criteria
@@ -235,13 +267,13 @@ public class LogicContext {
 	 * @throws LogicException
 	 */
 	public Result read(Patient patient, LogicDataSource dataSource, LogicCriteria criteria) throws LogicException {
-		Result result = getCache().get(patient, dataSource, criteria);
+		Result result = getCache().get(patient, dataSource, criteria, getIndexDate());
 		log
 		        .debug("Reading from data source: " + criteria.getRootToken() + " (" + (result == null ? "NOT" : "")
 		                + " cached)");
 		if (result == null) {
 			Map<Integer, Result> resultMap = dataSource.read(this, patients, criteria);
-			getCache().put(dataSource, criteria, resultMap);
+			getCache().put(dataSource, criteria, getIndexDate(), patients, resultMap);
 			result = resultMap.get(patient.getPatientId());
 		}
 		if (result == null)
@@ -249,6 +281,15 @@ public class LogicContext {
 		return result;
 	}
 	
+	/**
+	 * Changes the number of patients loaded at a time when a rule is evaluated for the whole cohort
+	 * 
+	 * @param patientPageSize the number of patients per page
+	 */
+	void setPatientPageSize(int patientPageSize) {
+		this.patientPageSize = patientPageSize;
+	}
+	
 	/**
 	 * Changes the index date for this logic context
 	 * 
@@ -302,12 +343,24 @@ public class LogicContext {
 	}
 	
 	/**
-	 * @return the cache for this logic context
+	 * Caches the results of a data source read that was done for this context's patients outside
+	 * of {@link #read(Patient, LogicDataSource, LogicCriteria)}, so reading the criteria in this
+	 * (or any other) context finds them
+	 * 
+	 * @param dataSource the data source that was read
+	 * @param criteria the criteria it was read with
+	 * @param resultMap the results, by patient id
+	 */
+	public void cacheResults(LogicDataSource dataSource, LogicCriteria criteria, Map<Integer, Result> resultMap) {
+		getCache().put(dataSource, criteria, getIndexDate(), patients, resultMap);
+	}
+	
+	/**
+	 * @return the cache shared by all logic contexts
+	 * @see LogicService#getLogicCache()
 	 */
 	private LogicCache getCache() {
-		if (cache == null)
-			cache = new LogicCache();
-		return cache;
+		return Context.getLogicService().getLogicCache();
 	}
 	
 }
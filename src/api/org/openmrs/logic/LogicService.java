@@ -24,6 +24,7 @@ import org.openmrs.logic.datasource.LogicDataSource;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.result.Result.Datatype;
 import org.openmrs.logic.rule.RuleParameterInfo;
+import org.openmrs.util.OpenmrsConstants;
 
 /**
  * The Logic Service provides a mechanism for both registering and consuming business logic in the
@@ -323,6 +324,15 @@ public interface LogicService {
 	 */
 	public void removeLogicDataSource(String name);
 	
+	/**
+	 * Gets the cache of rule and data source results shared by all logic evaluations. The size of
+	 * the cache is set by the {@link OpenmrsConstants#GLOBAL_PROPERTY_LOGIC_CACHE_MAX_ENTRIES}
+	 * global property.
+	 * 
+	 * @return the logic cache
+	 */
+	public LogicCache getLogicCache();
+	
 	public void loadRule(String tokenName, String ruleClassName) throws Exception;
 	
 	public LogicCriteria parseString(String inStr);
@@ -15,16 +15,23 @@ package org.openmrs.logic.datasource;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
+import org.openmrs.logic.LogicExpression;
+import org.openmrs.logic.LogicExpressionUnary;
+import org.openmrs.logic.LogicTransform;
 import org.openmrs.logic.db.LogicObsDAO;
+import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.util.Util;
 
@@ -55,6 +62,31 @@ public class ObsDataSource implements LogicDataSource {
 	public Map<Integer, Result> read(LogicContext context, Cohort patients, LogicCriteria criteria) throws LogicException {
 		
 		Map<Integer, Result> finalResult = new HashMap<Integer, Result>();
+		
+		// these transforms are computed by the database so only one value per patient is read. As
+		// with Util.applyAggregators, patients without obs get a count of 0 but no average
+		LogicTransform transform = criteria.getExpression().getTransform();
+		Operator transformOperator = (transform == null ? null : transform.getTransformOperator());
+		if (transformOperator == Operator.COUNT || transformOperator == Operator.AVERAGE) {
+			Map<Integer, Number> values = getLogicObsDAO().getAggregateValues(patients, criteria);
+			for (Integer personId : patients.getMemberIds()) {
+				Number value = values.get(personId);
+				if (value == null && transformOperator == Operator.AVERAGE)
+					continue;
+				Result result = new Result();
+				result.setValueNumeric(value == null ? 0 : value.doubleValue());
+				finalResult.put(personId, result);
+			}
+			return finalResult;
+		} else if (transformOperator == Operator.EXISTS || transformOperator == Operator.NOT_EXISTS) {
+			Cohort withObs = getLogicObsDAO().getPatientsWithObservations(patients, criteria);
+			for (Integer personId : patients.getMemberIds()) {
+				boolean exists = withObs.contains(personId);
+				finalResult.put(personId, new Result(transformOperator == Operator.EXISTS ? exists : !exists));
+			}
+			return finalResult;
+		}
+		
 		// TODO: make the obs service method more efficient (so we don't have to re-organize
 		// into groupings by patient...or it can be done most expeditiously
 		List<Obs> obs = getLogicObsDAO().getObservations(patients, criteria);
@@ -77,6 +109,89 @@ public class ObsDataSource implements LogicDataSource {
 		return finalResult;
 	}
 	
+	/**
+	 * Reads several criteria with a single query on the obs table, rather than one query per
+	 * criteria. Only criteria that are just a concept name can be read this way (see
+	 * {@link #canReadTogether(LogicCriteria)}); any others are left out of the returned map and
+	 * should be read one at a time.
+	 * 
+	 * @param context the context the criteria are being read in
+	 * @param patients the patients to read the criteria for
+	 * @param criterias the criteria to read
+	 * @return for each criteria that was read, the same map {@link #read(LogicContext, Cohort,
+	 *         LogicCriteria)} would have returned for it
+	 */
+	public Map<LogicCriteria, Map<Integer, Result>> read(LogicContext context, Cohort patients,
+	                                                     List<LogicCriteria> criterias) {
+		Map<Concept, List<LogicCriteria>> criteriasByConcept = new HashMap<Concept, List<LogicCriteria>>();
+		for (LogicCriteria criteria : criterias) {
+			if (!canReadTogether(criteria))
+				continue;
+			Concept concept = Context.getConceptService().getConcept(criteria.getRootToken());
+			if (concept == null)
+				continue;
+			List<LogicCriteria> conceptCriterias = criteriasByConcept.get(concept);
+			if (conceptCriterias == null) {
+				conceptCriterias = new ArrayList<LogicCriteria>();
+				criteriasByConcept.put(concept, conceptCriterias);
+			}
+			conceptCriterias.add(criteria);
+		}
+		
+		Map<LogicCriteria, Map<Integer, List<Obs>>> obsByCriteria = new HashMap<LogicCriteria, Map<Integer, List<Obs>>>();
+		for (List<LogicCriteria> conceptCriterias : criteriasByConcept.values())
+			for (LogicCriteria criteria : conceptCriterias)
+				obsByCriteria.put(criteria, new HashMap<Integer, List<Obs>>());
+		
+		if (criteriasByConcept.isEmpty())
+			return new HashMap<LogicCriteria, Map<Integer, Result>>();
+		
+		// split the observations (which are latest first) by criteria and patient
+		for (Obs ob : getLogicObsDAO().getObservations(patients, criteriasByConcept.keySet())) {
+			Integer personId = ob.getPerson().getPersonId();
+			for (LogicCriteria criteria : criteriasByConcept.get(ob.getConcept())) {
+				Map<Integer, List<Obs>> obsByPatient = obsByCriteria.get(criteria);
+				List<Obs> patientObs = obsByPatient.get(personId);
+				if (patientObs == null) {
+					patientObs = new ArrayList<Obs>();
+					obsByPatient.put(personId, patientObs);
+				}
+				patientObs.add(ob);
+			}
+		}
+		
+		Map<LogicCriteria, Map<Integer, Result>> ret = new HashMap<LogicCriteria, Map<Integer, Result>>();
+		for (Map.Entry<LogicCriteria, Map<Integer, List<Obs>>> e : obsByCriteria.entrySet()) {
+			Map<Integer, Result> finalResult = new HashMap<Integer, Result>();
+			for (Map.Entry<Integer, List<Obs>> patientObs : e.getValue().entrySet()) {
+				List<Obs> obs = patientObs.getValue();
+				Collections.reverse(obs);
+				
+				Result result = new Result();
+				for (Obs ob : obs)
+					result.add(new Result(ob));
+				finalResult.put(patientObs.getKey(), result);
+			}
+			ret.put(e.getKey(), finalResult);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Criteria with a transform are not read together: first and last are computed per concept in
+	 * the database by {@link #read(LogicContext, Cohort, LogicCriteria)}, which the shared query
+	 * over every observation of several concepts can't do.
+	 * 
+	 * @param criteria
+	 * @return true if the criteria can be read with others by
+	 *         {@link #read(LogicContext, Cohort, List)}
+	 */
+	public boolean canReadTogether(LogicCriteria criteria) {
+		LogicExpression expression = criteria.getExpression();
+		return expression instanceof LogicExpressionUnary && expression.getOperator() == null
+		        && expression.getRootToken() != null && expression.getTransform() == null;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.datasource.LogicDataSource#getDefaultTTL()
 	 */
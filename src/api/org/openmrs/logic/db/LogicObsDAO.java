@@ -13,9 +13,12 @@
  */
 package org.openmrs.logic.db;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Obs;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
@@ -31,4 +34,36 @@ public interface LogicObsDAO {
 	 */
 	public List<Obs> getObservations(Cohort who, LogicCriteria logicCriteria) throws LogicException;
 	
+	/**
+	 * Fetches the observations of several concepts with one query
+	 * 
+	 * @param who the patients to get the observations of
+	 * @param concepts the questions to get the observations of
+	 * @return the non-voided observations, latest first (by obsDatetime, then dateCreated, then
+	 *         obsId)
+	 */
+	public List<Obs> getObservations(Cohort who, Collection<Concept> concepts);
+	
+	/**
+	 * Computes a COUNT or AVERAGE transform in the database, with one row per patient, rather than
+	 * by loading every matching observation
+	 * 
+	 * @param who the patients to aggregate the observations of
+	 * @param logicCriteria criteria with a COUNT or AVERAGE transform
+	 * @return the number of matching observations (or the average of their numeric values) by
+	 *         patient id. Patients without matching observations are not in the map
+	 * @throws LogicException if the criteria has any other transform
+	 */
+	public Map<Integer, Number> getAggregateValues(Cohort who, LogicCriteria logicCriteria) throws LogicException;
+	
+	/**
+	 * Finds the patients that have at least one observation matching the criteria (used for the
+	 * EXISTS and NOT_EXISTS transforms)
+	 * 
+	 * @param who the patients to check
+	 * @param logicCriteria the criteria the observations must match (its transform is ignored)
+	 * @return the patients in <code>who</code> with a matching observation
+	 */
+	public Cohort getPatientsWithObservations(Cohort who, LogicCriteria logicCriteria) throws LogicException;
+	
 }
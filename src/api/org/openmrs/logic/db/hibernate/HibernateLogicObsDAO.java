@@ -15,17 +15,23 @@ package org.openmrs.logic.db.hibernate;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Criteria;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.criterion.Subqueries;
 import org.openmrs.Cohort;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
@@ -271,12 +277,51 @@ public class HibernateLogicObsDAO implements LogicObsDAO {
 		return c;
 	}
 	
+	/**
+	 * Creates a criteria on the non-voided observations of the given patients that match the given
+	 * expression. The root entity is aliased as "obs".
+	 */
+	private Criteria createCriteria(LogicExpression expression, Cohort who, Date indexDate) throws LogicException {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class, "obs");
+		
+		Criterion c = this.getCriterion(expression, indexDate);
+		if (c != null) {
+			criteria.add(c);
+		}
+		
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.add(Restrictions.in("person.personId", who.getMemberIds()));
+		return criteria;
+	}
+	
+	/**
+	 * Creates a subquery selecting the latest (or earliest) obsDatetime of the outer query's person
+	 * among the observations matching the given expression. Restricting the outer "obs" criteria
+	 * to this datetime returns only each patient's last (or first) observations, instead of every
+	 * observation the patient has.
+	 */
+	private DetachedCriteria createObsDatetimeSubquery(LogicExpression expression, Date indexDate, boolean latest)
+	                                                                                                          throws LogicException {
+		DetachedCriteria subquery = DetachedCriteria.forClass(Obs.class, "extreme");
+		subquery.setProjection(latest ? Projections.max("obsDatetime") : Projections.min("obsDatetime"));
+		
+		Criterion c = this.getCriterion(expression, indexDate);
+		if (c != null) {
+			subquery.add(c);
+		}
+		
+		subquery.add(Restrictions.eq("voided", false));
+		subquery.add(Restrictions.eqProperty("extreme.person", "obs.person"));
+		return subquery;
+	}
+	
 	// Helper function, converts logic service's criteria into Hibernate's
 	// criteria
+	@SuppressWarnings("unchecked")
 	private List<Obs> logicToHibernate(LogicExpression expression, Cohort who) throws LogicException {
-		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
-		
 		Date indexDate = Calendar.getInstance().getTime();
+		Criteria criteria = createCriteria(expression, who, indexDate);
+		
 		Operator transformOperator = null;
 		LogicTransform transform = expression.getTransform();
 		Integer numResults = null;
@@ -300,20 +345,19 @@ public class HibernateLogicObsDAO implements LogicObsDAO {
 			criteria.setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY);
 		}
 		
-		Criterion c = this.getCriterion(expression, indexDate);
-		if (c != null) {
-			criteria.add(c);
+		// for a single last/first result only fetch the observations at each patient's
+		// latest/earliest datetime rather than the patient's whole history
+		if ((transformOperator == Operator.FIRST || transformOperator == Operator.LAST) && numResults == 1) {
+			criteria.add(Subqueries.propertyEq("obsDatetime", createObsDatetimeSubquery(expression, indexDate,
+			    transformOperator == Operator.LAST)));
 		}
 		
 		List<Obs> results = new ArrayList<Obs>();
-		
-		criteria.add(Restrictions.eq("voided", false));
-		criteria.add(Restrictions.in("person.personId", who.getMemberIds()));
 		results.addAll(criteria.list());
 		
-		//return a single result per patient for these operators
-		//I don't see an easy way to do this in hibernate so I am
-		//doing some postprocessing
+		//return numResults per patient for these operators (this also breaks
+		//ties between observations with the same obsDatetime). I don't see
+		//an easy way to do this in hibernate so I am doing some postprocessing
 		if (transformOperator == Operator.FIRST || transformOperator == Operator.LAST) {
 			HashMap<Integer, ArrayList<Obs>> nResultMap = new HashMap<Integer, ArrayList<Obs>>();
 			
@@ -352,4 +396,58 @@ public class HibernateLogicObsDAO implements LogicObsDAO {
 		return logicToHibernate(logicCriteria.getExpression(), who);
 	}
 	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getObservations(org.openmrs.Cohort,
+	 *      java.util.Collection)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Obs> getObservations(Cohort who, Collection<Concept> concepts) {
+		Criteria criteria = sessionFactory.getCurrentSession().createCriteria(Obs.class);
+		criteria.add(Restrictions.in("concept", concepts));
+		criteria.add(Restrictions.eq("voided", false));
+		criteria.add(Restrictions.in("person.personId", who.getMemberIds()));
+		criteria.addOrder(Order.desc("obsDatetime")).addOrder(Order.desc("dateCreated")).addOrder(Order.desc("obsId"));
+		return criteria.list();
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getAggregateValues(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria)
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, Number> getAggregateValues(Cohort who, LogicCriteria logicCriteria) throws LogicException {
+		LogicExpression expression = logicCriteria.getExpression();
+		LogicTransform transform = expression.getTransform();
+		Operator transformOperator = (transform == null ? null : transform.getTransformOperator());
+		
+		ProjectionList projections = Projections.projectionList();
+		projections.add(Projections.groupProperty("person.personId"));
+		if (transformOperator == Operator.COUNT)
+			projections.add(Projections.rowCount());
+		else if (transformOperator == Operator.AVERAGE)
+			projections.add(Projections.avg("valueNumeric"));
+		else
+			throw new LogicException("Only the COUNT and AVERAGE transforms can be aggregated, not " + transformOperator);
+		
+		Criteria criteria = createCriteria(expression, who, Calendar.getInstance().getTime());
+		criteria.setProjection(projections);
+		
+		Map<Integer, Number> ret = new HashMap<Integer, Number>();
+		for (Object[] row : (List<Object[]>) criteria.list()) {
+			ret.put((Integer) row[0], (Number) row[1]);
+		}
+		return ret;
+	}
+	
+	/**
+	 * @see org.openmrs.logic.db.LogicObsDAO#getPatientsWithObservations(org.openmrs.Cohort,
+	 *      org.openmrs.logic.LogicCriteria)
+	 */
+	@SuppressWarnings("unchecked")
+	public Cohort getPatientsWithObservations(Cohort who, LogicCriteria logicCriteria) throws LogicException {
+		Criteria criteria = createCriteria(logicCriteria.getExpression(), who, Calendar.getInstance().getTime());
+		criteria.setProjection(Projections.distinct(Projections.property("person.personId")));
+		return new Cohort((List<Integer>) criteria.list());
+	}
+	
 }
@@ -14,17 +14,32 @@
 package org.openmrs.logic.impl;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.logic.LogicCache;
 import org.openmrs.logic.LogicContext;
 import org.openmrs.logic.LogicCriteria;
 import org.openmrs.logic.LogicException;
@@ -33,12 +48,15 @@ import org.openmrs.logic.Rule;
 import org.openmrs.logic.RuleClassLoader;
 import org.openmrs.logic.RuleFactory;
 import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.datasource.ObsDataSource;
 import org.openmrs.logic.queryparser.LogicQueryBaseParser;
 import org.openmrs.logic.queryparser.LogicQueryLexer;
 import org.openmrs.logic.queryparser.LogicQueryTreeParser;
 import org.openmrs.logic.result.Result;
 import org.openmrs.logic.result.Result.Datatype;
+import org.openmrs.logic.rule.ReferenceRule;
 import org.openmrs.logic.rule.RuleParameterInfo;
+import org.openmrs.util.OpenmrsConstants;
 
 import antlr.BaseAST;
 
@@ -59,6 +77,20 @@ public class LogicServiceImpl implements LogicService {
 	
 	private static Map<String, LogicDataSource> dataSources;
 	
+	private LogicCache logicCache;
+	
+	/**
+	 * Cohorts smaller than this are always evaluated on the calling thread
+	 */
+	private static final int MIN_PARALLEL_COHORT_SIZE = 1000;
+	
+	/**
+	 * The threads that large cohorts are evaluated on, shared by all evaluations
+	 * 
+	 * @see #getEvaluationExecutor(int)
+	 */
+	private static ThreadPoolExecutor evaluationExecutor;
+	
 	/**
 	 * Default constructor. Creates a new RuleFactory (and populates it)
 	 */
@@ -169,14 +201,212 @@ public class LogicServiceImpl implements LogicService {
 	 */
 	public Map<Integer, Result> eval(Cohort who, LogicCriteria criteria, Map<String, Object> parameters)
 	                                                                                                    throws LogicException {
-		LogicContext context = new LogicContext(who);
+		int threads = getEvaluationThreads();
+		if (isParallel(who, threads))
+			return evalInParallel(who, criteria, parameters, threads);
+		
+		return eval(new LogicContext(who), who, criteria, parameters);
+	}
+	
+	/**
+	 * Evaluates the criteria for each patient in the cohort within the given context, so any
+	 * results already cached in that context are reused
+	 * 
+	 * @param context the context to evaluate in
+	 * @param who the cohort to evaluate
+	 * @param criteria
+	 * @param parameters
+	 * @return the results, by patient id
+	 * @throws LogicException
+	 */
+	private Map<Integer, Result> eval(LogicContext context, Cohort who, LogicCriteria criteria,
+	                                  Map<String, Object> parameters) throws LogicException {
 		Map<Integer, Result> resultMap = new Hashtable<Integer, Result>();
 		for (Integer pid : who.getMemberIds())
 			resultMap.put(pid, context.eval(new Patient(pid), criteria, parameters));
-		context = null;
 		return resultMap;
 	}
 	
+	/**
+	 * Splits the cohort into one partition per thread and evaluates each partition on the shared
+	 * evaluation threads, in its own LogicContext and hibernate session. Each worker runs as the
+	 * calling user with its own copy of the caller's user context. The partitions are contiguous
+	 * ranges of ascending patient ids, so the results do not depend on thread timing. <br/>
+	 * <br/>
+	 * A worker's session is closed once its partition is done, so the workers return copies of
+	 * their results that hold only values (see {@link Result#copyValues()}). Coded values are then
+	 * loaded again in the calling thread's session. The results do not carry the objects they were
+	 * read from ({@link Result#getResultObject()} is null).
+	 * 
+	 * @param who the cohort to evaluate
+	 * @param criteria
+	 * @param parameters
+	 * @param threads the number of partitions
+	 * @return the merged results, by patient id
+	 * @throws LogicException if any partition fails
+	 * @should return the same results as evaluating on the calling thread
+	 */
+	Map<Integer, Result> evalInParallel(Cohort who, final LogicCriteria criteria, final Map<String, Object> parameters,
+	                                    int threads) throws LogicException {
+		List<Integer> memberIds = new ArrayList<Integer>(who.getMemberIds());
+		Collections.sort(memberIds);
+		int partitionSize = (memberIds.size() + threads - 1) / threads;
+		
+		ExecutorService executor = getEvaluationExecutor(threads);
+		List<Future<Map<Integer, Result>>> futures = new ArrayList<Future<Map<Integer, Result>>>();
+		try {
+			for (int start = 0; start < memberIds.size(); start += partitionSize) {
+				final Cohort partition = new Cohort(memberIds.subList(start, Math.min(start + partitionSize, memberIds
+				        .size())));
+				final UserContext userContext = Context.getUserContext().copy();
+				futures.add(executor.submit(new Callable<Map<Integer, Result>>() {
+					
+					public Map<Integer, Result> call() throws Exception {
+						Context.setUserContext(userContext);
+						Context.openSession();
+						try {
+							LogicContext context = new LogicContext(partition);
+							Map<Integer, Result> partitionResults = new HashMap<Integer, Result>();
+							for (Integer pid : partition.getMemberIds())
+								partitionResults.put(pid, context.eval(new Patient(pid), criteria, parameters)
+								        .copyValues());
+							return partitionResults;
+						}
+						finally {
+							Context.closeSession();
+							Context.clearUserContext();
+						}
+					}
+				}));
+			}
+			
+			Map<Integer, Result> resultMap = new Hashtable<Integer, Result>();
+			for (Future<Map<Integer, Result>> future : futures)
+				resultMap.putAll(future.get());
+			
+			// each worker cached only its own partition, so cache the whole cohort's results
+			Rule rule = getRule(criteria.getRootToken());
+			getLogicCache().put(criteria, parameters, new Date(), rule.getTTL(), who, resultMap);
+			
+			Map<Integer, Concept> concepts = new HashMap<Integer, Concept>();
+			for (Result result : resultMap.values())
+				loadConcepts(result, concepts);
+			return resultMap;
+		}
+		catch (InterruptedException e) {
+			throw new LogicException("Interrupted while evaluating " + criteria.getRootToken(), e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof LogicException)
+				throw (LogicException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new LogicException("Unable to evaluate " + criteria.getRootToken(), e.getCause());
+		}
+		finally {
+			// stop the partitions that haven't finished if one of them failed
+			for (Future<Map<Integer, Result>> future : futures)
+				future.cancel(true);
+		}
+	}
+	
+	/**
+	 * Replaces the id-only concepts in a copied result with concepts loaded in the current session
+	 * 
+	 * @param result the result to load the coded values of
+	 * @param concepts the concepts loaded so far, by id
+	 */
+	private void loadConcepts(Result result, Map<Integer, Concept> concepts) {
+		if (!result.isEmpty()) {
+			for (Result member : result)
+				loadConcepts(member, concepts);
+			return;
+		}
+		
+		Concept concept = result.toConcept();
+		if (concept == null)
+			return;
+		Concept loaded = concepts.get(concept.getConceptId());
+		if (loaded == null) {
+			loaded = Context.getConceptService().getConcept(concept.getConceptId());
+			concepts.put(concept.getConceptId(), loaded);
+		}
+		result.setValueCoded(loaded);
+	}
+	
+	/**
+	 * Gets the pool that cohorts are evaluated on in parallel. The pool is shared by every
+	 * evaluation, and is resized when the number of threads is changed.
+	 * 
+	 * @param threads the number of evaluation threads
+	 * @return the evaluation thread pool
+	 */
+	private static synchronized ExecutorService getEvaluationExecutor(int threads) {
+		if (evaluationExecutor == null) {
+			evaluationExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				        
+				        public Thread newThread(Runnable r) {
+					        return new EvaluationThread(r);
+				        }
+			        });
+		} else if (threads > evaluationExecutor.getMaximumPoolSize()) {
+			evaluationExecutor.setMaximumPoolSize(threads);
+			evaluationExecutor.setCorePoolSize(threads);
+		} else if (threads < evaluationExecutor.getMaximumPoolSize()) {
+			evaluationExecutor.setCorePoolSize(threads);
+			evaluationExecutor.setMaximumPoolSize(threads);
+		}
+		return evaluationExecutor;
+	}
+	
+	/**
+	 * @return true if the cohort should be split across the given number of evaluation threads
+	 */
+	private boolean isParallel(Cohort who, int threads) {
+		// a rule evaluated on an evaluation thread must not wait on the pool it is running in
+		return threads > 1 && who.size() >= MIN_PARALLEL_COHORT_SIZE
+		        && !(Thread.currentThread() instanceof EvaluationThread);
+	}
+	
+	/**
+	 * A thread of the evaluation pool. These are daemon threads, so an idle pool doesn't keep the
+	 * virtual machine running.
+	 */
+	private static class EvaluationThread extends Thread {
+		
+		private static int count = 0;
+		
+		public EvaluationThread(Runnable r) {
+			super(r, "logic-evaluation-" + nextCount());
+			setDaemon(true);
+		}
+		
+		private static synchronized int nextCount() {
+			return ++count;
+		}
+	}
+	
+	/**
+	 * Fetch the number of threads to evaluate large cohorts with from the global properties table
+	 * 
+	 * @return the number of evaluation threads (1 means evaluate on the calling thread)
+	 */
+	private int getEvaluationThreads() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_LOGIC_EVALUATION_THREADS);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_LOGIC_EVALUATION_THREADS
+				        + " to a valid integer. Evaluating on one thread");
+			}
+		}
+		return 1;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicService#eval(org.openmrs.Cohort, java.util.List)
 	 */
@@ -184,13 +414,63 @@ public class LogicServiceImpl implements LogicService {
 	                                                                                                    throws LogicException {
 		Map<LogicCriteria, Map<Integer, Result>> result = new HashMap<LogicCriteria, Map<Integer, Result>>();
 		
+		int threads = getEvaluationThreads();
+		if (isParallel(patients, threads)) {
+			for (LogicCriteria criteria : criterias) {
+				result.put(criteria, evalInParallel(patients, criteria, criteria.getLogicParameters(), threads));
+			}
+			return result;
+		}
+		
+		// one context for all the criteria, so they share what it has read
+		LogicContext context = new LogicContext(patients);
+		readObservationsTogether(context, patients, criterias);
 		for (LogicCriteria criteria : criterias) {
-			result.put(criteria, eval(patients, criteria));
+			result.put(criteria, eval(context, patients, criteria, criteria.getLogicParameters()));
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Reads all the criteria that reference the obs data source with a single query and puts the
+	 * results in the logic cache, so that evaluating each criteria afterwards finds its data there
+	 * instead of querying the obs table again. This does nothing if there are fewer than two such
+	 * criteria or if the cache is turned off.
+	 * 
+	 * @param context the context the criteria will be evaluated in
+	 * @param patients the cohort the criteria will be evaluated for
+	 * @param criterias the criteria about to be evaluated
+	 * @see ObsDataSource#read(LogicContext, Cohort, List)
+	 */
+	private void readObservationsTogether(LogicContext context, Cohort patients, List<LogicCriteria> criterias) {
+		LogicDataSource dataSource = getLogicDataSource("obs");
+		if (!(dataSource instanceof ObsDataSource) || dataSource.getDefaultTTL() <= 0
+		        || getLogicCache().getMaxEntries() <= 0)
+			return;
+		ObsDataSource obsDataSource = (ObsDataSource) dataSource;
+		
+		List<LogicCriteria> obsCriterias = new ArrayList<LogicCriteria>();
+		for (LogicCriteria criteria : criterias) {
+			if (!obsDataSource.canReadTogether(criteria))
+				continue;
+			try {
+				Rule rule = getRule(criteria.getRootToken());
+				if (rule instanceof ReferenceRule && ((ReferenceRule) rule).getDataSource() == dataSource)
+					obsCriterias.add(criteria);
+			}
+			catch (LogicException e) {
+				// unknown tokens are reported when the criteria is evaluated
+			}
+		}
+		if (obsCriterias.size() < 2)
+			return;
+		
+		Map<LogicCriteria, Map<Integer, Result>> results = obsDataSource.read(context, patients, obsCriterias);
+		for (Map.Entry<LogicCriteria, Map<Integer, Result>> e : results.entrySet())
+			context.cacheResults(dataSource, e.getKey(), e.getValue());
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicService#addRule(java.lang.String, java.lang.String[],
 	 *      org.openmrs.logic.rule.Rule)
@@ -285,6 +565,35 @@ public class LogicServiceImpl implements LogicService {
 		dataSources.remove(name);
 	}
 	
+	/**
+	 * @see org.openmrs.logic.LogicService#getLogicCache()
+	 */
+	public synchronized LogicCache getLogicCache() {
+		if (logicCache == null)
+			logicCache = new LogicCache(getLogicCacheMaxEntries());
+		return logicCache;
+	}
+	
+	/**
+	 * Fetch the size of the logic cache from the global properties table
+	 * 
+	 * @return the number of entries the logic cache keeps
+	 */
+	private int getLogicCacheMaxEntries() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_LOGIC_CACHE_MAX_ENTRIES);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_LOGIC_CACHE_MAX_ENTRIES
+				        + " to a valid integer. Using the default " + LogicCache.DEFAULT_MAX_ENTRIES);
+			}
+		}
+		return LogicCache.DEFAULT_MAX_ENTRIES;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.LogicService#loadRule(java.lang.String, java.lang.String)
 	 */
@@ -621,6 +621,27 @@ public class Result extends ArrayList<Result> {
 		return this.toArray();
 	}
 	
+	/**
+	 * Copies this result into a new result that holds no persistent objects, so that it can still
+	 * be read after the hibernate session it came from is closed. A coded value is copied as a
+	 * concept with only its id, and the result object is left out. If this result is a list, each
+	 * member is copied.
+	 * 
+	 * @return a copy of this result that holds only values
+	 */
+	public Result copyValues() {
+		if (isNull())
+			return this;
+		if (!isSingleResult()) {
+			Result copy = new Result();
+			for (Result r : this)
+				copy.add(r.copyValues());
+			return copy;
+		}
+		Concept coded = (valueCoded == null ? null : new Concept(valueCoded.getConceptId()));
+		return new Result(resultDatetime, datatype, valueBoolean, coded, valueDatetime, valueNumeric, valueText, null);
+	}
+	
 	/**
 	 * @return true if result is empty
 	 */
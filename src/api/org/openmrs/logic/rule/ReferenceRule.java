@@ -78,6 +78,13 @@ public class ReferenceRule implements Rule {
 		return context.read(patient, dataSource, criteria);
 	}
 	
+	/**
+	 * @return the data source this rule reads from
+	 */
+	public LogicDataSource getDataSource() {
+		return dataSource;
+	}
+	
 	/**
 	 * @see org.openmrs.logic.rule.Rule#getParameterList()
 	 */
@@ -31,6 +31,9 @@ public class Util {
 	/**
 	 * Programmatically applies aggregators like COUNT, AVERAGE, etc
 	 * 
+	 * Patients without any results get a count of 0. They get no average, so reading it gives an
+	 * empty result.
+	 * 
 	 * @param finalResult result map of patient id to result list
 	 * @param criteria provides type of transform
 	 */
@@ -38,20 +41,6 @@ public class Util {
 		Set<Integer> personIds = finalResult.keySet();
 		LogicTransform transform = criteria.getExpression().getTransform();
 		
-		// finalResult is empty so populate it with empty counts/averages
-		if (personIds.size() == 0) {
-			
-			for (Integer personId : patients.getMemberIds()) {
-				if (transform != null
-				        && (transform.getTransformOperator() == Operator.COUNT || transform.getTransformOperator() == Operator.AVERAGE)) {
-					Result newResult = new Result();
-					newResult.setValueNumeric(0);
-					finalResult.put(personId, newResult);
-				}
-			}
-			return;
-		}
-		
 		for (Integer personId : personIds) {
 			// if this was a count, then return the actual count of results
 			// instead of the objects
@@ -80,5 +69,16 @@ public class Util {
 				finalResult.put(personId, newResult);
 			}
 		}
+		
+		// populate the patients without results with empty counts
+		if (transform != null && transform.getTransformOperator() == Operator.COUNT) {
+			for (Integer personId : patients.getMemberIds()) {
+				if (!finalResult.containsKey(personId)) {
+					Result newResult = new Result();
+					newResult.setValueNumeric(0);
+					finalResult.put(personId, newResult);
+				}
+			}
+		}
 	}
 }
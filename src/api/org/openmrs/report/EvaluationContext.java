@@ -16,6 +16,7 @@ package org.openmrs.report;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
@@ -46,17 +47,50 @@ public class EvaluationContext {
 	public static final Pattern DATE_OPERATION_PATTERN = Pattern
 	        .compile("(\\d{4}\\-\\d{2}\\-\\d{2}\\ \\d{2}:\\d{2}:\\d{2})(([+-])(\\d{1,})([dwmy]))?");
 	
-	private static final DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	/**
+	 * SimpleDateFormat isn't thread safe, and the data sets of a report may be evaluated in parallel
+	 * with one context
+	 */
+	private static final ThreadLocal<DateFormat> df = new ThreadLocal<DateFormat>() {
+		
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		}
+	};
 	
 	private Cohort baseCohort;
 	
 	private Map<Parameterizable, Map<Parameter, Object>> parameterValues = new HashMap<Parameterizable, Map<Parameter, Object>>();
 	
-	private transient Map<String, Object> cache = new HashMap<String, Object>();
+	private transient Map<String, Object> cache = Collections.synchronizedMap(new HashMap<String, Object>());
+	
+	/**
+	 * cache key -> the lock held while the entry for the key is computed
+	 */
+	private transient Map<String, Object> cacheLocks = new HashMap<String, Object>();
 	
 	public EvaluationContext() {
 	}
 	
+	/**
+	 * Makes a context to evaluate with on another thread. It has its own copy of the parameter
+	 * values, and shares this context's base cohort and cache.
+	 * 
+	 * @return the copy
+	 * @should copy the parameter values
+	 * @should share the cache
+	 */
+	public synchronized EvaluationContext copy() {
+		EvaluationContext ret = new EvaluationContext();
+		ret.baseCohort = baseCohort;
+		ret.parameterValues = new HashMap<Parameterizable, Map<Parameter, Object>>();
+		for (Map.Entry<Parameterizable, Map<Parameter, Object>> e : parameterValues.entrySet())
+			ret.parameterValues.put(e.getKey(), new HashMap<Parameter, Object>(e.getValue()));
+		ret.cache = cache;
+		ret.cacheLocks = cacheLocks;
+		return ret;
+	}
+	
 	public static boolean isExpression(String s) {
 		return s != null && s.startsWith(START_OF_EXPRESSION) && s.endsWith(END_OF_EXPRESSION);
 	}
@@ -88,6 +122,25 @@ public class EvaluationContext {
 		cache.put(key, value);
 	}
 	
+	/**
+	 * Gets the object to hold while computing the entry for the given key, so that contexts used on
+	 * several threads only compute each entry once. Entries with different keys can be computed at
+	 * the same time.
+	 * 
+	 * @param key
+	 * @return the lock for the key
+	 */
+	public Object getCacheLock(String key) {
+		synchronized (cacheLocks) {
+			Object lock = cacheLocks.get(key);
+			if (lock == null) {
+				lock = new Object();
+				cacheLocks.put(key, lock);
+			}
+			return lock;
+		}
+	}
+	
 	/**
 	 * Remove an entry cached with the given key
 	 * 
@@ -313,7 +366,7 @@ public class EvaluationContext {
 						// Handle date parameters
 						if (value instanceof Date) {
 							containsDate = true;
-							replacement = replacement.replace(parameter.getName(), df.format((Date) value));
+							replacement = replacement.replace(parameter.getName(), df.get().format((Date) value));
 							log.debug("Modified to: " + replacement);
 							
 							// Attempt to evaluate any date arithmetic
@@ -333,9 +386,9 @@ public class EvaluationContext {
 										} else if ("y".equals(m.group(5))) {
 											field = Calendar.YEAR;
 										}
-										cal.setTime(df.parse(foundDate));
+										cal.setTime(df.get().parse(foundDate));
 										cal.add(field, num);
-										foundDate = df.format(cal.getTime());
+										foundDate = df.get().format(cal.getTime());
 										log.debug("Calculated date of: " + foundDate);
 									}
 									replacement = replacement.replaceAll("\\Q" + m.group(0) + "\\E", foundDate);
@@ -370,7 +423,7 @@ public class EvaluationContext {
 		if (containsDate) {
 			try {
 				log.debug("Trying to parse back to a Date: " + expression);
-				Date newDate = df.parse(expression);
+				Date newDate = df.get().parse(expression);
 				log.debug("Returning Date: " + newDate);
 				return newDate;
 			}
@@ -382,7 +435,7 @@ public class EvaluationContext {
 		return expression;
 	}
 	
-	public Cohort getBaseCohort() {
+	public synchronized Cohort getBaseCohort() {
 		if (baseCohort == null) {
 			// Save this so we don't have to query the database next time. This doesn't clear the cache
 			baseCohort = Context.getPatientSetService().getAllPatients();
@@ -390,7 +443,7 @@ public class EvaluationContext {
 		return baseCohort;
 	}
 	
-	public void setBaseCohort(Cohort baseCohort) {
+	public synchronized void setBaseCohort(Cohort baseCohort) {
 		clearCache();
 		this.baseCohort = baseCohort;
 	}
@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.report;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.openmrs.api.context.Context;
+
+/**
+ * Iterates over the rows of a data set a page at a time, so only one page of rows is ever loaded.
+ * The ids of the rows' objects are read when the data set is evaluated, and each page is loaded by
+ * id. When a page has been read, {@link #evict(Object)} removes its objects from the hibernate
+ * session. <br/>
+ * <br/>
+ * The rows come out in the order of the ids. This must be used within an open session.
+ * 
+ * @param <T> the type of object each row is read from
+ */
+public abstract class IdPageIterator<T> implements Iterator<T> {
+	
+	/**
+	 * The number of rows that are loaded at a time, unless another size is given
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+	
+	private List<Integer> ids;
+	
+	private int pageSize;
+	
+	private int nextPageStart = 0;
+	
+	private List<T> page = Collections.emptyList();
+	
+	private Iterator<T> pageIterator = page.iterator();
+	
+	/**
+	 * @param ids the ids of the objects to read the rows from, in row order
+	 * @param pageSize the number of objects to load at a time
+	 */
+	public IdPageIterator(List<Integer> ids, int pageSize) {
+		this.ids = ids;
+		this.pageSize = pageSize;
+	}
+	
+	/**
+	 * Loads the objects with the given ids
+	 * 
+	 * @param pageIds the ids in this page
+	 * @return the objects in this page, in the order of the ids
+	 */
+	protected abstract List<T> getPage(List<Integer> pageIds);
+	
+	/**
+	 * Removes an object of a page that has been read from the session. Only the object itself is
+	 * evicted, since the objects it refers to (like an obs' person) may also be in use elsewhere in
+	 * the session.
+	 * 
+	 * @param object
+	 */
+	protected void evict(T object) {
+		Context.evictFromSession(object);
+	}
+	
+	/**
+	 * @see java.util.Iterator#hasNext()
+	 */
+	public boolean hasNext() {
+		while (!pageIterator.hasNext() && (nextPageStart < ids.size() || !page.isEmpty())) {
+			// done with the previous page, so stop the session from holding on to it
+			for (T object : page)
+				evict(object);
+			page = Collections.emptyList();
+			pageIterator = page.iterator();
+			if (nextPageStart >= ids.size())
+				break;
+			
+			int end = Math.min(nextPageStart + pageSize, ids.size());
+			page = getPage(ids.subList(nextPageStart, end));
+			pageIterator = page.iterator();
+			nextPageStart = end;
+		}
+		return pageIterator.hasNext();
+	}
+	
+	/**
+	 * @see java.util.Iterator#next()
+	 */
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return pageIterator.next();
+	}
+	
+	/**
+	 * @see java.util.Iterator#remove()
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException("Rows can't be removed from a data set");
+	}
+
+}
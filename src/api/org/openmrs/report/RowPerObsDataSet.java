@@ -13,6 +13,7 @@
  */
 package org.openmrs.report;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -23,9 +24,13 @@ import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 
 /**
- * A dataset with one-row-per-obs.
+ * A dataset with one-row-per-obs. Unless the obs are given with {@link #setData(List)}, the ids of
+ * the obs are found when the data set is evaluated, and the obs are read a page at a time as the
+ * rows are iterated over, so a large data set can be rendered without holding all of its obs in
+ * memory.
  * 
  * @see RowPerObsDataSetDefinition
+ * @see IdPageIterator
  */
 public class RowPerObsDataSet implements DataSet<Object> {
 	
@@ -35,6 +40,8 @@ public class RowPerObsDataSet implements DataSet<Object> {
 	
 	private List<Obs> data;
 	
+	private List<Integer> obsIds;
+	
 	public RowPerObsDataSet() {
 	}
 	
@@ -91,14 +98,44 @@ public class RowPerObsDataSet implements DataSet<Object> {
 	 * @see org.openmrs.report.DataSet#iterator()
 	 */
 	public Iterator<Map<String, Object>> iterator() {
-		Iterator<Map<String, Object>> ret = new HelperIterator(data.iterator());
-		return ret;
+		if (data != null)
+			return new HelperIterator(data.iterator());
+		
+		return new HelperIterator(readObs(true));
+	}
+	
+	/**
+	 * Reads the obs with {@link #obsIds} a page at a time
+	 * 
+	 * @param evict whether to evict each page's obs from the session once it has been read
+	 */
+	private Iterator<Obs> readObs(final boolean evict) {
+		return new IdPageIterator<Obs>(obsIds, IdPageIterator.DEFAULT_PAGE_SIZE) {
+			
+			protected List<Obs> getPage(List<Integer> pageIds) {
+				return Context.getPatientSetService().getObservationsByIds(pageIds);
+			}
+			
+			protected void evict(Obs o) {
+				if (evict)
+					super.evict(o);
+			}
+		};
 	}
 	
 	/**
+	 * Unless they were set, this reads all the obs the first time it is called, a page of ids at a
+	 * time, and keeps them. Use {@link #iterator()} to hold only one page at a time.
+	 * 
 	 * @return the data
 	 */
 	public List<Obs> getData() {
+		if (data == null) {
+			List<Obs> obs = new ArrayList<Obs>(obsIds.size());
+			for (Iterator<Obs> i = readObs(false); i.hasNext();)
+				obs.add(i.next());
+			data = obs;
+		}
 		return data;
 	}
 	
@@ -109,6 +146,20 @@ public class RowPerObsDataSet implements DataSet<Object> {
 		this.data = data;
 	}
 	
+	/**
+	 * @return the ids of the obs that are read when the data wasn't set
+	 */
+	public List<Integer> getObsIds() {
+		return obsIds;
+	}
+	
+	/**
+	 * @param obsIds the ids of the obs that are read when the data wasn't set, in row order
+	 */
+	public void setObsIds(List<Integer> obsIds) {
+		this.obsIds = obsIds;
+	}
+	
 	/**
 	 * @return the definition
 	 */
@@ -13,14 +13,9 @@
  */
 package org.openmrs.report;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
-import org.openmrs.Concept;
-import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 
 /**
@@ -59,10 +54,9 @@ public class RowPerObsDataSetProvider implements DataSetProvider {
 		RowPerObsDataSet ret = new RowPerObsDataSet();
 		ret.setDefinition(definition);
 		ret.setEvaluationContext(evalContext);
-		List<Concept> concepts = new ArrayList<Concept>(definition.getQuestions());
-		List<Obs> list = Context.getObsService().getObservations(patients, concepts, definition.getFromDate(),
-		    definition.getToDate());
-		ret.setData(list);
+		// only the ids are read now. The obs are read a page at a time when the data set is rendered
+		ret.setObsIds(Context.getPatientSetService().getObservationIds(patients, definition.getQuestions(),
+		    definition.getFromDate(), definition.getToDate()));
 		return ret;
 	}
 	
@@ -13,6 +13,7 @@
  */
 package org.openmrs.report;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -23,7 +24,12 @@ import org.openmrs.PatientProgram;
 import org.openmrs.api.context.Context;
 
 /**
- *
+ * A dataset with one-row-per-program-enrollment. Unless the enrollments are given with
+ * {@link #setData(List)}, their ids are found when the data set is evaluated, and they are read a
+ * page at a time as the rows are iterated over.
+ * 
+ * @see RowPerProgramEnrollmentDataSetDefinition
+ * @see IdPageIterator
  */
 public class RowPerProgramEnrollmentDataSet implements DataSet<Object> {
 	
@@ -33,6 +39,8 @@ public class RowPerProgramEnrollmentDataSet implements DataSet<Object> {
 	
 	private List<PatientProgram> data;
 	
+	private List<Integer> patientProgramIds;
+	
 	public RowPerProgramEnrollmentDataSet() {
 	}
 	
@@ -76,17 +84,59 @@ public class RowPerProgramEnrollmentDataSet implements DataSet<Object> {
 	}
 	
 	public Iterator<Map<String, Object>> iterator() {
-		return new HelperIterator(data.iterator());
+		if (data != null)
+			return new HelperIterator(data.iterator());
+		
+		return new HelperIterator(readPatientPrograms(true));
+	}
+	
+	/**
+	 * Reads the enrollments with {@link #patientProgramIds} a page at a time
+	 * 
+	 * @param evict whether to evict each page's enrollments from the session once it has been read
+	 */
+	private Iterator<PatientProgram> readPatientPrograms(final boolean evict) {
+		return new IdPageIterator<PatientProgram>(patientProgramIds, IdPageIterator.DEFAULT_PAGE_SIZE) {
+			
+			protected List<PatientProgram> getPage(List<Integer> pageIds) {
+				return Context.getPatientSetService().getPatientProgramsByIds(pageIds);
+			}
+			
+			protected void evict(PatientProgram pp) {
+				if (evict)
+					super.evict(pp);
+			}
+		};
 	}
 	
 	public EvaluationContext getEvaluationContext() {
 		return evaluationContext;
 	}
 	
+	/**
+	 * Unless they were set, this reads all the enrollments the first time it is called, a page of
+	 * ids at a time, and keeps them. Use {@link #iterator()} to hold only one page at a time.
+	 * 
+	 * @return the data
+	 */
 	public List<PatientProgram> getData() {
+		if (data == null) {
+			List<PatientProgram> patientPrograms = new ArrayList<PatientProgram>(patientProgramIds.size());
+			for (Iterator<PatientProgram> i = readPatientPrograms(false); i.hasNext();)
+				patientPrograms.add(i.next());
+			data = patientPrograms;
+		}
 		return data;
 	}
 	
+	public List<Integer> getPatientProgramIds() {
+		return patientProgramIds;
+	}
+	
+	public void setPatientProgramIds(List<Integer> patientProgramIds) {
+		this.patientProgramIds = patientProgramIds;
+	}
+	
 	public void setData(List<PatientProgram> data) {
 		this.data = data;
 	}
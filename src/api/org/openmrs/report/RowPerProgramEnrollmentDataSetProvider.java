@@ -13,15 +13,9 @@
  */
 package org.openmrs.report;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Cohort;
-import org.openmrs.PatientProgram;
-import org.openmrs.Program;
 import org.openmrs.api.context.Context;
 
 /**
@@ -60,9 +54,8 @@ public class RowPerProgramEnrollmentDataSetProvider implements DataSetProvider {
 		RowPerProgramEnrollmentDataSet ret = new RowPerProgramEnrollmentDataSet();
 		ret.setDefinition(definition);
 		ret.setEvaluationContext(evalContext);
-		List<Program> programs = new ArrayList<Program>(definition.getPrograms());
-		List<PatientProgram> list = Context.getProgramWorkflowService().getPatientPrograms(patients, programs);
-		ret.setData(list);
+		// only the ids are read now. The enrollments are read a page at a time when the data set is rendered
+		ret.setPatientProgramIds(Context.getPatientSetService().getPatientProgramIds(patients, definition.getPrograms()));
 		return ret;
 	}
 	
@@ -48,8 +48,9 @@ public class CsvReportRenderer extends DelimitedTextReportRenderer {
 	}
 	
 	public String escape(String text) {
-		if (text == null)
-			return null;
+		// most cells have no quotes, so don't make a copy of them
+		if (text == null || text.indexOf('"') < 0)
+			return text;
 		else
 			return text.replaceAll("\"", "\\\"");
 	}
@@ -58,7 +59,8 @@ public class CsvReportRenderer extends DelimitedTextReportRenderer {
 	 * @see org.openmrs.report.renderer.ReportRenderer#getRenderedContentType(org.openmrs.report.ReportSchema)
 	 */
 	public String getRenderedContentType(ReportSchema model, String argument) {
-		return "text/csv";
+		String contentType = getCompressedContentType(argument);
+		return contentType != null ? contentType : "text/csv";
 	}
 	
 }
@@ -13,15 +13,20 @@
  */
 package org.openmrs.report.impl;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.openmrs.Cohort;
 import org.openmrs.report.CohortDataSet;
@@ -33,10 +38,27 @@ import org.openmrs.report.ReportRenderer;
 import org.openmrs.report.ReportSchema;
 
 /**
- *
+ * Renders a report with a single data set as delimited text. Besides plain text, this can render
+ * the text compressed with gzip or in a zip file. The rows are written as the data set is iterated
+ * over, so large data sets are streamed rather than built up in memory.
  */
 public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 	
+	/**
+	 * The rendering mode argument for text compressed with gzip
+	 */
+	public static final String GZIP = "gzip";
+	
+	/**
+	 * The rendering mode argument for text in a zip file
+	 */
+	public static final String ZIP = "zip";
+	
+	/**
+	 * The size of the buffer the text is encoded through
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
 	public abstract String getFilenameExtension();
 	
 	public abstract String getBeforeColumnDelimiter();
@@ -60,7 +82,27 @@ public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 	 * @see org.openmrs.report.ReportRenderer#getFilename(org.openmrs.report.ReportSchema)
 	 */
 	public String getFilename(ReportSchema schema, String argument) {
-		return schema.getName() + "." + getFilenameExtension();
+		String filename = schema.getName() + "." + getFilenameExtension();
+		if (GZIP.equals(argument))
+			return filename + ".gz";
+		else if (ZIP.equals(argument))
+			return filename + ".zip";
+		else
+			return filename;
+	}
+	
+	/**
+	 * @param argument the rendering mode argument
+	 * @return the content type of the compressed rendering mode, or null if the mode is not
+	 *         compressed
+	 */
+	protected String getCompressedContentType(String argument) {
+		if (GZIP.equals(argument))
+			return "application/x-gzip";
+		else if (ZIP.equals(argument))
+			return "application/zip";
+		else
+			return null;
 	}
 	
 	/**
@@ -69,50 +111,85 @@ public abstract class DelimitedTextReportRenderer implements ReportRenderer {
 	public Collection<RenderingMode> getRenderingModes(ReportSchema schema) {
 		if (schema.getDataSetDefinitions() == null || schema.getDataSetDefinitions().size() != 1)
 			return null;
-		else
-			return Collections.singleton(new RenderingMode(this, this.getLabel(), null, Integer.MIN_VALUE));
+		else {
+			List<RenderingMode> modes = new ArrayList<RenderingMode>();
+			modes.add(new RenderingMode(this, this.getLabel(), null, Integer.MIN_VALUE));
+			modes.add(new RenderingMode(this, this.getLabel() + " (gzip)", GZIP, Integer.MIN_VALUE));
+			modes.add(new RenderingMode(this, this.getLabel() + " (zip)", ZIP, Integer.MIN_VALUE));
+			return modes;
+		}
 	}
 	
 	/**
 	 * @see org.openmrs.report.ReportRenderer#render(ReportData, String, OutputStream)
+	 * @should write the same text compressed with gzip
+	 * @should write the same text in a zip file entry named after the report
 	 */
 	public void render(ReportData results, String argument, OutputStream out) throws IOException, RenderingException {
-		PrintWriter pw = new PrintWriter(out);
-		render(results, argument, pw);
+		DeflaterOutputStream compressed = null;
+		if (GZIP.equals(argument)) {
+			compressed = new GZIPOutputStream(out, BUFFER_SIZE);
+		} else if (ZIP.equals(argument)) {
+			ZipOutputStream zip = new ZipOutputStream(out);
+			ReportSchema schema = results.getReportSchema();
+			zip.putNextEntry(new ZipEntry(schema != null ? getFilename(schema, null) : "report." + getFilenameExtension()));
+			compressed = zip;
+		}
+		
+		Writer writer = new BufferedWriter(new OutputStreamWriter(compressed == null ? out : compressed), BUFFER_SIZE);
+		render(results, argument, writer);
+		
+		// finish the compressed data without closing the stream it was written to
+		if (compressed instanceof ZipOutputStream)
+			((ZipOutputStream) compressed).closeEntry();
+		if (compressed != null)
+			compressed.finish();
+		out.flush();
 	}
 	
 	/**
+	 * Writes the text, uncompressed whatever the argument is
+	 * 
 	 * @see org.openmrs.report.ReportRenderer#render(ReportData, String, Writer)
 	 */
 	public void render(ReportData results, String argument, Writer writer) throws IOException, RenderingException {
 		DataSet dataset = results.getDataSets().values().iterator().next();
 		List<String> colKeys = dataset.getDefinition().getColumnKeys();
+		boolean cohorts = dataset instanceof CohortDataSet;
+		
+		String beforeRow = getBeforeRowDelimiter();
+		String afterRow = getAfterRowDelimiter();
+		String beforeColumn = getBeforeColumnDelimiter();
+		String afterColumn = getAfterColumnDelimiter();
 		
 		// header row
-		writer.write(getBeforeRowDelimiter());
+		writer.write(beforeRow);
 		for (String colKey : colKeys) {
-			writer.write(getBeforeColumnDelimiter());
+			writer.write(beforeColumn);
 			writer.write(escape(colKey));
-			writer.write(getAfterColumnDelimiter());
+			writer.write(afterColumn);
 		}
-		writer.write(getAfterRowDelimiter());
+		writer.write(afterRow);
+		
+		// send the header right away, so a large download starts before all the rows are read
+		writer.flush();
 		
 		// data rows
 		for (Iterator<Map<String, Object>> i = dataset.iterator(); i.hasNext();) {
-			writer.write(getBeforeRowDelimiter());
+			writer.write(beforeRow);
 			Map<String, Object> map = i.next();
 			for (String colKey : colKeys) {
 				Object colValue = map.get(colKey);
-				writer.write(getBeforeColumnDelimiter());
+				writer.write(beforeColumn);
 				if (colValue != null)
-					if (dataset instanceof CohortDataSet) {
+					if (cohorts) {
 						writer.write(escape(Integer.toString(((Cohort) colValue).size())));
 					} else {
 						writer.write(escape(colValue.toString()));
 					}
-				writer.write(getAfterColumnDelimiter());
+				writer.write(afterColumn);
 			}
-			writer.write(getAfterRowDelimiter());
+			writer.write(afterRow);
 		}
 		
 		writer.flush();
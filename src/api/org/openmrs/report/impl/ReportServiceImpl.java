@@ -24,6 +24,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +37,9 @@ import org.openmrs.api.APIException;
 import org.openmrs.api.DataSetService;
 import org.openmrs.api.ReportService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.report.CohortDataSet;
+import org.openmrs.report.CohortDataSetDefinition;
 import org.openmrs.report.DataSet;
 import org.openmrs.report.DataSetDefinition;
 import org.openmrs.report.EvaluationContext;
@@ -100,14 +108,132 @@ public class ReportServiceImpl implements ReportService {
 		ret.setEvaluationContext(evalContext);
 		DataSetService dss = Context.getDataSetService();
 		
-		if (reportSchema.getDataSetDefinitions() != null)
-			for (DataSetDefinition dataSetDefinition : reportSchema.getDataSetDefinitions()) {
+		List<DataSetDefinition> definitions = reportSchema.getDataSetDefinitions();
+		int threads = getEvaluationThreads();
+		if (definitions != null && threads > 1 && definitions.size() > 1) {
+			data.putAll(evaluateInParallel(definitions, inputCohort, evalContext, threads));
+		} else if (definitions != null) {
+			for (DataSetDefinition dataSetDefinition : definitions) {
+				long start = System.currentTimeMillis();
 				data.put(dataSetDefinition.getName(), dss.evaluate(dataSetDefinition, inputCohort, evalContext));
+				log.info("Evaluated data set " + dataSetDefinition.getName() + " in "
+				        + (System.currentTimeMillis() - start) + " ms");
 			}
+		}
 		
 		return ret;
 	}
 	
+	/**
+	 * Evaluates the cohort data set definitions on a pool of worker threads, each in its own
+	 * hibernate session, while the other definitions are evaluated on the calling thread. The
+	 * workers run as the calling user, each with its own copy of the evaluation context. The copies
+	 * share the context's cache, so cohorts cached by one data set are reused by the others. <br/>
+	 * <br/>
+	 * Before a worker closes its session, it copies the member ids of the data set's cohorts into
+	 * new cohorts, so the data set holds nothing that needs the worker's session. Other kinds of
+	 * data sets can hold hibernate objects, so they are left to the calling thread.
+	 * 
+	 * @param definitions the data set definitions to evaluate
+	 * @param inputCohort
+	 * @param evalContext
+	 * @param threads the maximum number of data sets to evaluate at once
+	 * @return the evaluated data sets, by name
+	 * @throws APIException if any data set fails
+	 * @should return the same data sets as evaluating on the calling thread
+	 */
+	Map<String, DataSet> evaluateInParallel(List<DataSetDefinition> definitions, final Cohort inputCohort,
+	                                        final EvaluationContext evalContext, int threads) throws APIException {
+		List<DataSetDefinition> callerDefinitions = new ArrayList<DataSetDefinition>();
+		List<CohortDataSetDefinition> workerDefinitions = new ArrayList<CohortDataSetDefinition>();
+		for (DataSetDefinition dataSetDefinition : definitions) {
+			if (dataSetDefinition instanceof CohortDataSetDefinition)
+				workerDefinitions.add((CohortDataSetDefinition) dataSetDefinition);
+			else
+				callerDefinitions.add(dataSetDefinition);
+		}
+		
+		final UserContext userContext = Context.getUserContext().copy();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, workerDefinitions.size())));
+		Map<String, Future<DataSet>> futures = new LinkedHashMap<String, Future<DataSet>>();
+		try {
+			for (final CohortDataSetDefinition dataSetDefinition : workerDefinitions) {
+				final EvaluationContext workerContext = evalContext.copy();
+				futures.put(dataSetDefinition.getName(), executor.submit(new Callable<DataSet>() {
+					
+					public DataSet call() throws Exception {
+						Context.setUserContext(userContext);
+						Context.openSession();
+						try {
+							long start = System.currentTimeMillis();
+							CohortDataSet dataSet = (CohortDataSet) Context.getDataSetService().evaluate(
+							    dataSetDefinition, inputCohort, workerContext);
+							// read the members while the session is open, since a saved cohort loads them lazily
+							Map<String, Cohort> cohorts = new LinkedHashMap<String, Cohort>();
+							for (Map.Entry<String, Cohort> e : dataSet.getCohortData().entrySet())
+								cohorts.put(e.getKey(), new Cohort(e.getValue().getMemberIds()));
+							dataSet.setCohortData(cohorts);
+							dataSet.setEvaluationContext(evalContext);
+							log.info("Evaluated data set " + dataSetDefinition.getName() + " in "
+							        + (System.currentTimeMillis() - start) + " ms");
+							return dataSet;
+						}
+						finally {
+							Context.closeSession();
+							Context.clearUserContext();
+						}
+					}
+				}));
+			}
+			
+			Map<String, DataSet> data = new HashMap<String, DataSet>();
+			DataSetService dss = Context.getDataSetService();
+			for (DataSetDefinition dataSetDefinition : callerDefinitions) {
+				long start = System.currentTimeMillis();
+				data.put(dataSetDefinition.getName(), dss.evaluate(dataSetDefinition, inputCohort, evalContext));
+				log.info("Evaluated data set " + dataSetDefinition.getName() + " in "
+				        + (System.currentTimeMillis() - start) + " ms");
+			}
+			for (Map.Entry<String, Future<DataSet>> entry : futures.entrySet())
+				data.put(entry.getKey(), entry.getValue().get());
+			return data;
+		}
+		catch (InterruptedException e) {
+			throw new APIException("Interrupted while evaluating data sets", e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new APIException("Unable to evaluate data sets", e.getCause());
+		}
+		finally {
+			for (Future<DataSet> future : futures.values())
+				future.cancel(true);
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Fetch the number of threads to evaluate the data sets of a report with from the global
+	 * properties table
+	 * 
+	 * @return the number of evaluation threads (1 means evaluate on the calling thread)
+	 */
+	private int getEvaluationThreads() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_REPORT_EVALUATION_THREADS);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				log.warn("Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_REPORT_EVALUATION_THREADS
+				        + " to a valid integer. Evaluating on one thread");
+			}
+		}
+		return 1;
+	}
+	
 	/**
 	 * @see org.openmrs.api.ReportService#getReportRenderer(java.lang.String)
 	 */
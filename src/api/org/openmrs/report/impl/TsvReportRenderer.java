@@ -48,8 +48,9 @@ public class TsvReportRenderer extends DelimitedTextReportRenderer {
 	}
 	
 	public String escape(String text) {
-		if (text == null)
-			return null;
+		// most cells have no quotes, so don't make a copy of them
+		if (text == null || text.indexOf('"') < 0)
+			return text;
 		else
 			return text.replaceAll("\"", "\\\"");
 	}
@@ -65,7 +66,8 @@ public class TsvReportRenderer extends DelimitedTextReportRenderer {
 	 * @see org.openmrs.report.renderer.ReportRenderer#getRenderedContentType(org.openmrs.report.ReportModel)
 	 */
 	public String getRenderedContentType(ReportSchema model, String argument) {
-		return "text/tsv";
+		String contentType = getCompressedContentType(argument);
+		return contentType != null ? contentType : "text/tsv";
 	}
 	
 }
@@ -46,12 +46,14 @@ public abstract class CachingPatientFilter extends AbstractPatientFilter impleme
 			return filterImpl(null);
 		} else {
 			String key = getCacheKey();
-			Cohort cached = (Cohort) context.getFromCache(key);
-			if (cached == null) {
-				cached = filterImpl(context);
-				context.addToCache(key, cached);
+			synchronized (context.getCacheLock(key)) {
+				Cohort cached = (Cohort) context.getFromCache(key);
+				if (cached == null) {
+					cached = filterImpl(context);
+					context.addToCache(key, cached);
+				}
+				return cached;
 			}
-			return cached;
 		}
 	}
 	
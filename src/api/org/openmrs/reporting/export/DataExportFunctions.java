@@ -131,6 +131,9 @@ public class DataExportFunctions {
 	
 	protected Locale locale = null;
 	
+	// records where each patient's rows start, for incremental exports
+	protected DataExportIndex index = null;
+	
 	// Constructors
 	
 	public DataExportFunctions(Patient p) {
@@ -195,6 +198,25 @@ public class DataExportFunctions {
 		encounterService = null;
 	}
 	
+	/**
+	 * Empties the values cached for the current patient set, so that these functions can be used
+	 * for the next set of patients. Unlike {@link #clear()}, this leaves the functions usable.
+	 */
+	public void clearCache() {
+		patientEncounterMap.clear();
+		patientIdentifierMap.clear();
+		patientFirstEncounterMap.clear();
+		conceptNameMap.clear();
+		conceptAttrObsMap.clear();
+		relationshipMap.clear();
+		programMap.clear();
+		drugOrderMap.clear();
+		currentDrugOrderMap.clear();
+		patientAttributeMap.clear();
+		personAttributeMap.clear();
+		cohortMap.clear();
+	}
+	
 	/**
 	 * Called when garbage collecting this class
 	 * 
@@ -245,6 +267,16 @@ public class DataExportFunctions {
 		
 		setPatient(null);
 		this.patientId = patientId;
+		
+		if (index != null)
+			index.startRow(patientId);
+	}
+	
+	/**
+	 * @param index the index to record the start of each patient's rows in, or null
+	 */
+	public void setIndex(DataExportIndex index) {
+		this.index = index;
 	}
 	
 	/**
@@ -312,9 +344,21 @@ public class DataExportFunctions {
 	}
 	
 	protected Boolean getCohortHelper(String key) {
-		if (cohortMap.containsKey(key))
-			return cohortMap.get(key).contains(getPatientId());
+		if (!cohortMap.containsKey(key))
+			cohortMap.put(key, loadCohort(key));
 		
+		return cohortMap.get(key).contains(getPatientId());
+	}
+	
+	/**
+	 * Fetches the members of a cohort, cohort definition or patient search. Like the other load
+	 * methods, this fetches a column's values for the whole patient set without caching them, so
+	 * {@link DataExportPlanner} can call it from another thread.
+	 * 
+	 * @param key like "C.1", "F.3" or "S.2"
+	 * @return the ids of the members
+	 */
+	protected Set<Integer> loadCohort(String key) {
 		//TODO try to cache the evaluation context
 		EvaluationContext context = new EvaluationContext();
 		
@@ -334,10 +378,7 @@ public class DataExportFunctions {
 		} else {
 			log.error("key = " + key);
 		}
-		Set<Integer> set = new HashSet<Integer>(ps.getMemberIds());
-		cohortMap.put(key, set);
-		
-		return set.contains(getPatientId());
+		return new HashSet<Integer>(ps.getMemberIds());
 	}
 	
 	/**
@@ -345,20 +386,25 @@ public class DataExportFunctions {
 	 * @param encounterType
 	 */
 	public Encounter getLastEncounter(String encounterType) {
-		if (patientEncounterMap.containsKey(encounterType))
-			return (Encounter) patientEncounterMap.get(encounterType).get(getPatientId());
+		if (!patientEncounterMap.containsKey(encounterType))
+			patientEncounterMap.put(encounterType, loadLastEncounters(encounterType));
 		
+		return (Encounter) patientEncounterMap.get(encounterType).get(getPatientId());
+	}
+	
+	/**
+	 * @param encounterType
+	 * @return patientId -> last encounter of type <code>encounterType</code>
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, ?> loadLastEncounters(String encounterType) {
 		log.debug("getting first encounters for type: " + encounterType);
 		
 		EncounterType type = null;
 		if (!encounterType.equals(""))
 			type = encounterService.getEncounterType(encounterType);
 		
-		Map<Integer, ?> encounterMap = patientSetService.getEncountersByType(getPatientSetIfNotAllPatients(), type);
-		
-		patientEncounterMap.put(encounterType, encounterMap);
-		
-		return (Encounter) encounterMap.get(getPatientId());
+		return patientSetService.getEncountersByType(getPatientSetIfNotAllPatients(), type);
 	}
 	
 	/**
@@ -372,14 +418,34 @@ public class DataExportFunctions {
 		List<String> types = (List<String>) typeArray;
 		String key = OpenmrsUtil.join(types, ",") + "|" + attr;
 		
-		if (patientEncounterMap.containsKey(key))
-			return patientEncounterMap.get(key).get(getPatientId());
+		if (!patientEncounterMap.containsKey(key))
+			patientEncounterMap.put(key, loadLastEncounterAttrs(types, attr));
+		
+		return patientEncounterMap.get(key).get(getPatientId());
 		
-		log.debug("getting first encounters for type: " + key);
+	}
+	
+	/**
+	 * @param types encounter type ids or names
+	 * @param attr
+	 * @return patientId -> <code>attr</code> of the last encounter of one of the types
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, Object> loadLastEncounterAttrs(List<String> types, String attr) {
+		log.debug("getting first encounters for type: " + OpenmrsUtil.join(types, ",") + "|" + attr);
 		
+		return patientSetService.getEncounterAttrsByType(getPatientSetIfNotAllPatients(), getEncounterTypes(types), attr);
+	}
+	
+	/**
+	 * Finds the EncounterType objects for each type id or name passed in
+	 * 
+	 * @param types
+	 * @return the types that were found
+	 */
+	private List<EncounterType> getEncounterTypes(List<String> types) {
 		List<EncounterType> encounterTypes = new Vector<EncounterType>();
 		
-		// find the EncounterType objects for each type passed in
 		for (String typeName : types) {
 			EncounterType type = null;
 			try {
@@ -395,13 +461,7 @@ public class DataExportFunctions {
 				encounterTypes.add(type);
 		}
 		
-		Map<Integer, Object> encounterMap = patientSetService.getEncounterAttrsByType(getPatientSetIfNotAllPatients(),
-		    encounterTypes, attr);
-		
-		patientEncounterMap.put(key, encounterMap);
-		
-		return encounterMap.get(getPatientId());
-		
+		return encounterTypes;
 	}
 	
 	/**
@@ -409,21 +469,25 @@ public class DataExportFunctions {
 	 * @param encounterType
 	 */
 	public Encounter getFirstEncounter(String encounterType) {
-		if (patientFirstEncounterMap.containsKey(encounterType))
-			return (Encounter) patientFirstEncounterMap.get(encounterType).get(getPatientId());
+		if (!patientFirstEncounterMap.containsKey(encounterType))
+			patientFirstEncounterMap.put(encounterType, loadFirstEncounters(encounterType));
 		
+		return (Encounter) patientFirstEncounterMap.get(encounterType).get(getPatientId());
+	}
+	
+	/**
+	 * @param encounterType
+	 * @return patientId -> first encounter of type <code>encounterType</code>
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, Encounter> loadFirstEncounters(String encounterType) {
 		log.debug("getting first encounters for type: " + encounterType);
 		
 		EncounterType type = null;
 		if (!encounterType.equals(""))
 			type = encounterService.getEncounterType(encounterType);
 		
-		Map<Integer, Encounter> encounterMap = patientSetService.getFirstEncountersByType(getPatientSetIfNotAllPatients(),
-		    type);
-		
-		patientFirstEncounterMap.put(encounterType, encounterMap);
-		
-		return encounterMap.get(getPatientId());
+		return patientSetService.getFirstEncountersByType(getPatientSetIfNotAllPatients(), type);
 	}
 	
 	/**
@@ -437,36 +501,24 @@ public class DataExportFunctions {
 		List<String> types = (List<String>) typeArray;
 		String key = OpenmrsUtil.join(types, ",") + "|" + attr;
 		
-		if (patientFirstEncounterMap.containsKey(key))
-			return patientFirstEncounterMap.get(key).get(getPatientId());
-		
-		log.debug("getting first encounters for type: " + key);
-		
-		List<EncounterType> encounterTypes = new Vector<EncounterType>();
-		
-		// find the EncounterType objects for each type passed in
-		for (String typeName : types) {
-			EncounterType type = null;
-			try {
-				type = encounterService.getEncounterType(Integer.valueOf(typeName));
-			}
-			catch (Exception e) { /* pass */}
-			;
-			
-			if (type == null)
-				type = encounterService.getEncounterType(typeName);
-			
-			if (type != null)
-				encounterTypes.add(type);
-		}
-		
-		Map<Integer, Object> encounterMap = patientSetService.getFirstEncounterAttrsByType(getPatientSetIfNotAllPatients(),
-		    encounterTypes, attr);
+		if (!patientFirstEncounterMap.containsKey(key))
+			patientFirstEncounterMap.put(key, loadFirstEncounterAttrs(types, attr));
 		
-		patientFirstEncounterMap.put(key, encounterMap);
+		return patientFirstEncounterMap.get(key).get(getPatientId());
 		
-		return encounterMap.get(getPatientId());
+	}
+	
+	/**
+	 * @param types encounter type ids or names
+	 * @param attr
+	 * @return patientId -> <code>attr</code> of the first encounter of one of the types
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, Object> loadFirstEncounterAttrs(List<String> types, String attr) {
+		log.debug("getting first encounters for type: " + OpenmrsUtil.join(types, ",") + "|" + attr);
 		
+		return patientSetService.getFirstEncounterAttrsByType(getPatientSetIfNotAllPatients(), getEncounterTypes(types),
+		    attr);
 	}
 	
 	// methods
@@ -518,13 +570,23 @@ public class DataExportFunctions {
 		String key = c.getConceptId() + "";
 		Map<Integer, List<List<Object>>> patientIdObsMap = conceptAttrObsMap.get(key);
 		if (patientIdObsMap == null) {
-			//log.debug("getting obs list for concept: " + c + " and attr: " + attr);
-			patientIdObsMap = patientSetService.getObservationsValues(getPatientSetIfNotAllPatients(), c, attrs);
+			patientIdObsMap = loadObsWithValues(c, attrs);
 			conceptAttrObsMap.put(key, patientIdObsMap);
 		}
 		return patientIdObsMap.get(patientId);
 	}
 	
+	/**
+	 * @param c
+	 * @param attrs the obs attributes to get for each obs, null for the obs value
+	 * @return patientId -> the patient's obs values for concept <code>c</code>
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, List<List<Object>>> loadObsWithValues(Concept c, List<String> attrs) {
+		//log.debug("getting obs list for concept: " + c + " and attr: " + attr);
+		return patientSetService.getObservationsValues(getPatientSetIfNotAllPatients(), c, attrs);
+	}
+	
 	/**
 	 * Gets a patient program given a program ID or program name.
 	 * 
@@ -537,39 +599,56 @@ public class DataExportFunctions {
 		if (programMap.containsKey(programIdOrName)) {
 			patientIdProgramMap = programMap.get(programIdOrName);
 		} else {
-			
-			Program program = null;
-			
-			//
-			// Ticket #912 - Fixed by adding some code to lookup the program by ID
-			//
-			try {
-				Integer programId = Integer.parseInt(programIdOrName);
-				program = Context.getProgramWorkflowService().getProgram(programId);
-			}
-			catch (NumberFormatException e) { /* ignore error because we're going to look the program up by name */}
-			
-			if (program == null) {
-				program = Context.getProgramWorkflowService().getProgramByName(programIdOrName);
-			}
-			patientIdProgramMap = patientSetService.getPatientPrograms(getPatientSetIfNotAllPatients(), program);
+			patientIdProgramMap = loadPrograms(programIdOrName);
 			programMap.put(programIdOrName, patientIdProgramMap);
 		}
 		return patientIdProgramMap.get(patientId);
 	}
 	
+	/**
+	 * @param programIdOrName the identifier or name of the program
+	 * @return patientId -> the patient's enrollment in the program
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, PatientProgram> loadPrograms(String programIdOrName) {
+		Program program = null;
+		
+		//
+		// Ticket #912 - Fixed by adding some code to lookup the program by ID
+		//
+		try {
+			Integer programId = Integer.parseInt(programIdOrName);
+			program = Context.getProgramWorkflowService().getProgram(programId);
+		}
+		catch (NumberFormatException e) { /* ignore error because we're going to look the program up by name */}
+		
+		if (program == null) {
+			program = Context.getProgramWorkflowService().getProgramByName(programIdOrName);
+		}
+		return patientSetService.getPatientPrograms(getPatientSetIfNotAllPatients(), program);
+	}
+	
 	public List<DrugOrder> getCurrentDrugOrders(String drugSetName) {
 		Map<Integer, List<DrugOrder>> patientIdDrugOrderMap;
 		if (currentDrugOrderMap.containsKey(drugSetName)) {
 			patientIdDrugOrderMap = currentDrugOrderMap.get(drugSetName);
 		} else {
-			Concept drugSet = conceptService.getConceptByName(drugSetName);
-			patientIdDrugOrderMap = patientSetService.getCurrentDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+			patientIdDrugOrderMap = loadCurrentDrugOrders(drugSetName);
 			currentDrugOrderMap.put(drugSetName, patientIdDrugOrderMap);
 		}
 		return patientIdDrugOrderMap.get(patientId);
 	}
 	
+	/**
+	 * @param drugSetName
+	 * @return patientId -> the patient's current orders for drugs in the set
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, List<DrugOrder>> loadCurrentDrugOrders(String drugSetName) {
+		Concept drugSet = conceptService.getConceptByName(drugSetName);
+		return patientSetService.getCurrentDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+	}
+	
 	public String getCurrentDrugNames(String drugSetName) {
 		List<DrugOrder> patientOrders = getCurrentDrugOrders(drugSetName);
 		if (patientOrders == null)
@@ -589,13 +668,22 @@ public class DataExportFunctions {
 		if (drugOrderMap.containsKey(drugSetName)) {
 			patientIdDrugOrderMap = drugOrderMap.get(drugSetName);
 		} else {
-			Concept drugSet = conceptService.getConceptByName(drugSetName);
-			patientIdDrugOrderMap = patientSetService.getDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+			patientIdDrugOrderMap = loadDrugOrders(drugSetName);
 			drugOrderMap.put(drugSetName, patientIdDrugOrderMap);
 		}
 		return patientIdDrugOrderMap.get(patientId);
 	}
 	
+	/**
+	 * @param drugSetName
+	 * @return patientId -> the patient's orders for drugs in the set
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, List<DrugOrder>> loadDrugOrders(String drugSetName) {
+		Concept drugSet = conceptService.getConceptByName(drugSetName);
+		return patientSetService.getDrugOrders(getPatientSetIfNotAllPatients(), drugSet);
+	}
+	
 	public Date getEarliestDrugStart(String drugSetName) {
 		List<DrugOrder> patientOrders = getDrugOrders(drugSetName);
 		if (patientOrders == null)
@@ -613,14 +701,23 @@ public class DataExportFunctions {
 		if (relationshipMap.containsKey(relationshipTypeName)) {
 			patientIdRelationshipMap = relationshipMap.get(relationshipTypeName);
 		} else {
-			//log.debug("getting relationship list for type: " + relationshipTypeName);
-			RelationshipType relType = Context.getPersonService().findRelationshipType(relationshipTypeName);
-			patientIdRelationshipMap = patientSetService.getRelationships(getPatientSetIfNotAllPatients(), relType);
+			patientIdRelationshipMap = loadRelationships(relationshipTypeName);
 			relationshipMap.put(relationshipTypeName, patientIdRelationshipMap);
 		}
 		return patientIdRelationshipMap.get(patientId);
 	}
 	
+	/**
+	 * @param relationshipTypeName
+	 * @return patientId -> the patient's relationships of the type
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, List<Relationship>> loadRelationships(String relationshipTypeName) {
+		//log.debug("getting relationship list for type: " + relationshipTypeName);
+		RelationshipType relType = Context.getPersonService().findRelationshipType(relationshipTypeName);
+		return patientSetService.getRelationships(getPatientSetIfNotAllPatients(), relType);
+	}
+	
 	// TODO: revisit this if we change our terminology for relationships
 	public String getRelationshipNames(String relationshipTypeName) {
 		List<Relationship> rels = getRelationships(relationshipTypeName);
@@ -703,15 +800,25 @@ public class DataExportFunctions {
 		if (patientAttributeMap.containsKey(key)) {
 			patientIdAttrMap = patientAttributeMap.get(key);
 		} else {
-			//log.debug("getting patient attrs: " + key);
-			patientIdAttrMap = patientSetService.getPatientAttributes(getPatientSetIfNotAllPatients(), className, property,
-			    returnAll);
+			patientIdAttrMap = loadPatientAttributes(className, property, returnAll);
 			patientAttributeMap.put(key, patientIdAttrMap);
 		}
 		
 		return patientIdAttrMap.get(patientId);
 	}
 	
+	/**
+	 * @param className
+	 * @param property
+	 * @param returnAll
+	 * @return patientId -> the property (or every matching property if returnAll is set)
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, Object> loadPatientAttributes(String className, String property, boolean returnAll) {
+		//log.debug("getting patient attrs: " + className + "." + property);
+		return patientSetService.getPatientAttributes(getPatientSetIfNotAllPatients(), className, property, returnAll);
+	}
+	
 	public Object getPersonAttribute(String attributeName, String joinClass, String joinProperty, String outputColumn,
 	                                 boolean returnAll) {
 		String key = attributeName + "." + joinClass + "." + joinProperty;
@@ -723,14 +830,28 @@ public class DataExportFunctions {
 		if (personAttributeMap.containsKey(key)) {
 			personIdAttrMap = personAttributeMap.get(key);
 		} else {
-			//log.debug("getting patient attrs: " + key);
-			personIdAttrMap = patientSetService.getPersonAttributes(getPatientSetIfNotAllPatients(), attributeName,
-			    joinClass, joinProperty, outputColumn, returnAll);
+			personIdAttrMap = loadPersonAttributes(attributeName, joinClass, joinProperty, outputColumn, returnAll);
 			personAttributeMap.put(key, personIdAttrMap);
 		}
 		return personIdAttrMap.get(patientId);
 	}
 	
+	/**
+	 * @param attributeName
+	 * @param joinClass
+	 * @param joinProperty
+	 * @param outputColumn
+	 * @param returnAll
+	 * @return personId -> the person attribute (or every matching one if returnAll is set)
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, Object> loadPersonAttributes(String attributeName, String joinClass, String joinProperty,
+	                                                    String outputColumn, boolean returnAll) {
+		//log.debug("getting person attrs: " + attributeName);
+		return patientSetService.getPersonAttributes(getPatientSetIfNotAllPatients(), attributeName, joinClass,
+		    joinProperty, outputColumn, returnAll);
+	}
+	
 	public Object getPersonAttribute(String attributeName) {
 		return getPersonAttribute(attributeName, null, null, null, false);
 	}
@@ -990,22 +1111,7 @@ public class DataExportFunctions {
 		if (patientIdentifierMap.containsKey(typeName)) {
 			patientIdentifiers = patientIdentifierMap.get(typeName);
 		} else {
-			PatientIdentifierType type = null;
-			// First try by Integer id
-			try {
-				Integer id = Integer.valueOf(typeName);
-				type = patientService.getPatientIdentifierType(id);
-			}
-			catch (NumberFormatException ex) {}
-			// otherwise get identifier type by the given name
-			if (type == null) {
-				type = patientService.getPatientIdentifierType(typeName);
-			}
-			// Get identifiers by type 
-			patientIdentifiers = patientSetService.getPatientIdentifiersByType(getPatientSetIfNotAllPatients(), type);
-			
-			log.debug("Found identifiers for patient identifier " + type + " = " + patientIdentifiers);
-			
+			patientIdentifiers = loadPatientIdentifiers(typeName);
 			patientIdentifierMap.put(typeName, patientIdentifiers);
 		}
 		
@@ -1013,6 +1119,32 @@ public class DataExportFunctions {
 		
 	}
 	
+	/**
+	 * @param typeName the identifier type id or name
+	 * @return patientId -> the patient's identifier of the type
+	 * @see #loadCohort(String)
+	 */
+	protected Map<Integer, PatientIdentifier> loadPatientIdentifiers(String typeName) {
+		PatientIdentifierType type = null;
+		// First try by Integer id
+		try {
+			Integer id = Integer.valueOf(typeName);
+			type = patientService.getPatientIdentifierType(id);
+		}
+		catch (NumberFormatException ex) {}
+		// otherwise get identifier type by the given name
+		if (type == null) {
+			type = patientService.getPatientIdentifierType(typeName);
+		}
+		// Get identifiers by type 
+		Map<Integer, PatientIdentifier> patientIdentifiers = patientSetService.getPatientIdentifiersByType(
+		    getPatientSetIfNotAllPatients(), type);
+		
+		log.debug("Found identifiers for patient identifier " + type + " = " + patientIdentifiers);
+		
+		return patientIdentifiers;
+	}
+	
 	/**
 	 * Get all obs for the current patient that match this
 	 * <code>obs.concept</code>=<code>concept</code> and
@@ -0,0 +1,271 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.reporting.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records where each patient's rows are in a generated data export file, and when the export was
+ * started (its watermark). An incremental export renders only the rows of patients that changed
+ * after the watermark and copies everyone else's rows out of the previous file. <br/>
+ * <br/>
+ * Positions are counted in characters. A row starts when the template calls
+ * {@link DataExportFunctions#setPatientId(Integer)} and ends where the next one starts, so a
+ * patient's rows include everything the template writes for that patient. <br/>
+ * <br/>
+ * The index is saved as a text file: a line with the watermark (in milliseconds) and the hash of
+ * the export's template, then a line per patient with the patient id, start and length.
+ * 
+ * @see DataExportUtil#getIndexFile(DataExportReportObject)
+ */
+public class DataExportIndex {
+	
+	private Date watermark;
+	
+	private int templateHash;
+	
+	/**
+	 * patient id -> { start, length }, in the order the rows are in the file
+	 */
+	private Map<Integer, long[]> rows = new LinkedHashMap<Integer, long[]>();
+	
+	private CountingWriter writer = null;
+	
+	private Integer currentPatientId = null;
+	
+	private long currentStart = 0;
+	
+	/**
+	 * @param watermark the time the export was started
+	 * @param templateHash the hash of the export's template, so a changed export is not updated
+	 *            incrementally
+	 */
+	public DataExportIndex(Date watermark, int templateHash) {
+		this.watermark = watermark;
+		this.templateHash = templateHash;
+	}
+	
+	/**
+	 * @return the time the export was started
+	 */
+	public Date getWatermark() {
+		return watermark;
+	}
+	
+	/**
+	 * @return the hash of the export's template
+	 */
+	public int getTemplateHash() {
+		return templateHash;
+	}
+	
+	/**
+	 * @return the ids of the patients with rows, in the order the rows are in the file
+	 */
+	public Set<Integer> getPatientIds() {
+		return rows.keySet();
+	}
+	
+	/**
+	 * @param patientId
+	 * @return whether the patient has rows in the file
+	 */
+	public boolean contains(Integer patientId) {
+		return rows.containsKey(patientId);
+	}
+	
+	/**
+	 * @param patientId
+	 * @return the position of the patient's first row
+	 */
+	public long getStart(Integer patientId) {
+		return rows.get(patientId)[0];
+	}
+	
+	/**
+	 * @param patientId
+	 * @return the number of characters in the patient's rows
+	 */
+	public long getLength(Integer patientId) {
+		return rows.get(patientId)[1];
+	}
+	
+	/**
+	 * Starts recording the rows written to the given writer
+	 * 
+	 * @param writer the writer the export is written with
+	 */
+	public void record(CountingWriter writer) {
+		this.writer = writer;
+	}
+	
+	/**
+	 * Ends the current patient's rows (if any) and starts the given patient's at the current
+	 * position of the writer
+	 * 
+	 * @param patientId
+	 */
+	public void startRow(Integer patientId) {
+		endRow();
+		currentPatientId = patientId;
+		currentStart = writer.getCount();
+	}
+	
+	/**
+	 * Ends the current patient's rows at the current position of the writer. Call this after the
+	 * last row is written.
+	 */
+	public void endRow() {
+		if (currentPatientId != null)
+			rows.put(currentPatientId, new long[] { currentStart, writer.getCount() - currentStart });
+		currentPatientId = null;
+	}
+	
+	/**
+	 * Copies a patient's rows from the file this index describes
+	 * 
+	 * @param patientId
+	 * @param reader reading the file, positioned at or before the patient's rows
+	 * @param position the reader's position
+	 * @param out where to copy the rows to
+	 * @return the reader's new position, just after the patient's rows
+	 * @throws IOException if the rows can't be read, or the reader is already past them
+	 * @should copy only the rows of the given patients
+	 * @should fail if the reader is past the rows
+	 */
+	public long copyRows(Integer patientId, Reader reader, long position, Writer out) throws IOException {
+		long start = getStart(patientId);
+		if (start < position)
+			throw new IOException("The rows of patient " + patientId + " are out of order");
+		while (position < start) {
+			long skipped = reader.skip(start - position);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of file before the rows of patient " + patientId);
+			position += skipped;
+		}
+		
+		char[] buffer = new char[8192];
+		long remaining = getLength(patientId);
+		while (remaining > 0) {
+			int read = reader.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0)
+				throw new IOException("Unexpected end of file in the rows of patient " + patientId);
+			out.write(buffer, 0, read);
+			remaining -= read;
+		}
+		return start + getLength(patientId);
+	}
+	
+	/**
+	 * Saves this index
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println(watermark.getTime() + " " + templateHash);
+			for (Map.Entry<Integer, long[]> entry : rows.entrySet())
+				out.println(entry.getKey() + " " + entry.getValue()[0] + " " + entry.getValue()[1]);
+			if (out.checkError())
+				throw new IOException("Unable to write the data export index " + file);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Loads a saved index
+	 * 
+	 * @param file
+	 * @return the index, or null if the file doesn't exist
+	 * @throws IOException if the file can't be read or isn't an index
+	 * @should read an index that was written
+	 */
+	public static DataExportIndex read(File file) throws IOException {
+		if (!file.exists())
+			return null;
+		
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("The data export index " + file + " is empty");
+			String[] fields = line.split(" ");
+			DataExportIndex index = new DataExportIndex(new Date(Long.valueOf(fields[0])), Integer.valueOf(fields[1]));
+			while ((line = in.readLine()) != null) {
+				fields = line.split(" ");
+				index.rows.put(Integer.valueOf(fields[0]), new long[] { Long.valueOf(fields[1]), Long.valueOf(fields[2]) });
+			}
+			return index;
+		}
+		catch (RuntimeException e) {
+			throw new IOException("Unable to read the data export index " + file + ": " + e);
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Counts the characters written through it, so an index can record where rows start
+	 */
+	public static class CountingWriter extends FilterWriter {
+		
+		private long count = 0;
+		
+		public CountingWriter(Writer out) {
+			super(out);
+		}
+		
+		/**
+		 * @return the number of characters written so far
+		 */
+		public long getCount() {
+			return count;
+		}
+		
+		@Override
+		public void write(int c) throws IOException {
+			super.write(c);
+			count++;
+		}
+		
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			super.write(cbuf, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			super.write(str, off, len);
+			count += len;
+		}
+	}
+}
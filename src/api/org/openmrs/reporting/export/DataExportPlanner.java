@@ -0,0 +1,714 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.reporting.export;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Fetches the data for a data export's columns before the export's template is merged. <br/>
+ * <br/>
+ * {@link DataExportFunctions} fetches each column's data for the whole patient set the first time
+ * the column is rendered, so the fetches happen one at a time, in the middle of writing the first
+ * row. {@link #plan(List)} instead reads the <code>$fn</code> calls out of every column's template
+ * up front, and {@link #prefetch(int)} runs all of the fetches (on several threads, if asked to)
+ * and puts the results in the same maps the functions would have filled. Calls whose arguments are
+ * not literals in the template are left for the functions to fetch as before. <br/>
+ * <br/>
+ * Obs are cached by concept only, with the attributes of the first call for the concept, so obs for
+ * a concept are only prefetched when every call for it asks for the same attributes, and none are
+ * prefetched if a column asks for obs of a concept that can't be read from its template. <br/>
+ * <br/>
+ * Only fetches of plain values (like obs values, attributes and cohort members) are run on the
+ * worker threads, and each worker closes its hibernate session as soon as it runs out of fetches.
+ * Fetches of encounters, programs, orders, relationships and identifiers are run on the calling
+ * thread, so their lazy properties can be loaded through its session while the export is rendered.
+ * A value fetch whose result turns out to hold a hibernate object (e.g. a coded obs value) is
+ * fetched again on the calling thread.
+ * 
+ * @see DataExportUtil#generateExport(DataExportReportObject, org.openmrs.Cohort,
+ *      DataExportFunctions, org.openmrs.report.EvaluationContext)
+ */
+public class DataExportPlanner {
+	
+	private Log log = LogFactory.getLog(this.getClass());
+	
+	/**
+	 * Matches the start of a call like <code>$fn.getLastObs(</code>
+	 */
+	private static final Pattern CALL = Pattern.compile("\\bfn\\.(\\w+)\\(");
+	
+	/**
+	 * Matches the start of a <code>#set($name = ...)</code>, with the value if it is a list
+	 */
+	private static final Pattern SET = Pattern.compile("#set\\s*\\(\\s*\\$(\\w+)\\s*=\\s*(\\[[^\\]]*\\])?");
+	
+	/**
+	 * The functions that fetch obs, and so fill the map keyed by concept only
+	 */
+	private static final Set<String> OBS_METHODS = new HashSet<String>(Arrays.asList("getLastObs", "getLastNObs",
+	    "getLastObsWithValues", "getLastNObsWithValues", "getFirstObs", "getFirstObsWithValues", "getFirstNObsWithValues",
+	    "getObsWithValues"));
+	
+	/**
+	 * Stands for an argument that is not a literal in the template
+	 */
+	private static final Object UNKNOWN = new Object();
+	
+	private DataExportFunctions functions;
+	
+	private List<Fetch> fetches = new ArrayList<Fetch>();
+	
+	/**
+	 * functions map -> the keys already planned for it
+	 */
+	private Map<Object, Set<String>> plannedKeys = new IdentityHashMap<Object, Set<String>>();
+	
+	/**
+	 * concept id -> the obs to fetch for it
+	 */
+	private Map<Integer, ObsFetch> obsFetches = new LinkedHashMap<Integer, ObsFetch>();
+	
+	private boolean obsBlocked = false;
+	
+	/**
+	 * list variables set by the templates so far (like the <code>$arr</code> of concept columns)
+	 */
+	private Map<String, List<String>> listVariables = new HashMap<String, List<String>>();
+	
+	private Map<String, Long> valueCounts = new LinkedHashMap<String, Long>();
+	
+	private Map<String, Long> fetchTimes = new LinkedHashMap<String, Long>();
+	
+	/**
+	 * @param functions the functions the export will be rendered with. Its patient set must be set
+	 */
+	public DataExportPlanner(DataExportFunctions functions) {
+		this.functions = functions;
+	}
+	
+	/**
+	 * Reads the fetches out of the given columns' templates, in the order the columns are rendered
+	 * 
+	 * @param columns the export's columns
+	 * @should plan one fetch per distinct key
+	 * @should not plan calls with arguments that are not literals
+	 * @should not plan obs for a concept asked for with different attributes
+	 */
+	public void plan(List<ExportColumn> columns) {
+		for (ExportColumn column : columns) {
+			String template;
+			try {
+				template = column.toTemplateString();
+			}
+			catch (Exception e) {
+				// the error is reported when the template is generated
+				continue;
+			}
+			if (template != null)
+				planTemplate(column.getColumnName(), template);
+		}
+		
+		if (obsBlocked)
+			return;
+		for (Map.Entry<Integer, ObsFetch> entry : obsFetches.entrySet()) {
+			final ObsFetch obsFetch = entry.getValue();
+			if (obsFetch.conflict)
+				continue;
+			addFetch(new ValueFetch(obsFetch.columnName, functions.conceptAttrObsMap, entry.getKey().toString()) {
+				
+				protected Object load() {
+					return functions.loadObsWithValues(obsFetch.concept, obsFetch.attrs);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Runs the planned fetches and puts their results where the functions will find them. A fetch
+	 * that fails is logged and left for the functions to retry when its column is rendered.
+	 * 
+	 * @param threads the number of threads to fetch with. 1 or less fetches on the calling thread
+	 * @throws InterruptedException if interrupted while waiting for the worker threads
+	 * @should fetch the same values on several threads as on the calling thread
+	 */
+	public void prefetch(int threads) throws InterruptedException {
+		if (fetches.isEmpty())
+			return;
+		
+		List<Fetch> valueFetches = new ArrayList<Fetch>();
+		List<Fetch> callerFetches = new ArrayList<Fetch>();
+		for (Fetch fetch : fetches) {
+			if (fetch instanceof ValueFetch)
+				valueFetches.add(fetch);
+			else
+				callerFetches.add(fetch);
+		}
+		
+		long start = System.currentTimeMillis();
+		threads = Math.min(threads, valueFetches.size());
+		if (threads <= 1) {
+			for (Fetch fetch : fetches)
+				fetch.run();
+		} else {
+			final ConcurrentLinkedQueue<Fetch> queue = new ConcurrentLinkedQueue<Fetch>(valueFetches);
+			final List<Fetch> retries = new CopyOnWriteArrayList<Fetch>();
+			final UserContext userContext = Context.getUserContext().copy();
+			final CountDownLatch finished = new CountDownLatch(threads);
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				for (int i = 0; i < threads; i++) {
+					executor.execute(new Runnable() {
+						
+						public void run() {
+							try {
+								Context.setUserContext(userContext);
+								Context.openSession();
+								Fetch fetch;
+								while ((fetch = queue.poll()) != null) {
+									fetch.run();
+									// the session is closed below, so hibernate objects couldn't be lazy loaded
+									if (fetch.result != null && !isPlainValue(fetch.result)) {
+										fetch.result = null;
+										retries.add(fetch);
+									}
+								}
+							}
+							finally {
+								try {
+									Context.closeSession();
+									Context.clearUserContext();
+								}
+								finally {
+									finished.countDown();
+								}
+							}
+						}
+					});
+				}
+				
+				// fetch the hibernate objects into this thread's session meanwhile
+				for (Fetch fetch : callerFetches)
+					fetch.run();
+				finished.await();
+			}
+			finally {
+				executor.shutdownNow();
+			}
+			
+			for (Fetch fetch : retries) {
+				log.debug("Fetching '" + fetch.key + "' for column '" + fetch.columnName + "' again on the calling thread");
+				fetch.run();
+			}
+		}
+		
+		for (Fetch fetch : fetches) {
+			if (fetch.result != null && !fetch.cache.containsKey(fetch.key))
+				fetch.store();
+			
+			Long count = valueCounts.get(fetch.columnName);
+			valueCounts.put(fetch.columnName, (count == null ? 0 : count) + fetch.valueCount);
+			Long time = fetchTimes.get(fetch.columnName);
+			fetchTimes.put(fetch.columnName, (time == null ? 0 : time) + fetch.time);
+		}
+		
+		if (log.isInfoEnabled()) {
+			for (Map.Entry<String, Long> entry : valueCounts.entrySet())
+				log.info("Prefetched " + entry.getValue() + " values for column '" + entry.getKey() + "' in "
+				        + fetchTimes.get(entry.getKey()) + " ms");
+			log.info("Prefetched " + fetches.size() + " fetches on " + Math.max(threads, 1) + " thread(s) in "
+			        + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+	
+	/**
+	 * @return the number of fetches planned so far
+	 */
+	public int getFetchCount() {
+		return fetches.size();
+	}
+	
+	/**
+	 * @return column name -> the number of values prefetched for the column. Values in
+	 *         collections (like a patient's obs) are counted one by one, as a rough measure of the
+	 *         memory each column holds while the export is written.
+	 */
+	public Map<String, Long> getValueCounts() {
+		return valueCounts;
+	}
+	
+	/**
+	 * @return column name -> the milliseconds spent fetching the column's values
+	 */
+	public Map<String, Long> getFetchTimes() {
+		return fetchTimes;
+	}
+	
+	/**
+	 * Plans the calls in one column's template
+	 * 
+	 * @param columnName
+	 * @param template
+	 */
+	private void planTemplate(String columnName, String template) {
+		Matcher set = SET.matcher(template);
+		int setStart = set.find() ? set.start() : -1;
+		
+		Matcher call = CALL.matcher(template);
+		while (call.find()) {
+			// apply the #sets that come before this call
+			while (setStart >= 0 && setStart < call.start()) {
+				List<Object> list = set.group(2) == null ? null : parseList(set.group(2));
+				if (list == null || list.contains(UNKNOWN))
+					listVariables.remove(set.group(1));
+				else
+					listVariables.put(set.group(1), toStrings(list));
+				setStart = set.find() ? set.start() : -1;
+			}
+			
+			List<Object> args = parseArguments(template, call.end());
+			if (args == null)
+				args = Arrays.asList(UNKNOWN);
+			planCall(columnName, call.group(1), args);
+		}
+	}
+	
+	/**
+	 * Plans the fetch a call to the given function would make
+	 * 
+	 * @param columnName
+	 * @param method the function name
+	 * @param args the arguments, {@link #UNKNOWN} for those that are not literals
+	 */
+	private void planCall(String columnName, String method, List<Object> args) {
+		if (OBS_METHODS.contains(method)) {
+			planObs(columnName, method, args);
+			return;
+		}
+		
+		final String first = getString(args, 0);
+		
+		if ("getLastEncounter".equals(method) && first != null) {
+			addFetch(new Fetch(columnName, functions.patientEncounterMap, first) {
+				
+				protected Object load() {
+					return functions.loadLastEncounters(first);
+				}
+			});
+		} else if ("getFirstEncounter".equals(method) && first != null) {
+			addFetch(new Fetch(columnName, functions.patientFirstEncounterMap, first) {
+				
+				protected Object load() {
+					return functions.loadFirstEncounters(first);
+				}
+			});
+		} else if (("getLastEncounterAttr".equals(method) || "getFirstEncounterAttr".equals(method))
+		        && args.size() == 2 && args.get(0) instanceof List && getString(args, 1) != null) {
+			final List<String> types = toStrings((List<?>) args.get(0));
+			final String attr = getString(args, 1);
+			String key = OpenmrsUtil.join(types, ",") + "|" + attr;
+			if ("getLastEncounterAttr".equals(method)) {
+				addFetch(new ValueFetch(columnName, functions.patientEncounterMap, key) {
+					
+					protected Object load() {
+						return functions.loadLastEncounterAttrs(types, attr);
+					}
+				});
+			} else {
+				addFetch(new ValueFetch(columnName, functions.patientFirstEncounterMap, key) {
+					
+					protected Object load() {
+						return functions.loadFirstEncounterAttrs(types, attr);
+					}
+				});
+			}
+		} else if ("getProgram".equals(method) && first != null) {
+			addFetch(new Fetch(columnName, functions.programMap, first) {
+				
+				protected Object load() {
+					return functions.loadPrograms(first);
+				}
+			});
+		} else if (("getCurrentDrugOrders".equals(method) || "getCurrentDrugNames".equals(method)) && first != null) {
+			addFetch(new Fetch(columnName, functions.currentDrugOrderMap, first) {
+				
+				protected Object load() {
+					return functions.loadCurrentDrugOrders(first);
+				}
+			});
+		} else if (("getDrugOrders".equals(method) || "getEarliestDrugStart".equals(method)) && first != null) {
+			addFetch(new Fetch(columnName, functions.drugOrderMap, first) {
+				
+				protected Object load() {
+					return functions.loadDrugOrders(first);
+				}
+			});
+		} else if (method.startsWith("getRelationship") && args.size() == 1 && first != null) {
+			addFetch(new Fetch(columnName, functions.relationshipMap, first) {
+				
+				protected Object load() {
+					return functions.loadRelationships(first);
+				}
+			});
+		} else if ("getPatientAttr".equals(method) && (args.size() == 2 || args.size() == 3) && first != null
+		        && getString(args, 1) != null) {
+			final String property = getString(args, 1);
+			final boolean returnAll = args.size() == 3 && Boolean.TRUE.equals(args.get(2));
+			if (args.size() == 3 && !(args.get(2) instanceof Boolean))
+				return;
+			addFetch(new ValueFetch(columnName, functions.patientAttributeMap, first + "." + property
+			        + (returnAll ? "--all" : "")) {
+				
+				protected Object load() {
+					return functions.loadPatientAttributes(first, property, returnAll);
+				}
+			});
+		} else if ("getPersonAttribute".equals(method) && args.size() == 1 && first != null) {
+			addFetch(new ValueFetch(columnName, functions.personAttributeMap, first + ".null.null") {
+				
+				protected Object load() {
+					return functions.loadPersonAttributes(first, null, null, null, false);
+				}
+			});
+		} else if ("getPersonAttribute".equals(method) && args.size() == 5 && first != null && getString(args, 1) != null
+		        && getString(args, 2) != null && getString(args, 3) != null && args.get(4) instanceof Boolean) {
+			final String joinClass = getString(args, 1);
+			final String joinProperty = getString(args, 2);
+			final String outputColumn = getString(args, 3);
+			final boolean returnAll = (Boolean) args.get(4);
+			addFetch(new ValueFetch(columnName, functions.personAttributeMap, first + "." + joinClass + "." + joinProperty
+			        + (returnAll ? "--all" : "")) {
+				
+				protected Object load() {
+					return functions.loadPersonAttributes(first, joinClass, joinProperty, outputColumn, returnAll);
+				}
+			});
+		} else if ("getPatientIdentifier".equals(method) && first != null) {
+			addFetch(new Fetch(columnName, functions.patientIdentifierMap, first) {
+				
+				protected Object load() {
+					return functions.loadPatientIdentifiers(first);
+				}
+			});
+		} else if (method.endsWith("Membership") && args.size() == 3 && args.get(0) instanceof Integer) {
+			String prefix;
+			if ("getCohortMembership".equals(method))
+				prefix = "C.";
+			else if ("getCohortDefinitionMembership".equals(method))
+				prefix = "F.";
+			else if ("getPatientSearchMembership".equals(method))
+				prefix = "S.";
+			else
+				return;
+			final String key = prefix + args.get(0);
+			addFetch(new ValueFetch(columnName, functions.cohortMap, key) {
+				
+				protected Object load() {
+					return functions.loadCohort(key);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Notes the concept and attributes an obs function would fetch with
+	 * 
+	 * @param columnName
+	 * @param method one of {@link #OBS_METHODS}
+	 * @param args
+	 */
+	private void planObs(String columnName, String method, List<Object> args) {
+		int conceptIndex = method.contains("NObs") ? 1 : 0;
+		String conceptName = "getObsWithValues".equals(method) ? null : getString(args, conceptIndex);
+		if (conceptName == null) {
+			obsBlocked = true;
+			return;
+		}
+		
+		// the attributes the function passes to getObsWithValues
+		List<String> attrs = new Vector<String>();
+		if (method.endsWith("WithValues")) {
+			if (args.size() <= conceptIndex + 1 || !(args.get(conceptIndex + 1) instanceof List)) {
+				obsBlocked = true;
+				return;
+			}
+			attrs.add(null);
+			attrs.addAll(toStrings((List<?>) args.get(conceptIndex + 1)));
+		} else if (!"getFirstObs".equals(method)) {
+			attrs.add(null);
+		}
+		
+		Concept concept;
+		try {
+			concept = functions.getConcept(conceptName);
+		}
+		catch (Exception e) {
+			// the column will fail the same way when it is rendered
+			return;
+		}
+		
+		ObsFetch obsFetch = obsFetches.get(concept.getConceptId());
+		if (obsFetch == null)
+			obsFetches.put(concept.getConceptId(), new ObsFetch(columnName, concept, attrs));
+		else if (!obsFetch.attrs.equals(attrs))
+			obsFetch.conflict = true;
+	}
+	
+	/**
+	 * Adds a fetch unless its key is already cached or planned
+	 * 
+	 * @param fetch
+	 */
+	private void addFetch(Fetch fetch) {
+		if (fetch.cache.containsKey(fetch.key))
+			return;
+		Set<String> keys = plannedKeys.get(fetch.cache);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			plannedKeys.put(fetch.cache, keys);
+		}
+		if (keys.add(fetch.key))
+			fetches.add(fetch);
+	}
+	
+	/**
+	 * Reads the arguments of a call
+	 * 
+	 * @param template
+	 * @param start the index just after the call's opening parenthesis
+	 * @return the parsed arguments, or null if the call isn't closed
+	 */
+	private List<Object> parseArguments(String template, int start) {
+		List<Object> args = new ArrayList<Object>();
+		int depth = 0;
+		char quote = 0;
+		int argStart = start;
+		for (int i = start; i < template.length(); i++) {
+			char c = template.charAt(i);
+			if (quote != 0) {
+				if (c == quote)
+					quote = 0;
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+			} else if (c == '(' || c == '[') {
+				depth++;
+			} else if ((c == ')' || c == ']') && depth > 0) {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				args.add(parseArgument(template.substring(argStart, i)));
+				argStart = i + 1;
+			} else if (c == ')') {
+				String last = template.substring(argStart, i);
+				if (args.size() > 0 || last.trim().length() > 0)
+					args.add(parseArgument(last));
+				return args;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @param arg the argument as written in the template
+	 * @return the argument's String, Integer, Boolean or List value, or {@link #UNKNOWN}
+	 */
+	private Object parseArgument(String arg) {
+		arg = arg.trim();
+		if (arg.length() >= 2 && arg.charAt(0) == '\'' && arg.endsWith("'"))
+			return arg.substring(1, arg.length() - 1);
+		// double quoted strings are interpolated
+		if (arg.length() >= 2 && arg.charAt(0) == '"' && arg.endsWith("\"") && arg.indexOf('$') < 0)
+			return arg.substring(1, arg.length() - 1);
+		if (arg.matches("-?\\d+"))
+			return Integer.valueOf(arg);
+		if ("true".equals(arg) || "false".equals(arg))
+			return Boolean.valueOf(arg);
+		if (arg.startsWith("[") && arg.endsWith("]")) {
+			List<Object> list = parseList(arg);
+			return list == null || list.contains(UNKNOWN) ? UNKNOWN : list;
+		}
+		if (arg.startsWith("$")) {
+			String name = arg.replaceAll("[$!{}]", "");
+			if (listVariables.containsKey(name))
+				return new ArrayList<String>(listVariables.get(name));
+		}
+		return UNKNOWN;
+	}
+	
+	/**
+	 * @param list a list literal like <code>['a', 'b']</code>
+	 * @return the parsed items, or null if it isn't a list literal
+	 */
+	private List<Object> parseList(String list) {
+		String items = list.trim();
+		items = items.substring(1, items.length() - 1);
+		if (items.trim().length() == 0)
+			return new ArrayList<Object>();
+		return parseArguments(items + ")", 0);
+	}
+	
+	private List<String> toStrings(List<?> list) {
+		List<String> ret = new ArrayList<String>();
+		for (Object o : list)
+			ret.add(o instanceof String ? (String) o : String.valueOf(o));
+		return ret;
+	}
+	
+	private String getString(List<Object> args, int index) {
+		if (index < args.size() && args.get(index) instanceof String)
+			return (String) args.get(index);
+		return null;
+	}
+	
+	/**
+	 * @param o a fetched map or collection
+	 * @return the number of values in it, counting the items of nested collections
+	 */
+	private static long countValues(Object o) {
+		long count = 0;
+		if (o instanceof Map) {
+			for (Object value : ((Map<?, ?>) o).values())
+				count += countValues(value);
+		} else if (o instanceof Iterable) {
+			for (Object value : (Iterable<?>) o)
+				count += countValues(value);
+		} else {
+			count = 1;
+		}
+		return count;
+	}
+	
+	/**
+	 * @param o a fetched map or collection
+	 * @return true if it only holds strings, numbers, dates and the like, which can be used after
+	 *         the session that fetched them is closed
+	 */
+	private static boolean isPlainValue(Object o) {
+		if (o instanceof Map) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+				if (!isPlainValue(entry.getKey()) || !isPlainValue(entry.getValue()))
+					return false;
+			}
+			return true;
+		} else if (o instanceof Collection) {
+			for (Object value : (Collection<?>) o) {
+				if (!isPlainValue(value))
+					return false;
+			}
+			return true;
+		}
+		return o == null || o instanceof String || o instanceof Number || o instanceof Boolean || o instanceof Date
+		        || o instanceof Character;
+	}
+	
+	/**
+	 * One column's fetch for the whole patient set, and where its result goes
+	 */
+	private abstract class Fetch {
+		
+		private String columnName;
+		
+		private Map<String, ?> cache;
+		
+		private String key;
+		
+		private Object result = null;
+		
+		private long valueCount = 0;
+		
+		private long time = 0;
+		
+		public Fetch(String columnName, Map<String, ?> cache, String key) {
+			this.columnName = columnName;
+			this.cache = cache;
+			this.key = key;
+		}
+		
+		/**
+		 * Fetches the values, using one of the functions' load methods
+		 */
+		protected abstract Object load() throws Exception;
+		
+		public void run() {
+			long start = System.currentTimeMillis();
+			try {
+				result = load();
+				valueCount = countValues(result);
+			}
+			catch (Exception e) {
+				log.warn("Unable to prefetch '" + key + "' for column '" + columnName
+				        + "'. It will be fetched when the column is rendered", e);
+			}
+			time = System.currentTimeMillis() - start;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public void store() {
+			((Map<String, Object>) cache).put(key, result);
+		}
+	}
+	
+	/**
+	 * A fetch of plain values rather than hibernate objects, so it may be run on a worker thread
+	 */
+	private abstract class ValueFetch extends Fetch {
+		
+		public ValueFetch(String columnName, Map<String, ?> cache, String key) {
+			super(columnName, cache, key);
+		}
+	}
+	
+	/**
+	 * The obs to fetch for one concept
+	 */
+	private static class ObsFetch {
+		
+		private String columnName;
+		
+		private Concept concept;
+		
+		private List<String> attrs;
+		
+		private boolean conflict = false;
+		
+		public ObsFetch(String columnName, Concept concept, List<String> attrs) {
+			this.columnName = columnName;
+			this.concept = concept;
+			this.attrs = attrs;
+		}
+	}
+}
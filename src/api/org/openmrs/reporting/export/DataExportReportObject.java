@@ -151,6 +151,16 @@ public class DataExportReportObject extends AbstractReportObject implements Seri
 	 * @return template string to be evaluated
 	 */
 	public String generateTemplate() {
+		return generateHeaderTemplate() + generateRowsTemplate();
+	}
+	
+	/**
+	 * Generate the part of the template that prints the column headers
+	 * 
+	 * @return template string to be evaluated once per export
+	 * @see #generateTemplate()
+	 */
+	public String generateHeaderTemplate() {
 		StringBuilder sb = new StringBuilder();
 		
 		// print out the columns
@@ -164,6 +174,19 @@ public class DataExportReportObject extends AbstractReportObject implements Seri
 		
 		sb.append("\n");
 		
+		return sb.toString();
+	}
+	
+	/**
+	 * Generate the part of the template that prints a row for each patient in the patientSet
+	 * object. Large exports evaluate this once per chunk of patients.
+	 * 
+	 * @return template string to be evaluated
+	 * @see #generateTemplate()
+	 */
+	public String generateRowsTemplate() {
+		StringBuilder sb = new StringBuilder();
+		
 		// print out the data
 		
 		sb.append("$!{fn.setPatientSet($patientSet)}");
@@ -13,24 +13,44 @@
  */
 package org.openmrs.reporting.export;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
 import org.apache.velocity.runtime.log.CommonsLogLogChute;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.app.event.EventCartridge;
 import org.apache.velocity.app.event.MethodExceptionEventHandler;
 import org.openmrs.Cohort;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.export.DataExportIndex.CountingWriter;
+import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
 
 /**
@@ -40,6 +60,25 @@ public class DataExportUtil {
 	
 	private static HashMap<String, Object> dataExportKeys = new HashMap<String, Object>();
 	
+	/**
+	 * Shared by all exports, created the first time an export is generated
+	 */
+	private static RuntimeInstance velocityEngine = null;
+	
+	/**
+	 * report object id + "." + part -> the last parsed template of that part of the export
+	 */
+	private static Map<String, CachedTemplate> templateCache = new HashMap<String, CachedTemplate>();
+	
+	/**
+	 * Matches the functions whose values can change without
+	 * {@link org.openmrs.api.PatientSetService#getPatientsChangedSince(Date)} noticing: those that
+	 * read encounters or orders, which can be changed in place, ages, which change with the date,
+	 * and cohort memberships, which change when the cohort or its definition does
+	 */
+	private static final Pattern UNTRACKED_FUNCTIONS = Pattern
+	        .compile("\\bfn\\.(get(Last|First)Encounter|get(Current)?Drug(Orders|Names)|getEarliestDrugStart|calculateAge|get(Cohort|CohortDefinition|PatientSearch)Membership)\\w*\\(");
+	
 	/**
 	 * Allows a module or some other service to add things to the available keys in the velocity
 	 * context
@@ -128,6 +167,8 @@ public class DataExportUtil {
 	 * @param functions
 	 * @param context
 	 * @throws Exception
+	 * @should write the same rows when exporting in chunks
+	 * @should write the same rows in the same order when exporting on several threads
 	 */
 	public static void generateExport(DataExportReportObject dataExport, Cohort patientSet, DataExportFunctions functions,
 	                                  EvaluationContext context) throws Exception {
@@ -135,24 +176,23 @@ public class DataExportUtil {
 		// defining log file here to attempt to reduce memory consumption
 		Log log = LogFactory.getLog(DataExportUtil.class);
 		
-		VelocityEngine velocityEngine = new VelocityEngine();
-
-        velocityEngine.setProperty( RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
-                    "org.apache.velocity.runtime.log.CommonsLogLogChute" );
-        velocityEngine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME,
-                        "dataexport_velocity");
-		
-		try {
-			velocityEngine.init();
-		}
-		catch (Exception e) {
-			log.error("Error initializing Velocity engine", e);
-		}
+		// anything changed after this is picked up by the next incremental export
+		Date started = new Date();
 		
 		File file = getGeneratedFile(dataExport);
-		PrintWriter report = new PrintWriter(file);
+		File indexFile = getIndexFile(dataExport);
+		boolean incremental = isIncrementalExport();
 		
-		VelocityContext velocityContext = new VelocityContext();
+		// incremental exports are written next to the previous file, which they copy rows from
+		File outputFile = incremental ? new File(file.getPath() + ".tmp") : file;
+		CountingWriter counter = null;
+		PrintWriter report;
+		if (incremental) {
+			counter = new CountingWriter(new BufferedWriter(new FileWriter(outputFile)));
+			report = new PrintWriter(counter);
+		} else {
+			report = new PrintWriter(file);
+		}
 		
 		// Set up list of patients if one wasn't passed into this method
 		if (patientSet == null) {
@@ -160,37 +200,71 @@ public class DataExportUtil {
 			functions.setAllPatients(dataExport.isAllPatients());
 		}
 		
-		// add the error handler
-		EventCartridge ec = new EventCartridge();
-		ec.addEventHandler(new VelocityExceptionHandler());
-		velocityContext.attachEventCartridge(ec);
-		
-		// Set up velocity utils
-		Locale locale = Context.getLocale();
-		velocityContext.put("locale", locale);
-		velocityContext.put("fn", functions);
-		
-		/*
-		 * If we have any additional velocity objects that need to 
-		 * be added, do so here.
-		 */
-		if (dataExportKeys != null && dataExportKeys.size() != 0) {
-			for (Map.Entry<String, Object> entry : dataExportKeys.entrySet()) {
-				velocityContext.put(entry.getKey(), entry.getValue());
-			}
-		}
-		
-		velocityContext.put("patientSet", patientSet);
+		VelocityContext velocityContext = createVelocityContext(functions, patientSet);
 		
 		String template = dataExport.generateTemplate();
 		
 		if (log.isDebugEnabled())
 			log.debug("Template: " + template.substring(0, template.length() < 3500 ? template.length() : 3500) + "...");
 		
+		int chunkSize = getChunkSize();
+		int threads = getExportThreads();
+		
+		DataExportIndex index = null;
+		DataExportIndex previousIndex = null;
+		if (incremental) {
+			String templateHashSource = template + functions.getSeparator();
+			index = new DataExportIndex(started, templateHashSource.hashCode());
+			index.record(counter);
+			if (file.exists()) {
+				try {
+					previousIndex = DataExportIndex.read(indexFile);
+					if (previousIndex != null && previousIndex.getTemplateHash() != index.getTemplateHash())
+						previousIndex = null;
+					if (previousIndex != null && UNTRACKED_FUNCTIONS.matcher(template).find()) {
+						log.info("Exporting all patients, since the export reads values that can change without the patient changing");
+						previousIndex = null;
+					}
+				}
+				catch (IOException e) {
+					log.warn("Unable to read the index of the previous export. Exporting all patients", e);
+				}
+			}
+		}
+		boolean failed = false;
+		
 		try {
-			velocityEngine.evaluate(velocityContext, report, DataExportUtil.class.getName(), template);
+			if (previousIndex != null) {
+				exportIncrementally(dataExport, patientSet, functions, velocityContext, report, file, previousIndex, index);
+			} else if (threads > 1 && !incremental && patientSet.size() > 1) {
+				getTemplate(dataExport, "header", dataExport.generateHeaderTemplate()).merge(velocityContext, report);
+				int partitionSize = chunkSize > 0 ? chunkSize : (patientSet.size() + threads - 1) / threads;
+				exportInParallel(dataExport, patientSet, functions.getSeparator(), report, partitionSize, threads);
+			} else if (chunkSize > 0 && patientSet.size() > chunkSize) {
+				// write the rows a chunk of patients at a time, so only one chunk's data is held in memory
+				functions.setIndex(index);
+				getTemplate(dataExport, "header", dataExport.generateHeaderTemplate()).merge(velocityContext, report);
+				String rowsTemplate = dataExport.generateRowsTemplate();
+				functions.setAllPatients(false);
+				List<Integer> patientIds = new ArrayList<Integer>(patientSet.getMemberIds());
+				for (int start = 0; start < patientIds.size(); start += chunkSize) {
+					Cohort chunk = new Cohort(patientIds.subList(start, Math.min(start + chunkSize, patientIds.size())));
+					log.debug("Exporting patients " + start + " to " + (start + chunk.size()) + " of " + patientIds.size());
+					velocityContext.put("patientSet", chunk);
+					merge(dataExport, chunk, functions, velocityContext, report, "rows", rowsTemplate, getPrefetchThreads());
+					report.flush();
+					functions.clearCache();
+					Context.clearSession();
+				}
+			} else {
+				functions.setIndex(index);
+				merge(dataExport, patientSet, functions, velocityContext, report, "export", template, getPrefetchThreads());
+			}
+			if (index != null)
+				index.endRow();
 		}
 		catch (Exception e) {
+			failed = true;
 			log.error("Error evaluating data export " + dataExport.getReportObjectId(), e);
 			log.error("Template: " + template.substring(0, template.length() < 3500 ? template.length() : 3500) + "...");
 			report.print("\n\nError: \n" + e.toString() + "\n Stacktrace: \n");
@@ -198,16 +272,19 @@ public class DataExportUtil {
 		}
 		finally {
 			report.close();
+			if (incremental) {
+				// an export that failed has its error in the file, and the next export starts over
+				indexFile.delete();
+				file.delete();
+				if (!outputFile.renameTo(file))
+					log.error("Unable to move " + outputFile + " to " + file);
+				else if (!failed)
+					index.write(indexFile);
+			}
 			velocityContext.remove("fn");
 			velocityContext.remove("patientSet");
 			velocityContext = null;
 			
-			// reset the ParserPool to something else now?
-			// using this to get to RuntimeInstance.init();
-			velocityEngine.init();
-			
-			velocityEngine = null;
-			
 			patientSet = null;
 			functions.clear();
 			functions = null;
@@ -223,6 +300,391 @@ public class DataExportUtil {
 		
 	}
 	
+	/**
+	 * Writes an export by rendering the rows of only the patients that changed since the previous
+	 * export (or are new to the export) and copying every other patient's rows out of the previous
+	 * export's file. Patients no longer in the export's cohort are dropped.
+	 * 
+	 * @param dataExport
+	 * @param patientSet the patients to export
+	 * @param functions
+	 * @param velocityContext
+	 * @param report the writer the export is written to
+	 * @param previousFile the previous export's file
+	 * @param previousIndex where the rows are in the previous file
+	 * @param index records where the rows are in the new file
+	 * @throws Exception
+	 */
+	private static void exportIncrementally(DataExportReportObject dataExport, Cohort patientSet,
+	                                        DataExportFunctions functions, VelocityContext velocityContext,
+	                                        PrintWriter report, File previousFile, DataExportIndex previousIndex,
+	                                        DataExportIndex index) throws Exception {
+		Set<Integer> changed = Context.getPatientSetService().getPatientsChangedSince(previousIndex.getWatermark())
+		        .getMemberIds();
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (Integer patientId : patientSet.getMemberIds())
+			if (changed.contains(patientId) || !previousIndex.contains(patientId))
+				patientIds.add(patientId);
+		LogFactory.getLog(DataExportUtil.class).info(
+		    "Exporting " + patientIds.size() + " of " + patientSet.size() + " patients for " + dataExport.getName()
+		            + ", the others have not changed since " + previousIndex.getWatermark());
+		
+		File changedFile = new File(previousFile.getPath() + ".changed");
+		DataExportIndex changedIndex = new DataExportIndex(index.getWatermark(), index.getTemplateHash());
+		try {
+			// render the changed patients' rows into a file of their own
+			if (!patientIds.isEmpty()) {
+				CountingWriter counter = new CountingWriter(new BufferedWriter(new FileWriter(changedFile)));
+				PrintWriter changedRows = new PrintWriter(counter);
+				try {
+					Cohort changedPatients = new Cohort(patientIds);
+					changedIndex.record(counter);
+					functions.setIndex(changedIndex);
+					functions.setAllPatients(false);
+					velocityContext.put("patientSet", changedPatients);
+					merge(dataExport, changedPatients, functions, velocityContext, changedRows, "rows", dataExport
+					        .generateRowsTemplate(), getPrefetchThreads());
+					changedIndex.endRow();
+				}
+				finally {
+					functions.setIndex(null);
+					changedRows.close();
+				}
+			}
+			
+			// then copy each patient's rows from whichever file has them, in cohort order
+			getTemplate(dataExport, "header", dataExport.generateHeaderTemplate()).merge(velocityContext, report);
+			Reader previousRows = new BufferedReader(new FileReader(previousFile));
+			Reader changedRows = patientIds.isEmpty() ? null : new BufferedReader(new FileReader(changedFile));
+			try {
+				long previousPosition = 0;
+				long changedPosition = 0;
+				for (Integer patientId : patientSet.getMemberIds()) {
+					if (changedIndex.contains(patientId)) {
+						index.startRow(patientId);
+						changedPosition = changedIndex.copyRows(patientId, changedRows, changedPosition, report);
+					} else if (previousIndex.contains(patientId)) {
+						index.startRow(patientId);
+						previousPosition = previousIndex.copyRows(patientId, previousRows, previousPosition, report);
+					}
+				}
+			}
+			finally {
+				previousRows.close();
+				if (changedRows != null)
+					changedRows.close();
+			}
+		}
+		finally {
+			changedFile.delete();
+		}
+	}
+	
+	/**
+	 * Sets up the velocity context an export's template is merged with
+	 * 
+	 * @param functions the functions available as $fn
+	 * @param patientSet the patients available as $patientSet
+	 * @return the new context
+	 */
+	private static VelocityContext createVelocityContext(DataExportFunctions functions, Cohort patientSet) {
+		VelocityContext velocityContext = new VelocityContext();
+		
+		// add the error handler
+		EventCartridge ec = new EventCartridge();
+		ec.addEventHandler(new VelocityExceptionHandler());
+		velocityContext.attachEventCartridge(ec);
+		
+		// Set up velocity utils
+		Locale locale = Context.getLocale();
+		velocityContext.put("locale", locale);
+		velocityContext.put("fn", functions);
+		
+		/*
+		 * If we have any additional velocity objects that need to 
+		 * be added, do so here.
+		 */
+		if (dataExportKeys != null && dataExportKeys.size() != 0) {
+			for (Map.Entry<String, Object> entry : dataExportKeys.entrySet()) {
+				velocityContext.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		velocityContext.put("patientSet", patientSet);
+		
+		return velocityContext;
+	}
+	
+	/**
+	 * Splits the patients into partitions of ascending patient ids and writes the rows of each
+	 * partition to its own part file, several partitions at a time. Each worker thread has its own
+	 * DataExportFunctions and hibernate session and runs as the calling user. The part files are
+	 * then appended to the report in order, so the rows come out in the same order as they would
+	 * on one thread.
+	 * 
+	 * @param dataExport
+	 * @param patientSet the patients to write rows for
+	 * @param separator the column separator of the workers' functions
+	 * @param report the writer the rows are appended to
+	 * @param partitionSize the number of patients in each partition
+	 * @param threads the number of worker threads
+	 * @throws Exception if a partition can't be written
+	 */
+	private static void exportInParallel(final DataExportReportObject dataExport, Cohort patientSet,
+	                                     final String separator, PrintWriter report, int partitionSize, int threads)
+	                                                                                                                 throws Exception {
+		final String rowsTemplate = dataExport.generateRowsTemplate();
+		List<Integer> patientIds = new ArrayList<Integer>(patientSet.getMemberIds());
+		File dir = getGeneratedFile(dataExport).getParentFile();
+		
+		final UserContext userContext = Context.getUserContext().copy();
+		List<File> partFiles = new ArrayList<File>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<File>> futures = new ArrayList<Future<File>>();
+			for (int start = 0; start < patientIds.size(); start += partitionSize) {
+				final Cohort partition = new Cohort(patientIds.subList(start, Math.min(start + partitionSize, patientIds
+				        .size())));
+				final File partFile = File.createTempFile("dataExport", ".part", dir);
+				partFiles.add(partFile);
+				futures.add(executor.submit(new Callable<File>() {
+					
+					public File call() throws Exception {
+						Context.setUserContext(userContext);
+						Context.openSession();
+						try {
+							PrintWriter part = new PrintWriter(partFile);
+							try {
+								DataExportFunctions functions = new DataExportFunctions();
+								functions.setSeparator(separator);
+								VelocityContext velocityContext = createVelocityContext(functions, partition);
+								// the worker threads already run in parallel, so each fetches its own columns
+								merge(dataExport, partition, functions, velocityContext, part, "rows", rowsTemplate, 1);
+								if (part.checkError())
+									throw new IOException("Unable to write the data export part file " + partFile);
+								functions.clear();
+								return partFile;
+							}
+							finally {
+								part.close();
+							}
+						}
+						finally {
+							Context.closeSession();
+							Context.clearUserContext();
+						}
+					}
+				}));
+			}
+			
+			char[] buffer = new char[8192];
+			for (Future<File> future : futures) {
+				Reader reader = new FileReader(future.get());
+				try {
+					int read;
+					while ((read = reader.read(buffer)) > 0)
+						report.write(buffer, 0, read);
+				}
+				finally {
+					reader.close();
+				}
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+		finally {
+			executor.shutdownNow();
+			for (File partFile : partFiles)
+				partFile.delete();
+		}
+	}
+	
+	/**
+	 * Fetches the columns of the given patients and then merges the template for them
+	 * 
+	 * @param dataExport
+	 * @param patientSet the patients the template is merged for
+	 * @param functions
+	 * @param velocityContext
+	 * @param report the writer the output is appended to
+	 * @param part the part of the export the template is, for caching it
+	 * @param template
+	 * @param prefetchThreads the number of threads to fetch the columns with
+	 * @throws Exception
+	 */
+	private static void merge(DataExportReportObject dataExport, Cohort patientSet, DataExportFunctions functions,
+	                          VelocityContext velocityContext, PrintWriter report, String part, String template,
+	                          int prefetchThreads) throws Exception {
+		// fetch the columns up front. row per obs exports fetch their obs per patient
+		DataExportPlanner planner = null;
+		if (!(dataExport instanceof RowPerObsDataExportReportObject) && !patientSet.isEmpty()) {
+			functions.setPatientSet(patientSet);
+			planner = new DataExportPlanner(functions);
+			planner.plan(dataExport.getColumns());
+		}
+		
+		if (planner != null)
+			planner.prefetch(prefetchThreads);
+		getTemplate(dataExport, part, template).merge(velocityContext, report);
+	}
+	
+	/**
+	 * Fetch whether exports should be updated incrementally from the global properties table
+	 * 
+	 * @return true if only the rows of changed patients should be rendered again
+	 */
+	private static boolean isIncrementalExport() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_INCREMENTAL);
+		return "true".equalsIgnoreCase(value == null ? null : value.trim());
+	}
+	
+	/**
+	 * Fetch the number of threads to write export rows with from the global properties table
+	 * 
+	 * @return the number of export threads (1 means write the rows on the calling thread)
+	 */
+	private static int getExportThreads() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_THREADS);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				LogFactory.getLog(DataExportUtil.class).warn(
+				    "Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_THREADS
+				            + " to a valid integer. Exporting on one thread");
+			}
+		}
+		return 1;
+	}
+	
+	/**
+	 * Fetch the number of patients to export at a time from the global properties table
+	 * 
+	 * @return the chunk size (0 means export all of the patients at once)
+	 */
+	private static int getChunkSize() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				LogFactory.getLog(DataExportUtil.class).warn(
+				    "Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE
+				            + " to a valid integer. Exporting all patients at once");
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Fetch the number of threads to prefetch export columns with from the global properties table
+	 * 
+	 * @return the number of prefetch threads (1 means fetch on the calling thread)
+	 */
+	private static int getPrefetchThreads() {
+		String value = Context.getAdministrationService().getGlobalProperty(
+		    OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_PREFETCH_THREADS);
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.valueOf(value.trim());
+			}
+			catch (NumberFormatException e) {
+				LogFactory.getLog(DataExportUtil.class).warn(
+				    "Unable to convert the global property " + OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_PREFETCH_THREADS
+				            + " to a valid integer. Prefetching on one thread");
+			}
+		}
+		return 1;
+	}
+	
+	/**
+	 * Gets the parsed template for a data export. Templates of saved exports are cached by report
+	 * object id, so each one is only parsed again when the export's columns change.
+	 * 
+	 * @param dataExport the export the template was generated from
+	 * @param template the template text, from {@link DataExportReportObject#generateTemplate()}
+	 * @return the parsed template, ready to be merged
+	 * @throws Exception if the engine can't be started or the template doesn't parse
+	 * @should return the cached template if the template has not changed
+	 * @should parse the template again if it has changed
+	 */
+	public static Template getTemplate(DataExportReportObject dataExport, String template) throws Exception {
+		return getTemplate(dataExport, "export", template);
+	}
+	
+	/**
+	 * Gets the parsed template for one part of a data export (like its header)
+	 * 
+	 * @param dataExport the export the template was generated from
+	 * @param part the name the part is cached under
+	 * @param template the template text
+	 * @return the parsed template, ready to be merged
+	 * @throws Exception if the engine can't be started or the template doesn't parse
+	 * @see #getTemplate(DataExportReportObject, String)
+	 */
+	private static Template getTemplate(DataExportReportObject dataExport, String part, String template) throws Exception {
+		String key = dataExport.getReportObjectId() == null ? null : dataExport.getReportObjectId() + "." + part;
+		if (key != null) {
+			synchronized (templateCache) {
+				CachedTemplate cached = templateCache.get(key);
+				if (cached != null && cached.hash == template.hashCode() && cached.source.equals(template))
+					return cached.template;
+			}
+		}
+		
+		RuntimeInstance engine = getVelocityEngine();
+		Template parsed = new Template();
+		parsed.setRuntimeServices(engine);
+		parsed.setName(DataExportUtil.class.getName());
+		parsed.setData(engine.parse(new StringReader(template), parsed.getName()));
+		parsed.initDocument();
+		
+		if (key != null) {
+			synchronized (templateCache) {
+				templateCache.put(key, new CachedTemplate(template, parsed));
+			}
+		}
+		return parsed;
+	}
+	
+	/**
+	 * Empties the cache of parsed export templates
+	 * 
+	 * @see #getTemplate(DataExportReportObject, String)
+	 */
+	public static void clearTemplateCache() {
+		synchronized (templateCache) {
+			templateCache.clear();
+		}
+	}
+	
+	/**
+	 * Gets the velocity engine shared by all exports, starting it the first time. Parsed templates
+	 * can be merged by several threads at once.
+	 * 
+	 * @return the initialized engine
+	 * @throws Exception if the engine can't be initialized
+	 */
+	private static synchronized RuntimeInstance getVelocityEngine() throws Exception {
+		if (velocityEngine == null) {
+			RuntimeInstance engine = new RuntimeInstance();
+			engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS,
+			    "org.apache.velocity.runtime.log.CommonsLogLogChute");
+			engine.setProperty(CommonsLogLogChute.LOGCHUTE_COMMONS_LOG_NAME, "dataexport_velocity");
+			engine.init();
+			velocityEngine = engine;
+		}
+		return velocityEngine;
+	}
+	
 	/**
 	 * Returns the path and name of the generated file
 	 * 
@@ -241,6 +703,19 @@ public class DataExportUtil {
 		return file;
 	}
 	
+	/**
+	 * Returns the path and name of the index that incremental exports keep next to the generated
+	 * file
+	 * 
+	 * @param dataExport
+	 * @return the index file
+	 * @see DataExportIndex
+	 */
+	public static File getIndexFile(DataExportReportObject dataExport) {
+		File file = getGeneratedFile(dataExport);
+		return new File(file.getParentFile(), file.getName() + ".index");
+	}
+	
 	/**
 	 * Private class used for velocity error masking
 	 */
@@ -273,4 +748,22 @@ public class DataExportUtil {
 		
 	}
 	
+	/**
+	 * A parsed template and the text it was parsed from
+	 */
+	private static class CachedTemplate {
+		
+		private String source;
+		
+		private int hash;
+		
+		private Template template;
+		
+		public CachedTemplate(String source, Template template) {
+			this.source = source;
+			this.hash = source.hashCode();
+			this.template = template;
+		}
+	}
+	
 }
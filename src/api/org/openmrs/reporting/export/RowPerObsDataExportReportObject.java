@@ -140,12 +140,9 @@ public class RowPerObsDataExportReportObject extends DataExportReportObject impl
 	}
 	
 	/**
-	 * Generate a template according to this reports columns Assumes there is a patientSet object
-	 * available
-	 * 
-	 * @return template string to be evaluated
+	 * @see org.openmrs.reporting.export.DataExportReportObject#generateHeaderTemplate()
 	 */
-	public String generateTemplate() {
+	public String generateHeaderTemplate() {
 		StringBuilder sb = new StringBuilder();
 		
 		// print out the column headers
@@ -161,6 +158,15 @@ public class RowPerObsDataExportReportObject extends DataExportReportObject impl
 		
 		sb.append("\n");
 		
+		return sb.toString();
+	}
+	
+	/**
+	 * @see org.openmrs.reporting.export.DataExportReportObject#generateRowsTemplate()
+	 */
+	public String generateRowsTemplate() {
+		StringBuilder sb = new StringBuilder();
+		
 		// print out the data
 		
 		// loop over all the patient ids
@@ -13,23 +13,55 @@
  */
 package org.openmrs.scheduler.tasks;
 
-import java.util.Iterator;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Concept;
 import org.openmrs.api.APIException;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.api.impl.ConceptServiceImpl;
 import org.openmrs.scheduler.SchedulerService;
 import org.openmrs.scheduler.TaskDefinition;
 
 /**
- * A utility class for updating concept words in a scheduled task.
+ * A utility class for updating concept words in a scheduled task. <br/>
+ * <br/>
+ * The concept id range is split into batches of
+ * {@link ConceptServiceImpl#CONCEPT_WORD_UPDATE_BATCH_SIZE} ids which are re-created by a pool of
+ * worker threads, each batch in its own session. These task properties control the update:
+ * <ul>
+ * <li>{@value #PROPERTY_THREADS}: the number of worker threads (default 1)</li>
+ * <li>{@value #PROPERTY_INCREMENTAL}: if "true" only the concepts changed since the last complete
+ * update are re-created (everything is re-created if there has not been one yet)</li>
+ * <li>{@value #PROPERTY_WATERMARK}: set by the task to the time the last complete update started</li>
+ * <li>{@value #PROPERTY_LAST_CONCEPT_ID}: set by the task while a full update runs to the highest
+ * concept id done so far. A full update that is stopped (or fails) resumes after this id the next
+ * time it is run.</li>
+ * </ul>
  */
 public class ConceptWordUpdateTask extends AbstractTask {
 	
+	public static final String PROPERTY_THREADS = "threads";
+	
+	public static final String PROPERTY_INCREMENTAL = "incremental";
+	
+	public static final String PROPERTY_WATERMARK = "watermark";
+	
+	public static final String PROPERTY_LAST_CONCEPT_ID = "lastConceptId";
+	
+	private static final String WATERMARK_FORMAT = "yyyy-MM-dd HH:mm:ss";
+	
 	private Log log = LogFactory.getLog(ConceptWordUpdateTask.class);
 	
 	private ConceptWordUpdateThread runner;
@@ -46,6 +78,8 @@ public class ConceptWordUpdateTask extends AbstractTask {
 	
 	/**
 	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 * @should create the words of every concept
+	 * @should record when the update started and clear its progress
 	 */
 	public void execute() {
 		thread.start();
@@ -74,7 +108,7 @@ public class ConceptWordUpdateTask extends AbstractTask {
 	
 	private class ConceptWordUpdateThread implements Runnable {
 		
-		public boolean shouldExecute = true;
+		public volatile boolean shouldExecute = true;
 		
 		public ConceptWordUpdateThread() {
 			isExecuting = false;
@@ -94,18 +128,27 @@ public class ConceptWordUpdateTask extends AbstractTask {
 				try {
 					if (Context.isAuthenticated() == false)
 						authenticate();
-					ConceptService cs = Context.getConceptService();
-					Iterator<Concept> conceptIterator = cs.conceptIterator();
-					while (conceptIterator.hasNext() && shouldExecute) {
-						Concept currentConcept = conceptIterator.next();
+					
+					Date started = new Date();
+					TaskDefinition taskDef = getTaskDefinition();
+					Date watermark = parseDate(taskDef.getProperty(PROPERTY_WATERMARK));
+					boolean incremental = "true".equalsIgnoreCase(taskDef.getProperty(PROPERTY_INCREMENTAL));
+					
+					boolean completed;
+					if (incremental && watermark != null) {
+						List<Integer> conceptIds = Context.getConceptService().getConceptIdsChangedSince(watermark);
 						if (log.isDebugEnabled())
-							log.debug("updateConceptWords() : current concept: " + currentConcept);
-						cs.updateConceptWord(currentConcept);
-						
-						// do this to keep memory consumption low at the expense of speed
-						// we can't clear the whole session because the conceptIterator has
-						// already loaded and holds on to the next concept
-						Context.evictFromSession(currentConcept); 
+							log.debug(conceptIds.size() + " concepts changed since " + watermark);
+						completed = updateBatches(getBatches(conceptIds), false);
+					} else {
+						completed = updateBatches(getBatches(), true);
+					}
+					
+					if (completed) {
+						taskDef = getTaskDefinition();
+						taskDef.setProperty(PROPERTY_WATERMARK, new SimpleDateFormat(WATERMARK_FORMAT).format(started));
+						taskDef.getProperties().remove(PROPERTY_LAST_CONCEPT_ID);
+						Context.getSchedulerService().saveTask(taskDef);
 					}
 				}
 				catch (APIException e) {
@@ -125,5 +168,140 @@ public class ConceptWordUpdateTask extends AbstractTask {
 			}
 		}
 		
+		/**
+		 * Splits the whole concept id range into batches, starting after the last concept id
+		 * finished by a previous (stopped) run
+		 */
+		private List<int[]> getBatches() {
+			ConceptService cs = Context.getConceptService();
+			List<int[]> batches = new ArrayList<int[]>();
+			Integer min = cs.getMinConceptId();
+			Integer max = cs.getMaxConceptId();
+			if (min == null || max == null)
+				return batches;
+			
+			String lastConceptId = getTaskDefinition().getProperty(PROPERTY_LAST_CONCEPT_ID);
+			if (lastConceptId != null && lastConceptId.trim().length() > 0) {
+				log.info("Resuming concept word update after concept " + lastConceptId);
+				min = Math.max(min, Integer.valueOf(lastConceptId.trim()) + 1);
+			}
+			
+			for (int start = min; start <= max; start += ConceptServiceImpl.CONCEPT_WORD_UPDATE_BATCH_SIZE)
+				batches.add(new int[] { start, Math.min(start + ConceptServiceImpl.CONCEPT_WORD_UPDATE_BATCH_SIZE - 1, max) });
+			return batches;
+		}
+		
+		/**
+		 * Groups the given (ascending) concept ids into batches that each span at most one batch
+		 * size of ids. The unchanged concepts between the ids in a batch are re-created too.
+		 */
+		private List<int[]> getBatches(List<Integer> conceptIds) {
+			List<int[]> batches = new ArrayList<int[]>();
+			int[] batch = null;
+			for (Integer conceptId : conceptIds) {
+				if (batch == null || conceptId - batch[0] >= ConceptServiceImpl.CONCEPT_WORD_UPDATE_BATCH_SIZE) {
+					batch = new int[] { conceptId, conceptId };
+					batches.add(batch);
+				} else {
+					batch[1] = conceptId;
+				}
+			}
+			return batches;
+		}
+		
+		/**
+		 * Re-creates the words of each batch of concept ids on the worker threads
+		 * 
+		 * @param batches the concept id ranges to update, in ascending order
+		 * @param saveProgress whether to record the last finished concept id in the task properties
+		 * @return true if every batch was updated, false if the task was stopped first
+		 */
+		private boolean updateBatches(List<int[]> batches, boolean saveProgress) {
+			int threads = getThreads();
+			final UserContext userContext = Context.getUserContext();
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+				for (final int[] batch : batches) {
+					futures.add(executor.submit(new Callable<Boolean>() {
+						
+						public Boolean call() throws Exception {
+							if (!shouldExecute)
+								return false;
+							Context.setUserContext(userContext);
+							Context.openSession();
+							try {
+								if (log.isDebugEnabled())
+									log.debug("Updating concept words of concepts " + batch[0] + " to " + batch[1]);
+								Context.getConceptService().updateConceptWords(batch[0], batch[1]);
+								return true;
+							}
+							finally {
+								Context.closeSession();
+								Context.clearUserContext();
+							}
+						}
+					}));
+				}
+				
+				// batches finish in any order, but progress is only saved up to the
+				// first batch that has not finished so nothing is skipped on resume
+				for (int i = 0; i < batches.size(); i++) {
+					if (!futures.get(i).get())
+						return false;
+					if (saveProgress) {
+						TaskDefinition taskDef = getTaskDefinition();
+						taskDef.setProperty(PROPERTY_LAST_CONCEPT_ID, String.valueOf(batches.get(i)[1]));
+						Context.getSchedulerService().saveTask(taskDef);
+					}
+				}
+				return true;
+			}
+			catch (InterruptedException e) {
+				shouldExecute = false;
+				throw new APIException("Interrupted while updating concept words", e);
+			}
+			catch (ExecutionException e) {
+				// skip the batches that have not started yet
+				shouldExecute = false;
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new APIException("Unable to update concept words", e.getCause());
+			}
+			finally {
+				executor.shutdown();
+			}
+		}
+		
+		private int getThreads() {
+			String threads = getTaskDefinition().getProperty(PROPERTY_THREADS);
+			if (threads != null && threads.trim().length() > 0) {
+				try {
+					return Math.max(1, Integer.valueOf(threads.trim()));
+				}
+				catch (NumberFormatException e) {
+					log.warn("Unable to convert the task property " + PROPERTY_THREADS + " to a valid integer. Using 1");
+				}
+			}
+			return 1;
+		}
+		
+		private TaskDefinition getTaskDefinition() {
+			return Context.getSchedulerService().getTaskByName(ConceptServiceImpl.CONCEPT_WORD_UPDATE_TASK_NAME);
+		}
+		
+		private Date parseDate(String date) {
+			if (date == null || date.trim().length() == 0)
+				return null;
+			try {
+				return new SimpleDateFormat(WATERMARK_FORMAT).parse(date.trim());
+			}
+			catch (ParseException e) {
+				log.warn("Unable to parse the task property " + PROPERTY_WATERMARK + ": " + date
+				        + ". Updating all concept words");
+				return null;
+			}
+		}
+		
 	}
 }
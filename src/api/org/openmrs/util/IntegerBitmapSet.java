@@ -0,0 +1,924 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.util;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A compressed set of ints, intended for large sets of database ids such as the members of a
+ * {@link org.openmrs.Cohort}. <br/>
+ * <br/>
+ * Values are split on their high 16 bits into chunks. Each chunk is stored either as a sorted array
+ * of its low 16 bits (when it holds at most 4096 values) or as a 65536-bit bitmap (when it is
+ * denser than that), so a set of 400,000 patient ids takes roughly 60KB instead of the ~20MB a
+ * HashSet of boxed Integers needs. Unions, intersections and differences of two IntegerBitmapSets
+ * are computed chunk by chunk without boxing anything. <br/>
+ * <br/>
+ * This class is a regular {@link java.util.Set}, so it can be handed to any code that expects a
+ * Set&lt;Integer&gt;. Iteration is in ascending order of the unsigned value (i.e. non-negative ids
+ * come first, in ascending order). Null elements are not permitted. This class is not
+ * synchronized.
+ */
+public class IntegerBitmapSet extends AbstractSet<Integer> implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/**
+	 * Chunks with more than this many values are stored as bitmaps, others as sorted arrays
+	 */
+	private static final int ARRAY_MAX = 4096;
+	
+	private static final int BITMAP_WORDS = 1024;
+	
+	/**
+	 * the high 16 bits of each chunk, sorted ascending
+	 */
+	private char[] keys;
+	
+	/**
+	 * the chunk stored under the key with the same index
+	 */
+	private Container[] containers;
+	
+	private int containerCount = 0;
+	
+	private int cardinality = 0;
+	
+	private transient int modCount = 0;
+	
+	/**
+	 * Creates an empty set
+	 */
+	public IntegerBitmapSet() {
+		keys = new char[4];
+		containers = new Container[4];
+	}
+	
+	/**
+	 * Creates a set containing all the elements of the given collection
+	 * 
+	 * @param c the elements to add (may be another IntegerBitmapSet)
+	 */
+	public IntegerBitmapSet(Collection<Integer> c) {
+		this();
+		addAll(c);
+	}
+	
+	/**
+	 * Creates a set containing the given values
+	 * 
+	 * @param values the ints to add
+	 */
+	public IntegerBitmapSet(int[] values) {
+		this();
+		if (values != null)
+			for (int v : values)
+				add(v);
+	}
+	
+	/**
+	 * Returns the given collection as an IntegerBitmapSet, copying it only if it isn't one already
+	 * 
+	 * @param c the collection to convert, may be null
+	 * @return c itself if it is an IntegerBitmapSet, otherwise a new set with the same elements
+	 */
+	public static IntegerBitmapSet valueOf(Collection<Integer> c) {
+		if (c instanceof IntegerBitmapSet)
+			return (IntegerBitmapSet) c;
+		IntegerBitmapSet ret = new IntegerBitmapSet();
+		if (c != null)
+			ret.addAll(c);
+		return ret;
+	}
+	
+	// primitive accessors
+	
+	/**
+	 * @param value the int to look for
+	 * @return true if this set contains value
+	 */
+	public boolean contains(int value) {
+		int i = indexOfKey(highBits(value));
+		return i >= 0 && containers[i].contains(lowBits(value));
+	}
+	
+	/**
+	 * Adds an int to this set
+	 * 
+	 * @param value the int to add
+	 * @return true if the set did not already contain value
+	 */
+	public boolean add(int value) {
+		char high = highBits(value);
+		int i = indexOfKey(high);
+		if (i < 0) {
+			i = -i - 1;
+			insertContainer(i, high, new ArrayContainer());
+		}
+		Container c = containers[i];
+		int before = c.cardinality();
+		c = c.add(lowBits(value));
+		containers[i] = c;
+		if (c.cardinality() == before)
+			return false;
+		++cardinality;
+		++modCount;
+		return true;
+	}
+	
+	/**
+	 * Removes an int from this set
+	 * 
+	 * @param value the int to remove
+	 * @return true if the set contained value
+	 * @should switch a chunk back to array storage when it becomes sparse
+	 */
+	public boolean remove(int value) {
+		int i = indexOfKey(highBits(value));
+		if (i < 0)
+			return false;
+		Container c = containers[i];
+		int before = c.cardinality();
+		c = c.remove(lowBits(value));
+		if (c.cardinality() == before)
+			return false;
+		if (c.cardinality() == 0)
+			removeContainer(i);
+		else
+			containers[i] = c;
+		--cardinality;
+		++modCount;
+		return true;
+	}
+	
+	/**
+	 * @return the elements of this set as a sorted int array
+	 */
+	public int[] toIntArray() {
+		int[] ret = new int[cardinality];
+		int n = 0;
+		for (int i = 0; i < containerCount; ++i) {
+			int base = keys[i] << 16;
+			Container c = containers[i];
+			for (int low = c.nextValue(0); low >= 0; low = c.nextValue(low + 1))
+				ret[n++] = base | low;
+		}
+		return ret;
+	}
+	
+	// set algebra
+	
+	/**
+	 * Returns the union of two sets. Neither argument is modified.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return a new set containing every value in a or in b
+	 * @should return the union of sparse and dense sets
+	 */
+	public static IntegerBitmapSet or(IntegerBitmapSet a, IntegerBitmapSet b) {
+		IntegerBitmapSet ret = new IntegerBitmapSet();
+		int i = 0, j = 0;
+		while (i < a.containerCount && j < b.containerCount) {
+			char ka = a.keys[i];
+			char kb = b.keys[j];
+			if (ka < kb)
+				ret.appendContainer(ka, a.containers[i++].copy());
+			else if (kb < ka)
+				ret.appendContainer(kb, b.containers[j++].copy());
+			else
+				ret.appendContainer(ka, a.containers[i++].or(b.containers[j++]));
+		}
+		while (i < a.containerCount) {
+			ret.appendContainer(a.keys[i], a.containers[i].copy());
+			++i;
+		}
+		while (j < b.containerCount) {
+			ret.appendContainer(b.keys[j], b.containers[j].copy());
+			++j;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the intersection of two sets. Neither argument is modified.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return a new set containing every value in both a and b
+	 * @should return the intersection of sparse and dense sets
+	 */
+	public static IntegerBitmapSet and(IntegerBitmapSet a, IntegerBitmapSet b) {
+		IntegerBitmapSet ret = new IntegerBitmapSet();
+		int i = 0, j = 0;
+		while (i < a.containerCount && j < b.containerCount) {
+			char ka = a.keys[i];
+			char kb = b.keys[j];
+			if (ka < kb)
+				++i;
+			else if (kb < ka)
+				++j;
+			else
+				ret.appendContainer(ka, a.containers[i++].and(b.containers[j++]));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Returns the difference of two sets. Neither argument is modified.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return a new set containing every value in a that is not in b
+	 * @should return the difference of sparse and dense sets
+	 */
+	public static IntegerBitmapSet andNot(IntegerBitmapSet a, IntegerBitmapSet b) {
+		IntegerBitmapSet ret = new IntegerBitmapSet();
+		int i = 0, j = 0;
+		while (i < a.containerCount) {
+			char ka = a.keys[i];
+			while (j < b.containerCount && b.keys[j] < ka)
+				++j;
+			if (j < b.containerCount && b.keys[j] == ka)
+				ret.appendContainer(ka, a.containers[i].andNot(b.containers[j]));
+			else
+				ret.appendContainer(ka, a.containers[i].copy());
+			++i;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Counts the values two sets have in common without building their intersection
+	 * 
+	 * @param a
+	 * @param b
+	 * @return the size of the intersection of a and b
+	 */
+	public static int andCardinality(IntegerBitmapSet a, IntegerBitmapSet b) {
+		int ret = 0;
+		int i = 0, j = 0;
+		while (i < a.containerCount && j < b.containerCount) {
+			char ka = a.keys[i];
+			char kb = b.keys[j];
+			if (ka < kb)
+				++i;
+			else if (kb < ka)
+				++j;
+			else
+				ret += a.containers[i++].andCardinality(b.containers[j++]);
+		}
+		return ret;
+	}
+	
+	// java.util.Set methods
+	
+	/**
+	 * @see java.util.AbstractCollection#size()
+	 */
+	public int size() {
+		return cardinality;
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#isEmpty()
+	 */
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#contains(java.lang.Object)
+	 */
+	public boolean contains(Object o) {
+		return (o instanceof Integer) && contains(((Integer) o).intValue());
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#add(java.lang.Object)
+	 */
+	public boolean add(Integer value) {
+		if (value == null)
+			throw new NullPointerException("IntegerBitmapSet does not permit null elements");
+		return add(value.intValue());
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#remove(java.lang.Object)
+	 */
+	public boolean remove(Object o) {
+		return (o instanceof Integer) && remove(((Integer) o).intValue());
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#clear()
+	 */
+	public void clear() {
+		keys = new char[4];
+		containers = new Container[4];
+		containerCount = 0;
+		cardinality = 0;
+		++modCount;
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#containsAll(java.util.Collection)
+	 */
+	public boolean containsAll(Collection<?> c) {
+		if (c instanceof IntegerBitmapSet) {
+			IntegerBitmapSet other = (IntegerBitmapSet) c;
+			return andCardinality(this, other) == other.cardinality;
+		}
+		return super.containsAll(c);
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#addAll(java.util.Collection)
+	 */
+	public boolean addAll(Collection<? extends Integer> c) {
+		if (c instanceof IntegerBitmapSet)
+			return replaceWith(or(this, (IntegerBitmapSet) c));
+		boolean changed = false;
+		for (Integer i : c)
+			changed |= add(i);
+		return changed;
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#retainAll(java.util.Collection)
+	 */
+	public boolean retainAll(Collection<?> c) {
+		if (c instanceof IntegerBitmapSet)
+			return replaceWith(and(this, (IntegerBitmapSet) c));
+		return super.retainAll(c);
+	}
+	
+	/**
+	 * @see java.util.AbstractSet#removeAll(java.util.Collection)
+	 */
+	public boolean removeAll(Collection<?> c) {
+		if (c instanceof IntegerBitmapSet)
+			return replaceWith(andNot(this, (IntegerBitmapSet) c));
+		boolean changed = false;
+		for (Object o : c)
+			changed |= remove(o);
+		return changed;
+	}
+	
+	/**
+	 * @see java.util.AbstractCollection#iterator()
+	 * @should iterate in ascending order
+	 * @should allow removal while iterating
+	 */
+	public Iterator<Integer> iterator() {
+		return new BitmapIterator();
+	}
+	
+	/**
+	 * @see java.util.AbstractSet#hashCode()
+	 */
+	public int hashCode() {
+		int h = 0;
+		for (int i = 0; i < containerCount; ++i) {
+			int base = keys[i] << 16;
+			Container c = containers[i];
+			for (int low = c.nextValue(0); low >= 0; low = c.nextValue(low + 1))
+				h += base | low;
+		}
+		return h;
+	}
+	
+	// internals
+	
+	private static char highBits(int value) {
+		return (char) (value >>> 16);
+	}
+	
+	private static char lowBits(int value) {
+		return (char) value;
+	}
+	
+	/**
+	 * Binary search over the keys
+	 * 
+	 * @return the index of key, or (-(insertion point) - 1) if it isn't present
+	 */
+	private int indexOfKey(char key) {
+		int lo = 0;
+		int hi = containerCount - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char k = keys[mid];
+			if (k < key)
+				lo = mid + 1;
+			else if (k > key)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -(lo + 1);
+	}
+	
+	private void ensureCapacity(int n) {
+		if (n > keys.length) {
+			int newLength = Math.max(n, keys.length * 2);
+			char[] newKeys = new char[newLength];
+			Container[] newContainers = new Container[newLength];
+			System.arraycopy(keys, 0, newKeys, 0, containerCount);
+			System.arraycopy(containers, 0, newContainers, 0, containerCount);
+			keys = newKeys;
+			containers = newContainers;
+		}
+	}
+	
+	private void insertContainer(int index, char key, Container c) {
+		ensureCapacity(containerCount + 1);
+		System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+		System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+		keys[index] = key;
+		containers[index] = c;
+		++containerCount;
+	}
+	
+	private void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, containerCount - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, containerCount - index - 1);
+		--containerCount;
+		containers[containerCount] = null;
+	}
+	
+	/**
+	 * Used while building the result of a set operation, where keys arrive in ascending order.
+	 * Empty containers are dropped.
+	 */
+	private void appendContainer(char key, Container c) {
+		if (c.cardinality() == 0)
+			return;
+		ensureCapacity(containerCount + 1);
+		keys[containerCount] = key;
+		containers[containerCount] = c;
+		++containerCount;
+		cardinality += c.cardinality();
+	}
+	
+	/**
+	 * Takes over the contents of another (freshly built) set
+	 * 
+	 * @return true if this changed the number of elements in this set
+	 */
+	private boolean replaceWith(IntegerBitmapSet other) {
+		boolean changed = other.cardinality != cardinality;
+		keys = other.keys;
+		containers = other.containers;
+		containerCount = other.containerCount;
+		cardinality = other.cardinality;
+		++modCount;
+		return changed;
+	}
+	
+	/**
+	 * Iterates in ascending order by looking up the next value after the last one returned, so that
+	 * {@link Iterator#remove()} is safe even when it empties a chunk.
+	 */
+	private class BitmapIterator implements Iterator<Integer> {
+		
+		private int containerIndex = 0;
+		
+		private int fromLow = 0;
+		
+		private int pending;
+		
+		private boolean hasPending = false;
+		
+		private int last;
+		
+		private boolean canRemove = false;
+		
+		private int expectedModCount = modCount;
+		
+		public boolean hasNext() {
+			if (expectedModCount != modCount)
+				throw new ConcurrentModificationException();
+			if (hasPending)
+				return true;
+			while (containerIndex < containerCount) {
+				int low = containers[containerIndex].nextValue(fromLow);
+				if (low >= 0) {
+					pending = (keys[containerIndex] << 16) | low;
+					hasPending = true;
+					return true;
+				}
+				++containerIndex;
+				fromLow = 0;
+			}
+			return false;
+		}
+		
+		public Integer next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			hasPending = false;
+			last = pending;
+			fromLow = lowBits(last) + 1;
+			canRemove = true;
+			return last;
+		}
+		
+		public void remove() {
+			if (!canRemove)
+				throw new IllegalStateException();
+			if (expectedModCount != modCount)
+				throw new ConcurrentModificationException();
+			IntegerBitmapSet.this.remove(last);
+			canRemove = false;
+			expectedModCount = modCount;
+			int i = indexOfKey(highBits(last));
+			if (i >= 0) {
+				containerIndex = i;
+				fromLow = lowBits(last) + 1;
+			} else {
+				containerIndex = -i - 1;
+				fromLow = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Storage for the low 16 bits of the values in one chunk. The mutators return the container that
+	 * should replace this one, which lets a chunk switch between array and bitmap storage.
+	 */
+	private static abstract class Container implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		public abstract int cardinality();
+		
+		public abstract boolean contains(char low);
+		
+		public abstract Container add(char low);
+		
+		public abstract Container remove(char low);
+		
+		/**
+		 * @return the smallest value >= from in this container, or -1 if there is none
+		 */
+		public abstract int nextValue(int from);
+		
+		public abstract Container or(Container other);
+		
+		public abstract Container and(Container other);
+		
+		public abstract Container andNot(Container other);
+		
+		public abstract int andCardinality(Container other);
+		
+		public abstract Container copy();
+	}
+	
+	/**
+	 * A sorted array of at most {@link IntegerBitmapSet#ARRAY_MAX} values
+	 */
+	private static class ArrayContainer extends Container {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private char[] content;
+		
+		private int cardinality;
+		
+		public ArrayContainer() {
+			this(new char[4], 0);
+		}
+		
+		public ArrayContainer(char[] content, int cardinality) {
+			this.content = content;
+			this.cardinality = cardinality;
+		}
+		
+		public int cardinality() {
+			return cardinality;
+		}
+		
+		private int indexOf(int low) {
+			int lo = 0;
+			int hi = cardinality - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				int v = content[mid];
+				if (v < low)
+					lo = mid + 1;
+				else if (v > low)
+					hi = mid - 1;
+				else
+					return mid;
+			}
+			return -(lo + 1);
+		}
+		
+		public boolean contains(char low) {
+			return indexOf(low) >= 0;
+		}
+		
+		public Container add(char low) {
+			int i = indexOf(low);
+			if (i >= 0)
+				return this;
+			if (cardinality >= ARRAY_MAX)
+				return toBitmap().add(low);
+			i = -i - 1;
+			if (cardinality == content.length) {
+				char[] newContent = new char[Math.min(ARRAY_MAX, Math.max(4, cardinality * 2))];
+				System.arraycopy(content, 0, newContent, 0, cardinality);
+				content = newContent;
+			}
+			System.arraycopy(content, i, content, i + 1, cardinality - i);
+			content[i] = low;
+			++cardinality;
+			return this;
+		}
+		
+		public Container remove(char low) {
+			int i = indexOf(low);
+			if (i >= 0) {
+				System.arraycopy(content, i + 1, content, i, cardinality - i - 1);
+				--cardinality;
+			}
+			return this;
+		}
+		
+		public int nextValue(int from) {
+			if (from > 0xFFFF)
+				return -1;
+			int i = indexOf(from);
+			if (i < 0)
+				i = -i - 1;
+			return i < cardinality ? content[i] : -1;
+		}
+		
+		public BitmapContainer toBitmap() {
+			BitmapContainer ret = new BitmapContainer();
+			for (int i = 0; i < cardinality; ++i)
+				ret.set(content[i]);
+			return ret;
+		}
+		
+		public Container or(Container other) {
+			if (other instanceof BitmapContainer)
+				return other.or(this);
+			ArrayContainer o = (ArrayContainer) other;
+			if (cardinality + o.cardinality > ARRAY_MAX) {
+				BitmapContainer ret = toBitmap();
+				for (int i = 0; i < o.cardinality; ++i)
+					ret.set(o.content[i]);
+				return ret.normalize();
+			}
+			char[] merged = new char[cardinality + o.cardinality];
+			int i = 0, j = 0, n = 0;
+			while (i < cardinality && j < o.cardinality) {
+				char a = content[i];
+				char b = o.content[j];
+				if (a < b) {
+					merged[n++] = a;
+					++i;
+				} else if (b < a) {
+					merged[n++] = b;
+					++j;
+				} else {
+					merged[n++] = a;
+					++i;
+					++j;
+				}
+			}
+			while (i < cardinality)
+				merged[n++] = content[i++];
+			while (j < o.cardinality)
+				merged[n++] = o.content[j++];
+			return new ArrayContainer(merged, n);
+		}
+		
+		public Container and(Container other) {
+			char[] result = new char[cardinality];
+			int n = 0;
+			if (other instanceof BitmapContainer) {
+				for (int i = 0; i < cardinality; ++i)
+					if (other.contains(content[i]))
+						result[n++] = content[i];
+			} else {
+				ArrayContainer o = (ArrayContainer) other;
+				int i = 0, j = 0;
+				while (i < cardinality && j < o.cardinality) {
+					char a = content[i];
+					char b = o.content[j];
+					if (a < b)
+						++i;
+					else if (b < a)
+						++j;
+					else {
+						result[n++] = a;
+						++i;
+						++j;
+					}
+				}
+			}
+			return new ArrayContainer(result, n);
+		}
+		
+		public Container andNot(Container other) {
+			char[] result = new char[cardinality];
+			int n = 0;
+			for (int i = 0; i < cardinality; ++i)
+				if (!other.contains(content[i]))
+					result[n++] = content[i];
+			return new ArrayContainer(result, n);
+		}
+		
+		public int andCardinality(Container other) {
+			int n = 0;
+			for (int i = 0; i < cardinality; ++i)
+				if (other.contains(content[i]))
+					++n;
+			return n;
+		}
+		
+		public Container copy() {
+			char[] c = new char[cardinality];
+			System.arraycopy(content, 0, c, 0, cardinality);
+			return new ArrayContainer(c, cardinality);
+		}
+	}
+	
+	/**
+	 * A 65536-bit bitmap, used once a chunk holds more than {@link IntegerBitmapSet#ARRAY_MAX}
+	 * values
+	 */
+	private static class BitmapContainer extends Container {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private long[] bits;
+		
+		private int cardinality;
+		
+		public BitmapContainer() {
+			this(new long[BITMAP_WORDS], 0);
+		}
+		
+		public BitmapContainer(long[] bits, int cardinality) {
+			this.bits = bits;
+			this.cardinality = cardinality;
+		}
+		
+		public int cardinality() {
+			return cardinality;
+		}
+		
+		public boolean contains(char low) {
+			return (bits[low >>> 6] & (1L << low)) != 0;
+		}
+		
+		void set(char low) {
+			long before = bits[low >>> 6];
+			long after = before | (1L << low);
+			if (before != after) {
+				bits[low >>> 6] = after;
+				++cardinality;
+			}
+		}
+		
+		public Container add(char low) {
+			set(low);
+			return this;
+		}
+		
+		public Container remove(char low) {
+			long before = bits[low >>> 6];
+			long after = before & ~(1L << low);
+			if (before != after) {
+				bits[low >>> 6] = after;
+				--cardinality;
+			}
+			return normalize();
+		}
+		
+		public int nextValue(int from) {
+			if (from > 0xFFFF)
+				return -1;
+			int word = from >>> 6;
+			long w = bits[word] & (-1L << from);
+			while (true) {
+				if (w != 0)
+					return (word << 6) + Long.numberOfTrailingZeros(w);
+				if (++word >= BITMAP_WORDS)
+					return -1;
+				w = bits[word];
+			}
+		}
+		
+		/**
+		 * @return this, or an equivalent ArrayContainer if this one has become sparse enough
+		 */
+		public Container normalize() {
+			if (cardinality > ARRAY_MAX)
+				return this;
+			char[] content = new char[cardinality];
+			int n = 0;
+			for (int word = 0; word < BITMAP_WORDS; ++word) {
+				long w = bits[word];
+				while (w != 0) {
+					content[n++] = (char) ((word << 6) + Long.numberOfTrailingZeros(w));
+					w &= w - 1;
+				}
+			}
+			return new ArrayContainer(content, n);
+		}
+		
+		public Container or(Container other) {
+			if (other instanceof ArrayContainer) {
+				BitmapContainer ret = (BitmapContainer) copy();
+				ArrayContainer o = (ArrayContainer) other;
+				for (int i = 0; i < o.cardinality; ++i)
+					ret.set(o.content[i]);
+				return ret;
+			}
+			long[] o = ((BitmapContainer) other).bits;
+			long[] result = new long[BITMAP_WORDS];
+			int card = 0;
+			for (int i = 0; i < BITMAP_WORDS; ++i) {
+				result[i] = bits[i] | o[i];
+				card += Long.bitCount(result[i]);
+			}
+			return new BitmapContainer(result, card);
+		}
+		
+		public Container and(Container other) {
+			if (other instanceof ArrayContainer)
+				return other.and(this);
+			long[] o = ((BitmapContainer) other).bits;
+			long[] result = new long[BITMAP_WORDS];
+			int card = 0;
+			for (int i = 0; i < BITMAP_WORDS; ++i) {
+				result[i] = bits[i] & o[i];
+				card += Long.bitCount(result[i]);
+			}
+			return new BitmapContainer(result, card).normalize();
+		}
+		
+		public Container andNot(Container other) {
+			long[] result = new long[BITMAP_WORDS];
+			int card = 0;
+			if (other instanceof ArrayContainer) {
+				System.arraycopy(bits, 0, result, 0, BITMAP_WORDS);
+				card = cardinality;
+				ArrayContainer o = (ArrayContainer) other;
+				for (int i = 0; i < o.cardinality; ++i) {
+					char low = o.content[i];
+					long before = result[low >>> 6];
+					long after = before & ~(1L << low);
+					if (before != after) {
+						result[low >>> 6] = after;
+						--card;
+					}
+				}
+			} else {
+				long[] o = ((BitmapContainer) other).bits;
+				for (int i = 0; i < BITMAP_WORDS; ++i) {
+					result[i] = bits[i] & ~o[i];
+					card += Long.bitCount(result[i]);
+				}
+			}
+			return new BitmapContainer(result, card).normalize();
+		}
+		
+		public int andCardinality(Container other) {
+			if (other instanceof ArrayContainer)
+				return other.andCardinality(this);
+			long[] o = ((BitmapContainer) other).bits;
+			int card = 0;
+			for (int i = 0; i < BITMAP_WORDS; ++i)
+				card += Long.bitCount(bits[i] & o[i]);
+			return card;
+		}
+		
+		public Container copy() {
+			long[] b = new long[BITMAP_WORDS];
+			System.arraycopy(bits, 0, b, 0, BITMAP_WORDS);
+			return new BitmapContainer(b, cardinality);
+		}
+	}
+}
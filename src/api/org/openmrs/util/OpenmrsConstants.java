@@ -675,6 +675,30 @@ public final class OpenmrsConstants {
 	
 	public static final String GLOBAL_PROPERTY_PATIENT_SEARCH_MATCH_ANYWHERE = "ANYWHERE";
 	
+	public static final String GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD = "patientSet.cohortBindingThreshold";
+	
+	public static final String GLOBAL_PROPERTY_LOGIC_CACHE_MAX_ENTRIES = "logic.cache.maxEntries";
+	
+	public static final String GLOBAL_PROPERTY_LOGIC_EVALUATION_THREADS = "logic.evaluation.threads";
+	
+	public static final String GLOBAL_PROPERTY_CONCEPT_WORD_INDEX = "concept.useWordIndex";
+	
+	public static final String GLOBAL_PROPERTY_HL7_PROCESSOR_THREADS = "hl7_processor.threads";
+	
+	public static final String GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE = "hl7_processor.archive_batch_size";
+	
+	public static final String GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY = "hl7_processor.archive_dir";
+	
+	public static final String GLOBAL_PROPERTY_DATA_EXPORT_PREFETCH_THREADS = "dataExport.prefetch.threads";
+	
+	public static final String GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE = "dataExport.chunk.size";
+	
+	public static final String GLOBAL_PROPERTY_DATA_EXPORT_THREADS = "dataExport.threads";
+	
+	public static final String GLOBAL_PROPERTY_DATA_EXPORT_INCREMENTAL = "dataExport.incremental";
+	
+	public static final String GLOBAL_PROPERTY_REPORT_EVALUATION_THREADS = "report.evaluation.threads";
+	
 	/**
 	 * These properties (and default values) are set if not found in the database when OpenMRS is
 	 * started if they do not exist yet
@@ -901,6 +925,78 @@ public final class OpenmrsConstants {
 		props.add(new GlobalProperty(GLOBAL_PROPERTY_LOCALE_ALLOWED_LIST, "en, es, fr, it, pt",
 		        "Comma delimited list of locales allowed for use on system"));
 		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD,
+		                "1000",
+		                "Cohorts with more patients than this are loaded into a temporary table when querying patient set data, instead of being sent to the database as a long 'in (...)' list.  Set to 0 to always use 'in' lists."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_LOGIC_CACHE_MAX_ENTRIES,
+		                "500",
+		                "The number of rule and data source results (each for a whole cohort) kept in the logic cache before the least recently used are dropped.  Takes effect on restart.  Set to 0 to turn off logic caching."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_LOGIC_EVALUATION_THREADS,
+		                "1",
+		                "The number of threads used to evaluate a logic rule for a large cohort.  The cohort is split into this many partitions, each evaluated in its own session.  1 evaluates the cohort on the calling thread."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_CONCEPT_WORD_INDEX,
+		                "true",
+		                "Set to true to search concepts with an in-memory copy of the concept_word table (built on the first search) instead of querying the table.  Set to false if concept words are changed outside of the API."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_HL7_PROCESSOR_THREADS,
+		                "1",
+		                "The number of threads that process the hl7 inbound queue.  Messages are shared out by patient identifier, so each patient's messages are still processed in the order they were received.  1 processes the queue one message at a time on the scheduler's thread."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE,
+		                "1",
+		                "The number of processed hl7 messages that are moved from the inbound queue to the archive together, in one transaction (at most 50).  1 archives each message as soon as it is processed.  Messages that fail are always moved to the error table one at a time.  Warning: processed messages waiting to be archived are processed again (creating their encounters twice) if the server stops abruptly."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_HL7_ARCHIVE_DIRECTORY,
+		                "",
+		                "The directory processed hl7 messages are archived to, as compressed segment files, instead of the hl7_in_archive table.  Relative paths are inside the application data directory.  Leave blank to archive to the hl7_in_archive table."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_DATA_EXPORT_PREFETCH_THREADS,
+		                "1",
+		                "The number of threads that fetch a data export's columns before the export is written.  1 fetches the columns one after another on the thread generating the export."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE,
+		                "0",
+		                "The number of patients a data export fetches and writes at a time.  Smaller chunks use less memory on large exports.  0 exports all of the patients at once."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_DATA_EXPORT_THREADS,
+		                "1",
+		                "The number of threads that write a data export's rows.  The patients are split into partitions (of dataExport.chunk.size patients, if that is set) that are written to part files in parallel and then joined in order.  1 writes the rows on the thread generating the export."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_DATA_EXPORT_INCREMENTAL,
+		                "false",
+		                "Set to true to only render the rows of patients whose obs, encounters, orders, programs, names, addresses, identifiers, person attributes, relationships or person record changed since the export was last generated, and copy the other rows from the last file.  Exports with encounter or drug order columns are always fully rendered, since encounters and orders can be edited without a date changed.  Rows that depend on the current date or on other patients are not refreshed until those patients change.  Incremental exports are written on one thread."));
+		
+		props
+		        .add(new GlobalProperty(
+		                GLOBAL_PROPERTY_REPORT_EVALUATION_THREADS,
+		                "1",
+		                "The number of data sets of a report to evaluate at the same time, each on its own thread and database session.  1 evaluates them one after the other on the thread running the report."));
+		
 		props
 		        .add(new GlobalProperty(
 		                GLOBAL_PROPERTY_NEWPATIENTFORM_RELATIONSHIPS,
@@ -50,6 +50,9 @@ public class HL7InQueueProcessorServlet extends HttpServlet {
 		try {
 			getHL7InQueueProcessor().processHL7InQueue();
 			out.print("HL7 inbound queue processor has started");
+			out.print(" (" + HL7InQueueProcessor.getRunProcessedCount() + " messages processed at "
+			        + Math.round(HL7InQueueProcessor.getRunThroughput()) + " per second, "
+			        + getHL7InQueueProcessor().getBacklog() + " left in the queue)");
 		}
 		catch (HL7Exception e) {
 			out.print("Unable to start HL7 inbound queue processor. Perhaps it is already going?");
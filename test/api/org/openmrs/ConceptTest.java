@@ -204,6 +204,68 @@ public class ConceptTest {
 		assertEquals(preferredName, actualName);
 	}
 	
+	/**
+	 * @see {@link Concept#getBestName(Locale)}
+	 */
+	@Test
+	@Verifies(value = "should not return a cached name after the names change", method = "getBestName(Locale)")
+	public void getBestName_shouldNotReturnACachedNameAfterTheNamesChange() throws Exception {
+		Locale primaryLocale = Locale.US;
+		Concept testConcept = createMockConcept(1, primaryLocale);
+		ConceptName initialBest = testConcept.getBestName(primaryLocale);
+		
+		ConceptName newPreferred = ConceptNameTest.createMockConceptName(10, primaryLocale);
+		testConcept.setPreferredName(primaryLocale, newPreferred);
+		assertSame(newPreferred, testConcept.getBestName(primaryLocale));
+		
+		newPreferred.setVoided(true);
+		assertNotSame(newPreferred, testConcept.getBestName(primaryLocale));
+		
+		testConcept.removeName(newPreferred);
+		assertSame(initialBest, testConcept.getBestName(primaryLocale));
+		testConcept.getNames(true).remove(initialBest);
+		assertNotSame(initialBest, testConcept.getBestName(primaryLocale));
+	}
+	
+	/**
+	 * @see {@link Concept#getNameKnownAs(String,Locale)}
+	 */
+	@Test
+	@Verifies(value = "should only find names in the given locale", method = "getNameKnownAs(String,Locale)")
+	public void getNameKnownAs_shouldOnlyFindNamesInTheGivenLocale() throws Exception {
+		Concept testConcept = createMockConcept(1, Locale.US);
+		ConceptName name = testConcept.getPreferredName(Locale.US);
+		
+		assertSame(name, testConcept.getNameKnownAs(name.getName(), Locale.US));
+		Assert.assertNull(testConcept.getNameKnownAs(name.getName(), Locale.ENGLISH));
+		
+		name.setName("renamed");
+		assertSame(name, testConcept.getNameKnownAs("renamed", Locale.US));
+	}
+	
+	/**
+	 * @see {@link Concept#clearNameCache()}
+	 */
+	@Test
+	@Verifies(value = "should make name lookups see a renamed name", method = "clearNameCache()")
+	public void clearNameCache_shouldMakeNameLookupsSeeARenamedName() throws Exception {
+		Concept testConcept = createMockConcept(1, Locale.US);
+		ConceptName name = testConcept.getPreferredName(Locale.US);
+		String oldName = name.getName();
+		assertSame(name, testConcept.getNameKnownAs(oldName, Locale.US));
+		assertSame(name, testConcept.getName(Locale.US, true));
+		
+		name.setName("renamed");
+		Assert.assertNull(testConcept.getNameKnownAs(oldName, Locale.US));
+		assertSame(name, testConcept.getNameKnownAs("renamed", Locale.US));
+		
+		name.setLocale(Locale.UK);
+		Assert.assertNull(testConcept.getNameKnownAs("renamed", Locale.US));
+		assertSame(name, testConcept.getNameKnownAs("renamed", Locale.UK));
+		Assert.assertFalse(testConcept.getNames(Locale.US).contains(name));
+		Assert.assertTrue(testConcept.getNames(Locale.UK).contains(name));
+	}
+	
 	/**
 	 * Convenient factory method to create a populated Concept.
 	 * 
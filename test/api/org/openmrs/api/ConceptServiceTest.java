@@ -20,6 +20,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
@@ -31,6 +32,7 @@ import org.junit.Test;
 import org.openmrs.Concept;
 import org.openmrs.ConceptClass;
 import org.openmrs.ConceptDatatype;
+import org.openmrs.ConceptMap;
 import org.openmrs.ConceptName;
 import org.openmrs.ConceptNameTag;
 import org.openmrs.ConceptNumeric;
@@ -297,4 +299,44 @@ public class ConceptServiceTest extends BaseContextSensitiveTest {
 		Assert.assertNull(concept);
 	}
 	
+	/**
+	 * @see {@link ConceptService#getConceptIdByMapping(String,String)}
+	 */
+	@Test
+	@Verifies(value = "should get concept id with given code and mapping", method = "getConceptIdByMapping(String,String)")
+	public void getConceptIdByMapping_shouldGetConceptIdWithGivenCodeAndMapping() throws Exception {
+		Assert.assertEquals(5089, conceptService.getConceptIdByMapping("WGT234", "SSTRM").intValue());
+		// the second lookup comes from the cache
+		Assert.assertEquals(5089, conceptService.getConceptIdByMapping("WGT234", "SSTRM").intValue());
+	}
+	
+	/**
+	 * @see {@link ConceptService#getConceptIdByMapping(String,String)}
+	 */
+	@Test
+	@Verifies(value = "should return null if code does not exist", method = "getConceptIdByMapping(String,String)")
+	public void getConceptIdByMapping_shouldReturnNullIfCodeDoesNotExist() throws Exception {
+		Assert.assertNull(conceptService.getConceptIdByMapping("A random concept code", "SSTRM"));
+	}
+	
+	/**
+	 * @see {@link ConceptService#getConceptIdByMapping(String,String)}
+	 */
+	@Test
+	@Verifies(value = "should find a mapping saved after the code was looked up", method = "getConceptIdByMapping(String,String)")
+	public void getConceptIdByMapping_shouldFindAMappingSavedAfterTheCodeWasLookedUp() throws Exception {
+		Assert.assertNull(conceptService.getConceptIdByMapping("NEW123", "SSTRM"));
+		
+		Concept concept = conceptService.getConcept(5497);
+		ConceptMap map = new ConceptMap();
+		map.setSource(conceptService.getConceptSource(1));
+		map.setSourceCode("NEW123");
+		map.setCreator(Context.getAuthenticatedUser());
+		map.setDateCreated(new Date());
+		concept.addConceptMapping(map);
+		conceptService.saveConcept(concept);
+		
+		Assert.assertEquals(5497, conceptService.getConceptIdByMapping("NEW123", "SSTRM").intValue());
+	}
+	
 }
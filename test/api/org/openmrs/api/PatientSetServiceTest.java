@@ -15,27 +15,45 @@ package org.openmrs.api;
 
 import static org.junit.Assert.assertNotNull;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.xml.parsers.DocumentBuilderFactory;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Cohort;
+import org.openmrs.Concept;
 import org.openmrs.DrugOrder;
 import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Location;
 import org.openmrs.Obs;
 import org.openmrs.Person;
+import org.openmrs.Relationship;
 import org.openmrs.api.PatientSetService.Modifier;
 import org.openmrs.api.PatientSetService.TimeModifier;
 import org.openmrs.api.context.Context;
 import org.openmrs.test.BaseContextSensitiveTest;
 import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsConstants;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
 
 /**
  *
@@ -51,6 +69,200 @@ public class PatientSetServiceTest extends BaseContextSensitiveTest {
 		service = Context.getPatientSetService();
 	}
 	
+	/**
+	 * @see {@link PatientSetService#getPatientAttributes(Cohort,String,String,boolean)}
+	 */
+	@Test
+	@Verifies(value = "should return the same values when the cohort is bound in a temporary table", method = "getPatientAttributes(Cohort,String,String,boolean)")
+	public void getPatientAttributes_shouldReturnTheSameValuesWhenTheCohortIsBoundInATemporaryTable() throws Exception {
+		Cohort patients = new Cohort();
+		patients.addMember(2);
+		patients.addMember(6);
+		patients.addMember(7);
+		Map<Integer, Object> inline = service.getPatientAttributes(patients, "Person", "gender", false);
+		
+		// any cohort of more than one patient now goes through a temporary table
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_COHORT_BINDING_THRESHOLD, "1"));
+		Assert.assertEquals(inline, service.getPatientAttributes(patients, "Person", "gender", false));
+		// and the binding was released, so binding again works
+		Assert.assertEquals(inline, service.getPatientAttributes(patients, "Person", "gender", false));
+	}
+	
+	/**
+	 * Writes an element as text with its attributes sorted by name and its child elements sorted by
+	 * their own text, so that two documents holding the same data compare equal even if sets (like
+	 * an encounter's obs) were written in a different order
+	 */
+	private String canonical(Element element) {
+		List<String> attributes = new ArrayList<String>();
+		NamedNodeMap attributeMap = element.getAttributes();
+		for (int i = 0; i < attributeMap.getLength(); i++)
+			attributes.add(attributeMap.item(i).getNodeName() + "=" + attributeMap.item(i).getNodeValue());
+		Collections.sort(attributes);
+		
+		List<String> children = new ArrayList<String>();
+		StringBuilder text = new StringBuilder();
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE)
+				children.add(canonical((Element) child));
+			else if (child.getNodeType() == Node.TEXT_NODE)
+				text.append(child.getNodeValue());
+		}
+		Collections.sort(children);
+		
+		return "<" + element.getTagName() + " " + attributes + ">" + text.toString().trim() + children + "</"
+		        + element.getTagName() + ">";
+	}
+	
+	/**
+	 * @see {@link PatientSetService#exportXml(Cohort,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should write the same xml as the string export", method = "exportXml(Cohort,OutputStream)")
+	public void exportXml_shouldWriteTheSameXmlAsTheStringExport() throws Exception {
+		Cohort patients = new Cohort("2,6,7,8");
+		
+		// the string export embeds an xml declaration for each patient
+		String xml = service.exportXml(patients).replaceAll("<\\?xml[^>]*\\?>", "");
+		Element expected = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+		    new InputSource(new StringReader(xml))).getDocumentElement();
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		service.exportXml(patients, out);
+		Element streamed = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+		    new ByteArrayInputStream(out.toByteArray())).getDocumentElement();
+		
+		Assert.assertEquals(4, streamed.getElementsByTagName("patient").getLength());
+		Assert.assertTrue(streamed.getElementsByTagName("obs").getLength() > 0);
+		Assert.assertEquals(canonical(expected), canonical(streamed));
+		
+		// the patients are written in the same order
+		for (int i = 0; i < 4; i++) {
+			Assert.assertEquals(((Element) expected.getElementsByTagName("patient").item(i)).getAttribute("patient_id"),
+			    ((Element) streamed.getElementsByTagName("patient").item(i)).getAttribute("patient_id"));
+		}
+	}
+	
+	/**
+	 * @see {@link PatientSetService#getPatientsChangedSince(Date)}
+	 */
+	@Test
+	@Verifies(value = "should get both patients of a relationship created since the date", method = "getPatientsChangedSince(Date)")
+	public void getPatientsChangedSince_shouldGetBothPatientsOfARelationshipCreatedSinceTheDate() throws Exception {
+		Date since = new Date(System.currentTimeMillis() - 1000);
+		Assert.assertEquals(0, service.getPatientsChangedSince(since).size());
+		
+		Relationship relationship = new Relationship(new Person(6), new Person(8), Context.getPersonService()
+		        .getRelationshipType(1));
+		Context.getPersonService().saveRelationship(relationship);
+		
+		Cohort changed = service.getPatientsChangedSince(since);
+		Assert.assertTrue(changed.contains(6));
+		Assert.assertTrue(changed.contains(8));
+		Assert.assertFalse(changed.contains(2));
+	}
+	
+	/**
+	 * @see {@link PatientSetService#getPatientsChangedSince(Date)}
+	 */
+	@Test
+	@Verifies(value = "should get the patient of a program state changed since the date", method = "getPatientsChangedSince(Date)")
+	public void getPatientsChangedSince_shouldGetThePatientOfAProgramStateChangedSinceTheDate() throws Exception {
+		Date since = new Date(System.currentTimeMillis() - 1000);
+		Assert.assertEquals(0, service.getPatientsChangedSince(since).size());
+		
+		// only the state changes, not the patient program it belongs to
+		PreparedStatement update = getConnection().prepareStatement(
+		    "update patient_state set date_changed = ? where patient_state_id = 1");
+		update.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+		update.executeUpdate();
+		update.close();
+		
+		Cohort changed = service.getPatientsChangedSince(since);
+		Assert.assertTrue(changed.contains(2));
+		Assert.assertEquals(1, changed.size());
+	}
+	
+	/**
+	 * @see {@link PatientSetService#visitObservations(Cohort,Concept,PatientDataVisitor)}
+	 */
+	@Test
+	@Verifies(value = "should visit the same obs in the same order as getObservations", method = "visitObservations(Cohort,Concept,PatientDataVisitor)")
+	public void visitObservations_shouldVisitTheSameObsInTheSameOrderAsGetObservations() throws Exception {
+		Cohort patients = new Cohort("2,6,7,8");
+		Concept concept = Context.getConceptService().getConcept(5089);
+		
+		Map<Integer, List<Integer>> expected = new LinkedHashMap<Integer, List<Integer>>();
+		for (Map.Entry<Integer, List<Obs>> e : service.getObservations(patients, concept).entrySet()) {
+			List<Integer> obsIds = new ArrayList<Integer>();
+			for (Obs o : e.getValue())
+				obsIds.add(o.getObsId());
+			expected.put(e.getKey(), obsIds);
+		}
+		Assert.assertFalse(expected.isEmpty());
+		
+		final Map<Integer, List<Integer>> visited = new LinkedHashMap<Integer, List<Integer>>();
+		service.visitObservations(patients, concept, new PatientDataVisitor<Obs>() {
+			
+			public void visit(Integer patientId, List<Obs> data) {
+				Assert.assertFalse(visited.containsKey(patientId));
+				List<Integer> obsIds = new ArrayList<Integer>();
+				for (Obs o : data)
+					obsIds.add(o.getObsId());
+				visited.put(patientId, obsIds);
+			}
+		});
+		
+		Assert.assertEquals(expected, visited);
+		// patients are visited in ascending id order
+		List<Integer> patientIds = new ArrayList<Integer>(visited.keySet());
+		Collections.sort(patientIds);
+		Assert.assertEquals(patientIds, new ArrayList<Integer>(visited.keySet()));
+	}
+	
+	/**
+	 * @see {@link PatientSetService#visitDrugOrders(Cohort,Concept,PatientDataVisitor)}
+	 */
+	@Test
+	@Verifies(value = "should visit the same drug orders in the same order as getDrugOrders", method = "visitDrugOrders(Cohort,Concept,PatientDataVisitor)")
+	public void visitDrugOrders_shouldVisitTheSameDrugOrdersInTheSameOrderAsGetDrugOrders() throws Exception {
+		Cohort patients = new Cohort("2,6,7,8");
+		
+		Map<Integer, List<Integer>> expected = new LinkedHashMap<Integer, List<Integer>>();
+		for (Map.Entry<Integer, List<DrugOrder>> e : service.getDrugOrders(patients, null).entrySet()) {
+			List<Integer> orderIds = new ArrayList<Integer>();
+			for (DrugOrder o : e.getValue())
+				orderIds.add(o.getOrderId());
+			expected.put(e.getKey(), orderIds);
+		}
+		Assert.assertFalse(expected.isEmpty());
+		
+		final Map<Integer, List<Integer>> visited = new LinkedHashMap<Integer, List<Integer>>();
+		service.visitDrugOrders(patients, null, new PatientDataVisitor<DrugOrder>() {
+			
+			public void visit(Integer patientId, List<DrugOrder> data) {
+				Assert.assertFalse(visited.containsKey(patientId));
+				List<Integer> orderIds = new ArrayList<Integer>();
+				for (DrugOrder o : data)
+					orderIds.add(o.getOrderId());
+				visited.put(patientId, orderIds);
+			}
+		});
+		
+		Assert.assertEquals(expected, visited);
+		
+		// the current drug orders are among the visited ones, in the same order
+		for (Map.Entry<Integer, List<DrugOrder>> e : service.getCurrentDrugOrders(patients, null).entrySet()) {
+			List<Integer> current = new ArrayList<Integer>();
+			for (DrugOrder o : e.getValue())
+				current.add(o.getOrderId());
+			List<Integer> all = new ArrayList<Integer>(visited.get(e.getKey()));
+			all.retainAll(current);
+			Assert.assertEquals(current, all);
+		}
+	}
+	
 	@Test
 	public void shouldGetDrugOrders() throws Exception {
 		PatientSetService service = Context.getPatientSetService();
@@ -125,4 +337,31 @@ public class PatientSetServiceTest extends BaseContextSensitiveTest {
     	Assert.assertEquals(2, withTwoTypes.size());
     }
 
+	/**
+	 * @see {@link PatientSetService#getObservationIds(Cohort,Collection,Date,Date)}
+	 */
+	@Test
+	@Verifies(value = "should get the ids of the obs of the given patients and concepts", method = "getObservationIds(Cohort,Collection,Date,Date)")
+	public void getObservationIds_shouldGetTheIdsOfTheObsOfTheGivenPatientsAndConcepts() throws Exception {
+		Cohort patients = new Cohort();
+		patients.addMember(7);
+		List<Concept> concepts = new ArrayList<Concept>();
+		concepts.add(Context.getConceptService().getConcept(5089));
+		List<Integer> obsIds = service.getObservationIds(patients, concepts, null, null);
+		Assert.assertEquals(Arrays.asList(16, 10, 7), obsIds);
+	}
+	
+	/**
+	 * @see {@link PatientSetService#getObservationsByIds(List)}
+	 */
+	@Test
+	@Verifies(value = "should get the obs in the order of the ids", method = "getObservationsByIds(List)")
+	public void getObservationsByIds_shouldGetTheObsInTheOrderOfTheIds() throws Exception {
+		List<Obs> obs = service.getObservationsByIds(Arrays.asList(10, 16, 7));
+		Assert.assertEquals(3, obs.size());
+		Assert.assertEquals(10, obs.get(0).getObsId().intValue());
+		Assert.assertEquals(16, obs.get(1).getObsId().intValue());
+		Assert.assertEquals(7, obs.get(2).getObsId().intValue());
+	}
+	
 }
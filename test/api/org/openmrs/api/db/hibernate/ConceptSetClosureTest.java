@@ -0,0 +1,92 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link ConceptSetClosure} class
+ */
+public class ConceptSetClosureTest {
+	
+	/**
+	 * @see {@link ConceptSetClosure#getDescendants(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should find members nested deeper than three levels", method = "getDescendants(Integer)")
+	public void getDescendants_shouldFindMembersNestedDeeperThanThreeLevels() throws Exception {
+		ConceptSetClosure closure = new ConceptSetClosure();
+		for (int i = 1; i < 6; i++)
+			closure.addMember(i, i + 1, null);
+		Assert.assertEquals(Arrays.asList(2, 3, 4, 5, 6), new ArrayList<Integer>(closure.getDescendants(1).keySet()));
+		Assert.assertEquals(Arrays.asList(6), new ArrayList<Integer>(closure.getDescendants(5).keySet()));
+	}
+	
+	/**
+	 * @see {@link ConceptSetClosure#getDescendants(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should stop at cycles and not include the set itself", method = "getDescendants(Integer)")
+	public void getDescendants_shouldStopAtCyclesAndNotIncludeTheSetItself() throws Exception {
+		ConceptSetClosure closure = new ConceptSetClosure();
+		closure.addMember(1, 2, null);
+		closure.addMember(2, 3, null);
+		closure.addMember(3, 1, null);
+		Assert.assertEquals(Arrays.asList(2, 3), new ArrayList<Integer>(closure.getDescendants(1).keySet()));
+		Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), closure.getSetAndAncestors(2));
+	}
+	
+	/**
+	 * @see {@link ConceptSetClosure#getDescendants(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should keep the sort weight of the first path to a member", method = "getDescendants(Integer)")
+	public void getDescendants_shouldKeepTheSortWeightOfTheFirstPathToAMember() throws Exception {
+		ConceptSetClosure closure = new ConceptSetClosure();
+		closure.addMember(1, 3, 2.0);
+		closure.addMember(1, 2, 1.0);
+		closure.addMember(2, 4, 5.0);
+		closure.addMember(3, 4, 7.0);
+		closure.addMember(1, 4, null);
+		Map<Integer, Double> descendants = closure.getDescendants(1);
+		Assert.assertEquals(Arrays.asList(2, 3, 4), new ArrayList<Integer>(descendants.keySet()));
+		Assert.assertNull(descendants.get(4));
+		
+		descendants = closure.getDescendants(2);
+		Assert.assertEquals(5.0, descendants.get(4));
+	}
+	
+	/**
+	 * @see {@link ConceptSetClosure#getSetAndAncestors(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should return the concept and every set it is nested in", method = "getSetAndAncestors(Integer)")
+	public void getSetAndAncestors_shouldReturnTheConceptAndEverySetItIsNestedIn() throws Exception {
+		ConceptSetClosure closure = new ConceptSetClosure();
+		closure.addMember(1, 2, null);
+		closure.addMember(2, 3, null);
+		closure.addMember(4, 3, null);
+		closure.addMember(5, 1, null);
+		Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3, 4, 5)), closure.getSetAndAncestors(3));
+		Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 5)), closure.getSetAndAncestors(1));
+	}
+}
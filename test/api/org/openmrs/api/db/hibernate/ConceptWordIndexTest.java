@@ -0,0 +1,117 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.api.db.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link ConceptWordIndex} class
+ */
+public class ConceptWordIndexTest {
+	
+	private static final List<Integer> NONE = Collections.emptyList();
+	
+	/**
+	 * Indexes concept 1 "CD4 COUNT" (class 1), concept 2 "CD4 PERCENT" (class 2) and concept 3
+	 * "COUGH" (class 1, retired) in English, and concept 1 as "NUMERO CD4" in French
+	 */
+	private ConceptWordIndex createIndex() {
+		ConceptWordIndex index = new ConceptWordIndex();
+		index.addWord(1, 10, "CD4", Locale.ENGLISH);
+		index.addWord(1, 10, "COUNT", Locale.ENGLISH);
+		index.addWord(1, 11, "NUMERO", Locale.FRENCH);
+		index.addWord(1, 11, "CD4", Locale.FRENCH);
+		index.setConceptAttributes(1, 1, 1, false);
+		index.addWord(2, 20, "CD4", Locale.ENGLISH);
+		index.addWord(2, 20, "PERCENT", Locale.ENGLISH);
+		index.setConceptAttributes(2, 2, 1, false);
+		index.addWord(3, 30, "COUGH", Locale.ENGLISH);
+		index.setConceptAttributes(3, 1, 2, true);
+		return index;
+	}
+	
+	private List<Integer> search(ConceptWordIndex index, String phrase, boolean includeRetired, List<Integer> requireClassIds,
+	                             Integer start, Integer size) {
+		List<Integer> conceptIds = new ArrayList<Integer>();
+		for (ConceptWordIndex.Match match : index.search(Arrays.asList(phrase.split(" ")), Arrays.asList(Locale.ENGLISH),
+		    includeRetired, requireClassIds, NONE, NONE, NONE, NONE, start, size))
+			conceptIds.add(match.getConceptId());
+		return conceptIds;
+	}
+	
+	/**
+	 * @see {@link ConceptWordIndex#search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should match words starting with the first search word", method = "search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)")
+	public void search_shouldMatchWordsStartingWithTheFirstSearchWord() throws Exception {
+		ConceptWordIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(3, 1), search(index, "CO", true, NONE, null, null));
+		Assert.assertEquals(Arrays.asList(1, 2), search(index, "CD", true, NONE, null, null));
+	}
+	
+	/**
+	 * @see {@link ConceptWordIndex#search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should only match concepts with every search word", method = "search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)")
+	public void search_shouldOnlyMatchConceptsWithEverySearchWord() throws Exception {
+		ConceptWordIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(2), search(index, "CD4 PER", true, NONE, null, null));
+		Assert.assertEquals(NONE, search(index, "CD4 NUMERO", true, NONE, null, null));
+	}
+	
+	/**
+	 * @see {@link ConceptWordIndex#search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should filter on retired and class", method = "search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)")
+	public void search_shouldFilterOnRetiredAndClass() throws Exception {
+		ConceptWordIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(1), search(index, "CO", false, NONE, null, null));
+		Assert.assertEquals(Arrays.asList(2), search(index, "CD4", false, Arrays.asList(2), null, null));
+	}
+	
+	/**
+	 * @see {@link ConceptWordIndex#search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should return the requested page of matches", method = "search(List,Collection,boolean,Collection,Collection,Collection,Collection,Collection,Integer,Integer)")
+	public void search_shouldReturnTheRequestedPageOfMatches() throws Exception {
+		ConceptWordIndex index = createIndex();
+		Assert.assertEquals(Arrays.asList(1), search(index, "C", true, NONE, 0, 1));
+		Assert.assertEquals(Arrays.asList(2, 3), search(index, "C", true, NONE, 1, 2));
+	}
+	
+	/**
+	 * @see {@link ConceptWordIndex#removeConcept(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should remove all the concept's words", method = "removeConcept(Integer)")
+	public void removeConcept_shouldRemoveAllTheConceptsWords() throws Exception {
+		ConceptWordIndex index = createIndex();
+		index.removeConcept(1);
+		Assert.assertEquals(Arrays.asList(2), search(index, "CD4", true, NONE, null, null));
+		Assert.assertEquals(2, index.getConceptCount());
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.hl7;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link HL7InArchiveFileStore} class
+ */
+public class HL7InArchiveFileStoreTest {
+	
+	private File directory;
+	
+	@Before
+	public void createDirectory() throws Exception {
+		directory = File.createTempFile("hl7_archive", "");
+		directory.delete();
+		directory.mkdir();
+	}
+	
+	@After
+	public void deleteDirectory() throws Exception {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+	
+	private HL7InArchive createArchive(int id, String hl7Data, Date dateCreated) {
+		HL7Source hl7Source = new HL7Source();
+		hl7Source.setHL7SourceId(1);
+		HL7InArchive hl7InArchive = new HL7InArchive();
+		hl7InArchive.setHL7InArchiveId(id);
+		hl7InArchive.setHL7Source(hl7Source);
+		hl7InArchive.setHL7SourceKey("key" + id);
+		hl7InArchive.setHL7Data(hl7Data);
+		hl7InArchive.setDateCreated(dateCreated);
+		return hl7InArchive;
+	}
+	
+	/**
+	 * @see {@link HL7InArchiveFileStore#save(HL7InArchive)}
+	 */
+	@Test
+	@Verifies(value = "should give new archives the next free id", method = "save(HL7InArchive)")
+	public void save_shouldGiveNewArchivesTheNextFreeId() throws Exception {
+		HL7InArchiveFileStore store = new HL7InArchiveFileStore(directory);
+		store.reserveIds(10);
+		Assert.assertEquals(11, store.save(createArchive(0, "MSH|first", new Date())).getHL7InArchiveId());
+		Assert.assertEquals(12, store.save(createArchive(0, "MSH|second", new Date())).getHL7InArchiveId());
+		store.close();
+	}
+	
+	/**
+	 * @see {@link HL7InArchiveFileStore#save(HL7InArchive)}
+	 */
+	@Test
+	@Verifies(value = "should keep the id of archives that have one", method = "save(HL7InArchive)")
+	public void save_shouldKeepTheIdOfArchivesThatHaveOne() throws Exception {
+		HL7InArchiveFileStore store = new HL7InArchiveFileStore(directory);
+		store.save(createArchive(5, "MSH|old", new Date()));
+		store.save(createArchive(5, "MSH|new", new Date()));
+		Assert.assertEquals(1, store.size());
+		Assert.assertEquals("MSH|new", store.get(5).getHL7Data());
+		Assert.assertEquals(6, store.save(createArchive(0, "MSH|next", new Date())).getHL7InArchiveId());
+		store.close();
+	}
+	
+	/**
+	 * @see {@link HL7InArchiveFileStore#get(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should get a saved archive after the store is reopened", method = "get(Integer)")
+	public void get_shouldGetASavedArchiveAfterTheStoreIsReopened() throws Exception {
+		Date dateCreated = new Date(1000000000000L);
+		// a tiny segment size, so each message goes in its own segment
+		HL7InArchiveFileStore store = new HL7InArchiveFileStore(directory, 1);
+		store.save(createArchive(1, "MSH|^~\\&|FORMENTRY|AMRS.ELD|HL7LISTENER|AMRS.ELD|20080226102656||ORU^R01", dateCreated));
+		store.save(createArchive(2, "MSH|second", dateCreated));
+		store.close();
+		
+		store = new HL7InArchiveFileStore(directory, 1);
+		HL7InArchive hl7InArchive = store.get(1);
+		Assert.assertEquals("MSH|^~\\&|FORMENTRY|AMRS.ELD|HL7LISTENER|AMRS.ELD|20080226102656||ORU^R01", hl7InArchive
+		        .getHL7Data());
+		Assert.assertEquals("key1", hl7InArchive.getHL7SourceKey());
+		Assert.assertEquals(1, hl7InArchive.getHL7Source().getHL7SourceId().intValue());
+		Assert.assertEquals(dateCreated, hl7InArchive.getDateCreated());
+		Assert.assertEquals("MSH|second", store.get(2).getHL7Data());
+		Assert.assertNull(store.get(3));
+		store.close();
+	}
+	
+	/**
+	 * @see {@link HL7InArchiveFileStore#getIds(Date,Date)}
+	 */
+	@Test
+	@Verifies(value = "should only return ids in the date range", method = "getIds(Date,Date)")
+	public void getIds_shouldOnlyReturnIdsInTheDateRange() throws Exception {
+		HL7InArchiveFileStore store = new HL7InArchiveFileStore(directory);
+		store.save(createArchive(1, "MSH|1", new Date(1000)));
+		store.save(createArchive(2, "MSH|2", new Date(2000)));
+		store.save(createArchive(3, "MSH|3", new Date(3000)));
+		Assert.assertEquals(Arrays.asList(2, 3), store.getIds(new Date(2000), null));
+		Assert.assertEquals(Arrays.asList(1, 2), store.getIds(null, new Date(2000)));
+		Assert.assertEquals(Arrays.asList(2), store.getIds(new Date(1500), new Date(2500)));
+		store.close();
+	}
+	
+	/**
+	 * @see {@link HL7InArchiveFileStore#purge(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should not get a purged archive after the store is reopened", method = "purge(Integer)")
+	public void purge_shouldNotGetAPurgedArchiveAfterTheStoreIsReopened() throws Exception {
+		HL7InArchiveFileStore store = new HL7InArchiveFileStore(directory);
+		store.save(createArchive(1, "MSH|1", new Date()));
+		store.save(createArchive(2, "MSH|2", new Date()));
+		Assert.assertTrue(store.purge(1));
+		store.close();
+		
+		store = new HL7InArchiveFileStore(directory);
+		Assert.assertFalse(store.contains(1));
+		Assert.assertTrue(store.contains(2));
+		Assert.assertEquals(1, store.size());
+		store.close();
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.hl7;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link HL7InQueueProcessor} class
+ */
+public class HL7InQueueProcessorTest {
+	
+	/**
+	 * @see {@link HL7InQueueProcessor#getPatientKey(String)}
+	 */
+	@Test
+	@Verifies(value = "should return the patient identifier field", method = "getPatientKey(String)")
+	public void getPatientKey_shouldReturnThePatientIdentifierField() throws Exception {
+		String hl7string = "MSH|^~\\&|FORMENTRY|AMRS.ELD|HL7LISTENER|AMRS.ELD|20080226102656||ORU^R01|JqnfhKKtouEz8kzTk6Zo|P|2.5|1||||||||16^AMRS.ELD.FORMID\rPID|||3^^^^||John3^Doe^||\rPV1||O|1^Unknown Location||||1^Super User (1-8)|||||||||||||||||||||||||||||||||||||20080212|||||||V\rOBR|1|||1238^MEDICAL RECORD OBSERVATIONS^99DCT\rOBX|1|NM|5497^CD4, BY FACS^99DCT||450|||||||||20080206";
+		Assert.assertEquals("3^^^^", HL7InQueueProcessor.getPatientKey(hl7string));
+		Assert.assertEquals("3^^^^", HL7InQueueProcessor.getPatientKey(hl7string.replace('\r', '\n')));
+	}
+	
+	/**
+	 * @see {@link HL7InQueueProcessor#getPatientKey(String)}
+	 */
+	@Test
+	@Verifies(value = "should return null if there is no PID segment", method = "getPatientKey(String)")
+	public void getPatientKey_shouldReturnNullIfThereIsNoPIDSegment() throws Exception {
+		Assert.assertNull(HL7InQueueProcessor
+		        .getPatientKey("MSH|^~\\&|FORMENTRY|AMRS.ELD|HL7LISTENER|AMRS.ELD|20080226102656||ORU^R01|Jq|P|2.5\rPV1||O|1"));
+		Assert.assertNull(HL7InQueueProcessor.getPatientKey("MSH|^~\\&|FORMENTRY\rPID||1234"));
+		Assert.assertNull(HL7InQueueProcessor.getPatientKey("not an hl7 message"));
+	}
+}
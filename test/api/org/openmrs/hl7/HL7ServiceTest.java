@@ -0,0 +1,126 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.hl7;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsConstants;
+
+/**
+ * Tests methods on the {@link HL7Service} class
+ */
+public class HL7ServiceTest extends BaseContextSensitiveTest {
+	
+	protected static final String HL7_INITIAL_DATA_XML = "org/openmrs/hl7/include/HL7ServiceTest-initialData.xml";
+	
+	protected static final String ORU_INITIAL_DATA_XML = "org/openmrs/hl7/include/ORUTest-initialData.xml";
+	
+	protected static final String ORU_MESSAGE = "MSH|^~\\&|FORMENTRY|AMRS.ELD|HL7LISTENER|AMRS.ELD|20080226102656||ORU^R01|JqnfhKKtouEz8kzTk6Zo|P|2.5|1||||||||16^AMRS.ELD.FORMID\rPID|||3^^^^||John3^Doe^||\rPV1||O|1^Unknown Location||||1^Super User (1-8)|||||||||||||||||||||||||||||||||||||20080212|||||||V\rORC|RE||||||||20080226102537|1^Super User\rOBR|1|||1238^MEDICAL RECORD OBSERVATIONS^99DCT\rOBX|1|NM|5497^CD4, BY FACS^99DCT||450|||||||||20080206";
+	
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		executeDataSet(HL7_INITIAL_DATA_XML);
+	}
+	
+	/**
+	 * Adds an entry to the hl7 inbound queue
+	 */
+	private HL7InQueue queue(String hl7SourceKey, String hl7Data) {
+		HL7InQueue hl7InQueue = new HL7InQueue();
+		hl7InQueue.setHL7Source(Context.getHL7Service().getHL7Source(1));
+		hl7InQueue.setHL7SourceKey(hl7SourceKey);
+		hl7InQueue.setHL7Data(hl7Data);
+		return Context.getHL7Service().saveHL7InQueue(hl7InQueue);
+	}
+	
+	/**
+	 * @see {@link HL7Service#archiveHL7InQueues(List)}
+	 */
+	@Test
+	@Verifies(value = "should move every entry into the archive and out of the queue", method = "archiveHL7InQueues(List)")
+	public void archiveHL7InQueues_shouldMoveEveryEntryIntoTheArchiveAndOutOfTheQueue() throws Exception {
+		HL7Service hl7Service = Context.getHL7Service();
+		List<HL7InQueue> hl7InQueues = new ArrayList<HL7InQueue>();
+		Map<String, String> expected = new HashMap<String, String>();
+		for (int i = 1; i <= 3; i++) {
+			hl7InQueues.add(queue("key" + i, "MSH|message " + i));
+			expected.put("key" + i, "MSH|message " + i);
+		}
+		List<HL7InArchive> archivesBefore = hl7Service.getAllHL7InArchives();
+		
+		hl7Service.archiveHL7InQueues(hl7InQueues);
+		
+		for (HL7InQueue hl7InQueue : hl7InQueues)
+			Assert.assertNull(hl7Service.getHL7InQueue(hl7InQueue.getHL7InQueueId()));
+		Assert.assertEquals(0, hl7Service.getAllHL7InQueues().size());
+		
+		Map<String, String> archived = new HashMap<String, String>();
+		for (HL7InArchive hl7InArchive : hl7Service.getAllHL7InArchives()) {
+			if (expected.containsKey(hl7InArchive.getHL7SourceKey())) {
+				Assert.assertEquals(1, hl7InArchive.getHL7Source().getHL7SourceId().intValue());
+				Assert.assertNotNull(hl7InArchive.getDateCreated());
+				archived.put(hl7InArchive.getHL7SourceKey(), hl7InArchive.getHL7Data());
+			}
+		}
+		Assert.assertEquals(expected, archived);
+		Assert.assertEquals(archivesBefore.size() + 3, hl7Service.getAllHL7InArchives().size());
+	}
+	
+	/**
+	 * @see {@link HL7InQueueProcessor#processHL7InQueue()}
+	 */
+	@Test
+	@Verifies(value = "should move a failing entry into the error table when archiving in batches", method = "processHL7InQueue()")
+	public void processHL7InQueue_shouldMoveAFailingEntryIntoTheErrorTableWhenArchivingInBatches() throws Exception {
+		executeDataSet(ORU_INITIAL_DATA_XML);
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_HL7_ARCHIVE_BATCH_SIZE, "10"));
+		HL7Service hl7Service = Context.getHL7Service();
+		queue("good1", ORU_MESSAGE);
+		queue("bad", "MSH|^~\\&|not a message we can route");
+		queue("good2", ORU_MESSAGE.replace("JqnfhKKtouEz8kzTk6Zo", "JqnfhKKtouEz8kzTk6Z2"));
+		int errorsBefore = hl7Service.getAllHL7InErrors().size();
+		
+		new HL7InQueueProcessor().processHL7InQueue();
+		
+		Assert.assertEquals(0, hl7Service.getAllHL7InQueues().size());
+		
+		List<HL7InError> errors = hl7Service.getAllHL7InErrors();
+		Assert.assertEquals(errorsBefore + 1, errors.size());
+		HL7InError error = null;
+		for (HL7InError e : errors) {
+			if ("bad".equals(e.getHL7SourceKey()))
+				error = e;
+		}
+		Assert.assertNotNull(error);
+		Assert.assertEquals("MSH|^~\\&|not a message we can route", error.getHL7Data());
+		
+		List<String> archivedKeys = new ArrayList<String>();
+		for (HL7InArchive hl7InArchive : hl7Service.getAllHL7InArchives())
+			archivedKeys.add(hl7InArchive.getHL7SourceKey());
+		Assert.assertTrue(archivedKeys.contains("good1"));
+		Assert.assertTrue(archivedKeys.contains("good2"));
+		Assert.assertFalse(archivedKeys.contains("bad"));
+	}
+}
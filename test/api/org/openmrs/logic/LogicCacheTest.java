@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Patient;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link LogicCache} class
+ */
+public class LogicCacheTest {
+	
+	/**
+	 * Caches the result "true" for patient 1 and "false" for patient 2 of the given token
+	 */
+	private void putResults(LogicCache cache, String token, Date indexDate) {
+		Cohort cohort = new Cohort();
+		cohort.addMember(1);
+		cohort.addMember(2);
+		cohort.addMember(3);
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(1, new Result(true));
+		results.put(2, new Result(false));
+		cache.put(new LogicCriteria(token), null, indexDate, 60, cohort, results);
+	}
+	
+	/**
+	 * @see {@link LogicCache#get(Patient,LogicCriteria,Map,Date)}
+	 */
+	@Test
+	@Verifies(value = "should only return results for patients in the evaluated cohort", method = "get(Patient,LogicCriteria,Map,Date)")
+	public void get_shouldOnlyReturnResultsForPatientsInTheEvaluatedCohort() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date now = new Date();
+		putResults(cache, "TOKEN", now);
+		
+		Assert.assertTrue(cache.get(new Patient(1), new LogicCriteria("TOKEN"), null, now).toBoolean());
+		Assert.assertTrue(cache.get(new Patient(3), new LogicCriteria("TOKEN"), null, now).isEmpty());
+		Assert.assertNull(cache.get(new Patient(4), new LogicCriteria("TOKEN"), null, now));
+		Assert.assertNull(cache.get(new Patient(1), new LogicCriteria("OTHER TOKEN"), null, now));
+		Assert.assertEquals(2, cache.getHitCount());
+		Assert.assertEquals(2, cache.getMissCount());
+	}
+	
+	/**
+	 * @see {@link LogicCache#get(Patient,LogicCriteria,Map,Date)}
+	 */
+	@Test
+	@Verifies(value = "should not return results evaluated as of another day", method = "get(Patient,LogicCriteria,Map,Date)")
+	public void get_shouldNotReturnResultsEvaluatedAsOfAnotherDay() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date now = new Date();
+		putResults(cache, "TOKEN", now);
+		
+		Date lastWeek = new Date(now.getTime() - 7L * 24 * 60 * 60 * 1000);
+		Assert.assertNull(cache.get(new Patient(1), new LogicCriteria("TOKEN"), null, lastWeek));
+	}
+	
+	/**
+	 * @see {@link LogicCache#get(Patient,LogicCriteria,Map,Date)}
+	 */
+	@Test
+	@Verifies(value = "should return a new copy of the values each time", method = "get(Patient,LogicCriteria,Map,Date)")
+	public void get_shouldReturnANewCopyOfTheValuesEachTime() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date now = new Date();
+		Cohort cohort = new Cohort();
+		cohort.addMember(1);
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		results.put(1, new Result(now, 42.0, new Object()));
+		cache.put(new LogicCriteria("TOKEN"), null, now, 60, cohort, results);
+		
+		Result first = cache.get(new Patient(1), new LogicCriteria("TOKEN"), null, now);
+		Assert.assertEquals(42.0, first.toNumber());
+		Assert.assertEquals(now, first.getResultDate());
+		Assert.assertNull(first.getResultObject());
+		
+		first.setValueNumeric(7.0);
+		Result second = cache.get(new Patient(1), new LogicCriteria("TOKEN"), null, now);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(42.0, second.toNumber());
+	}
+	
+	/**
+	 * @see {@link LogicCache#invalidatePatient(Integer)}
+	 */
+	@Test
+	@Verifies(value = "should drop only the given patient's results", method = "invalidatePatient(Integer)")
+	public void invalidatePatient_shouldDropOnlyTheGivenPatientsResults() throws Exception {
+		LogicCache cache = new LogicCache();
+		Date now = new Date();
+		putResults(cache, "TOKEN", now);
+		
+		cache.invalidatePatient(1);
+		Assert.assertNull(cache.get(new Patient(1), new LogicCriteria("TOKEN"), null, now));
+		Assert.assertFalse(cache.get(new Patient(2), new LogicCriteria("TOKEN"), null, now).toBoolean());
+	}
+	
+	/**
+	 * @see {@link LogicCache#put(LogicCriteria,Map,Date,int,Cohort,Map)}
+	 */
+	@Test
+	@Verifies(value = "should evict the least recently used entry when full", method = "put(LogicCriteria,Map,Date,int,Cohort,Map)")
+	public void put_shouldEvictTheLeastRecentlyUsedEntryWhenFull() throws Exception {
+		LogicCache cache = new LogicCache(2);
+		Date now = new Date();
+		putResults(cache, "A", now);
+		putResults(cache, "B", now);
+		cache.get(new Patient(1), new LogicCriteria("A"), null, now);
+		putResults(cache, "C", now);
+		
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertNotNull(cache.get(new Patient(1), new LogicCriteria("A"), null, now));
+		Assert.assertNull(cache.get(new Patient(1), new LogicCriteria("B"), null, now));
+		Assert.assertNotNull(cache.get(new Patient(1), new LogicCriteria("C"), null, now));
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link LogicContext} class
+ */
+public class LogicContextTest extends BaseContextSensitiveTest {
+	
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		initializeInMemoryDatabase();
+		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
+		executeDataSet("org/openmrs/logic/include/LogicBasicTest.concepts.xml");
+		authenticate();
+	}
+	
+	/**
+	 * Evaluates the criteria for every patient in the cohort in a new context, starting with an
+	 * empty logic cache so the rule is really evaluated
+	 */
+	private Map<Integer, Result> eval(Cohort patients, LogicCriteria criteria, int patientPageSize) throws Exception {
+		Context.getLogicService().getLogicCache().clear();
+		LogicContext context = new LogicContext(patients);
+		context.setPatientPageSize(patientPageSize);
+		Map<Integer, Result> results = new HashMap<Integer, Result>();
+		for (Integer patientId : patients.getMemberIds())
+			results.put(patientId, context.eval(new Patient(patientId), criteria, null));
+		return results;
+	}
+	
+	/**
+	 * @see {@link LogicContext#eval(Patient,LogicCriteria,Map)}
+	 */
+	@Test
+	@Verifies(value = "should give every patient the same result when the cohort is loaded in several pages", method = "eval(Patient,LogicCriteria,Map)")
+	public void eval_shouldGiveEveryPatientTheSameResultWhenTheCohortIsLoadedInSeveralPages() throws Exception {
+		Cohort patients = new Cohort("2,3");
+		LogicCriteria criteria = new LogicCriteria("CD4 COUNT").last();
+		
+		Map<Integer, Result> unpaged = eval(patients, criteria, 1000);
+		Map<Integer, Result> paged = eval(patients, criteria, 1);
+		
+		Assert.assertEquals(2, paged.size());
+		Assert.assertEquals(100.0, unpaged.get(2).toNumber());
+		Assert.assertEquals(125.0, unpaged.get(3).toNumber());
+		for (Integer patientId : patients.getMemberIds())
+			Assert.assertEquals("patient " + patientId, unpaged.get(patientId), paged.get(patientId));
+	}
+}
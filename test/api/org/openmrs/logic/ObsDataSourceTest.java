@@ -14,8 +14,13 @@
 package org.openmrs.logic;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.logging.Log;
@@ -23,9 +28,13 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Cohort;
+import org.openmrs.Obs;
 import org.openmrs.api.context.Context;
 import org.openmrs.logic.datasource.LogicDataSource;
+import org.openmrs.logic.datasource.ObsDataSource;
+import org.openmrs.logic.op.Operator;
 import org.openmrs.logic.result.Result;
+import org.openmrs.logic.util.Util;
 
 /**
  * Tests the ObsDataSource functionality
@@ -65,4 +74,127 @@ public class ObsDataSourceTest extends LogicBaseContextSensitiveTest {
 			}
 		}
 	}
+	
+	/**
+	 * Lists the values and dates of a result, so that a single result and a list holding only that
+	 * result compare equal
+	 */
+	private List<String> values(Result result) {
+		List<String> values = new ArrayList<String>();
+		if (result == null || result.isNull())
+			return values;
+		if (result.isEmpty())
+			values.add(result.toString() + "@" + result.getResultDate());
+		else
+			for (Result r : result)
+				values.addAll(values(r));
+		return values;
+	}
+	
+	/**
+	 * Checks that reading the criteria, whose transform is computed in the database, gives every
+	 * patient the same result as applying the transform in memory to all of the patient's obs
+	 */
+	private void assertSameAsInMemory(LogicCriteria criteria) throws Exception {
+		LogicDataSource lds = Context.getLogicService().getLogicDataSource("obs");
+		// patient 4 has no obs
+		Cohort patients = new Cohort("2,3,4");
+		LogicContext context = new LogicContext(patients);
+		Map<Integer, Result> actual = lds.read(context, patients, criteria);
+		
+		Map<Integer, Result> all = lds.read(context, patients, new LogicCriteria("CD4 COUNT"));
+		Operator transform = criteria.getExpression().getTransform().getTransformOperator();
+		Map<Integer, Result> expected;
+		if (transform == Operator.COUNT || transform == Operator.AVERAGE) {
+			expected = all;
+			Util.applyAggregators(expected, criteria, patients);
+		} else {
+			expected = new HashMap<Integer, Result>();
+			for (Integer id : patients.getMemberIds()) {
+				Result obs = all.containsKey(id) ? all.get(id) : Result.emptyResult();
+				if (transform == Operator.EXISTS)
+					expected.put(id, new Result(obs.exists()));
+				else if (transform == Operator.NOT_EXISTS)
+					expected.put(id, new Result(!obs.exists()));
+				else if (transform == Operator.FIRST)
+					expected.put(id, obs.earliest());
+				else if (transform == Operator.LAST)
+					expected.put(id, obs.latest());
+			}
+		}
+		
+		for (Integer id : patients.getMemberIds())
+			assertEquals(transform + " for patient " + id, values(expected.get(id)), values(actual.get(id)));
+	}
+	
+	@Test
+	public void shouldComputeTheSameCountInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").count());
+	}
+	
+	@Test
+	public void shouldComputeTheSameAverageInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").average());
+	}
+	
+	@Test
+	public void shouldComputeTheSameExistsInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").exists());
+	}
+	
+	@Test
+	public void shouldComputeTheSameNotExistsInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").notExists());
+	}
+	
+	@Test
+	public void shouldComputeTheSameFirstInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").first());
+	}
+	
+	@Test
+	public void shouldComputeTheSameLastInTheDatabaseAsInMemory() throws Exception {
+		assertSameAsInMemory(new LogicCriteria("CD4 COUNT").last());
+	}
+	
+	@Test
+	public void shouldReadSeveralCriteriaTogether() throws Exception {
+		ObsDataSource lds = (ObsDataSource) Context.getLogicService().getLogicDataSource("obs");
+		Cohort patients = new Cohort();
+		
+		patients.addMember(2);
+		patients.addMember(3);
+		
+		LogicCriteria cd4 = new LogicCriteria("CD4 COUNT");
+		LogicCriteria weight = new LogicCriteria("WEIGHT (KG)");
+		LogicCriteria last = new LogicCriteria("CD4 COUNT").last();
+		LogicContext context = new LogicContext(patients);
+		Map<LogicCriteria, Map<Integer, Result>> results = lds.read(context, patients, Arrays.asList(cd4, weight, last));
+		// last() is left to the single criteria read, which finds it in the database
+		assertEquals(2, results.size());
+		assertFalse(results.containsKey(last));
+		
+		// each criteria gets exactly the obs it gets when read alone, in the same order
+		for (LogicCriteria criteria : Arrays.asList(cd4, weight)) {
+			Map<Integer, Result> separately = lds.read(context, patients, criteria);
+			for (Integer id : patients.getMemberIds()) {
+				String message = criteria.getRootToken() + " for patient " + id;
+				assertEquals(message, obsIds(separately.get(id)), obsIds(results.get(criteria).get(id)));
+				assertEquals(message, values(separately.get(id)), values(results.get(criteria).get(id)));
+			}
+		}
+		assertEquals(Arrays.asList(1, 3), obsIds(results.get(cd4).get(2)));
+		assertEquals(Arrays.asList(5, 6), obsIds(results.get(weight).get(3)));
+	}
+	
+	/**
+	 * @return the ids of the obs the members of the result were read from
+	 */
+	private List<Integer> obsIds(Result result) {
+		List<Integer> obsIds = new ArrayList<Integer>();
+		if (result != null)
+			for (Result r : result)
+				obsIds.add(((Obs) r.getResultObject()).getObsId());
+		return obsIds;
+	}
 }
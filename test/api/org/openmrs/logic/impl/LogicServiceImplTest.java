@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.logic.impl;
+
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.logic.LogicBaseContextSensitiveTest;
+import org.openmrs.logic.LogicCriteria;
+import org.openmrs.logic.result.Result;
+import org.openmrs.test.SkipBaseSetup;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link LogicServiceImpl} class that are not part of the LogicService
+ * interface
+ */
+@SkipBaseSetup
+public class LogicServiceImplTest extends LogicBaseContextSensitiveTest {
+	
+	/**
+	 * Runs the basic stuff since we have SkipBaseSetup on the whole class
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		initializeInMemoryDatabase();
+		executeDataSet("org/openmrs/logic/include/LogicTests-patients.xml");
+		executeDataSet("org/openmrs/logic/include/LogicBasicTest.concepts.xml");
+		authenticate();
+	}
+	
+	/**
+	 * @see {@link LogicServiceImpl#evalInParallel(Cohort,LogicCriteria,Map,int)}
+	 */
+	@Test
+	@Verifies(value = "should return the same results as evaluating on the calling thread", method = "evalInParallel(Cohort,LogicCriteria,Map,int)")
+	public void evalInParallel_shouldReturnTheSameResultsAsEvaluatingOnTheCallingThread() throws Exception {
+		// the test replaced the logic service with an unproxied LogicServiceImpl
+		LogicServiceImpl logicService = (LogicServiceImpl) Context.getLogicService();
+		Cohort patients = Context.getPatientSetService().getAllPatients();
+		
+		String[] tokens = { "CD4 COUNT", "CURRENT ANTIRETROVIRAL DRUGS USED FOR TREATMENT" };
+		for (String token : tokens) {
+			LogicCriteria criteria = new LogicCriteria(token);
+			// the cohort is too small to be split up by eval()
+			Map<Integer, Result> serial = logicService.eval(patients, criteria);
+			Map<Integer, Result> parallel = logicService.evalInParallel(patients, criteria, criteria
+			        .getLogicParameters(), 2);
+			
+			Assert.assertEquals(serial.keySet(), parallel.keySet());
+			for (Integer patientId : serial.keySet()) {
+				Assert.assertEquals(serial.get(patientId), parallel.get(patientId));
+				Assert.assertEquals(serial.get(patientId).toString(), parallel.get(patientId).toString());
+			}
+		}
+	}
+}
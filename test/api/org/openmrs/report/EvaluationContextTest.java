@@ -15,6 +15,7 @@ package org.openmrs.report;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import java.text.DateFormat;
@@ -22,6 +23,7 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 
 import org.junit.Test;
+import org.openmrs.test.Verifies;
 
 /**
  *
@@ -76,4 +78,32 @@ public class EvaluationContextTest {
 		    "This report is from 2007-01-10 10:30:17 to 2007-01-31 10:30:17 for male patients");
 	}
 	
+	/**
+	 * @see {@link EvaluationContext#copy()}
+	 */
+	@Test
+	@Verifies(value = "should copy the parameter values", method = "copy()")
+	public void copy_shouldCopyTheParameterValues() throws Exception {
+		Parameter gender = new Parameter("report.gender", "", String.class, "");
+		EvaluationContext context = new EvaluationContext();
+		context.addParameterValue(gender, "male");
+		
+		EvaluationContext copy = context.copy();
+		assertEquals("male", copy.getParameterValue(gender));
+		copy.getParameterValues().get(null).put(gender, "female");
+		assertEquals("male", context.getParameterValue(gender));
+	}
+	
+	/**
+	 * @see {@link EvaluationContext#copy()}
+	 */
+	@Test
+	@Verifies(value = "should share the cache", method = "copy()")
+	public void copy_shouldShareTheCache() throws Exception {
+		EvaluationContext context = new EvaluationContext();
+		EvaluationContext copy = context.copy();
+		copy.addToCache("key", "value");
+		assertEquals("value", context.getFromCache("key"));
+		assertSame(context.getCacheLock("key"), copy.getCacheLock("key"));
+	}
 }
@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.report.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.report.CohortDataSet;
+import org.openmrs.report.CohortDataSetDefinition;
+import org.openmrs.report.DataSet;
+import org.openmrs.report.ReportData;
+import org.openmrs.report.ReportSchema;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the rendering modes of the {@link CsvReportRenderer}
+ */
+public class CsvReportRendererTest {
+	
+	/**
+	 * @return report data with a single cohort data set of two cohorts
+	 */
+	private ReportData getReportData() {
+		CohortDataSetDefinition definition = new CohortDataSetDefinition();
+		definition.addStrategy("males", null);
+		definition.addStrategy("females", null);
+		
+		Map<String, Cohort> cohorts = new LinkedHashMap<String, Cohort>();
+		cohorts.put("males", new Cohort("2,6"));
+		cohorts.put("females", new Cohort("7"));
+		CohortDataSet dataSet = new CohortDataSet();
+		dataSet.setDefinition(definition);
+		dataSet.setCohortData(cohorts);
+		
+		Map<String, DataSet> dataSets = new HashMap<String, DataSet>();
+		dataSets.put("counts", dataSet);
+		ReportSchema schema = new ReportSchema();
+		schema.setName("Counts");
+		ReportData data = new ReportData();
+		data.setReportSchema(schema);
+		data.setDataSets(dataSets);
+		return data;
+	}
+	
+	/**
+	 * Renders the report data to bytes in the given rendering mode
+	 */
+	private byte[] render(String argument) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new CsvReportRenderer().render(getReportData(), argument, out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Reads all the text from the given stream
+	 */
+	private String read(InputStream in) throws IOException {
+		Reader reader = new InputStreamReader(in);
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[1024];
+		for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer))
+			text.append(buffer, 0, read);
+		return text.toString();
+	}
+	
+	/**
+	 * @see {@link DelimitedTextReportRenderer#render(ReportData,String,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should write the same text compressed with gzip", method = "render(ReportData,String,OutputStream)")
+	public void render_shouldWriteTheSameTextCompressedWithGzip() throws Exception {
+		String plain = new String(render(null));
+		Assert.assertEquals("\"males\",\"females\",\n\"2\",\"1\",\n", plain);
+		
+		String unzipped = read(new GZIPInputStream(new ByteArrayInputStream(render(DelimitedTextReportRenderer.GZIP))));
+		Assert.assertEquals(plain, unzipped);
+	}
+	
+	/**
+	 * @see {@link DelimitedTextReportRenderer#render(ReportData,String,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should write the same text in a zip file entry named after the report", method = "render(ReportData,String,OutputStream)")
+	public void render_shouldWriteTheSameTextInAZipFileEntryNamedAfterTheReport() throws Exception {
+		String plain = new String(render(null));
+		
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(render(DelimitedTextReportRenderer.ZIP)));
+		ZipEntry entry = zip.getNextEntry();
+		Assert.assertEquals("Counts.csv", entry.getName());
+		Assert.assertEquals(plain, read(zip));
+		Assert.assertNull(zip.getNextEntry());
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.report.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.api.context.Context;
+import org.openmrs.report.CohortDataSet;
+import org.openmrs.report.CohortDataSetDefinition;
+import org.openmrs.report.DataSet;
+import org.openmrs.report.DataSetDefinition;
+import org.openmrs.report.EvaluationContext;
+import org.openmrs.reporting.PatientCharacteristicFilter;
+import org.openmrs.reporting.PatientSearch;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link ReportServiceImpl} class that are not part of the ReportService
+ * interface
+ */
+public class ReportServiceImplTest extends BaseContextSensitiveTest {
+	
+	private PatientSearch createGenderSearch(String gender) {
+		PatientSearch search = PatientSearch.createFilterSearch(PatientCharacteristicFilter.class);
+		search.addArgument("gender", gender, String.class);
+		return search;
+	}
+	
+	/**
+	 * @see {@link ReportServiceImpl#evaluateInParallel(List,Cohort,EvaluationContext,int)}
+	 */
+	@Test
+	@Verifies(value = "should return the same data sets as evaluating on the calling thread", method = "evaluateInParallel(List,Cohort,EvaluationContext,int)")
+	public void evaluateInParallel_shouldReturnTheSameDataSetsAsEvaluatingOnTheCallingThread() throws Exception {
+		PatientSearch male = createGenderSearch("M");
+		PatientSearch female = createGenderSearch("F");
+		
+		List<DataSetDefinition> definitions = new ArrayList<DataSetDefinition>();
+		CohortDataSetDefinition byGender = new CohortDataSetDefinition();
+		byGender.setName("By gender");
+		byGender.addStrategy("Male", male);
+		byGender.addStrategy("Female", female);
+		definitions.add(byGender);
+		// the same searches again, so the workers share the context's cache
+		CohortDataSetDefinition males = new CohortDataSetDefinition();
+		males.setName("Males");
+		males.addStrategy("Male", male);
+		PatientSearch adult = PatientSearch.createFilterSearch(PatientCharacteristicFilter.class);
+		adult.addArgument("minAge", "15", Integer.class);
+		males.addStrategy("Adult", adult);
+		definitions.add(males);
+		
+		EvaluationContext serialContext = new EvaluationContext();
+		EvaluationContext parallelContext = new EvaluationContext();
+		Map<String, DataSet> data = new ReportServiceImpl().evaluateInParallel(definitions, null, parallelContext, 2);
+		Assert.assertEquals(2, data.size());
+		for (DataSetDefinition definition : definitions) {
+			CohortDataSet expected = (CohortDataSet) Context.getDataSetService().evaluate(definition, null,
+			    serialContext);
+			CohortDataSet actual = (CohortDataSet) data.get(definition.getName());
+			Assert.assertSame(parallelContext, actual.getEvaluationContext());
+			Assert.assertEquals(expected.getCohortData().keySet(), actual.getCohortData().keySet());
+			for (Map.Entry<String, Cohort> e : expected.getCohortData().entrySet())
+				Assert.assertEquals(e.getValue().getMemberIds(), actual.getCohortData().get(e.getKey()).getMemberIds());
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.reporting.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.reporting.export.DataExportIndex.CountingWriter;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link DataExportIndex} class
+ */
+public class DataExportIndexTest {
+	
+	/**
+	 * Writes a header and a row for each of the given patients, recording them in the given index
+	 */
+	private String writeRows(DataExportIndex index, Integer... patientIds) throws IOException {
+		StringWriter out = new StringWriter();
+		CountingWriter counter = new CountingWriter(out);
+		index.record(counter);
+		counter.write("ID\tNAME\n");
+		for (Integer patientId : patientIds) {
+			index.startRow(patientId);
+			counter.write(patientId + "\tname of " + patientId + "\n");
+		}
+		index.endRow();
+		return out.toString();
+	}
+	
+	/**
+	 * @see {@link DataExportIndex#read(File)}
+	 */
+	@Test
+	@Verifies(value = "should read an index that was written", method = "read(File)")
+	public void read_shouldReadAnIndexThatWasWritten() throws Exception {
+		DataExportIndex index = new DataExportIndex(new Date(1000000000000L), 42);
+		writeRows(index, 2, 7, 10);
+		
+		File file = File.createTempFile("dataExport", ".index");
+		try {
+			index.write(file);
+			DataExportIndex read = DataExportIndex.read(file);
+			Assert.assertEquals(new Date(1000000000000L), read.getWatermark());
+			Assert.assertEquals(42, read.getTemplateHash());
+			Assert.assertEquals(Arrays.asList(2, 7, 10), Arrays.asList(read.getPatientIds().toArray()));
+			Assert.assertEquals(index.getStart(7), read.getStart(7));
+			Assert.assertEquals(index.getLength(7), read.getLength(7));
+		}
+		finally {
+			file.delete();
+		}
+		Assert.assertNull(DataExportIndex.read(file));
+	}
+	
+	/**
+	 * @see {@link DataExportIndex#copyRows(Integer,Reader,long,Writer)}
+	 */
+	@Test
+	@Verifies(value = "should copy only the rows of the given patients", method = "copyRows(Integer,Reader,long,Writer)")
+	public void copyRows_shouldCopyOnlyTheRowsOfTheGivenPatients() throws Exception {
+		DataExportIndex index = new DataExportIndex(new Date(), 0);
+		String rows = writeRows(index, 2, 7, 10);
+		
+		StringReader reader = new StringReader(rows);
+		StringWriter out = new StringWriter();
+		long position = index.copyRows(2, reader, 0, out);
+		index.copyRows(10, reader, position, out);
+		Assert.assertEquals("2\tname of 2\n10\tname of 10\n", out.toString());
+	}
+	
+	/**
+	 * @see {@link DataExportIndex#copyRows(Integer,Reader,long,Writer)}
+	 */
+	@Test(expected = IOException.class)
+	@Verifies(value = "should fail if the reader is past the rows", method = "copyRows(Integer,Reader,long,Writer)")
+	public void copyRows_shouldFailIfTheReaderIsPastTheRows() throws Exception {
+		DataExportIndex index = new DataExportIndex(new Date(), 0);
+		String rows = writeRows(index, 2, 7);
+		
+		StringReader reader = new StringReader(rows);
+		long position = index.copyRows(7, reader, 0, new StringWriter());
+		index.copyRows(2, reader, position, new StringWriter());
+	}
+}
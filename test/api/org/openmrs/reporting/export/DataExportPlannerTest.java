@@ -0,0 +1,140 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.reporting.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Cohort;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link DataExportPlanner} class
+ */
+public class DataExportPlannerTest extends BaseContextSensitiveTest {
+	
+	private DataExportFunctions functions;
+	
+	@Before
+	public void setUpFunctions() throws Exception {
+		initializeInMemoryDatabase();
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-patients.xml");
+		executeDataSet("org/openmrs/reporting/export/include/DataExportTest-obs.xml");
+		authenticate();
+		
+		Cohort patients = new Cohort();
+		patients.addMember(2);
+		functions = new DataExportFunctions();
+		functions.setPatientSet(patients);
+	}
+	
+	private ConceptColumn createWeightColumn(String name, String modifier, String[] extras) {
+		ConceptColumn column = new ConceptColumn();
+		column.setColumnName(name);
+		column.setConceptId(5089);
+		column.setConceptName("Weight (KG)");
+		column.setModifier(modifier);
+		column.setModifierNum(2);
+		column.setExtras(extras);
+		return column;
+	}
+	
+	/**
+	 * @see {@link DataExportPlanner#plan(List)}
+	 */
+	@Test
+	@Verifies(value = "should plan one fetch per distinct key", method = "plan(List)")
+	public void plan_shouldPlanOneFetchPerDistinctKey() throws Exception {
+		List<ExportColumn> columns = new ArrayList<ExportColumn>();
+		columns.add(new SimpleColumn("GENDER", "$!{fn.getPatientAttr('Person', 'gender')}"));
+		columns.add(new SimpleColumn("AGE", "$!{fn.calculateAge($fn.getPatientAttr('Person', 'birthdate'))}"));
+		columns.add(new SimpleColumn("BIRTHDATE",
+		        "$!{fn.formatDate('short', $fn.getPatientAttr('Person', 'birthdate'))}"));
+		columns.add(createWeightColumn("WEIGHT", DataExportReportObject.MODIFIER_FIRST_NUM, new String[] { "location" }));
+		columns.add(createWeightColumn("LAST_WEIGHT", DataExportReportObject.MODIFIER_LAST_NUM,
+		    new String[] { "location" }));
+		
+		DataExportPlanner planner = new DataExportPlanner(functions);
+		planner.plan(columns);
+		Assert.assertEquals(3, planner.getFetchCount());
+		
+		planner.prefetch(1);
+		Assert.assertTrue(functions.patientAttributeMap.containsKey("Person.gender"));
+		Assert.assertTrue(functions.patientAttributeMap.containsKey("Person.birthdate"));
+		Assert.assertTrue(functions.conceptAttrObsMap.containsKey("5089"));
+		Assert.assertNotNull(functions.conceptAttrObsMap.get("5089").get(2));
+	}
+	
+	/**
+	 * @see {@link DataExportPlanner#plan(List)}
+	 */
+	@Test
+	@Verifies(value = "should not plan calls with arguments that are not literals", method = "plan(List)")
+	public void plan_shouldNotPlanCallsWithArgumentsThatAreNotLiterals() throws Exception {
+		List<ExportColumn> columns = new ArrayList<ExportColumn>();
+		columns.add(new SimpleColumn("GENDER", "#set($property = 'gender')$!{fn.getPatientAttr('Person', $property)}"));
+		columns.add(new SimpleColumn("OBS", "$!{fn.getLastObs($fn.getConcept('5089'))}"));
+		columns.add(createWeightColumn("WEIGHT", DataExportReportObject.MODIFIER_LAST, new String[] {}));
+		
+		DataExportPlanner planner = new DataExportPlanner(functions);
+		planner.plan(columns);
+		Assert.assertEquals(0, planner.getFetchCount());
+	}
+	
+	/**
+	 * @see {@link DataExportPlanner#plan(List)}
+	 */
+	@Test
+	@Verifies(value = "should not plan obs for a concept asked for with different attributes", method = "plan(List)")
+	public void plan_shouldNotPlanObsForAConceptAskedForWithDifferentAttributes() throws Exception {
+		List<ExportColumn> columns = new ArrayList<ExportColumn>();
+		columns.add(createWeightColumn("WEIGHT", DataExportReportObject.MODIFIER_LAST, new String[] {}));
+		columns.add(createWeightColumn("WEIGHT_LOCATION", DataExportReportObject.MODIFIER_LAST,
+		    new String[] { "location" }));
+		
+		DataExportPlanner planner = new DataExportPlanner(functions);
+		planner.plan(columns);
+		Assert.assertEquals(0, planner.getFetchCount());
+	}
+	
+	/**
+	 * @see {@link DataExportPlanner#prefetch(int)}
+	 */
+	@Test
+	@Verifies(value = "should fetch the same values on several threads as on the calling thread", method = "prefetch(int)")
+	public void prefetch_shouldFetchTheSameValuesOnSeveralThreadsAsOnTheCallingThread() throws Exception {
+		List<ExportColumn> columns = new ArrayList<ExportColumn>();
+		columns.add(new SimpleColumn("GENDER", "$!{fn.getPatientAttr('Person', 'gender')}"));
+		columns.add(new SimpleColumn("BIRTHDATE", "$!{fn.getPatientAttr('Person', 'birthdate')}"));
+		columns.add(createWeightColumn("WEIGHT", DataExportReportObject.MODIFIER_LAST_NUM, new String[] { "location" }));
+		
+		DataExportPlanner planner = new DataExportPlanner(functions);
+		planner.plan(columns);
+		planner.prefetch(1);
+		
+		DataExportFunctions parallelFunctions = new DataExportFunctions();
+		parallelFunctions.setPatientSet(functions.getPatientSet());
+		DataExportPlanner parallelPlanner = new DataExportPlanner(parallelFunctions);
+		parallelPlanner.plan(columns);
+		parallelPlanner.prefetch(3);
+		
+		Assert.assertEquals(functions.patientAttributeMap, parallelFunctions.patientAttributeMap);
+		Assert.assertEquals(functions.conceptAttrObsMap.get("5089"), parallelFunctions.conceptAttrObsMap.get("5089"));
+	}
+}
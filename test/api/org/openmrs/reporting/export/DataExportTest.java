@@ -14,16 +14,22 @@
 package org.openmrs.reporting.export;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 
 import org.junit.Test;
 import org.openmrs.Cohort;
+import org.openmrs.GlobalProperty;
 import org.openmrs.api.context.Context;
 import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
 
 /**
@@ -601,4 +607,95 @@ public class DataExportTest extends BaseContextSensitiveTest {
 		//System.out.println("exportFile: \n" + output);
 		assertEquals("The output is not right.", expectedOutput, output);
 	}
+	
+	/**
+	 * @see {@link DataExportUtil#getTemplate(DataExportReportObject,String)}
+	 */
+	@Test
+	@Verifies(value = "should return the cached template if the template has not changed", method = "getTemplate(DataExportReportObject,String)")
+	public void getTemplate_shouldReturnTheCachedTemplateIfTheTemplateHasNotChanged() throws Exception {
+		DataExportReportObject export = new DataExportReportObject();
+		export.setReportObjectId(1);
+		export.getColumns().add(new SimpleColumn("PATIENT_ID", "$!{fn.patientId}"));
+		
+		DataExportUtil.clearTemplateCache();
+		assertSame(DataExportUtil.getTemplate(export, export.generateTemplate()), DataExportUtil.getTemplate(export, export
+		        .generateTemplate()));
+	}
+	
+	/**
+	 * @see {@link DataExportUtil#getTemplate(DataExportReportObject,String)}
+	 */
+	@Test
+	@Verifies(value = "should parse the template again if it has changed", method = "getTemplate(DataExportReportObject,String)")
+	public void getTemplate_shouldParseTheTemplateAgainIfItHasChanged() throws Exception {
+		DataExportReportObject export = new DataExportReportObject();
+		export.setReportObjectId(1);
+		export.getColumns().add(new SimpleColumn("PATIENT_ID", "$!{fn.patientId}"));
+		
+		DataExportUtil.clearTemplateCache();
+		Object first = DataExportUtil.getTemplate(export, export.generateTemplate());
+		export.getColumns().add(new SimpleColumn("GENDER", "$!{fn.getPatientAttr('Person', 'gender')}"));
+		assertNotSame(first, DataExportUtil.getTemplate(export, export.generateTemplate()));
+	}
+	
+	/**
+	 * @see {@link DataExportUtil#generateExport(DataExportReportObject,Cohort,DataExportFunctions,EvaluationContext)}
+	 */
+	@Test
+	@Verifies(value = "should write the same rows when exporting in chunks", method = "generateExport(DataExportReportObject,Cohort,DataExportFunctions,EvaluationContext)")
+	public void generateExport_shouldWriteTheSameRowsWhenExportingInChunks() throws Exception {
+		DataExportReportObject export = new DataExportReportObject();
+		export.setName("CHUNKED_EXPORT");
+		export.addSimpleColumn("PATIENT_ID", "$!{fn.patientId}");
+		export.addSimpleColumn("GENDER", "$!{fn.getPatientAttr('Person', 'gender')}");
+		Cohort patients = new Cohort(Arrays.asList(2, 6, 7, 8));
+		
+		DataExportUtil.generateExport(export, patients, "\t", null);
+		File exportFile = DataExportUtil.getGeneratedFile(export);
+		String expectedOutput = OpenmrsUtil.getFileAsString(exportFile);
+		
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE, "3"));
+		DataExportUtil.generateExport(export, patients, "\t", null);
+		String output = OpenmrsUtil.getFileAsString(exportFile);
+		exportFile.delete();
+		
+		assertEquals(5, output.split("\n").length);
+		assertEquals(expectedOutput, output);
+	}
+	
+	/**
+	 * @see {@link DataExportUtil#generateExport(DataExportReportObject,Cohort,DataExportFunctions,EvaluationContext)}
+	 */
+	@Test
+	@Verifies(value = "should write the same rows in the same order when exporting on several threads", method = "generateExport(DataExportReportObject,Cohort,DataExportFunctions,EvaluationContext)")
+	public void generateExport_shouldWriteTheSameRowsInTheSameOrderWhenExportingOnSeveralThreads() throws Exception {
+		DataExportReportObject export = new DataExportReportObject();
+		export.setName("PARALLEL_EXPORT");
+		export.addSimpleColumn("PATIENT_ID", "$!{fn.patientId}");
+		export.addSimpleColumn("GENDER", "$!{fn.getPatientAttr('Person', 'gender')}");
+		export.addSimpleColumn("NAME", "$!{fn.getPatientAttr('PersonName', 'givenName')}");
+		export.addSimpleColumn("BIRTHDATE", "$!{fn.formatDate('ymd', $fn.getPatientAttr('Person', 'birthdate'))}");
+		Cohort patients = new Cohort(Arrays.asList(2, 6, 7, 8));
+		
+		DataExportUtil.generateExport(export, patients, "\t", null);
+		File exportFile = DataExportUtil.getGeneratedFile(export);
+		String expectedOutput = OpenmrsUtil.getFileAsString(exportFile);
+		
+		// one patient per partition, so the partitions finish out of order on two threads
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_THREADS, "2"));
+		Context.getAdministrationService().saveGlobalProperty(
+		    new GlobalProperty(OpenmrsConstants.GLOBAL_PROPERTY_DATA_EXPORT_CHUNK_SIZE, "1"));
+		DataExportUtil.generateExport(export, patients, "\t", null);
+		String output = OpenmrsUtil.getFileAsString(exportFile);
+		exportFile.delete();
+		
+		String[] rows = output.split("\n");
+		assertEquals(5, rows.length);
+		for (int i = 1; i < rows.length; i++)
+			assertEquals(patients.getMemberIds().toArray()[i - 1].toString(), rows[i].split("\t")[0]);
+		assertEquals(expectedOutput, output);
+	}
 }
@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.scheduler.tasks;
+
+import java.util.List;
+import java.util.Locale;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.ConceptWord;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.impl.ConceptServiceImpl;
+import org.openmrs.scheduler.TaskDefinition;
+import org.openmrs.test.BaseContextSensitiveTest;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests the {@link ConceptWordUpdateTask} class
+ */
+public class ConceptWordUpdateTaskTest extends BaseContextSensitiveTest {
+	
+	/**
+	 * Adds the task definition (with two threads) and the scheduler's credentials
+	 * 
+	 * @throws Exception
+	 */
+	@Before
+	public void runBeforeEachTest() throws Exception {
+		executeDataSet("org/openmrs/scheduler/include/ConceptWordUpdateTaskTest.xml");
+	}
+	
+	/**
+	 * Runs the task and waits for it to finish
+	 */
+	private void runTask() throws Exception {
+		ConceptWordUpdateTask task = new ConceptWordUpdateTask();
+		task.execute();
+		for (int i = 0; i < 600 && task.isExecuting(); i++)
+			Thread.sleep(100);
+		Assert.assertFalse("The task did not finish", task.isExecuting());
+	}
+	
+	/**
+	 * @see {@link ConceptWordUpdateTask#execute()}
+	 */
+	@Test
+	@Verifies(value = "should create the words of every concept", method = "execute()")
+	public void execute_shouldCreateTheWordsOfEveryConcept() throws Exception {
+		// the standard test dataset has no concept words
+		Assert.assertTrue(Context.getConceptService().getConceptWords("CD4", Locale.ENGLISH).isEmpty());
+		
+		runTask();
+		
+		List<ConceptWord> words = Context.getConceptService().getConceptWords("CD4", Locale.ENGLISH);
+		Assert.assertFalse(words.isEmpty());
+		Assert.assertEquals(5497, words.get(0).getConcept().getConceptId().intValue());
+	}
+	
+	/**
+	 * @see {@link ConceptWordUpdateTask#execute()}
+	 */
+	@Test
+	@Verifies(value = "should record when the update started and clear its progress", method = "execute()")
+	public void execute_shouldRecordWhenTheUpdateStartedAndClearItsProgress() throws Exception {
+		runTask();
+		
+		Context.clearSession();
+		TaskDefinition taskDef = Context.getSchedulerService().getTaskByName(
+		    ConceptServiceImpl.CONCEPT_WORD_UPDATE_TASK_NAME);
+		Assert.assertNotNull(taskDef.getProperty(ConceptWordUpdateTask.PROPERTY_WATERMARK));
+		Assert.assertNull(taskDef.getProperty(ConceptWordUpdateTask.PROPERTY_LAST_CONCEPT_ID));
+		Assert.assertFalse(taskDef.getStarted());
+	}
+}
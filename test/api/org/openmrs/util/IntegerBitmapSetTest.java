@@ -0,0 +1,146 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ * 
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ * 
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.util;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+/**
+ * Tests methods on the {@link IntegerBitmapSet} class
+ */
+public class IntegerBitmapSetTest {
+	
+	/**
+	 * Builds a set with a dense chunk (ids 0-9999, every other one) and a sparse chunk (ids above
+	 * 200000)
+	 */
+	private Set<Integer> makeSample(int offset) {
+		Set<Integer> ret = new HashSet<Integer>();
+		for (int i = offset; i < 20000; i += 2)
+			ret.add(i);
+		for (int i = 200000 + offset; i < 200100; i += 3)
+			ret.add(i);
+		return ret;
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#or(IntegerBitmapSet,IntegerBitmapSet)}
+	 */
+	@Test
+	@Verifies(value = "should return the union of sparse and dense sets", method = "or(IntegerBitmapSet,IntegerBitmapSet)")
+	public void or_shouldReturnTheUnionOfSparseAndDenseSets() throws Exception {
+		Set<Integer> a = makeSample(0);
+		Set<Integer> b = makeSample(1);
+		b.add(70000);
+		IntegerBitmapSet result = IntegerBitmapSet.or(new IntegerBitmapSet(a), new IntegerBitmapSet(b));
+		
+		Set<Integer> expected = new HashSet<Integer>(a);
+		expected.addAll(b);
+		Assert.assertEquals(expected.size(), result.size());
+		Assert.assertEquals(expected, result);
+		Assert.assertEquals(result, expected);
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#and(IntegerBitmapSet,IntegerBitmapSet)}
+	 */
+	@Test
+	@Verifies(value = "should return the intersection of sparse and dense sets", method = "and(IntegerBitmapSet,IntegerBitmapSet)")
+	public void and_shouldReturnTheIntersectionOfSparseAndDenseSets() throws Exception {
+		Set<Integer> a = makeSample(0);
+		Set<Integer> b = new HashSet<Integer>();
+		for (int i = 0; i < 200100; i += 3)
+			b.add(i);
+		IntegerBitmapSet result = IntegerBitmapSet.and(new IntegerBitmapSet(a), new IntegerBitmapSet(b));
+		
+		Set<Integer> expected = new HashSet<Integer>(a);
+		expected.retainAll(b);
+		Assert.assertEquals(expected, result);
+		Assert.assertEquals(expected.size(), IntegerBitmapSet.andCardinality(new IntegerBitmapSet(a),
+		    new IntegerBitmapSet(b)));
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#andNot(IntegerBitmapSet,IntegerBitmapSet)}
+	 */
+	@Test
+	@Verifies(value = "should return the difference of sparse and dense sets", method = "andNot(IntegerBitmapSet,IntegerBitmapSet)")
+	public void andNot_shouldReturnTheDifferenceOfSparseAndDenseSets() throws Exception {
+		Set<Integer> a = makeSample(0);
+		Set<Integer> b = new HashSet<Integer>();
+		for (int i = 0; i < 200100; i += 3)
+			b.add(i);
+		IntegerBitmapSet result = IntegerBitmapSet.andNot(new IntegerBitmapSet(a), new IntegerBitmapSet(b));
+		
+		Set<Integer> expected = new HashSet<Integer>(a);
+		expected.removeAll(b);
+		Assert.assertEquals(expected, result);
+		Assert.assertTrue(IntegerBitmapSet.andNot(new IntegerBitmapSet(a), new IntegerBitmapSet(a)).isEmpty());
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#remove(int)}
+	 */
+	@Test
+	@Verifies(value = "should switch a chunk back to array storage when it becomes sparse", method = "remove(int)")
+	public void remove_shouldSwitchAChunkBackToArrayStorageWhenItBecomesSparse() throws Exception {
+		IntegerBitmapSet set = new IntegerBitmapSet();
+		for (int i = 0; i < 5000; ++i)
+			set.add(i);
+		for (int i = 0; i < 4990; ++i)
+			Assert.assertTrue(set.remove(i));
+		Assert.assertFalse(set.remove(1));
+		Assert.assertEquals(10, set.size());
+		Assert.assertTrue(set.contains(4995));
+		Assert.assertFalse(set.contains(4989));
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#iterator()}
+	 */
+	@Test
+	@Verifies(value = "should iterate in ascending order", method = "iterator()")
+	public void iterator_shouldIterateInAscendingOrder() throws Exception {
+		Set<Integer> expected = new TreeSet<Integer>(makeSample(0));
+		IntegerBitmapSet set = new IntegerBitmapSet(expected);
+		Iterator<Integer> i = set.iterator();
+		for (Integer e : expected)
+			Assert.assertEquals(e, i.next());
+		Assert.assertFalse(i.hasNext());
+		Assert.assertEquals(expected.size(), set.toIntArray().length);
+	}
+	
+	/**
+	 * @see {@link IntegerBitmapSet#iterator()}
+	 */
+	@Test
+	@Verifies(value = "should allow removal while iterating", method = "iterator()")
+	public void iterator_shouldAllowRemovalWhileIterating() throws Exception {
+		IntegerBitmapSet set = new IntegerBitmapSet(new int[] { 1, 2, 3, 70000, 70001, 140000 });
+		for (Iterator<Integer> i = set.iterator(); i.hasNext();) {
+			int id = i.next();
+			if (id != 2)
+				i.remove();
+		}
+		Assert.assertEquals(1, set.size());
+		Assert.assertTrue(set.contains(2));
+	}
+}